@@ -0,0 +1,351 @@
+package org.astrogrid.samp.tls;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Minimal microbenchmark harness.
+ * Each benchmark is run for a warm-up period, then for a number of
+ * timed iterations, on one or more threads at once.
+ * For each, the mean and standard deviation of throughput over
+ * the iterations and the mean heap allocation per operation are reported.
+ * Results can be saved to a file, and compared with those from
+ * an earlier run saved in the same way.
+ *
+ * <p>This does some of what JMH does, without the build dependency.
+ * It does not fork a JVM per benchmark, and its dead code elimination
+ * defence is only to consume every operation's return value,
+ * so its timings are less trustworthy than JMH's, but they are adequate
+ * for comparing a change against a baseline run on the same machine.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class BenchRunner {
+
+    private final double warmupSec_;
+    private final double iterSec_;
+    private final int nIter_;
+    private volatile long sink_;
+
+    /** Number of operations between checks of the clock. */
+    private static final int CHUNK = 16;
+
+    /**
+     * Constructor.
+     *
+     * @param  warmupSec  warm-up time per benchmark in seconds
+     * @param  iterSec   time per measurement iteration in seconds
+     * @param  nIter   number of measurement iterations
+     */
+    public BenchRunner( double warmupSec, double iterSec, int nIter ) {
+        warmupSec_ = warmupSec;
+        iterSec_ = iterSec;
+        nIter_ = nIter;
+    }
+
+    /**
+     * Runs a benchmark.
+     *
+     * @param  bench  benchmark
+     * @return  result
+     */
+    public Result run( Benchmark bench ) throws Exception {
+        bench.setUp();
+        try {
+            runIteration( bench, warmupSec_ );
+            double[] rates = new double[ nIter_ ];
+            long nop = 0;
+            long nbyte = 0;
+            for ( int ii = 0; ii < nIter_; ii++ ) {
+                long[] counts = runIteration( bench, iterSec_ );
+                rates[ ii ] = counts[ 0 ] * 1e9 / counts[ 1 ];
+                nop += counts[ 0 ];
+                nbyte = nbyte >= 0 && counts[ 2 ] >= 0 ? nbyte + counts[ 2 ]
+                                                       : -1;
+            }
+            double sum = 0;
+            for ( double r : rates ) {
+                sum += r;
+            }
+            double mean = sum / nIter_;
+            double sum2 = 0;
+            for ( double r : rates ) {
+                sum2 += ( r - mean ) * ( r - mean );
+            }
+            double sd = nIter_ > 1 ? Math.sqrt( sum2 / ( nIter_ - 1 ) ) : 0;
+            return new Result( bench.getName(), mean, sd,
+                               nbyte >= 0 ? nbyte / (double) nop : -1 );
+        }
+        finally {
+            bench.tearDown();
+        }
+    }
+
+    /**
+     * Runs a benchmark on all its threads for a given time.
+     *
+     * @param  bench  benchmark
+     * @param  sec  duration in seconds
+     * @return  3-element array: (operation count, elapsed nanoseconds,
+     *          bytes allocated or -1)
+     */
+    private long[] runIteration( final Benchmark bench, double sec )
+            throws Exception {
+        final int nthread = bench.getThreadCount();
+        final long[][] counts = new long[ nthread ][];
+        final Exception[] errors = new Exception[ nthread ];
+        final CountDownLatch startLatch = new CountDownLatch( 1 );
+        final long durationNanos = (long) ( sec * 1e9 );
+        Thread[] threads = new Thread[ nthread ];
+        for ( int it = 0; it < nthread; it++ ) {
+            final int ithread = it;
+            threads[ it ] = new Thread( "Bench-" + it ) {
+                public void run() {
+                    try {
+                        startLatch.await();
+                        counts[ ithread ] =
+                            runOps( bench, ithread, durationNanos );
+                    }
+                    catch ( Exception e ) {
+                        errors[ ithread ] = e;
+                    }
+                }
+            };
+            threads[ it ].start();
+        }
+        long t0 = System.nanoTime();
+        startLatch.countDown();
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - t0;
+        long nop = 0;
+        long nbyte = 0;
+        for ( int it = 0; it < nthread; it++ ) {
+            if ( errors[ it ] != null ) {
+                throw errors[ it ];
+            }
+            nop += counts[ it ][ 0 ];
+            nbyte = nbyte >= 0 && counts[ it ][ 1 ] >= 0
+                  ? nbyte + counts[ it ][ 1 ]
+                  : -1;
+        }
+        return new long[] { nop, elapsed, nbyte };
+    }
+
+    /**
+     * Repeatedly executes a benchmark operation on the current thread.
+     *
+     * @param  bench  benchmark
+     * @param  ithread  thread index
+     * @param  durationNanos  time to run for
+     * @return  2-element array: (operation count, bytes allocated or -1)
+     */
+    private long[] runOps( Benchmark bench, int ithread, long durationNanos )
+            throws Exception {
+        long hash = 0;
+        long n = 0;
+        long alloc0 = getAllocatedBytes();
+        long tEnd = System.nanoTime() + durationNanos;
+        do {
+            for ( int i = 0; i < CHUNK; i++ ) {
+                Object result = bench.op( ithread, n + i );
+                hash += result == null ? 1 : System.identityHashCode( result );
+            }
+            n += CHUNK;
+        } while ( System.nanoTime() < tEnd );
+        long alloc1 = getAllocatedBytes();
+        sink_ += hash;
+        return new long[] { n, alloc0 >= 0 ? alloc1 - alloc0 : -1 };
+    }
+
+    /**
+     * Writes results to a file, in the format read by
+     * {@link #readResults}.
+     *
+     * @param  results  results
+     * @param  file   filename
+     */
+    public static void writeResults( List<Result> results, String file )
+            throws IOException {
+        PrintWriter out = new PrintWriter( new FileWriter( file ) );
+        try {
+            for ( Result result : results ) {
+                out.println( result.name_ + "\t" + result.opsPerSec_ );
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the throughputs from a file written by {@link #writeResults}.
+     *
+     * @param  file  filename
+     * @return  map from benchmark name to operations per second
+     */
+    public static Map<String,Double> readResults( String file )
+            throws IOException {
+        Map<String,Double> map = new LinkedHashMap<String,Double>();
+        BufferedReader in = new BufferedReader( new FileReader( file ) );
+        try {
+            for ( String line; ( line = in.readLine() ) != null; ) {
+                String[] words = line.split( "\t" );
+                if ( words.length == 2 ) {
+                    map.put( words[ 0 ], Double.valueOf( words[ 1 ] ) );
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        return map;
+    }
+
+    /**
+     * Formats a result for display, optionally comparing it
+     * with a baseline.
+     *
+     * @param  result  result
+     * @param  baseline  baseline operations per second, or null
+     * @return  one-line summary
+     */
+    public static String format( Result result, Double baseline ) {
+        StringBuffer sbuf = new StringBuffer();
+        sbuf.append( String.format( Locale.ROOT, "%-30s %12.0f ops/s"
+                                               + " +- %4.1f%%",
+                                    result.name_, result.opsPerSec_,
+                                    100 * result.sdOpsPerSec_
+                                        / result.opsPerSec_ ) );
+        sbuf.append( result.bytesPerOp_ >= 0
+                   ? String.format( Locale.ROOT, " %10.0f B/op",
+                                    result.bytesPerOp_ )
+                   : "        ? B/op" );
+        if ( baseline != null ) {
+            double ratio = result.opsPerSec_ / baseline.doubleValue();
+            sbuf.append( String.format( Locale.ROOT,
+                                        "  %+6.1f%% vs baseline",
+                                        100 * ( ratio - 1 ) ) );
+        }
+        return sbuf.toString();
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread,
+     * if the JVM can tell us.
+     *
+     * @return  allocated bytes, or -1
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        if ( tmx instanceof com.sun.management.ThreadMXBean ) {
+            return ((com.sun.management.ThreadMXBean) tmx)
+                  .getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        else {
+            return -1;
+        }
+    }
+
+    /**
+     * Defines an operation to be benchmarked.
+     */
+    public static abstract class Benchmark {
+        private final String name_;
+        private final int nthread_;
+
+        /**
+         * Constructor.
+         *
+         * @param  name  benchmark name
+         * @param  nthread  number of threads executing the operation
+         *                  concurrently
+         */
+        protected Benchmark( String name, int nthread ) {
+            name_ = name;
+            nthread_ = nthread;
+        }
+
+        /**
+         * Returns this benchmark's name.
+         *
+         * @return  name
+         */
+        public String getName() {
+            return name_;
+        }
+
+        /**
+         * Returns the number of threads executing the operation concurrently.
+         *
+         * @return  thread count
+         */
+        public int getThreadCount() {
+            return nthread_;
+        }
+
+        /**
+         * Prepares state before the benchmark runs.
+         * The default implementation does nothing.
+         */
+        public void setUp() throws Exception {
+        }
+
+        /**
+         * Releases state after the benchmark has run.
+         * The default implementation does nothing.
+         */
+        public void tearDown() throws Exception {
+        }
+
+        /**
+         * Performs the operation once.
+         * The return value is consumed, so that the work which
+         * produces it cannot be optimised away.
+         *
+         * @param  ithread  index of the calling thread
+         * @param  iop   index of this operation on the calling thread
+         * @return  any value depending on the work done
+         */
+        public abstract Object op( int ithread, long iop ) throws Exception;
+    }
+
+    /**
+     * Result of running a benchmark.
+     */
+    public static class Result {
+        final String name_;
+        final double opsPerSec_;
+        final double sdOpsPerSec_;
+        final double bytesPerOp_;
+
+        /**
+         * Constructor.
+         *
+         * @param  name  benchmark name
+         * @param  opsPerSec  mean throughput in operations per second
+         * @param  sdOpsPerSec  standard deviation of throughput
+         * @param  bytesPerOp  mean heap allocation per operation,
+         *                     or -1 if not known
+         */
+        Result( String name, double opsPerSec, double sdOpsPerSec,
+                double bytesPerOp ) {
+            name_ = name;
+            opsPerSec_ = opsPerSec;
+            sdOpsPerSec_ = sdOpsPerSec;
+            bytesPerOp_ = bytesPerOp;
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package org.astrogrid.samp.tls;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.Icon;
+
+/**
+ * Runs microbenchmarks of the hot paths of the relay and hub
+ * using {@link BenchRunner}, so that performance changes can be
+ * measured against a saved baseline.
+ *
+ * <p>The benchmarks are:
+ * <dl>
+ * <dt>store.blocking.t4, store.rendezvous.t4</dt>
+ * <dd>put and take of a call on a {@link BlockingStore}, and on the
+ *     {@link RendezvousStore} which replaced it in the relay,
+ *     by 4 threads contending for the same store</dd>
+ * <dt>relay.roundtrip.t1, relay.roundtrip.t4</dt>
+ * <dd>a complete in-process relayed call: pullCall to the
+ *     dispense handler, call submission to the receive handler,
+ *     and receiveResult to the dispense handler,
+ *     on 1 and 4 threads</dd>
+ * <dt>codec.decode.small, codec.decode.notify,
+ *     codec.decode.notify.opaque</dt>
+ * <dd>XML-RPC decoding of a small call and of a notify call with
+ *     a VOTable parameter, fully and as for relayed calls</dd>
+ * <dt>codec.encode.small, codec.encode.pull</dt>
+ * <dd>XML-RPC encoding of a small result and of a pulled notify call</dd>
+ * <dt>nudge.parse.parsedUrl, nudge.parse.nudgeUrl</dt>
+ * <dd>nudge URL parsing by {@link ParsedUrl} and by the
+ *     nudge handler's own parser</dd>
+ * <dt>image.render, image.prerendered</dt>
+ * <dd>nudge image responses rendered per request and prepared</dd>
+ * </dl>
+ *
+ * <p>Usage:
+ * <pre>
+ *    HotPathBench [-warmup sec] [-time sec] [-iter n]
+ *                 [-save file] [-baseline file] [name-prefix ...]
+ * </pre>
+ * With <code>-save</code> the throughputs are written to a file,
+ * and with <code>-baseline</code> they are compared with those
+ * in a file written earlier.  If name prefixes are given,
+ * only benchmarks whose names start with one of them are run.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class HotPathBench {
+
+    private static final int NKEY = 1024;
+    private static final Logger logger_ =
+        Logger.getLogger( "org.astrogrid.samp" );
+    private static final OutputStream DISCARD = new OutputStream() {
+        public void write( int b ) {
+        }
+        @Override
+        public void write( byte[] b, int off, int len ) {
+        }
+    };
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        String usage = "Usage: " + HotPathBench.class.getName()
+                     + " [-warmup sec] [-time sec] [-iter n]"
+                     + " [-save file] [-baseline file] [name-prefix ...]";
+        double warmupSec = 2;
+        double iterSec = 1;
+        int nIter = 5;
+        String saveFile = null;
+        String baselineFile = null;
+        List<String> prefixes = new ArrayList<String>();
+        for ( int i = 0; i < args.length; i++ ) {
+            String arg = args[ i ];
+            boolean hasNext = i + 1 < args.length;
+            if ( "-warmup".equals( arg ) && hasNext ) {
+                warmupSec = Double.parseDouble( args[ ++i ] );
+            }
+            else if ( "-time".equals( arg ) && hasNext ) {
+                iterSec = Double.parseDouble( args[ ++i ] );
+            }
+            else if ( "-iter".equals( arg ) && hasNext ) {
+                nIter = Integer.parseInt( args[ ++i ] );
+            }
+            else if ( "-save".equals( arg ) && hasNext ) {
+                saveFile = args[ ++i ];
+            }
+            else if ( "-baseline".equals( arg ) && hasNext ) {
+                baselineFile = args[ ++i ];
+            }
+            else if ( arg.startsWith( "-" ) ) {
+                System.err.println( usage );
+                System.exit( 1 );
+            }
+            else {
+                prefixes.add( arg );
+            }
+        }
+        System.setProperty( "java.awt.headless", "true" );
+        logger_.setLevel( Level.WARNING );
+        Map<String,Double> baseline =
+            baselineFile == null ? new HashMap<String,Double>()
+                                 : BenchRunner.readResults( baselineFile );
+        BenchRunner runner = new BenchRunner( warmupSec, iterSec, nIter );
+        List<BenchRunner.Result> results =
+            new ArrayList<BenchRunner.Result>();
+        System.out.println( "Java " + System.getProperty( "java.version" )
+                          + ", " + Runtime.getRuntime().availableProcessors()
+                          + " CPUs" );
+        for ( BenchRunner.Benchmark bench : createBenchmarks() ) {
+            if ( isSelected( bench.getName(), prefixes ) ) {
+                BenchRunner.Result result = runner.run( bench );
+                results.add( result );
+                System.out.println( BenchRunner
+                                   .format( result,
+                                            baseline.get( bench.getName() ) ) );
+            }
+        }
+        if ( saveFile != null ) {
+            BenchRunner.writeResults( results, saveFile );
+        }
+    }
+
+    /**
+     * Indicates whether a benchmark has been selected.
+     *
+     * @param  name  benchmark name
+     * @param  prefixes  selected name prefixes; empty means all
+     * @return  true iff benchmark should be run
+     */
+    private static boolean isSelected( String name, List<String> prefixes ) {
+        if ( prefixes.isEmpty() ) {
+            return true;
+        }
+        for ( String prefix : prefixes ) {
+            if ( name.startsWith( prefix ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns all the benchmarks.
+     *
+     * @return  benchmark list
+     */
+    private static List<BenchRunner.Benchmark> createBenchmarks()
+            throws Exception {
+        List<BenchRunner.Benchmark> list =
+            new ArrayList<BenchRunner.Benchmark>();
+        list.add( createBlockingStoreBench( 4 ) );
+        list.add( createRendezvousStoreBench( 4 ) );
+        list.add( createRelayBench( 1 ) );
+        list.add( createRelayBench( 4 ) );
+        byte[] smallCall = createSmallCall();
+        byte[] notifyCall = XmlRpcDecodeBench.createNotifyCall( 2000 );
+        XmlRpcDecoder.OpaquePolicy tagOnly = new XmlRpcDecoder.OpaquePolicy() {
+            public int getDecodedParamCount( String methodName ) {
+                return 1;
+            }
+        };
+        list.add( createDecodeBench( "codec.decode.small", smallCall, null ) );
+        list.add( createDecodeBench( "codec.decode.notify", notifyCall,
+                                     null ) );
+        list.add( createDecodeBench( "codec.decode.notify.opaque",
+                                     notifyCall, tagOnly ) );
+        Map<String,Object> smallResult = new HashMap<String,Object>();
+        smallResult.put( "samp.name", "bench" );
+        smallResult.put( "samp.description.text", "Benchmark client" );
+        list.add( createEncodeBench( "codec.encode.small", smallResult ) );
+        list.add( createEncodeBench( "codec.encode.pull",
+                                     XmlRpcEncodeBench
+                                    .createPullResult( 2000 ) ) );
+        list.add( createNudgeParseBench( false ) );
+        list.add( createNudgeParseBench( true ) );
+        list.add( createImageBench( false ) );
+        list.add( createImageBench( true ) );
+        return list;
+    }
+
+    /**
+     * Returns per-thread arrays of distinct keys.
+     *
+     * @param  nthread  number of threads
+     * @return  nthread x NKEY array of keys
+     */
+    private static String[][] createKeys( int nthread ) {
+        String[][] keys = new String[ nthread ][ NKEY ];
+        for ( int it = 0; it < nthread; it++ ) {
+            for ( int ik = 0; ik < NKEY; ik++ ) {
+                keys[ it ][ ik ] = "localhost:t" + it + "-" + ik;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Benchmarks put and take on a contended BlockingStore.
+     *
+     * @param  nthread  thread count
+     * @return  benchmark
+     */
+    private static BenchRunner.Benchmark
+            createBlockingStoreBench( int nthread ) {
+        final String[][] keys = createKeys( nthread );
+        final BlockingStore<String,String> store =
+            new BlockingStore<String,String>();
+        return new BenchRunner.Benchmark( "store.blocking.t" + nthread,
+                                          nthread ) {
+            public Object op( int ithread, long iop ) throws Exception {
+                String key = keys[ ithread ][ (int) ( iop % NKEY ) ];
+                store.putNew( key, key );
+                return store.take( key, 0 );
+            }
+        };
+    }
+
+    /**
+     * Benchmarks put and take on a contended RendezvousStore.
+     *
+     * @param  nthread  thread count
+     * @return  benchmark
+     */
+    private static BenchRunner.Benchmark
+            createRendezvousStoreBench( int nthread ) {
+        final String[][] keys = createKeys( nthread );
+        return new BenchRunner.Benchmark( "store.rendezvous.t" + nthread,
+                                          nthread ) {
+            private TimingWheel timer_;
+            private RendezvousStore<String,String> store_;
+            @Override
+            public void setUp() {
+                timer_ = new TimingWheel( "Bench timer", 100, 512 );
+                store_ = new RendezvousStore<String,String>( timer_ );
+            }
+            @Override
+            public void tearDown() {
+                timer_.stop();
+            }
+            public Object op( int ithread, long iop ) {
+                String key = keys[ ithread ][ (int) ( iop % NKEY ) ];
+                store_.putNew( key, key );
+                return store_.takeNow( key );
+            }
+        };
+    }
+
+    /**
+     * Benchmarks complete in-process relayed calls.
+     *
+     * @param  nthread  thread count
+     * @return  benchmark
+     */
+    private static BenchRunner.Benchmark createRelayBench( int nthread ) {
+        final String[][] keys = createKeys( nthread );
+        final String pullMethod = TlsHubProfile.DISPENSER_PREFIX + "pullCall";
+        final String resultMethod =
+            TlsHubProfile.DISPENSER_PREFIX + "receiveResult";
+        final String callMethod =
+            TlsHubProfile.COLLECTOR_PREFIX + "getMetadata";
+        Map<String,Object> metadata = new HashMap<String,Object>();
+        metadata.put( "samp.name", "bench" );
+        final Map<String,Object> result = new HashMap<String,Object>();
+        result.put( SampResult.VALUE_KEY, metadata );
+        return new BenchRunner.Benchmark( "relay.roundtrip.t" + nthread,
+                                          nthread ) {
+            private XmlRpcRelay relay_;
+            @Override
+            public void setUp() {
+                relay_ = new XmlRpcRelay( StandaloneServer.getRequestFormat(),
+                                          false, true );
+
+                // Measure admission control, but don't let it throttle.
+                RelayAdmission.Limits limits =
+                    new RelayAdmission.Limits( 1e12, 1000000, 1000000 );
+                relay_.setAdmission( new RelayAdmission( limits, limits ) );
+            }
+            @Override
+            public void tearDown() {
+                relay_.close();
+            }
+            public Object op( int ithread, long iop ) throws Exception {
+                String tag = keys[ ithread ][ (int) ( iop % NKEY ) ];
+                AsyncXmlRpcHandler dispenser = relay_.getDispenseHandler();
+                AsyncXmlRpcHandler receiver = relay_.getReceiveHandler();
+                Holder pulled = new Holder();
+                Holder submitted = new Holder();
+                Holder received = new Holder();
+                dispenser.handleCallAsync( pullMethod,
+                                           Arrays.asList( new Object[] {
+                                               tag, "10",
+                                           } ), null, pulled );
+                receiver.handleCallAsync( callMethod,
+                                          Arrays.asList( new Object[] {
+                                              tag, "tls:0123456789", "c1",
+                                          } ), null, submitted );
+                pulled.get();
+                dispenser.handleCallAsync( resultMethod,
+                                           Arrays.asList( new Object[] {
+                                               tag, result,
+                                           } ), null, received );
+                received.get();
+                return submitted.get();
+            }
+        };
+    }
+
+    /**
+     * Benchmarks XML-RPC call decoding.
+     *
+     * @param  name  benchmark name
+     * @param  buf   call document
+     * @param  policy   opaque policy, or null
+     * @return  benchmark
+     */
+    private static BenchRunner.Benchmark
+            createDecodeBench( String name, final byte[] buf,
+                               final XmlRpcDecoder.OpaquePolicy policy ) {
+        return new BenchRunner.Benchmark( name, 1 ) {
+            public Object op( int ithread, long iop ) throws Exception {
+                return XmlRpcDecoder.decodeCall( buf, 0, buf.length, policy );
+            }
+        };
+    }
+
+    /**
+     * Benchmarks XML-RPC response encoding.
+     *
+     * @param  name  benchmark name
+     * @param  value  result value
+     * @return  benchmark
+     */
+    private static BenchRunner.Benchmark
+            createEncodeBench( String name, final Object value ) {
+        final XmlRpcEncoder.Sink sink =
+            XmlRpcEncoder.createStreamSink( DISCARD );
+        return new BenchRunner.Benchmark( name, 1 ) {
+            public Object op( int ithread, long iop ) throws Exception {
+                XmlRpcEncoder.writeResult( value, sink );
+                return sink;
+            }
+        };
+    }
+
+    /**
+     * Benchmarks nudge URL parsing.
+     *
+     * @param  isNudgeParser  true for the nudge handler's parser,
+     *                        false for ParsedUrl
+     * @return  benchmark
+     */
+    private static BenchRunner.Benchmark
+            createNudgeParseBench( final boolean isNudgeParser ) {
+        final String[] urls = new String[ 64 ];
+        for ( int i = 0; i < urls.length; i++ ) {
+            urls[ i ] = TlsHubProfile.NUDGE_PATH + "?"
+                      + TlsHubProfile.RELAYURL_PARAM
+                      + "=https%3A%2F%2Fexample.org%2Ftlsamp%2Frelay"
+                      + "&" + TlsHubProfile.CALLTAG_PARAM
+                      + "=example.org%3Aabcdefghijklmnop%2Fq1w2e3" + i
+                      + "&" + TlsHubProfile.SESSION_PARAM
+                      + "=example.org%3Aabcdefghijklmnop"
+                      + "&iseq=" + i;
+        }
+        String name = "nudge.parse."
+                    + ( isNudgeParser ? "nudgeUrl" : "parsedUrl" );
+        return new BenchRunner.Benchmark( name, 1 ) {
+            public Object op( int ithread, long iop ) throws Exception {
+                String url = urls[ (int) ( iop % urls.length ) ];
+                if ( isNudgeParser ) {
+                    TlsHubProfile.NudgeParsedUrl pu =
+                        new TlsHubProfile.NudgeParsedUrl( url );
+                    return pu.getRelayUrl();
+                }
+                else {
+                    return new ParsedUrl( url ).getParams()
+                          .get( TlsHubProfile.RELAYURL_PARAM );
+                }
+            }
+        };
+    }
+
+    /**
+     * Benchmarks nudge image responses.
+     *
+     * @param  isPrerendered  true for prepared responses,
+     *                        false for rendering per request
+     * @return  benchmark
+     */
+    private static BenchRunner.Benchmark
+            createImageBench( final boolean isPrerendered ) {
+        final Icon icon = new Icon() {
+            public int getIconWidth() {
+                return 12;
+            }
+            public int getIconHeight() {
+                return 12;
+            }
+            public void paintIcon( Component c, Graphics g, int x, int y ) {
+                g.setColor( Color.LIGHT_GRAY );
+                g.fillOval( x, y, 12, 12 );
+            }
+        };
+        String name = "image."
+                    + ( isPrerendered ? "prerendered" : "render" );
+        return new BenchRunner.Benchmark( name, 1 ) {
+            public Object op( int ithread, long iop ) throws Exception {
+                org.astrogrid.samp.httpd.HttpServer.Response response =
+                      isPrerendered
+                    ? ImageResponse.getSpinResponse( (int) iop )
+                    : ImageResponse.createImageResponse( icon );
+                response.writeBody( DISCARD );
+                return response;
+            }
+        };
+    }
+
+    /**
+     * Returns a typical small relayed call.
+     *
+     * @return  document bytes
+     */
+    private static byte[] createSmallCall() throws Exception {
+        return ( "<?xml version='1.0'?>\n"
+               + "<methodCall>\n"
+               + "<methodName>samp.tlshub.getMetadata</methodName>\n"
+               + "<params>\n"
+               + "<param><value>localhost:abcdefghijkl</value></param>\n"
+               + "<param><value><string>tls:0123456789</string></value>"
+               + "</param>\n"
+               + "<param><value>c1</value></param>\n"
+               + "</params>\n"
+               + "</methodCall>\n" ).getBytes( "UTF-8" );
+    }
+
+    /**
+     * Completion that records the outcome of a relay handler call.
+     * The relay completes the calls made by the relay benchmark
+     * synchronously, so no waiting is required.
+     */
+    private static class Holder implements AsyncXmlRpcHandler.Completion {
+        private Object result_;
+        private Throwable error_;
+        private boolean isDone_;
+
+        public void completed( Object result ) {
+            result_ = result;
+            isDone_ = true;
+        }
+
+        public void failed( Throwable error ) {
+            error_ = error;
+            isDone_ = true;
+        }
+
+        /**
+         * Returns the successful result.
+         *
+         * @return  result
+         * @throws  IllegalStateException  if the call has not completed,
+         *                                 or has failed
+         */
+        Object get() {
+            if ( ! isDone_ ) {
+                throw new IllegalStateException( "Not completed" );
+            }
+            if ( error_ != null ) {
+                throw new IllegalStateException( "Failed", error_ );
+            }
+            return result_;
+        }
+    }
+}
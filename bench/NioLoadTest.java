@@ -0,0 +1,150 @@
+package org.astrogrid.samp.tls;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loopback load test for {@link NioRelayServer}.
+ * It starts an HTTP relay in this JVM, opens a large number of
+ * client connections to it, each of which issues a pullCall request
+ * that parks until its timeout, and reports how many connections are
+ * held open alongside how many threads the JVM is using to do it.
+ * The client side uses a single selector thread, so the thread count
+ * is essentially that of the server.
+ *
+ * <p>Usage: <code>NioLoadTest [nconn [timeoutSec]]</code>
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class NioLoadTest {
+
+    private static final String PATH = "/xmlrpc";
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        int nconn = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 5000;
+        int timeoutSec = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 10;
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.WARNING );
+        ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        int threads0 = tmx.getThreadCount();
+
+        XmlRpcRelay relay =
+            new XmlRpcRelay( StandaloneServer.getRequestFormat(), false );
+        NioRelayServer server =
+            new NioRelayServer( 0, PATH, null,
+                                new AsyncXmlRpcHandler[] {
+                                    relay.getReceiveHandler(),
+                                    relay.getDispenseHandler(),
+                                }, 2 );
+        server.start();
+        InetSocketAddress addr =
+            new InetSocketAddress( "127.0.0.1", server.getPort() );
+
+        // Open connections and send one parking request down each.
+        Selector selector = Selector.open();
+        long start = System.currentTimeMillis();
+        for ( int i = 0; i < nconn; i++ ) {
+            SocketChannel channel = SocketChannel.open( addr );
+            channel.configureBlocking( false );
+            ByteBuffer req =
+                ByteBuffer.wrap( createPullRequest( "load-" + i, timeoutSec ) );
+            while ( req.hasRemaining() ) {
+                channel.write( req );
+            }
+            channel.register( selector, SelectionKey.OP_READ,
+                              ByteBuffer.allocate( 1024 ) );
+        }
+        while ( server.getConnectionCount() < nconn &&
+                System.currentTimeMillis() - start < timeoutSec * 1000 ) {
+            Thread.sleep( 10 );
+        }
+        Thread.sleep( 200 );
+        int nheld = server.getConnectionCount();
+        int threads1 = tmx.getThreadCount();
+        System.out.println( "Connections held:      " + nheld );
+        System.out.println( "JVM threads before:    " + threads0 );
+        System.out.println( "JVM threads while held: " + threads1
+                          + " (including 1 client thread)" );
+
+        // Wait for all the parked requests to time out and respond.
+        int nresp = 0;
+        long deadline = System.currentTimeMillis() + timeoutSec * 2000 + 5000;
+        while ( nresp < nconn && System.currentTimeMillis() < deadline ) {
+            selector.select( 1000 );
+            for ( Iterator<SelectionKey> it =
+                      selector.selectedKeys().iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+                ByteBuffer buf = (ByteBuffer) key.attachment();
+                SocketChannel channel = (SocketChannel) key.channel();
+                int n = channel.read( buf );
+                if ( n < 0 || isResponseComplete( buf ) ) {
+                    nresp++;
+                    key.cancel();
+                    channel.close();
+                }
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println( "Responses received:    " + nresp + " in "
+                          + elapsed + "ms" );
+        server.stop();
+        relay.close();
+    }
+
+    /**
+     * Returns the bytes of an HTTP request for a pullCall.
+     *
+     * @param  callTag  tag
+     * @param  timeoutSec  pullCall timeout
+     * @return  request bytes
+     */
+    private static byte[] createPullRequest( String callTag, int timeoutSec )
+            throws IOException {
+        String body = new StringBuffer()
+            .append( "<?xml version='1.0'?>\n" )
+            .append( "<methodCall><methodName>" )
+            .append( TlsHubProfile.DISPENSER_PREFIX )
+            .append( "pullCall</methodName><params>" )
+            .append( "<param><value>" + callTag + "</value></param>" )
+            .append( "<param><value>" + timeoutSec + "</value></param>" )
+            .append( "</params></methodCall>\n" )
+            .toString();
+        byte[] bodyBytes = body.getBytes( "UTF-8" );
+        String hdr = "POST " + PATH + " HTTP/1.1\r\n"
+                   + "Host: localhost\r\n"
+                   + "Content-Type: text/xml\r\n"
+                   + "Content-Length: " + bodyBytes.length + "\r\n"
+                   + "\r\n";
+        byte[] hdrBytes = hdr.getBytes( "ISO-8859-1" );
+        byte[] buf = new byte[ hdrBytes.length + bodyBytes.length ];
+        System.arraycopy( hdrBytes, 0, buf, 0, hdrBytes.length );
+        System.arraycopy( bodyBytes, 0, buf, hdrBytes.length,
+                          bodyBytes.length );
+        return buf;
+    }
+
+    /**
+     * Indicates whether a buffer contains a complete XML-RPC response.
+     *
+     * @param  buf  buffer in write mode
+     * @return  true iff the response end tag has been seen
+     */
+    private static boolean isResponseComplete( ByteBuffer buf )
+            throws IOException {
+        return new String( buf.array(), 0, buf.position(), "ISO-8859-1" )
+              .contains( "</methodResponse>" );
+    }
+}
@@ -0,0 +1,193 @@
+package org.astrogrid.samp.tls;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.Icon;
+import org.astrogrid.samp.httpd.HttpServer;
+
+/**
+ * Measures the rate at which the TLS hub's nudge handler can turn
+ * nudge URLs into image responses, excluding the HTTP server itself.
+ * The current path, which scans the query with
+ * <code>TlsHubProfile.NudgeParsedUrl</code> and serves prerendered
+ * images, is compared with the one it replaced, which parsed the query
+ * into a map with {@link ParsedUrl} and rendered a PNG for every request.
+ * For each, it reports nudges per second and heap allocation per nudge
+ * on a single thread, after a warm-up phase.
+ *
+ * <p>JMH is not used, to avoid a build dependency; the timings are
+ * indicative only.
+ *
+ * <p>Usage: <code>NudgeBench [seconds]</code>
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class NudgeBench {
+
+    private static final String URL_BASE =
+          TlsHubProfile.NUDGE_PATH + "?"
+        + TlsHubProfile.RELAYURL_PARAM + "=https://example.org/tlsamp/relay"
+        + "&" + TlsHubProfile.CALLTAG_PARAM + "=example.org:abcdefghijklmnop"
+        + "/q1w2e3r4t5y6"
+        + "&" + TlsHubProfile.SESSION_PARAM + "=example.org:abcdefghijklmnop"
+        + "&iseq=";
+    private static final OutputStream DISCARD = new OutputStream() {
+        public void write( int b ) {
+        }
+        @Override
+        public void write( byte[] b, int off, int len ) {
+        }
+    };
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        double sec = args.length > 0 ? Double.parseDouble( args[ 0 ] ) : 3;
+        System.setProperty( "java.awt.headless", "true" );
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.WARNING );
+        long millis = (long) ( sec * 1000 );
+        String[] urls = new String[ 64 ];
+        for ( int i = 0; i < urls.length; i++ ) {
+            urls[ i ] = URL_BASE + i;
+        }
+        for ( int ir = 0; ir < 2; ir++ ) {
+            boolean isReport = ir > 0;
+            measure( "render per nudge", urls, false, millis, isReport );
+            measure( "prerendered     ", urls, true, millis, isReport );
+        }
+    }
+
+    /**
+     * Times repeated nudge handling.
+     *
+     * @param  name  path name
+     * @param  urls  nudge URLs to cycle through
+     * @param  isCurrent  true for current path, false for old
+     * @param  millis  measurement time
+     * @param  isReport  whether to report the results
+     */
+    private static void measure( String name, String[] urls,
+                                 boolean isCurrent, long millis,
+                                 boolean isReport )
+            throws IOException {
+        long alloc0 = getAllocatedBytes();
+        long t0 = System.nanoTime();
+        long tEnd = t0 + millis * 1000000;
+        long n = 0;
+        int hash = 0;
+        do {
+            for ( int i = 0; i < urls.length; i++ ) {
+                HttpServer.Response response =
+                      isCurrent ? nudgeCurrent( urls[ i ], i )
+                                : nudgeOld( urls[ i ], i );
+                response.writeBody( DISCARD );
+                hash += response.getStatusCode();
+            }
+            n += urls.length;
+        } while ( System.nanoTime() < tEnd );
+        long t1 = System.nanoTime();
+        long alloc1 = getAllocatedBytes();
+        if ( isReport ) {
+            System.out.println( name + ": "
+                              + (long) ( n * 1e9 / ( t1 - t0 ) )
+                              + " nudges/s, "
+                              + ( alloc0 >= 0
+                                  ? ( ( alloc1 - alloc0 ) / n ) + " bytes/op"
+                                  : "allocation not measured" )
+                              + ( hash == 0 ? " !" : "" ) );
+        }
+    }
+
+    /**
+     * Handles a nudge as the nudge handler does now.
+     *
+     * @param  url  nudge URL
+     * @param  iseq  sequence number
+     * @return  response
+     */
+    private static HttpServer.Response nudgeCurrent( String url, int iseq ) {
+        TlsHubProfile.NudgeParsedUrl pu =
+            new TlsHubProfile.NudgeParsedUrl( url );
+        if ( ! TlsHubProfile.NUDGE_PATH.equals( pu.getPath() ) ||
+             pu.isInit() || pu.getRelayUrl() == null ||
+             pu.getCallTag() == null || pu.getSessionId() == null ) {
+            throw new AssertionError();
+        }
+        return ImageResponse.getSpinResponse( iseq );
+    }
+
+    /**
+     * Handles a nudge as the nudge handler used to.
+     *
+     * @param  url  nudge URL
+     * @param  iseq  sequence number
+     * @return  response
+     */
+    private static HttpServer.Response nudgeOld( String url, int iseq )
+            throws IOException {
+        ParsedUrl pu = new ParsedUrl( url );
+        Map<String,String> params = pu.getParams();
+        if ( ! TlsHubProfile.NUDGE_PATH.equals( pu.getPath() ) ||
+             new URL( params.get( TlsHubProfile.RELAYURL_PARAM ) ) == null ||
+             params.get( TlsHubProfile.CALLTAG_PARAM ) == null ||
+             params.get( TlsHubProfile.SESSION_PARAM ) == null ) {
+            throw new AssertionError();
+        }
+        HttpServer.Response response =
+            ImageResponse.createImageResponse( createSpinIcon( iseq ) );
+        response.getHeaderMap().put( "Cache-Control", "no-cache" );
+        return response;
+    }
+
+    /**
+     * Returns an icon like the one formerly rendered for each nudge.
+     *
+     * @param  iseq  sequence number
+     * @return  icon
+     */
+    private static Icon createSpinIcon( final int iseq ) {
+        final int d = 12;
+        return new Icon() {
+            public int getIconWidth() {
+                return d;
+            }
+            public int getIconHeight() {
+                return d;
+            }
+            public void paintIcon( Component c, Graphics g, int x, int y ) {
+                g.setColor( Color.LIGHT_GRAY );
+                g.fillOval( x, y, d, d );
+                g.setColor( Color.DARK_GRAY );
+                g.fillArc( x, y, d, d, ( -60 - iseq * 30 ) % 360, 60 );
+            }
+        };
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread,
+     * if the JVM can tell us.
+     *
+     * @return  allocated bytes, or -1
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        if ( tmx instanceof com.sun.management.ThreadMXBean ) {
+            return ((com.sun.management.ThreadMXBean) tmx)
+                  .getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        else {
+            return -1;
+        }
+    }
+}
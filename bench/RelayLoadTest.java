@@ -0,0 +1,498 @@
+package org.astrogrid.samp.tls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astrogrid.samp.SampUtils;
+import org.astrogrid.samp.httpd.HttpServer;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+
+/**
+ * End-to-end loopback load test for the relay.
+ * It runs a {@link StandaloneServer} relay over HTTP, a number of
+ * simulated TLS hubs, and an increasing number of simulated web clients,
+ * all in this JVM and talking to each other over loopback HTTP.
+ *
+ * <p>Each simulated web client repeatedly does what <code>tlsamp.js</code>
+ * does for a call outside a live session: it generates a call tag
+ * within its session, loads the nudge image from its hub,
+ * and then submits a <code>samp.tlshub.*</code> call to the relay
+ * and waits for the response.  It cycles through a few typical methods.
+ * Each simulated hub serves nudges on its own HTTP port, and for each
+ * one, as <code>TlsHubProfile.doCollectCall</code> does, pulls the
+ * call from the relay on a worker thread, answers it immediately
+ * (or after a configurable service time), and returns the result
+ * to the relay.  Hubs talk to the relay using a
+ * {@link RelayClientFactory}, and web clients use their own one,
+ * so both keep HTTP connections alive as browsers and real hubs would.
+ *
+ * <p>For each client count, the throughput and latency percentiles
+ * of calls, as seen by the web clients and timed from the start of
+ * the nudge to receipt of the response, are reported per method.
+ * Since everything shares the same machine, the numbers give
+ * the relay's capacity only relative to other runs on the same hardware,
+ * but the client count at which latency takes off is indicative.
+ *
+ * <p>Usage:
+ * <pre>
+ *    RelayLoadTest [-hubs n] [-hubthreads n] [-clients n,n,...]
+ *                  [-time sec] [-servicems ms]
+ * </pre>
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RelayLoadTest {
+
+    private static final String RELAY_PATH = "/relay";
+    private static final String[] METHODS = new String[] {
+        "getRegisteredClients", "getMetadata", "notifyAll",
+    };
+    private static final int PULL_TIMEOUT_SEC = 10;
+    private static final Logger logger_ =
+        Logger.getLogger( "org.astrogrid.samp" );
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        String usage = "Usage: " + RelayLoadTest.class.getName()
+                     + " [-hubs n] [-hubthreads n] [-clients n,n,...]"
+                     + " [-time sec] [-servicems ms]";
+        int nhub = 4;
+        int nHubThread = 64;
+        int[] clientCounts = new int[] { 1, 4, 16, 64, 128 };
+        double stepSec = 5;
+        int serviceMillis = 0;
+        for ( int i = 0; i < args.length; i++ ) {
+            String arg = args[ i ];
+            boolean hasNext = i + 1 < args.length;
+            if ( "-hubs".equals( arg ) && hasNext ) {
+                nhub = Integer.parseInt( args[ ++i ] );
+            }
+            else if ( "-hubthreads".equals( arg ) && hasNext ) {
+                nHubThread = Integer.parseInt( args[ ++i ] );
+            }
+            else if ( "-clients".equals( arg ) && hasNext ) {
+                String[] words = args[ ++i ].split( "," );
+                clientCounts = new int[ words.length ];
+                for ( int iw = 0; iw < words.length; iw++ ) {
+                    clientCounts[ iw ] = Integer.parseInt( words[ iw ] );
+                }
+            }
+            else if ( "-time".equals( arg ) && hasNext ) {
+                stepSec = Double.parseDouble( args[ ++i ] );
+            }
+            else if ( "-servicems".equals( arg ) && hasNext ) {
+                serviceMillis = Integer.parseInt( args[ ++i ] );
+            }
+            else {
+                System.err.println( usage );
+                System.exit( 1 );
+            }
+        }
+
+        // The relay warns when the per-session tag queues, which are
+        // only drained by hubs polling the session, fill up;
+        // these simulated hubs don't poll, so suppress that.
+        logger_.setLevel( Level.SEVERE );
+
+        // Allow keep-alive connections for all concurrent clients.
+        if ( System.getProperty( "http.maxConnections" ) == null ) {
+            System.setProperty( "http.maxConnections", "1000" );
+        }
+
+        // Start relay.
+        ServerSocket ssock = new ServerSocket();
+        StandaloneServer server =
+            new StandaloneServer( ssock, 0, RELAY_PATH, "/resources",
+                                  "/docs", true );
+
+        // All the simulated clients share a host, so the default
+        // per-host admission limits would throttle them.
+        server.getRelay().setAdmission( null );
+        server.start();
+        URL relayUrl = new URL( "http://localhost:" + ssock.getLocalPort()
+                              + RELAY_PATH );
+
+        // Start hubs.
+        SimHub[] hubs = new SimHub[ nhub ];
+        for ( int ih = 0; ih < nhub; ih++ ) {
+            hubs[ ih ] = new SimHub( nHubThread, serviceMillis );
+        }
+
+        // Run a warm-up step, then one step for each client count.
+        System.out.println( "Relay: " + relayUrl + ", hubs: " + nhub
+                          + ", hub threads: " + nHubThread
+                          + ", service time: " + serviceMillis + "ms" );
+        RelayClientFactory clientFactory = new RelayClientFactory();
+        runStep( relayUrl, hubs, clientFactory, clientCounts[ 0 ],
+                 Math.min( stepSec, 2 ) );
+        System.out.println( String.format( Locale.ROOT,
+                                           "%7s  %-20s %7s %8s %8s %8s %8s"
+                                         + " %6s",
+                                           "clients", "method", "calls",
+                                           "calls/s", "p50/ms", "p99/ms",
+                                           "p999/ms", "errors" ) );
+        for ( int nclient : clientCounts ) {
+            Map<String,Sample> samples =
+                runStep( relayUrl, hubs, clientFactory, nclient, stepSec );
+            for ( Map.Entry<String,Sample> entry : samples.entrySet() ) {
+                System.out.println( entry.getValue()
+                                   .format( nclient, entry.getKey(),
+                                            stepSec ) );
+            }
+        }
+        for ( SimHub hub : hubs ) {
+            hub.close();
+        }
+        System.exit( 0 );
+    }
+
+    /**
+     * Runs a number of simulated web clients concurrently for a given time.
+     *
+     * @param  relayUrl  relay endpoint
+     * @param  hubs   hubs, shared between clients
+     * @param  clientFactory  XML-RPC client factory for web clients
+     * @param  nclient  number of web clients
+     * @param  sec   duration in seconds
+     * @return  per-method latency samples, keyed by method name
+     */
+    private static Map<String,Sample> runStep( final URL relayUrl,
+                                               SimHub[] hubs,
+                                               RelayClientFactory clientFactory,
+                                               int nclient, double sec )
+            throws Exception {
+        final Map<String,Sample> samples = new LinkedHashMap<String,Sample>();
+        for ( String method : METHODS ) {
+            samples.put( method, new Sample() );
+        }
+        final long tEnd = System.nanoTime() + (long) ( sec * 1e9 );
+        final SampXmlRpcClient xClient =
+            clientFactory.createClient( relayUrl );
+        Thread[] threads = new Thread[ nclient ];
+        for ( int ic = 0; ic < nclient; ic++ ) {
+            final SimHub hub = hubs[ ic % hubs.length ];
+            final Random random = new Random( ic );
+            final String sessionId = "localhost:" + randomChars( random, 24 );
+            threads[ ic ] = new Thread( "WebClient-" + ic ) {
+                public void run() {
+                    for ( int iseq = 0; System.nanoTime() < tEnd; iseq++ ) {
+                        String method = METHODS[ iseq % METHODS.length ];
+                        String callTag = sessionId + TlsHubProfile.SESSION_SEP
+                                       + randomChars( random, 12 );
+                        long t0 = System.nanoTime();
+                        boolean ok;
+                        try {
+                            hub.nudge( relayUrl, callTag, sessionId, iseq );
+                            xClient.callAndWait( TlsHubProfile
+                                                .COLLECTOR_PREFIX + method,
+                                                 createParams( method,
+                                                               callTag ) );
+                            ok = true;
+                        }
+                        catch ( IOException e ) {
+                            logger_.log( Level.INFO, "Call failed", e );
+                            ok = false;
+                        }
+                        samples.get( method )
+                               .add( System.nanoTime() - t0, ok );
+                    }
+                }
+            };
+        }
+        for ( Thread thread : threads ) {
+            thread.start();
+        }
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+        return samples;
+    }
+
+    /**
+     * Returns the parameters for a relayed call like those a web client
+     * would send.
+     *
+     * @param  method  method name without prefix
+     * @param  callTag  call tag
+     * @return  parameter list
+     */
+    private static List<Object> createParams( String method, String callTag ) {
+        List<Object> params = new ArrayList<Object>();
+        params.add( callTag );
+        params.add( "tls:0123456789abcdef" );
+        if ( "getMetadata".equals( method ) ) {
+            params.add( "c1" );
+        }
+        else if ( "notifyAll".equals( method ) ) {
+            Map<String,Object> msgParams = new LinkedHashMap<String,Object>();
+            msgParams.put( "url", "https://example.org/data/table.vot" );
+            msgParams.put( "table-id", callTag );
+            msgParams.put( "name", "Load test table" );
+            Map<String,Object> msg = new LinkedHashMap<String,Object>();
+            msg.put( "samp.mtype", "table.load.votable" );
+            msg.put( "samp.params", msgParams );
+            params.add( msg );
+        }
+        return params;
+    }
+
+    /**
+     * Returns a string of random alphanumeric characters.
+     *
+     * @param  random  random number generator
+     * @param  nchar   string length
+     * @return  random string
+     */
+    private static String randomChars( Random random, int nchar ) {
+        String chrs = "abcdefghijklmnopqrstuvwxyz0123456789";
+        StringBuffer sbuf = new StringBuffer( nchar );
+        for ( int i = 0; i < nchar; i++ ) {
+            sbuf.append( chrs.charAt( random.nextInt( chrs.length() ) ) );
+        }
+        return sbuf.toString();
+    }
+
+    /**
+     * Simulated TLS hub.  It serves nudges over HTTP, and collects
+     * and answers the nudged calls from the relay.
+     */
+    private static class SimHub {
+        private final HttpServer hServer_;
+        private final URL nudgeBase_;
+        private final ExecutorService executor_;
+        private final RelayClientFactory clientFactory_;
+        private final int serviceMillis_;
+        private final AtomicLong nFail_;
+
+        /**
+         * Constructor.
+         *
+         * @param  nthread  number of worker threads for collecting calls
+         * @param  serviceMillis  time taken to service each call
+         */
+        SimHub( int nthread, int serviceMillis ) throws Exception {
+            serviceMillis_ = serviceMillis;
+            clientFactory_ = new RelayClientFactory();
+            executor_ = Executors.newFixedThreadPool( nthread );
+            nFail_ = new AtomicLong();
+            ServerSocket ssock =
+                new ServerSocket( 0, 200, InetAddress.getByName( null ) );
+            hServer_ = new HttpServer( ssock );
+            hServer_.setDaemon( true );
+            hServer_.addHandler( new HttpServer.Handler() {
+                public HttpServer.Response
+                        serveRequest( HttpServer.Request req ) {
+                    ParsedUrl pu = new ParsedUrl( req.getUrl() );
+                    if ( ! TlsHubProfile.NUDGE_PATH.equals( pu.getPath() ) ) {
+                        return null;
+                    }
+                    Map<String,String> params = pu.getParams();
+                    String relayLoc =
+                        params.get( TlsHubProfile.RELAYURL_PARAM );
+                    String callTag = params.get( TlsHubProfile.CALLTAG_PARAM );
+                    if ( relayLoc == null || callTag == null ) {
+                        return HttpServer
+                              .createErrorResponse( 400, "Bad nudge" );
+                    }
+                    try {
+                        collect( new URL( relayLoc ), callTag );
+                    }
+                    catch ( IOException e ) {
+                        return HttpServer
+                              .createErrorResponse( 400, "Bad relay URL" );
+                    }
+                    return ImageResponse.getSpinResponse( 0 );
+                }
+            } );
+            hServer_.start();
+            nudgeBase_ = new URL( "http://localhost:" + ssock.getLocalPort()
+                                + TlsHubProfile.NUDGE_PATH );
+        }
+
+        /**
+         * Loads a nudge image from this hub, as a web client does.
+         *
+         * @param  relayUrl  relay endpoint
+         * @param  callTag   call tag
+         * @param  sessionId  session ID
+         * @param  iseq   sequence number
+         */
+        void nudge( URL relayUrl, String callTag, String sessionId, int iseq )
+                throws IOException {
+            URL url = new URL( nudgeBase_ + "?"
+                + TlsHubProfile.RELAYURL_PARAM + "=" + encode( relayUrl )
+                + "&" + TlsHubProfile.CALLTAG_PARAM + "=" + encode( callTag )
+                + "&" + TlsHubProfile.SESSION_PARAM + "=" + encode( sessionId )
+                + "&iseq=" + iseq );
+            HttpURLConnection hconn = (HttpURLConnection) url.openConnection();
+            if ( hconn.getResponseCode() != 200 ) {
+                throw new IOException( "Nudge failed: "
+                                     + hconn.getResponseCode() );
+            }
+            InputStream in = hconn.getInputStream();
+            byte[] buf = new byte[ 1024 ];
+            while ( in.read( buf ) >= 0 ) {
+            }
+            in.close();
+        }
+
+        /**
+         * Queues collection of a call from the relay,
+         * in the same way as <code>TlsHubProfile.doCollectCall</code>.
+         *
+         * @param  relayUrl  relay endpoint
+         * @param  callTag   call tag
+         */
+        private void collect( final URL relayUrl, final String callTag ) {
+            executor_.execute( new Runnable() {
+                public void run() {
+                    try {
+                        collectCall( relayUrl, callTag );
+                    }
+                    catch ( Exception e ) {
+                        nFail_.incrementAndGet();
+                        logger_.log( Level.INFO, "Collection failed", e );
+                    }
+                }
+            } );
+        }
+
+        /**
+         * Pulls a call from the relay, services it and returns the result.
+         *
+         * @param  relayUrl  relay endpoint
+         * @param  callTag   call tag
+         */
+        private void collectCall( URL relayUrl, String callTag )
+                throws Exception {
+            SampXmlRpcClient xClient = clientFactory_.createClient( relayUrl );
+            Object pulled =
+                xClient.callAndWait( TlsHubProfile.DISPENSER_PREFIX
+                                   + "pullCall",
+                                     Arrays.asList( new String[] {
+                                         callTag,
+                                         SampUtils
+                                        .encodeInt( PULL_TIMEOUT_SEC ),
+                                     } ) );
+            if ( ! ( pulled instanceof Map ) ||
+                 SampCall.asCall( (Map) pulled ).isEmpty() ) {
+                throw new IOException( "No call collected for " + callTag );
+            }
+            if ( serviceMillis_ > 0 ) {
+                Thread.sleep( serviceMillis_ );
+            }
+            Map<String,Object> value = new HashMap<String,Object>();
+            value.put( "samp.name", "Load test" );
+            Map<String,Object> result = new HashMap<String,Object>();
+            result.put( SampResult.VALUE_KEY, value );
+            xClient.callAndWait( TlsHubProfile.DISPENSER_PREFIX
+                               + "receiveResult",
+                                 Arrays.asList( new Object[] {
+                                     callTag, result,
+                                 } ) );
+        }
+
+        /**
+         * Shuts down this hub.
+         */
+        void close() {
+            hServer_.stop();
+            executor_.shutdownNow();
+            if ( nFail_.get() > 0 ) {
+                System.out.println( "Hub collection failures: "
+                                  + nFail_.get() );
+            }
+        }
+
+        /**
+         * URL-encodes a value.
+         *
+         * @param  value  value
+         * @return  encoded string
+         */
+        private static String encode( Object value ) throws IOException {
+            return URLEncoder.encode( value.toString(), "UTF-8" );
+        }
+    }
+
+    /**
+     * Accumulates call latencies and failure count for one method.
+     */
+    private static class Sample {
+        private long[] nanos_ = new long[ 1024 ];
+        private int n_;
+        private int nError_;
+
+        /**
+         * Records the outcome of a call.
+         *
+         * @param  nanos  call duration in nanoseconds
+         * @param  ok   true for success, false for failure
+         */
+        synchronized void add( long nanos, boolean ok ) {
+            if ( ok ) {
+                if ( n_ == nanos_.length ) {
+                    nanos_ = Arrays.copyOf( nanos_, n_ * 2 );
+                }
+                nanos_[ n_++ ] = nanos;
+            }
+            else {
+                nError_++;
+            }
+        }
+
+        /**
+         * Returns a one-line summary of this sample.
+         *
+         * @param  nclient  number of clients
+         * @param  method   method name
+         * @param  sec   duration in seconds
+         * @return  summary line
+         */
+        synchronized String format( int nclient, String method, double sec ) {
+            long[] sorted = Arrays.copyOf( nanos_, n_ );
+            Arrays.sort( sorted );
+            return String.format( Locale.ROOT,
+                                  "%7d  %-20s %7d %8.1f %8.2f %8.2f %8.2f %6d",
+                                  nclient, method, n_, n_ / sec,
+                                  percentile( sorted, 0.5 ),
+                                  percentile( sorted, 0.99 ),
+                                  percentile( sorted, 0.999 ), nError_ );
+        }
+
+        /**
+         * Returns a percentile of a sorted array in milliseconds.
+         *
+         * @param  sorted  sorted durations in nanoseconds
+         * @param  frac   fraction in range 0..1
+         * @return  percentile in milliseconds, or NaN if no data
+         */
+        private static double percentile( long[] sorted, double frac ) {
+            if ( sorted.length == 0 ) {
+                return Double.NaN;
+            }
+            int ix = (int) Math.ceil( frac * sorted.length ) - 1;
+            return sorted[ Math.max( 0, ix ) ] * 1e-6;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.astrogrid.samp.tls;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astrogrid.samp.SampUtils;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+
+/**
+ * Compares the resources used by the TLS hub's call executor in
+ * platform thread and virtual thread modes, while it is blocked on
+ * a large number of concurrent relayed calls.
+ * It starts an HTTP relay in this JVM, and submits tasks to an
+ * executor created as for {@link TlsHubProfile}, each of which makes
+ * a pullCall request to the relay that blocks until its timeout,
+ * as the hub's collection threads do while waiting for calls.
+ * While they are all waiting, it reports the JVM platform thread count,
+ * heap usage and, where available, process resident set size.
+ *
+ * <p>Virtual mode requires Java 21 or later; on earlier JVMs
+ * it falls back to platform threads, as the hub does.
+ *
+ * <p>Usage: <code>ThreadModeBench [platform|virtual [ncall [holdSec]]]</code>
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class ThreadModeBench {
+
+    private static final String PATH = "/xmlrpc";
+    private static final int PACE = 100;
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        boolean isVirtual = args.length > 0 && "virtual".equals( args[ 0 ] );
+        int ncall = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 3000;
+        int holdSec = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 20;
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.WARNING );
+        ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        MemoryMXBean mmx = ManagementFactory.getMemoryMXBean();
+
+        XmlRpcRelay relay =
+            new XmlRpcRelay( StandaloneServer.getRequestFormat(), false );
+        NioRelayServer server =
+            new NioRelayServer( 0, PATH, null,
+                                new AsyncXmlRpcHandler[] {
+                                    relay.getReceiveHandler(),
+                                    relay.getDispenseHandler(),
+                                }, 2 );
+        server.start();
+        final SampXmlRpcClient client =
+            new RelayClientFactory()
+           .createClient( new URL( "http://127.0.0.1:" + server.getPort()
+                                 + PATH ) );
+        System.gc();
+        int threads0 = tmx.getThreadCount();
+        long heap0 = mmx.getHeapMemoryUsage().getUsed();
+        long rss0 = getRss();
+
+        ExecutorService executor =
+            TlsHubProfile.createCallExecutor( isVirtual );
+        final String timeoutStr = SampUtils.encodeInt( holdSec );
+        final CountDownLatch doneLatch = new CountDownLatch( ncall );
+        final AtomicInteger nfail = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        for ( int i = 0; i < ncall; i++ ) {
+
+            // Pace the submissions so that the relay's accept queue
+            // is not swamped with simultaneous connection attempts.
+            if ( i % PACE == 0 ) {
+                long t0 = System.currentTimeMillis();
+                while ( server.getConnectionCount() < i - PACE &&
+                        System.currentTimeMillis() - t0 < 1000 ) {
+                    Thread.sleep( 5 );
+                }
+            }
+            final String callTag = "bench-" + i;
+            executor.execute( new Runnable() {
+                public void run() {
+                    try {
+                        List<?> params =
+                            Arrays.asList( new String[] {
+                                callTag, timeoutStr,
+                            } );
+                        client.callAndWait( TlsHubProfile.DISPENSER_PREFIX
+                                          + "pullCall", params );
+                    }
+                    catch ( Throwable e ) {
+                        nfail.incrementAndGet();
+                    }
+                    finally {
+                        doneLatch.countDown();
+                    }
+                }
+            } );
+        }
+
+        // Wait until the relay is holding all the calls, then measure.
+        long holdMillis = holdSec * 1000L;
+        while ( server.getConnectionCount() < ncall &&
+                System.currentTimeMillis() - start < holdMillis / 2 ) {
+            Thread.sleep( 10 );
+        }
+        int nheld = server.getConnectionCount();
+        System.gc();
+        int threads1 = tmx.getThreadCount();
+        long heap1 = mmx.getHeapMemoryUsage().getUsed();
+        long rss1 = getRss();
+        doneLatch.await();
+        long elapsed = System.currentTimeMillis() - start;
+
+        System.out.println( "Java version:          "
+                          + System.getProperty( "java.version" ) );
+        System.out.println( "Requested mode:        "
+                          + ( isVirtual ? "virtual" : "platform" ) );
+        System.out.println( "Calls held by relay:   " + nheld
+                          + " of " + ncall );
+        System.out.println( "JVM threads:           " + threads0 + " -> "
+                          + threads1 + " (peak "
+                          + tmx.getPeakThreadCount() + ")" );
+        System.out.println( "Heap used:             " + mb( heap0 ) + " -> "
+                          + mb( heap1 ) );
+        System.out.println( "Resident set size:     "
+                          + ( rss0 >= 0 ? mb( rss0 ) + " -> " + mb( rss1 )
+                                        : "not available" ) );
+        System.out.println( "Completed:             "
+                          + ( ncall - nfail.get() ) + " ok, "
+                          + nfail.get() + " failed, in " + elapsed + "ms" );
+        executor.shutdown();
+        server.stop();
+        relay.close();
+    }
+
+    /**
+     * Formats a byte count in megabytes.
+     *
+     * @param  nbyte  byte count
+     * @return  formatted string
+     */
+    private static String mb( long nbyte ) {
+        return ( nbyte / ( 1024 * 1024 ) ) + "MB";
+    }
+
+    /**
+     * Returns the resident set size of this process, if it can be
+     * determined.  Only works on Linux.
+     *
+     * @return  RSS in bytes, or -1
+     */
+    private static long getRss() {
+        try {
+            BufferedReader rdr =
+                new BufferedReader( new FileReader( "/proc/self/status" ) );
+            try {
+                for ( String line; ( line = rdr.readLine() ) != null; ) {
+                    if ( line.startsWith( "VmRSS:" ) ) {
+                        String[] words = line.trim().split( "\\s+" );
+                        return Long.parseLong( words[ 1 ] ) * 1024;
+                    }
+                }
+            }
+            finally {
+                rdr.close();
+            }
+        }
+        catch ( IOException e ) {
+        }
+        catch ( RuntimeException e ) {
+        }
+        return -1;
+    }
+}
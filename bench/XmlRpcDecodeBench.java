@@ -0,0 +1,245 @@
+package org.astrogrid.samp.tls;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.astrogrid.samp.xmlrpc.internal.XmlRpcCall;
+
+/**
+ * Compares the cost of decoding XML-RPC requests using the DOM path
+ * formerly used by RelayServlet (a new DocumentBuilder per request
+ * followed by <code>XmlRpcCall.createCall</code>) with that of
+ * {@link XmlRpcDecoder}, and with that of <code>XmlRpcDecoder</code>
+ * in opaque mode, where all parameters after the first
+ * (the call tag) are left undecoded, as for relayed calls.
+ * For each of a small call and a notify call carrying a large inline
+ * VOTable parameter, it reports the time and heap allocation per
+ * decode, after a warm-up phase.
+ *
+ * <p>JMH is not used, to avoid a build dependency; the timings are
+ * indicative only.
+ *
+ * <p>Usage: <code>XmlRpcDecodeBench [votableRows [seconds]]</code>
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class XmlRpcDecodeBench {
+
+    private static final DocumentBuilderFactory dbFact_ =
+        DocumentBuilderFactory.newInstance();
+    private static final XmlRpcDecoder.OpaquePolicy TAG_ONLY =
+            new XmlRpcDecoder.OpaquePolicy() {
+        public int getDecodedParamCount( String methodName ) {
+            return 1;
+        }
+    };
+    private static final int DOM = 0;
+    private static final int STAX = 1;
+    private static final int OPAQUE = 2;
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        int nrow = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 2000;
+        double sec = args.length > 1 ? Double.parseDouble( args[ 1 ] ) : 3;
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.WARNING );
+        byte[] small = createSmallCall();
+        byte[] large = createNotifyCall( nrow );
+        checkSame( small );
+        checkSame( large );
+        long millis = (long) ( sec * 1000 );
+        run( "small (" + small.length + " bytes)", small, millis );
+        run( "large (" + large.length + " bytes)", large, millis );
+    }
+
+    /**
+     * Benchmarks and reports all decoders on a given document.
+     *
+     * @param  label  document description
+     * @param  buf   XML-RPC call document
+     * @param  millis  measurement time per decoder
+     */
+    private static void run( String label, byte[] buf, long millis )
+            throws Exception {
+        System.out.println( label + ":" );
+        for ( int ir = 0; ir < 2; ir++ ) {
+            boolean isReport = ir > 0;
+            measure( "DOM   ", buf, DOM, millis, isReport );
+            measure( "StAX  ", buf, STAX, millis, isReport );
+            measure( "opaque", buf, OPAQUE, millis, isReport );
+        }
+    }
+
+    /**
+     * Times repeated decoding of a document.
+     *
+     * @param  name  decoder name
+     * @param  buf  document
+     * @param  mode  DOM, STAX or OPAQUE
+     * @param  millis  measurement time
+     * @param  isReport  whether to report the results
+     */
+    private static void measure( String name, byte[] buf, int mode,
+                                 long millis, boolean isReport )
+            throws Exception {
+        long alloc0 = getAllocatedBytes();
+        long t0 = System.nanoTime();
+        long tEnd = t0 + millis * 1000000;
+        long n = 0;
+        int hash = 0;
+        do {
+            for ( int i = 0; i < 16; i++ ) {
+                hash += decode( buf, mode ).getParams().size();
+            }
+            n += 16;
+        } while ( System.nanoTime() < tEnd );
+        long t1 = System.nanoTime();
+        long alloc1 = getAllocatedBytes();
+        if ( isReport ) {
+            System.out.println( "   " + name + ": "
+                              + ( ( t1 - t0 ) / n / 1000.0 ) + " us/op, "
+                              + ( alloc0 >= 0
+                                  ? ( ( alloc1 - alloc0 ) / n ) + " bytes/op"
+                                  : "allocation not measured" )
+                              + ( hash == 0 ? " !" : "" ) );
+        }
+    }
+
+    /**
+     * Decodes a call using one of the decoders.
+     *
+     * @param  buf  document
+     * @param  mode  DOM, STAX or OPAQUE
+     * @return  decoded call
+     */
+    private static XmlRpcCall decode( byte[] buf, int mode )
+            throws Exception {
+        ByteArrayInputStream in = new ByteArrayInputStream( buf );
+        switch ( mode ) {
+            case DOM:
+                return XmlRpcCall.createCall( dbFact_.newDocumentBuilder()
+                                             .parse( in ) );
+            case STAX:
+                return XmlRpcDecoder.decodeCall( in );
+            case OPAQUE:
+                return XmlRpcDecoder.decodeCall( buf, 0, buf.length,
+                                                 TAG_ONLY );
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Checks that all decoders give the same result for a document,
+     * once any opaque values have been fully decoded.
+     *
+     * @param  buf  document
+     */
+    private static void checkSame( byte[] buf ) throws Exception {
+        XmlRpcCall c1 = decode( buf, DOM );
+        for ( int mode : new int[] { STAX, OPAQUE } ) {
+            XmlRpcCall c2 = decode( buf, mode );
+            List params2 = new ArrayList();
+            for ( Object param : c2.getParams() ) {
+                params2.add( param instanceof OpaqueValue
+                           ? ((OpaqueValue) param).decode()
+                           : param );
+            }
+            if ( ! c1.getMethodName().equals( c2.getMethodName() ) ||
+                 ! c1.getParams().equals( params2 ) ) {
+                throw new AssertionError( "Decoders disagree" );
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread,
+     * if the JVM can tell us.
+     *
+     * @return  allocated bytes, or -1
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        if ( tmx instanceof com.sun.management.ThreadMXBean ) {
+            return ((com.sun.management.ThreadMXBean) tmx)
+                  .getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        else {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns a typical small relayed call.
+     *
+     * @return  document bytes
+     */
+    private static byte[] createSmallCall() throws Exception {
+        return ( "<?xml version='1.0'?>\n"
+               + "<methodCall>\n"
+               + "<methodName>samp.tlshub.getMetadata</methodName>\n"
+               + "<params>\n"
+               + "<param><value>localhost:abcdefghijkl</value></param>\n"
+               + "<param><value><string>tls:0123456789</string></value>"
+               + "</param>\n"
+               + "<param><value>c1</value></param>\n"
+               + "</params>\n"
+               + "</methodCall>\n" ).getBytes( "UTF-8" );
+    }
+
+    /**
+     * Returns a notify call with an inline VOTable parameter.
+     *
+     * @param  nrow  number of table rows
+     * @return  document bytes
+     */
+    static byte[] createNotifyCall( int nrow ) throws Exception {
+        StringBuffer vot = new StringBuffer()
+            .append( "&lt;VOTABLE version='1.3'&gt;&lt;RESOURCE&gt;" )
+            .append( "&lt;TABLE&gt;" )
+            .append( "&lt;FIELD name='ra' datatype='double'/&gt;" )
+            .append( "&lt;FIELD name='dec' datatype='double'/&gt;" )
+            .append( "&lt;DATA&gt;&lt;TABLEDATA&gt;\n" );
+        for ( int i = 0; i < nrow; i++ ) {
+            vot.append( "&lt;TR&gt;&lt;TD&gt;" )
+               .append( 10.0 + i * 0.001 )
+               .append( "&lt;/TD&gt;&lt;TD&gt;" )
+               .append( -20.0 - i * 0.001 )
+               .append( "&lt;/TD&gt;&lt;/TR&gt;\n" );
+        }
+        vot.append( "&lt;/TABLEDATA&gt;&lt;/DATA&gt;&lt;/TABLE&gt;" )
+           .append( "&lt;/RESOURCE&gt;&lt;/VOTABLE&gt;" );
+        String xml = new StringBuffer()
+            .append( "<?xml version='1.0'?>\n" )
+            .append( "<methodCall>\n" )
+            .append( "<methodName>samp.tlshub.notifyAll</methodName>\n" )
+            .append( "<params>\n" )
+            .append( "<param><value>localhost:abcdefghijkl</value></param>\n" )
+            .append( "<param><value>tls:0123456789</value></param>\n" )
+            .append( "<param><value><struct>\n" )
+            .append( "<member><name>samp.mtype</name>" )
+            .append( "<value>table.load.votable</value></member>\n" )
+            .append( "<member><name>samp.params</name><value><struct>\n" )
+            .append( "<member><name>name</name><value>bench</value>" )
+            .append( "</member>\n" )
+            .append( "<member><name>table</name><value><string>" )
+            .append( vot )
+            .append( "</string></value></member>\n" )
+            .append( "<member><name>ids</name><value><array><data>" )
+            .append( "<value>a</value><value>b</value>" )
+            .append( "</data></array></value></member>\n" )
+            .append( "</struct></value></member>\n" )
+            .append( "</struct></value></param>\n" )
+            .append( "</params>\n" )
+            .append( "</methodCall>\n" )
+            .toString();
+        return xml.getBytes( "UTF-8" );
+    }
+}
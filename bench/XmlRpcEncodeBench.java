@@ -0,0 +1,209 @@
+package org.astrogrid.samp.tls;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.astrogrid.samp.xmlrpc.internal.InternalServer;
+import org.astrogrid.samp.xmlrpc.internal.XmlUtils;
+import org.w3c.dom.Element;
+
+/**
+ * Compares the cost of encoding XML-RPC responses using JSAMP's
+ * <code>InternalServer.getResultBytes</code>, as formerly used by the
+ * relay harnesses, with that of {@link XmlRpcEncoder}.
+ * Both write the result to a stream which discards it.
+ * The result is shaped like a <code>pullCall</code> response carrying
+ * a notify message with a large inline VOTable parameter.
+ * Time and heap allocation per encode are reported after a warm-up phase.
+ *
+ * <p>JMH is not used, to avoid a build dependency; the timings are
+ * indicative only.
+ *
+ * <p>Usage: <code>XmlRpcEncodeBench [votableRows [seconds]]</code>
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class XmlRpcEncodeBench {
+
+    private static final OutputStream NULL_OUT = new OutputStream() {
+        public void write( int b ) {
+        }
+        public void write( byte[] b, int off, int len ) {
+        }
+    };
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        int nrow = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 2000;
+        double sec = args.length > 1 ? Double.parseDouble( args[ 1 ] ) : 3;
+        long millis = (long) ( sec * 1000 );
+        Map small = createPullResult( 1 );
+        Map large = createPullResult( nrow );
+        checkSame( small );
+        checkSame( large );
+        run( "small", small, millis );
+        run( "large (" + nrow + " rows)", large, millis );
+    }
+
+    /**
+     * Benchmarks and reports both encoders on a given result.
+     *
+     * @param  label  result description
+     * @param  result   result value
+     * @param  millis  measurement time per encoder
+     */
+    private static void run( String label, Object result, long millis )
+            throws Exception {
+        System.out.println( label + ":" );
+        for ( int ir = 0; ir < 2; ir++ ) {
+            boolean isReport = ir > 0;
+            measure( "byte[] ", result, false, millis, isReport );
+            measure( "encoder", result, true, millis, isReport );
+        }
+    }
+
+    /**
+     * Times repeated encoding of a result.
+     *
+     * @param  name  encoder name
+     * @param  result  result value
+     * @param  isStream  true for XmlRpcEncoder, false for JSAMP
+     * @param  millis  measurement time
+     * @param  isReport  whether to report the results
+     */
+    private static void measure( String name, Object result,
+                                 boolean isStream, long millis,
+                                 boolean isReport )
+            throws Exception {
+        long alloc0 = getAllocatedBytes();
+        long t0 = System.nanoTime();
+        long tEnd = t0 + millis * 1000000;
+        long n = 0;
+        do {
+            for ( int i = 0; i < 16; i++ ) {
+                encode( result, isStream, NULL_OUT );
+            }
+            n += 16;
+        } while ( System.nanoTime() < tEnd );
+        long t1 = System.nanoTime();
+        long alloc1 = getAllocatedBytes();
+        if ( isReport ) {
+            System.out.println( "   " + name + ": "
+                              + ( ( t1 - t0 ) / n / 1000.0 ) + " us/op, "
+                              + ( alloc0 >= 0
+                                  ? ( ( alloc1 - alloc0 ) / n ) + " bytes/op"
+                                  : "allocation not measured" ) );
+        }
+    }
+
+    /**
+     * Writes a result response to a stream using one of the encoders.
+     *
+     * @param  result  result value
+     * @param  isStream  true for XmlRpcEncoder, false for JSAMP
+     * @param  out  destination stream
+     */
+    private static void encode( Object result, boolean isStream,
+                                OutputStream out )
+            throws Exception {
+        if ( isStream ) {
+            XmlRpcEncoder.writeResult( result,
+                                       XmlRpcEncoder.createStreamSink( out ) );
+        }
+        else {
+            out.write( InternalServer.getResultBytes( result ) );
+            out.flush();
+        }
+    }
+
+    /**
+     * Checks that both encoders give responses which decode to the
+     * same value as the input.
+     *
+     * @param  result  result value
+     */
+    private static void checkSame( Object result ) throws Exception {
+        for ( int i = 0; i < 2; i++ ) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            encode( result, i > 0, bout );
+            Element el = DocumentBuilderFactory.newInstance()
+                        .newDocumentBuilder()
+                        .parse( new ByteArrayInputStream( bout
+                                                         .toByteArray() ) )
+                        .getDocumentElement();
+            el = XmlUtils.getChild( el, "params" );
+            el = XmlUtils.getChild( el, "param" );
+            el = XmlUtils.getChild( el, "value" );
+            if ( ! result.equals( XmlUtils.parseSampValue( el ) ) ) {
+                throw new AssertionError( "Encoding mismatch" );
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread,
+     * if the JVM can tell us.
+     *
+     * @return  allocated bytes, or -1
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        if ( tmx instanceof com.sun.management.ThreadMXBean ) {
+            return ((com.sun.management.ThreadMXBean) tmx)
+                  .getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        else {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns a value like the result of a pullCall carrying
+     * a table.load.votable notification.
+     *
+     * @param  nrow  number of table rows
+     * @return  SAMP map
+     */
+    static Map createPullResult( int nrow ) {
+        StringBuffer vot = new StringBuffer()
+            .append( "<VOTABLE version='1.3'><RESOURCE><TABLE>\n" )
+            .append( "<FIELD name='ra' datatype='double'/>\n" )
+            .append( "<FIELD name='dec' datatype='double'/>\n" )
+            .append( "<FIELD name='name' datatype='char' arraysize='*'/>\n" )
+            .append( "<DATA><TABLEDATA>\n" );
+        for ( int i = 0; i < nrow; i++ ) {
+            vot.append( "<TR><TD>" )
+               .append( 10.0 + i * 0.001 )
+               .append( "</TD><TD>" )
+               .append( -20.0 - i * 0.001 )
+               .append( "</TD><TD>" )
+               .append( "M" + i + " \u00e9toile & co" )
+               .append( "</TD></TR>\n" );
+        }
+        vot.append( "</TABLEDATA></DATA></TABLE></RESOURCE></VOTABLE>\n" );
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put( "table", vot.toString() );
+        params.put( "name", "bench" );
+        Map<String,Object> msg = new HashMap<String,Object>();
+        msg.put( "samp.mtype", "table.load.votable" );
+        msg.put( "samp.params", params );
+        List<Object> args = new ArrayList<Object>();
+        args.add( "tls:0123456789" );
+        args.add( msg );
+        Map<String,Object> call = new HashMap<String,Object>();
+        call.put( SampCall.METHOD_NAME_KEY, "samp.hub.notifyAll" );
+        call.put( SampCall.PARAMS_KEY, args );
+        call.put( SampCall.REFERER_KEY, "https://example.org/" );
+        return call;
+    }
+}
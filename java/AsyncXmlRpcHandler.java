@@ -0,0 +1,65 @@
+package org.astrogrid.samp.tls;
+
+import java.util.List;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcHandler;
+
+/**
+ * SampXmlRpcHandler that can also service calls asynchronously.
+ * Rather than blocking the calling thread until the result is known,
+ * the {@link #handleCallAsync handleCallAsync} method returns quickly,
+ * and the outcome is passed to a supplied callback object whenever it
+ * becomes available, possibly from a different thread.
+ * This allows HTTP server harnesses that are able to suspend requests
+ * to avoid tying up a thread for each pending call.
+ *
+ * <p>The synchronous <code>handleCall</code> method inherited from
+ * SampXmlRpcHandler must still be implemented, with the same semantics.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public interface AsyncXmlRpcHandler extends SampXmlRpcHandler {
+
+    /**
+     * Processes an XML-RPC call asynchronously.
+     * Exactly one of the completion object's methods will be called,
+     * exactly once, at some point after this method is invoked;
+     * that may happen before this method returns.
+     * Any information required from the <code>reqInfo</code> object
+     * will be extracted before this method returns.
+     *
+     * @param  methodName  XML-RPC method name
+     * @param  params   XML-RPC parameter list (SAMP-compatible objects)
+     * @param  reqInfo   optional object giving information about
+     *                   the HTTP request
+     * @param  completion   receives the outcome of the call
+     */
+    void handleCallAsync( String methodName, List params, Object reqInfo,
+                          Completion completion );
+
+    /**
+     * Callback interface for receiving the outcome of an
+     * asynchronously handled XML-RPC call.
+     *
+     * <p>The methods may be called on a thread shared with unrelated
+     * calls, for instance a {@link TimingWheel} thread firing a timeout,
+     * so they must return promptly; an implementation that writes
+     * to a blocking connection should hand the write to another thread.
+     */
+    public interface Completion {
+
+        /**
+         * Called on successful completion.
+         *
+         * @param  result  SAMP-compatible return value
+         */
+        void completed( Object result );
+
+        /**
+         * Called on failure.
+         *
+         * @param  error  error, to be reported as an XML-RPC fault
+         */
+        void failed( Throwable error );
+    }
+}
@@ -0,0 +1,194 @@
+package org.astrogrid.samp.tls;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces items that arrive within a short time of each other
+ * into batches, grouped by key.
+ * The first item submitted under a given key opens a batch,
+ * and the batch is closed and passed to a flusher either when a fixed
+ * window has elapsed or when it reaches a maximum size,
+ * whichever is sooner.
+ * Flushing is done on a supplied executor, which may be told
+ * the key of each batch it runs.
+ *
+ * @param  <K>  key type
+ * @param  <T>  item type
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+class Batcher<K,T> {
+
+    private final TimingWheel timer_;
+    private final KeyedExecutor<K> executor_;
+    private final long windowMillis_;
+    private final int maxBatch_;
+    private final Flusher<K,T> flusher_;
+    private final Map<K,List<T>> pending_;
+    private static final Logger logger_ =
+        Logger.getLogger( Batcher.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  timer  timer for batch windows
+     * @param  executor  executor on which flushes are performed
+     * @param  windowMillis  maximum time in milliseconds for which the
+     *                       first item in a batch is held;
+     *                       if zero, every item is flushed on its own
+     * @param  maxBatch   maximum number of items per batch
+     * @param  flusher   receives batches
+     */
+    Batcher( TimingWheel timer, final Executor executor, long windowMillis,
+             int maxBatch, Flusher<K,T> flusher ) {
+        this( timer, new KeyedExecutor<K>() {
+            public void execute( K key, Runnable task ) {
+                executor.execute( task );
+            }
+        }, windowMillis, maxBatch, flusher );
+    }
+
+    /**
+     * Constructs a batcher whose flushes are scheduled according to
+     * their keys.
+     *
+     * @param  timer  timer for batch windows
+     * @param  executor  executor on which flushes are performed
+     * @param  windowMillis  maximum time in milliseconds for which the
+     *                       first item in a batch is held;
+     *                       if zero, every item is flushed on its own
+     * @param  maxBatch   maximum number of items per batch
+     * @param  flusher   receives batches
+     */
+    Batcher( TimingWheel timer, KeyedExecutor<K> executor, long windowMillis,
+             int maxBatch, Flusher<K,T> flusher ) {
+        timer_ = timer;
+        executor_ = executor;
+        windowMillis_ = windowMillis;
+        maxBatch_ = maxBatch;
+        flusher_ = flusher;
+        pending_ = new HashMap<K,List<T>>();
+    }
+
+    /**
+     * Submits an item for batched processing.
+     *
+     * @param  key  key by which batches are grouped
+     * @param  item  item
+     * @throws  RejectedExecutionException  if the item's batch
+     *          needed flushing immediately, but the executor declined
+     */
+    public void add( final K key, T item ) {
+        final List<T> batch;
+        boolean isFull;
+        synchronized ( pending_ ) {
+            List<T> openBatch = pending_.get( key );
+            if ( openBatch == null ) {
+                openBatch = new ArrayList<T>();
+                if ( windowMillis_ > 0 && maxBatch_ > 1 ) {
+                    pending_.put( key, openBatch );
+                    final List<T> timedBatch = openBatch;
+                    timer_.schedule( new Runnable() {
+                        public void run() {
+                            if ( closeBatch( key, timedBatch ) ) {
+                                submitFlush( key, timedBatch );
+                            }
+                        }
+                    }, windowMillis_ );
+                }
+            }
+            batch = openBatch;
+            batch.add( item );
+            isFull = batch.size() >= maxBatch_ || windowMillis_ <= 0;
+            if ( isFull ) {
+                pending_.remove( key );
+            }
+        }
+        if ( isFull ) {
+            executor_.execute( key, new Runnable() {
+                public void run() {
+                    flusher_.flush( key, batch );
+                }
+            } );
+        }
+    }
+
+    /**
+     * Removes a given batch from the pending map, if it is still there.
+     *
+     * @param  key  key
+     * @param  batch  batch expected under key
+     * @return  true iff the batch was removed by this call
+     */
+    private boolean closeBatch( K key, List<T> batch ) {
+        synchronized ( pending_ ) {
+            if ( pending_.get( key ) == batch ) {
+                pending_.remove( key );
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Passes a closed batch to the flusher on the executor.
+     * Called from the timer thread, so rejection is just logged.
+     *
+     * @param  key  key
+     * @param  batch  closed batch
+     */
+    private void submitFlush( final K key, final List<T> batch ) {
+        try {
+            executor_.execute( key, new Runnable() {
+                public void run() {
+                    flusher_.flush( key, batch );
+                }
+            } );
+        }
+        catch ( RejectedExecutionException e ) {
+            logger_.log( Level.WARNING,
+                         "Dropped batch of " + batch.size() + " for " + key,
+                         e );
+        }
+    }
+
+    /**
+     * Runs tasks on behalf of a given key.
+     */
+    public interface KeyedExecutor<K> {
+
+        /**
+         * Schedules a task for execution.
+         *
+         * @param  key  key on whose behalf the task runs
+         * @param  task  task
+         * @throws  RejectedExecutionException  if the task cannot be
+         *          accepted
+         */
+        void execute( K key, Runnable task );
+    }
+
+    /**
+     * Receives batches of items.
+     */
+    public interface Flusher<K,T> {
+
+        /**
+         * Processes a batch of items.
+         *
+         * @param  key  key shared by all items in batch
+         * @param  batch  non-empty list of items, in order of submission
+         */
+        void flush( K key, List<T> batch );
+    }
+}
@@ -0,0 +1,81 @@
+package org.astrogrid.samp.tls;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe pool of equal-sized byte arrays.
+ * Arrays are allocated on demand when the pool is empty,
+ * and arrays released when the pool is full are left for
+ * the garbage collector, so the pool only bounds retained memory,
+ * not the number of arrays in use.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+class BufferPool {
+
+    private final int bufSize_;
+    private final int maxPooled_;
+    private final Queue<byte[]> queue_;
+    private final AtomicInteger nPooled_;
+
+    /**
+     * Constructor.
+     *
+     * @param  bufSize  size in bytes of each array
+     * @param  maxPooled  maximum number of idle arrays retained
+     */
+    BufferPool( int bufSize, int maxPooled ) {
+        bufSize_ = bufSize;
+        maxPooled_ = maxPooled;
+        queue_ = new ConcurrentLinkedQueue<byte[]>();
+        nPooled_ = new AtomicInteger();
+    }
+
+    /**
+     * Returns the size of the arrays dispensed by this pool.
+     *
+     * @return  array size in bytes
+     */
+    public int getBufferSize() {
+        return bufSize_;
+    }
+
+    /**
+     * Obtains an array from this pool.
+     * Its contents are undefined.
+     *
+     * @return  array of length {@link #getBufferSize}
+     */
+    public byte[] acquire() {
+        byte[] buf = queue_.poll();
+        if ( buf == null ) {
+            return new byte[ bufSize_ ];
+        }
+        else {
+            nPooled_.decrementAndGet();
+            return buf;
+        }
+    }
+
+    /**
+     * Returns an array to this pool.
+     * The caller must not use it afterwards.
+     * Arrays of the wrong size are ignored.
+     *
+     * @param  buf  array previously acquired from this pool
+     */
+    public void release( byte[] buf ) {
+        if ( buf == null || buf.length != bufSize_ ) {
+            return;
+        }
+        if ( nPooled_.incrementAndGet() <= maxPooled_ ) {
+            queue_.add( buf );
+        }
+        else {
+            nPooled_.decrementAndGet();
+        }
+    }
+}
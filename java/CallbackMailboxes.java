@@ -0,0 +1,570 @@
+package org.astrogrid.samp.tls;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.astrogrid.samp.client.SampException;
+
+/**
+ * Relay-side state for callback mailboxes, which let a callable
+ * web application receive its callbacks without each poll
+ * being relayed to the hub.
+ *
+ * <p>Without a mailbox, a callable TLS client long-polls the hub with
+ * <code>samp.tlshub.pullCallbacks</code>, which like any other hub
+ * method is relayed, so that each idle client ties up a waiting
+ * relayed call at the relay and a thread at the hub.
+ * Instead, a client may call
+ * <code>samp.tlshub.openMailbox(callTag, privateKey)</code> in the
+ * usual way.  If the hub supports it, it makes the client callable
+ * and returns the call tag as the mailbox ID, and once that result
+ * has been passed back through the relay a mailbox with that ID exists.
+ * From then on the hub pushes the client's callbacks to the mailbox
+ * with <code>samp.tlsfwd.postCallbacks(mailboxId, callbacks)</code>
+ * as they arise, and the client long-polls it with
+ * <code>samp.tlshub.pullMailbox(mailboxId, timeoutSec)</code>,
+ * which the relay services itself without involving the hub.
+ *
+ * <p>Each mailbox holds a bounded number of callbacks, and has at most
+ * one waiting poll; a new poll completes any existing one with an
+ * empty list.  A mailbox with no waiting poll is discarded
+ * once it has been idle for {@link #IDLE_MILLIS};
+ * subsequent posts to it fail, and the hub then reverts to
+ * holding the client's callbacks itself.
+ *
+ * <p>A mailbox is closed if a post would overflow it, or if the hub
+ * calls <code>samp.tlsfwd.closeMailbox(mailboxId)</code> because it
+ * can no longer forward to it.  A closed mailbox accepts no more posts,
+ * and any callbacks it holds are delivered to the next poll;
+ * after that, polls fail, so that the client knows to collect its
+ * callbacks from the hub instead.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class CallbackMailboxes {
+
+    private final TimingWheel timer_;
+    private final boolean checkHostnames_;
+    private final int maxMailboxes_;
+    private final int capacity_;
+    private final ConcurrentMap<String,Mailbox> mailboxes_;
+    private final AtomicLong nOpened_;
+    private final AtomicLong nRefused_;
+    private final AtomicLong nExpired_;
+    private final AtomicLong nPosted_;
+    private final AtomicLong nDelivered_;
+    private final AtomicLong nOverflowed_;
+
+    /** Unprefixed name of the hub method that opens a mailbox. */
+    public static final String OPEN_METHOD = "openMailbox";
+
+    /** Unprefixed name of the relay method that polls a mailbox. */
+    public static final String PULL_METHOD = "pullMailbox";
+
+    /** Unprefixed name of the dispenser method that fills a mailbox. */
+    public static final String POST_METHOD = "postCallbacks";
+
+    /** Unprefixed name of the dispenser method that closes a mailbox. */
+    public static final String CLOSE_METHOD = "closeMailbox";
+
+    /** Time after which a mailbox with no activity is discarded. */
+    public static final long IDLE_MILLIS = 120 * 1000;
+
+    /** Maximum time for which a poll may wait. */
+    public static final int MAX_PULL_SEC = 300;
+
+    /** Default maximum number of mailboxes. */
+    public static final int DFLT_MAX_MAILBOXES = 4096;
+
+    /** Default maximum number of callbacks held by a mailbox. */
+    public static final int DFLT_CAPACITY = 1024;
+
+    private static final Logger logger_ =
+        Logger.getLogger( CallbackMailboxes.class.getName() );
+
+    /**
+     * Constructs a mailbox store with default limits.
+     *
+     * @param  timer  timer for expiring polls and idle mailboxes
+     * @param  checkHostnames  if true, posts and polls must come from
+     *                         the same host as the request that opened
+     *                         the mailbox
+     */
+    public CallbackMailboxes( TimingWheel timer, boolean checkHostnames ) {
+        this( timer, checkHostnames, DFLT_MAX_MAILBOXES, DFLT_CAPACITY );
+    }
+
+    /**
+     * Constructs a mailbox store with given limits.
+     *
+     * @param  timer  timer for expiring polls and idle mailboxes
+     * @param  checkHostnames  if true, posts and polls must come from
+     *                         the same host as the request that opened
+     *                         the mailbox
+     * @param  maxMailboxes  maximum number of mailboxes open at once
+     * @param  capacity   maximum number of callbacks held by a mailbox
+     */
+    public CallbackMailboxes( TimingWheel timer, boolean checkHostnames,
+                              int maxMailboxes, int capacity ) {
+        timer_ = timer;
+        checkHostnames_ = checkHostnames;
+        maxMailboxes_ = maxMailboxes;
+        capacity_ = capacity;
+        mailboxes_ = new ConcurrentHashMap<String,Mailbox>();
+        nOpened_ = new AtomicLong();
+        nRefused_ = new AtomicLong();
+        nExpired_ = new AtomicLong();
+        nPosted_ = new AtomicLong();
+        nDelivered_ = new AtomicLong();
+        nOverflowed_ = new AtomicLong();
+    }
+
+    /**
+     * Opens a mailbox.  Called when a hub has returned a successful
+     * result for an open request.  Any existing mailbox with the same
+     * ID is discarded.
+     *
+     * @param  mailboxId  mailbox ID, which is the open request call tag
+     * @param  hostname   hostname of the open request originator
+     * @return  true if the mailbox was opened, false if there are
+     *          too many mailboxes
+     */
+    public boolean open( String mailboxId, String hostname ) {
+        if ( mailboxes_.size() >= maxMailboxes_ ) {
+            nRefused_.incrementAndGet();
+            logger_.warning( "Too many mailboxes, not opening " + mailboxId );
+            return false;
+        }
+        Mailbox mailbox = new Mailbox( mailboxId, hostname );
+        mailbox.touch();
+        Mailbox old = mailboxes_.put( mailboxId, mailbox );
+        if ( old != null ) {
+            old.discard();
+        }
+        nOpened_.incrementAndGet();
+        logger_.info( "Opened callback mailbox " + mailboxId );
+        return true;
+    }
+
+    /**
+     * Adds callbacks to a mailbox, passing them straight to
+     * a waiting poll if there is one.
+     *
+     * @param  mailboxId  mailbox ID
+     * @param  hostname   hostname of the post request originator
+     * @param  callbacks  list of callback maps
+     * @throws  SampException  if the mailbox does not exist, belongs to
+     *                         a different host, or is full
+     */
+    public void post( String mailboxId, String hostname, List callbacks )
+            throws SampException {
+        if ( ! getMailbox( mailboxId, hostname ).add( callbacks ) ) {
+            throw new SampException( "No such mailbox " + mailboxId );
+        }
+        nPosted_.addAndGet( callbacks.size() );
+    }
+
+    /**
+     * Closes a mailbox.  No more callbacks may be posted to it,
+     * and once any it holds have been delivered, polls fail.
+     *
+     * @param  mailboxId  mailbox ID
+     * @param  hostname   hostname of the close request originator
+     * @throws  SampException  if the mailbox does not exist or belongs to
+     *                         a different host
+     */
+    public void close( String mailboxId, String hostname )
+            throws SampException {
+        getMailbox( mailboxId, hostname ).close();
+    }
+
+    /**
+     * Polls a mailbox for callbacks.
+     * If any are already held they are delivered immediately,
+     * otherwise the completion is held until some arrive or
+     * the timeout expires, in which case it receives an empty list.
+     *
+     * @param  mailboxId  mailbox ID
+     * @param  hostname   hostname of the poll request originator
+     * @param  timeoutSec  maximum wait time in seconds;
+     *                     it is limited to {@link #MAX_PULL_SEC}
+     * @param  completion  receives the list of callbacks
+     * @throws  SampException  if the mailbox does not exist or belongs to
+     *                         a different host
+     */
+    public void pull( String mailboxId, String hostname, int timeoutSec,
+                      AsyncXmlRpcHandler.Completion completion )
+            throws SampException {
+        long timeoutMillis =
+            Math.max( 0, Math.min( timeoutSec, MAX_PULL_SEC ) ) * 1000L;
+        if ( ! getMailbox( mailboxId, hostname )
+              .poll( timeoutMillis, completion ) ) {
+            throw new SampException( "No such mailbox " + mailboxId );
+        }
+    }
+
+    /**
+     * Returns the number of mailboxes currently open.
+     *
+     * @return  mailbox count
+     */
+    public int getMailboxCount() {
+        return mailboxes_.size();
+    }
+
+    /**
+     * Returns the number of mailboxes opened.
+     *
+     * @return  opened count
+     */
+    public long getOpenedCount() {
+        return nOpened_.get();
+    }
+
+    /**
+     * Returns the number of mailboxes refused because there were
+     * too many already.
+     *
+     * @return  refused count
+     */
+    public long getRefusedCount() {
+        return nRefused_.get();
+    }
+
+    /**
+     * Returns the number of mailboxes discarded because they were idle.
+     *
+     * @return  expired count
+     */
+    public long getExpiredCount() {
+        return nExpired_.get();
+    }
+
+    /**
+     * Returns the number of callbacks posted to mailboxes.
+     *
+     * @return  posted callback count
+     */
+    public long getPostedCount() {
+        return nPosted_.get();
+    }
+
+    /**
+     * Returns the number of callbacks delivered to polls.
+     *
+     * @return  delivered callback count
+     */
+    public long getDeliveredCount() {
+        return nDelivered_.get();
+    }
+
+    /**
+     * Returns the number of posts refused because the mailbox was full,
+     * each of which closed the mailbox.
+     *
+     * @return  overflow count
+     */
+    public long getOverflowCount() {
+        return nOverflowed_.get();
+    }
+
+    /**
+     * Returns the mailbox with a given ID, checking that it may be
+     * used by a given host.
+     *
+     * @param  mailboxId  mailbox ID
+     * @param  hostname   hostname of request originator
+     * @return  mailbox, not null
+     * @throws  SampException  if there is no such mailbox or the
+     *                         host is wrong
+     */
+    private Mailbox getMailbox( String mailboxId, String hostname )
+            throws SampException {
+        Mailbox mailbox = mailboxes_.get( mailboxId );
+        if ( mailbox == null ) {
+            throw new SampException( "No such mailbox " + mailboxId );
+        }
+        if ( checkHostnames_ &&
+             ( hostname == null || ! hostname.equals( mailbox.hostname_ ) ) ) {
+            logger_.warning( "Mailbox " + mailboxId + " used by " + hostname
+                           + " not " + mailbox.hostname_ );
+            throw new SampException( "Mailbox host mismatch" );
+        }
+        return mailbox;
+    }
+
+    /**
+     * Holds callbacks for a client, and the poll, if any,
+     * currently waiting for them.
+     * All access is synchronized on the mailbox object itself.
+     * Once a mailbox has been discarded, its methods return false
+     * to indicate that it no longer exists.
+     * A closed mailbox refuses posts, and is discarded when
+     * it is polled with no callbacks left to deliver.
+     */
+    private class Mailbox {
+        private final String mailboxId_;
+        private final String hostname_;
+        private final ArrayDeque<Object> callbacks_;
+        private AsyncXmlRpcHandler.Completion waiter_;
+        private TimingWheel.Timeout waitTimeout_;
+        private TimingWheel.Timeout idleTimeout_;
+        private boolean isClosed_;
+        private boolean isDead_;
+
+        /**
+         * Constructor.
+         *
+         * @param  mailboxId  mailbox ID
+         * @param  hostname   hostname of owning client
+         */
+        Mailbox( String mailboxId, String hostname ) {
+            mailboxId_ = mailboxId;
+            hostname_ = hostname;
+            callbacks_ = new ArrayDeque<Object>();
+        }
+
+        /**
+         * Adds callbacks to this mailbox.
+         * If there is not room for them, the mailbox is closed.
+         *
+         * @param  callbacks  callbacks to add
+         * @return  false if this mailbox is defunct or closed
+         * @throws  SampException  if there is not room for them
+         */
+        boolean add( List callbacks ) throws SampException {
+            AsyncXmlRpcHandler.Completion waiter;
+            List<Object> delivered;
+            synchronized ( this ) {
+                if ( isDead_ || isClosed_ ) {
+                    return false;
+                }
+                if ( callbacks_.size() + callbacks.size() > capacity_ ) {
+                    nOverflowed_.incrementAndGet();
+                    waiter = closeLocked();
+                    delivered = null;
+                }
+                else {
+                    callbacks_.addAll( callbacks );
+                    touch();
+                    if ( waiter_ == null || callbacks_.isEmpty() ) {
+                        return true;
+                    }
+                    waiter = clearWaiter();
+                    delivered = drainCallbacks();
+                }
+            }
+            if ( delivered == null ) {
+                logger_.warning( "Callback mailbox " + mailboxId_
+                               + " full - closed" );
+                failClosed( waiter );
+                throw new SampException( "Mailbox " + mailboxId_ + " full" );
+            }
+            waiter.completed( delivered );
+            return true;
+        }
+
+        /**
+         * Accepts a poll for callbacks.
+         *
+         * @param  timeoutMillis  maximum wait time
+         * @param  completion  receives the list of callbacks
+         * @return  false if this mailbox is defunct
+         */
+        boolean poll( long timeoutMillis,
+                      final AsyncXmlRpcHandler.Completion completion ) {
+            AsyncXmlRpcHandler.Completion oldWaiter;
+            List<Object> delivered;
+            synchronized ( this ) {
+                if ( isDead_ ) {
+                    return false;
+                }
+                if ( isClosed_ && callbacks_.isEmpty() ) {
+                    remove();
+                    return false;
+                }
+                oldWaiter = clearWaiter();
+                touch();
+                if ( callbacks_.isEmpty() && timeoutMillis > 0 ) {
+                    delivered = null;
+                    waiter_ = completion;
+                    waitTimeout_ = timer_.schedule( new Runnable() {
+                        public void run() {
+                            expireWaiter( completion );
+                        }
+                    }, timeoutMillis );
+                }
+                else {
+                    delivered = drainCallbacks();
+                }
+            }
+            if ( oldWaiter != null ) {
+                oldWaiter.completed( new ArrayList() );
+            }
+            if ( delivered != null ) {
+                completion.completed( delivered );
+            }
+            return true;
+        }
+
+        /**
+         * Discards this mailbox, completing any waiting poll
+         * with an empty list.
+         */
+        void discard() {
+            AsyncXmlRpcHandler.Completion waiter;
+            synchronized ( this ) {
+                isDead_ = true;
+                callbacks_.clear();
+                waiter = clearWaiter();
+                if ( idleTimeout_ != null ) {
+                    idleTimeout_.cancel();
+                }
+            }
+            if ( waiter != null ) {
+                waiter.completed( new ArrayList() );
+            }
+        }
+
+        /**
+         * Closes this mailbox.  If it holds no callbacks it is discarded
+         * at once, and any waiting poll fails.
+         */
+        void close() {
+            AsyncXmlRpcHandler.Completion waiter;
+            synchronized ( this ) {
+                if ( isDead_ || isClosed_ ) {
+                    return;
+                }
+                waiter = closeLocked();
+            }
+            logger_.info( "Closed callback mailbox " + mailboxId_ );
+            failClosed( waiter );
+        }
+
+        /**
+         * Marks this mailbox closed, and discards it if it holds
+         * no callbacks.  Must be called with the lock held.
+         *
+         * @return  waiting poll to be failed, or null
+         */
+        private AsyncXmlRpcHandler.Completion closeLocked() {
+            isClosed_ = true;
+            if ( ! callbacks_.isEmpty() ) {
+                return null;
+            }
+            AsyncXmlRpcHandler.Completion waiter = clearWaiter();
+            remove();
+            return waiter;
+        }
+
+        /**
+         * Fails a poll because this mailbox has been closed.
+         * Must be called without the lock held.
+         *
+         * @param  waiter  poll completion, or null
+         */
+        private void failClosed( AsyncXmlRpcHandler.Completion waiter ) {
+            if ( waiter != null ) {
+                waiter.failed( new SampException( "Mailbox " + mailboxId_
+                                                + " closed" ) );
+            }
+        }
+
+        /**
+         * Marks this mailbox defunct and removes it from the mailbox map.
+         * Must be called with the lock held, and with no waiting poll.
+         */
+        private void remove() {
+            isDead_ = true;
+            if ( idleTimeout_ != null ) {
+                idleTimeout_.cancel();
+            }
+            mailboxes_.remove( mailboxId_, this );
+        }
+
+        /**
+         * Completes a waiting poll with no callbacks if it is still
+         * waiting.  Called from the timer thread.
+         *
+         * @param  completion  poll completion
+         */
+        private void expireWaiter( AsyncXmlRpcHandler.Completion completion ) {
+            synchronized ( this ) {
+                if ( waiter_ != completion ) {
+                    return;
+                }
+                waiter_ = null;
+                waitTimeout_ = null;
+                touch();
+            }
+            completion.completed( new ArrayList() );
+        }
+
+        /**
+         * Discards this mailbox if it is idle.
+         * Called from the timer thread.
+         */
+        private void expireIdle() {
+            synchronized ( this ) {
+                if ( waiter_ != null || isDead_ ) {
+                    return;
+                }
+                isDead_ = true;
+                callbacks_.clear();
+            }
+            if ( mailboxes_.remove( mailboxId_, this ) ) {
+                nExpired_.incrementAndGet();
+                logger_.info( "Expired idle callback mailbox " + mailboxId_ );
+            }
+        }
+
+        /**
+         * Resets the idle timer.
+         */
+        synchronized void touch() {
+            if ( idleTimeout_ != null ) {
+                idleTimeout_.cancel();
+            }
+            idleTimeout_ = timer_.schedule( new Runnable() {
+                public void run() {
+                    expireIdle();
+                }
+            }, IDLE_MILLIS );
+        }
+
+        /**
+         * Removes and returns the current waiter.
+         * Must be called with the lock held.
+         *
+         * @return  previous waiter, or null
+         */
+        private AsyncXmlRpcHandler.Completion clearWaiter() {
+            AsyncXmlRpcHandler.Completion waiter = waiter_;
+            if ( waitTimeout_ != null ) {
+                waitTimeout_.cancel();
+            }
+            waiter_ = null;
+            waitTimeout_ = null;
+            return waiter;
+        }
+
+        /**
+         * Removes and returns all held callbacks.
+         * Must be called with the lock held.
+         *
+         * @return  held callbacks
+         */
+        private List<Object> drainCallbacks() {
+            List<Object> delivered = new ArrayList<Object>( callbacks_ );
+            callbacks_.clear();
+            nDelivered_.addAndGet( delivered.size() );
+            return delivered;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package org.astrogrid.samp.tls;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the work of collecting calls from hub relays,
+ * with bounded concurrency and bounded queues.
+ *
+ * <p>Each task is submitted on behalf of a relay, and optionally
+ * of a session at that relay.  Limits apply to the number of tasks
+ * not associated with a session running at once in total and for
+ * each relay.  Session tasks, which are typically long polls that
+ * last as long as the session does, are counted separately:
+ * limits apply to the number of them running at once in total and
+ * for each session, but they do not use up the relay's budget,
+ * so that a relay with many live sessions can still get its
+ * ordinary collections done.
+ * Tasks that cannot run yet are queued per relay, and when capacity
+ * becomes free, relays with runnable tasks are served in turn,
+ * so that a relay with a deep queue cannot starve the others.
+ * Within a relay, tasks run in order of submission, except that a
+ * task held back by its session limit does not block the ones behind it.
+ * If a relay's queue, or the total queue, is full, submission
+ * fails with a <code>RejectedExecutionException</code>.
+ *
+ * <p>Threads are obtained from a supplied executor, only when a task
+ * is ready to run, so the number in use by this scheduler
+ * never exceeds the sum of the total and session concurrency limits.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class CollectionScheduler {
+
+    private final Executor executor_;
+    private final int maxActive_;
+    private final int maxActivePerRelay_;
+    private final int maxActivePerSession_;
+    private final int maxActiveSessionTasks_;
+    private final int maxQueuedPerRelay_;
+    private final int maxQueued_;
+    private final LinkedHashMap<String,RelayQueue> relayQueues_;
+    private final Map<String,Integer> sessionCounts_;
+    private int nActive_;
+    private int nSessionActive_;
+    private int nQueued_;
+    private long nRejected_;
+    private long nCompleted_;
+    private boolean isShutdown_;
+    private static final Logger logger_ =
+        Logger.getLogger( CollectionScheduler.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  executor  executor supplying threads on which tasks run;
+     *                   it should not itself queue or limit tasks
+     * @param  maxActive  maximum number of non-session tasks
+     *                    running at once
+     * @param  maxActivePerRelay  maximum number of non-session tasks
+     *                            running at once for any one relay
+     * @param  maxActivePerSession  maximum number of tasks running at once
+     *                              for any one session
+     * @param  maxActiveSessionTasks  maximum number of session tasks
+     *                                running at once
+     * @param  maxQueuedPerRelay  maximum number of tasks waiting
+     *                            for any one relay
+     * @param  maxQueued  maximum number of tasks waiting in total
+     */
+    public CollectionScheduler( Executor executor, int maxActive,
+                                int maxActivePerRelay,
+                                int maxActivePerSession,
+                                int maxActiveSessionTasks,
+                                int maxQueuedPerRelay, int maxQueued ) {
+        executor_ = executor;
+        maxActive_ = maxActive;
+        maxActivePerRelay_ = maxActivePerRelay;
+        maxActivePerSession_ = maxActivePerSession;
+        maxActiveSessionTasks_ = maxActiveSessionTasks;
+        maxQueuedPerRelay_ = maxQueuedPerRelay;
+        maxQueued_ = maxQueued;
+        relayQueues_ = new LinkedHashMap<String,RelayQueue>();
+        sessionCounts_ = new HashMap<String,Integer>();
+    }
+
+    /**
+     * Submits a task for execution on behalf of a relay.
+     *
+     * @param  relayKey  relay identifier
+     * @param  task  task
+     * @throws  RejectedExecutionException  if there is no room for it
+     */
+    public void execute( String relayKey, Runnable task ) {
+        execute( relayKey, null, task );
+    }
+
+    /**
+     * Submits a task for execution on behalf of a session at a relay.
+     *
+     * @param  relayKey  relay identifier
+     * @param  sessionKey  session identifier, unique across relays,
+     *                     or null for a task not associated with a session
+     * @param  task  task
+     * @throws  RejectedExecutionException  if there is no room for it
+     */
+    public void execute( String relayKey, String sessionKey, Runnable task ) {
+        synchronized ( this ) {
+            RelayQueue rq = relayQueues_.get( relayKey );
+            checkRoom( relayKey, rq );
+            if ( rq == null ) {
+                rq = new RelayQueue( relayKey );
+                relayQueues_.put( relayKey, rq );
+            }
+            rq.tasks_.add( new Task( rq, sessionKey, task ) );
+            nQueued_++;
+        }
+        dispatch();
+    }
+
+    /**
+     * Checks whether a task for a given relay would currently be
+     * accepted, without submitting one.
+     * If not, the refusal is counted as a rejection.
+     *
+     * @param  relayKey  relay identifier
+     * @throws  RejectedExecutionException  if there is no room
+     */
+    public synchronized void checkAccepting( String relayKey ) {
+        checkRoom( relayKey, relayQueues_.get( relayKey ) );
+    }
+
+    /**
+     * Stops accepting tasks.  Tasks already queued are still run.
+     */
+    public synchronized void shutdown() {
+        isShutdown_ = true;
+    }
+
+    /**
+     * Returns the number of tasks currently running.
+     *
+     * @return  active task count
+     */
+    public synchronized int getActiveCount() {
+        return nActive_;
+    }
+
+    /**
+     * Returns the number of session tasks currently running.
+     * These are included in the {@link #getActiveCount active count}.
+     *
+     * @return  active session task count
+     */
+    public synchronized int getSessionActiveCount() {
+        return nSessionActive_;
+    }
+
+    /**
+     * Returns the number of tasks currently waiting to run.
+     *
+     * @return  queue depth
+     */
+    public synchronized int getQueuedCount() {
+        return nQueued_;
+    }
+
+    /**
+     * Returns the number of tasks currently waiting to run for each relay
+     * which has any.
+     *
+     * @return  map from relay identifier to queue depth
+     */
+    public synchronized Map<String,Integer> getRelayQueueDepths() {
+        Map<String,Integer> map = new LinkedHashMap<String,Integer>();
+        for ( RelayQueue rq : relayQueues_.values() ) {
+            if ( rq.tasks_.size() > 0 ) {
+                map.put( rq.relayKey_, Integer.valueOf( rq.tasks_.size() ) );
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns the number of submissions refused so far.
+     *
+     * @return  rejection count
+     */
+    public synchronized long getRejectedCount() {
+        return nRejected_;
+    }
+
+    /**
+     * Returns the number of tasks that have finished running so far.
+     *
+     * @return  completion count
+     */
+    public synchronized long getCompletedCount() {
+        return nCompleted_;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "active: " + nActive_
+             + ", queued: " + nQueued_
+             + ", rejected: " + nRejected_
+             + ", completed: " + nCompleted_;
+    }
+
+    /**
+     * Throws an exception if there is no room to queue a task for a relay.
+     * Must be called with this object's lock held.
+     *
+     * @param  relayKey  relay identifier
+     * @param  rq   queue for relay, or null if none exists
+     * @throws  RejectedExecutionException  if there is no room
+     */
+    private void checkRoom( String relayKey, RelayQueue rq ) {
+        String msg;
+        if ( isShutdown_ ) {
+            msg = "Collection scheduler shut down";
+        }
+        else if ( nQueued_ >= maxQueued_ ) {
+            msg = "Too many queued collections (" + nQueued_ + ")";
+        }
+        else if ( rq != null && rq.tasks_.size() >= maxQueuedPerRelay_ ) {
+            msg = "Too many queued collections for " + relayKey
+                + " (" + rq.tasks_.size() + ")";
+        }
+        else {
+            return;
+        }
+        nRejected_++;
+        throw new RejectedExecutionException( msg );
+    }
+
+    /**
+     * Starts as many queued tasks as the limits permit.
+     */
+    private void dispatch() {
+        List<Task> ready = new ArrayList<Task>();
+        synchronized ( this ) {
+            for ( Task task; ( task = takeNext() ) != null; ) {
+                ready.add( task );
+            }
+        }
+        for ( final Task task : ready ) {
+            try {
+                executor_.execute( new Runnable() {
+                    public void run() {
+                        try {
+                            task.runnable_.run();
+                        }
+                        finally {
+                            finished( task );
+                        }
+                    }
+                } );
+            }
+            catch ( RejectedExecutionException e ) {
+                logger_.log( Level.WARNING,
+                             "Dropped collection for "
+                           + task.relayQueue_.relayKey_, e );
+                synchronized ( this ) {
+                    nRejected_++;
+                }
+                finished( task );
+            }
+        }
+    }
+
+    /**
+     * Removes the next task eligible to run from the queues,
+     * and records it as active.
+     * Relays are visited in least recently served order.
+     * Must be called with this object's lock held.
+     *
+     * @return  task to run, or null if none is eligible
+     */
+    private Task takeNext() {
+        boolean sessionRoom = nSessionActive_ < maxActiveSessionTasks_;
+        boolean totalRoom = nActive_ - nSessionActive_ < maxActive_;
+        for ( RelayQueue rq : relayQueues_.values() ) {
+            boolean relayRoom = totalRoom
+                             && rq.nActive_ < maxActivePerRelay_;
+            if ( relayRoom || sessionRoom ) {
+                for ( Iterator<Task> it = rq.tasks_.iterator();
+                      it.hasNext(); ) {
+                    Task task = it.next();
+                    String skey = task.sessionKey_;
+                    if ( skey == null
+                         ? relayRoom
+                         : sessionRoom && getSessionCount( skey )
+                                          < maxActivePerSession_ ) {
+                        it.remove();
+                        nQueued_--;
+                        nActive_++;
+                        if ( skey == null ) {
+                            rq.nActive_++;
+                        }
+                        else {
+                            nSessionActive_++;
+                            rq.nSessionActive_++;
+                            sessionCounts_.put( skey, Integer.valueOf(
+                                getSessionCount( skey ) + 1 ) );
+                        }
+
+                        // Move the relay to the back of the line.
+                        relayQueues_.remove( rq.relayKey_ );
+                        relayQueues_.put( rq.relayKey_, rq );
+                        return task;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records that a task has finished, and starts any others
+     * that it was holding up.
+     *
+     * @param  task  completed task
+     */
+    private void finished( Task task ) {
+        synchronized ( this ) {
+            RelayQueue rq = task.relayQueue_;
+            nActive_--;
+            nCompleted_++;
+            String skey = task.sessionKey_;
+            if ( skey == null ) {
+                rq.nActive_--;
+            }
+            else {
+                nSessionActive_--;
+                rq.nSessionActive_--;
+                int ns = getSessionCount( skey ) - 1;
+                if ( ns > 0 ) {
+                    sessionCounts_.put( skey, Integer.valueOf( ns ) );
+                }
+                else {
+                    sessionCounts_.remove( skey );
+                }
+            }
+            if ( rq.nActive_ == 0 && rq.nSessionActive_ == 0 &&
+                 rq.tasks_.isEmpty() &&
+                 relayQueues_.get( rq.relayKey_ ) == rq ) {
+                relayQueues_.remove( rq.relayKey_ );
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Returns the number of running tasks for a session.
+     * Must be called with this object's lock held.
+     *
+     * @param  sessionKey  session identifier
+     * @return  active task count
+     */
+    private int getSessionCount( String sessionKey ) {
+        Integer count = sessionCounts_.get( sessionKey );
+        return count == null ? 0 : count.intValue();
+    }
+
+    /**
+     * Tasks waiting for a relay, and the numbers running.
+     */
+    private static class RelayQueue {
+        final String relayKey_;
+        final LinkedList<Task> tasks_;
+        int nActive_;
+        int nSessionActive_;
+
+        /**
+         * Constructor.
+         *
+         * @param  relayKey  relay identifier
+         */
+        RelayQueue( String relayKey ) {
+            relayKey_ = relayKey;
+            tasks_ = new LinkedList<Task>();
+        }
+    }
+
+    /**
+     * Submitted task with its scheduling keys.
+     */
+    private static class Task {
+        final RelayQueue relayQueue_;
+        final String sessionKey_;
+        final Runnable runnable_;
+
+        /**
+         * Constructor.
+         *
+         * @param  relayQueue  queue for relay on whose behalf task runs
+         * @param  sessionKey  session identifier, or null
+         * @param  runnable   work to do
+         */
+        Task( RelayQueue relayQueue, String sessionKey, Runnable runnable ) {
+            relayQueue_ = relayQueue;
+            sessionKey_ = sessionKey;
+            runnable_ = runnable;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package org.astrogrid.samp.tls;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Utilities for compressing XML-RPC message bodies using
+ * HTTP content codings.
+ *
+ * <p>XML-RPC is verbose and compresses well, typically to a fifth
+ * of its size or less, which matters for calls carrying table
+ * fragments or batches of results across a WAN.
+ * The <code>gzip</code> and <code>deflate</code> codings are supported.
+ * Responses are compressed if the request's Accept-Encoding header
+ * permits it and the body is not too small to be worth it.
+ * Request bodies are compressed only if the recipient has
+ * said it can decode them, which it does, following RFC 7694,
+ * by including an Accept-Encoding header in its responses;
+ * a recipient that can't decode a request body responds with
+ * status 415 (Unsupported Media Type).
+ * Compression favours speed over ratio, since XML text compresses
+ * well even at the fastest setting.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+class ContentCoding {
+
+    /** Name of gzip content coding. */
+    public static final String GZIP = "gzip";
+
+    /** Name of deflate (zlib) content coding. */
+    public static final String DEFLATE = "deflate";
+
+    /** Value of the Accept-Encoding header listing supported codings. */
+    public static final String ACCEPTED = GZIP + ", " + DEFLATE;
+
+    /** Bodies shorter than this are sent uncompressed. */
+    public static final int MIN_COMPRESS_BYTES = 1024;
+
+    private static final int LEVEL = Deflater.BEST_SPEED;
+    private static final int BUFSIZ = 8192;
+
+    /**
+     * Private constructor prevents instantiation.
+     */
+    private ContentCoding() {
+    }
+
+    /**
+     * Indicates whether a body with a given Content-Encoding
+     * can be decoded.
+     *
+     * @param  coding  Content-Encoding header value, or null
+     * @return  true iff supported
+     */
+    public static boolean isSupported( String coding ) {
+        return isIdentity( coding ) || getCanonicalName( coding ) != null;
+    }
+
+    /**
+     * Indicates whether a Content-Encoding header value means the body
+     * is not encoded.
+     *
+     * @param  coding  Content-Encoding header value, or null
+     * @return  true iff body is unencoded
+     */
+    public static boolean isIdentity( String coding ) {
+        return coding == null || coding.trim().length() == 0 ||
+               "identity".equalsIgnoreCase( coding.trim() );
+    }
+
+    /**
+     * Chooses a coding for a body to be sent to a recipient
+     * that has declared the codings it accepts.
+     * Gzip is preferred where there is a choice of equal weight.
+     *
+     * @param  acceptEncoding  Accept-Encoding header value, or null
+     * @return  coding name, or null if no supported coding is acceptable
+     */
+    public static String chooseCoding( String acceptEncoding ) {
+        if ( acceptEncoding == null ) {
+            return null;
+        }
+        String best = null;
+        double bestQ = 0;
+        for ( String item : acceptEncoding.split( "," ) ) {
+            String[] parts = item.split( ";" );
+            String name = parts[ 0 ].trim().toLowerCase();
+            double q = 1.0;
+            for ( int ip = 1; ip < parts.length; ip++ ) {
+                String param = parts[ ip ].trim();
+                if ( param.startsWith( "q=" ) ) {
+                    try {
+                        q = Double.parseDouble( param.substring( 2 ) );
+                    }
+                    catch ( NumberFormatException e ) {
+                        q = 0;
+                    }
+                }
+            }
+            String coding = "*".equals( name ) ? GZIP
+                                               : getCanonicalName( name );
+            if ( coding != null && q > bestQ ) {
+                best = coding;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Decodes a body.
+     *
+     * @param  buf  buffer containing encoded body
+     * @param  off  offset of body in buffer
+     * @param  len  length of encoded body
+     * @param  coding  Content-Encoding header value, or null
+     * @param  maxBytes  maximum permitted length of decoded body
+     * @return  decoded body; if no decoding was required this may be
+     *          the input buffer
+     * @throws  IOException  if the coding is unsupported, the data is
+     *                       corrupt, or the decoded body is too large
+     */
+    public static byte[] decode( byte[] buf, int off, int len, String coding,
+                                 int maxBytes )
+            throws IOException {
+        if ( isIdentity( coding ) ) {
+            if ( off == 0 && len == buf.length ) {
+                return buf;
+            }
+            byte[] out = new byte[ len ];
+            System.arraycopy( buf, off, out, 0, len );
+            return out;
+        }
+        InputStream in = new ByteArrayInputStream( buf, off, len );
+        String name = getCanonicalName( coding );
+        if ( GZIP.equals( name ) ) {
+            in = new GZIPInputStream( in, BUFSIZ );
+        }
+        else if ( DEFLATE.equals( name ) ) {
+            in = new InflaterInputStream( in );
+        }
+        else {
+            throw new IOException( "Unsupported Content-Encoding: "
+                                 + coding );
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream( len * 4 );
+        byte[] b = new byte[ BUFSIZ ];
+        try {
+            for ( int n; ( n = in.read( b ) ) >= 0; ) {
+                if ( bout.size() + n > maxBytes ) {
+                    throw new IOException( "Decoded body too large" );
+                }
+                bout.write( b, 0, n );
+            }
+        }
+        finally {
+            in.close();
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * Encodes a body held in memory.
+     *
+     * @param  buf  buffer containing body
+     * @param  off  offset of body in buffer
+     * @param  len  length of body
+     * @param  coding  coding name, as returned by {@link #chooseCoding}
+     * @return  encoded body
+     */
+    public static byte[] encode( byte[] buf, int off, int len,
+                                 String coding ) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream( len / 4 );
+        try {
+            OutputStream out = createEncoder( bout, coding );
+            out.write( buf, off, len );
+            out.close();
+        }
+        catch ( IOException e ) {
+            throw new AssertionError( e );
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * Returns a stream which encodes data written to it and passes it on.
+     * It must be closed to complete the encoding.
+     *
+     * @param  out  destination stream
+     * @param  coding  coding name, as returned by {@link #chooseCoding}
+     * @return  encoding stream
+     */
+    public static OutputStream createEncoder( OutputStream out,
+                                              String coding )
+            throws IOException {
+        if ( GZIP.equals( coding ) ) {
+            return new GZIPOutputStream( out, BUFSIZ ) {
+                {
+                    def.setLevel( LEVEL );
+                }
+            };
+        }
+        else if ( DEFLATE.equals( coding ) ) {
+            return new DeflaterOutputStream( out, new Deflater( LEVEL ),
+                                             BUFSIZ ) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        def.end();
+                    }
+                }
+            };
+        }
+        else {
+            throw new IllegalArgumentException( "Unknown coding " + coding );
+        }
+    }
+
+    /**
+     * Returns the supported coding name corresponding to a coding token.
+     *
+     * @param  coding  content coding token
+     * @return  {@link #GZIP}, {@link #DEFLATE} or null
+     */
+    private static String getCanonicalName( String coding ) {
+        String name = coding == null ? "" : coding.trim().toLowerCase();
+        if ( GZIP.equals( name ) || "x-gzip".equals( name ) ) {
+            return GZIP;
+        }
+        else if ( DEFLATE.equals( name ) ) {
+            return DEFLATE;
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Output stream wrapper that counts the bytes written through it.
+     */
+    public static class CountingOutputStream extends FilterOutputStream {
+        private long count_;
+
+        /**
+         * Constructor.
+         *
+         * @param  out  destination stream
+         */
+        public CountingOutputStream( OutputStream out ) {
+            super( out );
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            out.write( b );
+            count_++;
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            out.write( b, off, len );
+            count_ += len;
+        }
+
+        /**
+         * Returns the number of bytes written so far.
+         *
+         * @return  byte count
+         */
+        public long getCount() {
+            return count_;
+        }
+    }
+
+    /**
+     * Records how much compression has been achieved.
+     * Outgoing bodies are those this party encoded,
+     * and incoming ones those it decoded; unencoded bodies are
+     * not counted.
+     */
+    public static class Stats {
+        private final AtomicLong nOut_;
+        private final AtomicLong outRawBytes_;
+        private final AtomicLong outWireBytes_;
+        private final AtomicLong nIn_;
+        private final AtomicLong inRawBytes_;
+        private final AtomicLong inWireBytes_;
+
+        /**
+         * Constructor.
+         */
+        public Stats() {
+            nOut_ = new AtomicLong();
+            outRawBytes_ = new AtomicLong();
+            outWireBytes_ = new AtomicLong();
+            nIn_ = new AtomicLong();
+            inRawBytes_ = new AtomicLong();
+            inWireBytes_ = new AtomicLong();
+        }
+
+        /**
+         * Records that an outgoing body has been encoded.
+         *
+         * @param  rawBytes  unencoded length
+         * @param  wireBytes  encoded length
+         */
+        public void recordOut( long rawBytes, long wireBytes ) {
+            nOut_.incrementAndGet();
+            outRawBytes_.addAndGet( rawBytes );
+            outWireBytes_.addAndGet( wireBytes );
+        }
+
+        /**
+         * Records that an incoming body has been decoded.
+         *
+         * @param  wireBytes  encoded length
+         * @param  rawBytes  decoded length
+         */
+        public void recordIn( long wireBytes, long rawBytes ) {
+            nIn_.incrementAndGet();
+            inRawBytes_.addAndGet( rawBytes );
+            inWireBytes_.addAndGet( wireBytes );
+        }
+
+        /**
+         * Adds gauges reporting these statistics to a metrics object.
+         * The percentage gauges give encoded size as a percentage of
+         * unencoded size, so smaller is better.
+         *
+         * @param  metrics  metrics to which gauges are added
+         */
+        public void addGauges( MetricsMBean metrics ) {
+            addGauges( metrics, "Out", nOut_, outRawBytes_, outWireBytes_ );
+            addGauges( metrics, "In", nIn_, inRawBytes_, inWireBytes_ );
+        }
+
+        /**
+         * Adds gauges for one direction.
+         *
+         * @param  metrics  metrics to which gauges are added
+         * @param  dir  direction label
+         * @param  count  body counter
+         * @param  raw   unencoded byte counter
+         * @param  wire  encoded byte counter
+         */
+        private static void addGauges( MetricsMBean metrics, String dir,
+                                       final AtomicLong count,
+                                       final AtomicLong raw,
+                                       final AtomicLong wire ) {
+            String prefix = "compression" + dir;
+            metrics.addGauge( prefix + "Bodies", new MetricsMBean.Gauge() {
+                public long getValue() {
+                    return count.get();
+                }
+            } );
+            metrics.addGauge( prefix + "RawBytes", new MetricsMBean.Gauge() {
+                public long getValue() {
+                    return raw.get();
+                }
+            } );
+            metrics.addGauge( prefix + "WireBytes", new MetricsMBean.Gauge() {
+                public long getValue() {
+                    return wire.get();
+                }
+            } );
+            metrics.addGauge( prefix + "Percent", new MetricsMBean.Gauge() {
+                public long getValue() {
+                    long r = raw.get();
+                    return r == 0 ? 0 : Math.round( 100.0 * wire.get() / r );
+                }
+            } );
+        }
+    }
+}
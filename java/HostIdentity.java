@@ -0,0 +1,360 @@
+package org.astrogrid.samp.tls;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Works out a canonical identifier for the host from which
+ * an HTTP request originated.
+ *
+ * <p>The relay uses host identifiers to check that the hub servicing
+ * a call is on the same host as the web application that submitted it,
+ * and to key per-host admission and memory quotas, so it needs them
+ * for every submit, pull and result.
+ * Identifiers are numeric, so no reverse DNS lookups are ever made;
+ * these can block for seconds, and the relay only needs to compare
+ * identifiers, not display them.
+ * All loopback addresses, in either address family, have the
+ * identifier "<code>localhost</code>", so that a browser talking to
+ * the relay over IPv6 and a hub talking to it over IPv4 on the same
+ * machine are recognised as the same host.
+ * IPv4-mapped IPv6 addresses are given in their IPv4 form,
+ * and IPv6 scope IDs are dropped.
+ *
+ * <p>If the request comes from a trusted proxy, the originating
+ * address is taken from the <code>X-Forwarded-For</code> header instead;
+ * it is the rightmost address in the header that is not itself a
+ * trusted proxy.  Proxies are trusted only if listed explicitly.
+ * If they are not, every request relayed by a proxy is attributed to
+ * the proxy, so that all its clients share one set of per-host limits;
+ * a warning is logged the first time a request with an
+ * <code>X-Forwarded-For</code> header arrives from an untrusted peer.
+ *
+ * <p>Results are cached, with a bounded size and lifetime,
+ * since the same few hosts make most of the requests.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class HostIdentity {
+
+    private final Set<String> trustedProxies_;
+    private final int maxEntries_;
+    private final long ttlMillis_;
+    private final Map<String,Identified> cache_;
+    private final AtomicBoolean isUntrustedWarned_;
+
+    /** Identifier for all loopback addresses. */
+    public static final String LOOPBACK = "localhost";
+
+    /** Name of the X-Forwarded-For HTTP header. */
+    public static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+
+    /**
+     * Name of system property giving a comma-separated list of numeric
+     * addresses of proxies whose X-Forwarded-For headers are trusted
+     * by the default instance.
+     */
+    public static final String TRUSTED_PROXIES_PROP =
+        "tlsamp.relay.trustedProxies";
+
+    private static final int DEFAULT_MAX_ENTRIES = 4096;
+    private static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+    private static final Logger logger_ =
+        Logger.getLogger( HostIdentity.class.getName() );
+    private static HostIdentity instance_;
+
+    /**
+     * Constructor.
+     *
+     * @param  trustedProxies  numeric addresses of proxies whose
+     *                         X-Forwarded-For headers are to be trusted
+     * @param  maxEntries   maximum number of cached identifications
+     * @param  ttlMillis    lifetime of cached identifications
+     *                      in milliseconds
+     * @throws  IllegalArgumentException  if a proxy address is not numeric
+     */
+    public HostIdentity( Collection<String> trustedProxies, int maxEntries,
+                         long ttlMillis ) {
+        Set<String> proxies = new HashSet<String>();
+        for ( String proxy : trustedProxies ) {
+            String id = toIdentifier( proxy );
+            if ( id == null ) {
+                throw new IllegalArgumentException( "Proxy address \""
+                                                  + proxy
+                                                  + "\" is not numeric" );
+            }
+            proxies.add( id );
+        }
+        trustedProxies_ = Collections.unmodifiableSet( proxies );
+        maxEntries_ = maxEntries;
+        ttlMillis_ = ttlMillis;
+        isUntrustedWarned_ = new AtomicBoolean();
+        cache_ = new LinkedHashMap<String,Identified>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry eldest ) {
+                return size() > maxEntries_;
+            }
+        };
+    }
+
+    /**
+     * Returns the identifier for the originator of a request.
+     *
+     * @param  remoteAddr  numeric address of the request's peer,
+     *                     as a string
+     * @param  forwardedFor  value of the request's X-Forwarded-For header,
+     *                       or null
+     * @return  host identifier, or null if it can't be determined
+     */
+    public String getIdentity( String remoteAddr, String forwardedFor ) {
+        if ( remoteAddr == null ) {
+            return null;
+        }
+        String key = forwardedFor == null || trustedProxies_.isEmpty()
+                   ? remoteAddr
+                   : remoteAddr + " " + forwardedFor;
+        long now = System.currentTimeMillis();
+        synchronized ( cache_ ) {
+            Identified ided = cache_.get( key );
+            if ( ided != null && ided.expiry_ > now ) {
+                return ided.id_;
+            }
+        }
+        String id = identify( remoteAddr, forwardedFor );
+        if ( id != null ) {
+            synchronized ( cache_ ) {
+                cache_.put( key, new Identified( id, now + ttlMillis_ ) );
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Returns the identifier for the peer of a request.
+     *
+     * @param  remoteAddr  address of the request's peer
+     * @param  forwardedFor  value of the request's X-Forwarded-For header,
+     *                       or null
+     * @return  host identifier, or null if it can't be determined
+     */
+    public String getIdentity( InetAddress remoteAddr, String forwardedFor ) {
+        return remoteAddr == null
+             ? null
+             : getIdentity( remoteAddr.getHostAddress(), forwardedFor );
+    }
+
+    /**
+     * Returns the set of identifiers of trusted proxies.
+     *
+     * @return  unmodifiable set of proxy identifiers
+     */
+    public Set<String> getTrustedProxies() {
+        return trustedProxies_;
+    }
+
+    /**
+     * Works out an identifier without reference to the cache.
+     *
+     * @param  remoteAddr  numeric address of the request's peer
+     * @param  forwardedFor  value of X-Forwarded-For header, or null
+     * @return  host identifier, or null
+     */
+    private String identify( String remoteAddr, String forwardedFor ) {
+        String peerId = toIdentifier( remoteAddr );
+        if ( peerId == null || forwardedFor == null ) {
+            return peerId;
+        }
+        if ( ! trustedProxies_.contains( peerId ) ) {
+            if ( isUntrustedWarned_.compareAndSet( false, true ) ) {
+                logger_.warning( "Request from " + peerId + " has "
+                               + FORWARDED_FOR_HEADER + " header,"
+                               + " but " + peerId + " is not a trusted"
+                               + " proxy; if the relay is behind a reverse"
+                               + " proxy, list it in system property "
+                               + TRUSTED_PROXIES_PROP + ", or all its"
+                               + " clients will share per-host limits" );
+            }
+            return peerId;
+        }
+        String[] hops = forwardedFor.split( "," );
+        String id = peerId;
+        for ( int ih = hops.length - 1; ih >= 0; ih-- ) {
+            String hopId = toIdentifier( stripPort( hops[ ih ].trim() ) );
+            if ( hopId == null ) {
+                logger_.warning( "Bad " + FORWARDED_FOR_HEADER
+                               + " entry from proxy " + peerId + ": "
+                               + hops[ ih ].trim() );
+                return id;
+            }
+            id = hopId;
+            if ( ! trustedProxies_.contains( hopId ) ) {
+                return id;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Returns the default instance.
+     * Its trusted proxies are taken from the system property
+     * {@link #TRUSTED_PROXIES_PROP}.
+     *
+     * @return  default instance
+     */
+    public static synchronized HostIdentity getInstance() {
+        if ( instance_ == null ) {
+            String proxiesTxt = System.getProperty( TRUSTED_PROXIES_PROP );
+            Set<String> proxies = new HashSet<String>();
+            if ( proxiesTxt != null ) {
+                for ( String proxy : proxiesTxt.split( "," ) ) {
+                    if ( proxy.trim().length() > 0 ) {
+                        proxies.add( proxy.trim() );
+                    }
+                }
+            }
+            instance_ = new HostIdentity( proxies, DEFAULT_MAX_ENTRIES,
+                                          DEFAULT_TTL_MILLIS );
+        }
+        return instance_;
+    }
+
+    /**
+     * Converts a numeric address string to a host identifier.
+     * No DNS lookup is performed; anything that does not look like
+     * a numeric address gives a null result.
+     *
+     * @param  addrTxt  IPv4 or IPv6 numeric address, IPv6 optionally
+     *                  in square brackets
+     * @return  host identifier, or null
+     */
+    static String toIdentifier( String addrTxt ) {
+        if ( addrTxt == null ) {
+            return null;
+        }
+        String txt = addrTxt.trim();
+        if ( txt.startsWith( "[" ) && txt.endsWith( "]" ) ) {
+            txt = txt.substring( 1, txt.length() - 1 );
+        }
+        int ipct = txt.indexOf( '%' );
+        if ( ipct >= 0 ) {
+            txt = txt.substring( 0, ipct );
+        }
+        if ( ! isNumericAddress( txt ) ) {
+            return null;
+        }
+        InetAddress addr;
+        try {
+
+            // Since the string is a literal, this does not use DNS.
+            addr = InetAddress.getByName( txt );
+        }
+        catch ( UnknownHostException e ) {
+            return null;
+        }
+        if ( addr.isLoopbackAddress() ) {
+            return LOOPBACK;
+        }
+        byte[] octets = addr.getAddress();
+        if ( octets.length == 16 && isV4Mapped( octets ) ) {
+            return ( octets[ 12 ] & 0xff ) + "." + ( octets[ 13 ] & 0xff )
+                 + "." + ( octets[ 14 ] & 0xff ) + "."
+                 + ( octets[ 15 ] & 0xff );
+        }
+        String id = addr.getHostAddress();
+        int jpct = id.indexOf( '%' );
+        return jpct >= 0 ? id.substring( 0, jpct ) : id;
+    }
+
+    /**
+     * Indicates whether a string looks like a numeric IPv4 or IPv6
+     * address, so that it can be parsed without a DNS lookup.
+     *
+     * @param  txt  string
+     * @return  true iff txt is a dotted quad, or consists only of
+     *          characters that can appear in an IPv6 address
+     *          and includes a colon, so cannot be a hostname
+     */
+    private static boolean isNumericAddress( String txt ) {
+        boolean hasColon = txt.indexOf( ':' ) >= 0;
+        if ( ! hasColon && ! txt.matches( "[0-9]{1,3}(\\.[0-9]{1,3}){3}" ) ) {
+            return false;
+        }
+        for ( int i = 0; i < txt.length(); i++ ) {
+            char c = txt.charAt( i );
+            boolean ok = ( c >= '0' && c <= '9' ) || c == '.' ||
+                         ( hasColon && ( c == ':' ||
+                                         ( c >= 'a' && c <= 'f' ) ||
+                                         ( c >= 'A' && c <= 'F' ) ) );
+            if ( ! ok ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether an IPv6 address is an IPv4-mapped one
+     * (<code>::ffff:a.b.c.d</code>).
+     * <code>InetAddress.getByName</code> normally converts these to
+     * IPv4 itself, but not all sources of addresses do.
+     *
+     * @param  octets  16-byte address
+     * @return  true iff IPv4-mapped
+     */
+    private static boolean isV4Mapped( byte[] octets ) {
+        for ( int i = 0; i < 10; i++ ) {
+            if ( octets[ i ] != 0 ) {
+                return false;
+            }
+        }
+        return octets[ 10 ] == (byte) 0xff && octets[ 11 ] == (byte) 0xff;
+    }
+
+    /**
+     * Removes any port number from an X-Forwarded-For entry.
+     * IPv4 entries may have the form <code>a.b.c.d:port</code>
+     * and IPv6 ones <code>[addr]:port</code>.
+     *
+     * @param  entry  header entry
+     * @return  address part
+     */
+    private static String stripPort( String entry ) {
+        if ( entry.startsWith( "[" ) ) {
+            int iclose = entry.indexOf( ']' );
+            return iclose > 0 ? entry.substring( 0, iclose + 1 ) : entry;
+        }
+        int icolon = entry.indexOf( ':' );
+        return icolon > 0 && entry.indexOf( ':', icolon + 1 ) < 0
+             ? entry.substring( 0, icolon )
+             : entry;
+    }
+
+    /**
+     * Cached identification.
+     */
+    private static class Identified {
+        final String id_;
+        final long expiry_;
+
+        /**
+         * Constructor.
+         *
+         * @param  id  host identifier
+         * @param  expiry  epoch time in milliseconds after which the
+         *                 identification should be redone
+         */
+        Identified( String id, long expiry ) {
+            id_ = id;
+            expiry_ = expiry;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.astrogrid.samp.tls;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects statistics for a {@link TlsHubProfile}, breaking down
+ * the time taken to service relayed calls by stage.
+ *
+ * <p>For each relay, histograms record the duration of these stages:
+ * <dl>
+ * <dt>nudge</dt>
+ * <dd>servicing the nudge HTTP request</dd>
+ * <dt>queue</dt>
+ * <dd>from nudge arrival until the pull request to the relay is made,
+ *     which includes batching and scheduling delays</dd>
+ * <dt>pull</dt>
+ * <dd>the pull request round trip, which includes waiting for the
+ *     web client to submit the call to the relay</dd>
+ * </dl>
+ * and for each relayed method at each relay:
+ * <dl>
+ * <dt>handle</dt>
+ * <dd>executing the call in the hub, which includes any
+ *     authorization dialogue</dd>
+ * <dt>return</dt>
+ * <dd>from the result being ready until the relay acknowledges it,
+ *     which includes batching delays and the upload</dd>
+ * <dt>total</dt>
+ * <dd>from nudge arrival until the relay acknowledges the result</dd>
+ * </dl>
+ * Counters record nudges refused as busy, pulls that timed out,
+ * calls that returned errors, and results that could not be returned.
+ * Calls delivered by session poll may have no nudge, in which case
+ * only the handle and return stages are recorded.
+ * MBean attribute names look like
+ * <code>relays.</code><em>relay-url</em><code>.methods.notifyAll</code>
+ * <code>.totalMillis.p99</code>.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class HubMetrics extends MetricsMBean {
+
+    private final ConcurrentMap<String,RelayStats> relayStats_;
+    private final ConcurrentMap<String,Long> nudgeNanos_;
+
+    /** Maximum number of distinct relays tracked. */
+    private static final int MAX_RELAYS = 64;
+
+    /** Maximum number of distinct method names tracked per relay. */
+    private static final int MAX_METHODS = 64;
+
+    /** Name under which untracked relays or methods are counted. */
+    private static final String OTHER = "other";
+
+    /** Maximum number of nudge times remembered. */
+    private static final int MAX_NUDGES = 4096;
+
+    /** Age beyond which a remembered nudge time may be discarded. */
+    private static final long NUDGE_MAX_AGE_NANOS = 15 * 60 * 1000000000L;
+
+    /**
+     * Constructor.
+     */
+    public HubMetrics() {
+        super( "TlsHubProfile", "TLS-SAMP hub profile metrics" );
+        relayStats_ = new ConcurrentHashMap<String,RelayStats>();
+        nudgeNanos_ = new ConcurrentHashMap<String,Long>();
+        addGauge( "pendingNudges", new Gauge() {
+            public long getValue() {
+                return nudgeNanos_.size();
+            }
+        } );
+    }
+
+    /**
+     * Returns the statistics object for a given relay.
+     * Beyond a fixed number of distinct relays, all further ones
+     * are accounted under a single name.
+     *
+     * @param  relayLoc  relay endpoint URL
+     * @return  statistics object
+     */
+    RelayStats getRelayStats( String relayLoc ) {
+        RelayStats stats = relayStats_.get( relayLoc );
+        if ( stats == null ) {
+            String key = relayStats_.size() < MAX_RELAYS ? relayLoc : OTHER;
+            RelayStats stats1 = new RelayStats();
+            stats = relayStats_.putIfAbsent( key, stats1 );
+            if ( stats == null ) {
+                stats = stats1;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Remembers the time at which a nudge arrived for a given call,
+     * so that later stages can be timed from it.
+     * If too many are outstanding, stale ones are discarded,
+     * and if that doesn't help, this one is not remembered.
+     *
+     * @param  callTag  call tag
+     * @param  nanos   System.nanoTime at nudge arrival
+     */
+    void nudgeReceived( String callTag, long nanos ) {
+        if ( nudgeNanos_.size() >= MAX_NUDGES ) {
+            for ( Iterator<Long> it = nudgeNanos_.values().iterator();
+                  it.hasNext(); ) {
+                if ( nanos - it.next().longValue() > NUDGE_MAX_AGE_NANOS ) {
+                    it.remove();
+                }
+            }
+            if ( nudgeNanos_.size() >= MAX_NUDGES ) {
+                return;
+            }
+        }
+        nudgeNanos_.put( callTag, Long.valueOf( nanos ) );
+    }
+
+    /**
+     * Returns the time at which a nudge arrived for a given call.
+     *
+     * @param  callTag  call tag
+     * @return  System.nanoTime at nudge arrival, or -1 if not known
+     */
+    long getNudgeTime( String callTag ) {
+        Long nanos = nudgeNanos_.get( callTag );
+        return nanos == null ? -1 : nanos.longValue();
+    }
+
+    /**
+     * Returns and forgets the time at which a nudge arrived for
+     * a given call.  Should be called when the call is finished with.
+     *
+     * @param  callTag  call tag
+     * @return  System.nanoTime at nudge arrival, or -1 if not known
+     */
+    long takeNudgeTime( String callTag ) {
+        Long nanos = nudgeNanos_.remove( callTag );
+        return nanos == null ? -1 : nanos.longValue();
+    }
+
+    protected void addStatistics( Map<String,Object> map ) {
+        Map<String,Object> relaysMap = new LinkedHashMap<String,Object>();
+        for ( Map.Entry<String,RelayStats> entry : relayStats_.entrySet() ) {
+            relaysMap.put( entry.getKey(), entry.getValue().getSnapshot() );
+        }
+        map.put( "relays", relaysMap );
+    }
+
+    /**
+     * Counters and latency histograms for a single relay.
+     */
+    static class RelayStats {
+        final AtomicLong nNudges_;
+        final AtomicLong nBusy_;
+        final AtomicLong nPulls_;
+        final AtomicLong nPullTimeouts_;
+        final LatencyHistogram nudge_;
+        final LatencyHistogram queue_;
+        final LatencyHistogram pull_;
+        private final ConcurrentMap<String,MethodStats> methodStats_;
+
+        /**
+         * Constructor.
+         */
+        RelayStats() {
+            nNudges_ = new AtomicLong();
+            nBusy_ = new AtomicLong();
+            nPulls_ = new AtomicLong();
+            nPullTimeouts_ = new AtomicLong();
+            nudge_ = new LatencyHistogram();
+            queue_ = new LatencyHistogram();
+            pull_ = new LatencyHistogram();
+            methodStats_ = new ConcurrentHashMap<String,MethodStats>();
+        }
+
+        /**
+         * Returns the statistics object for a given method.
+         * Beyond a fixed number of distinct names, all further methods
+         * are accounted under a single name.
+         *
+         * @param  methodName  method name, without namespace prefix
+         * @return  statistics object
+         */
+        MethodStats getMethodStats( String methodName ) {
+            MethodStats stats = methodStats_.get( methodName );
+            if ( stats == null ) {
+                String key = methodStats_.size() < MAX_METHODS ? methodName
+                                                               : OTHER;
+                MethodStats stats1 = new MethodStats();
+                stats = methodStats_.putIfAbsent( key, stats1 );
+                if ( stats == null ) {
+                    stats = stats1;
+                }
+            }
+            return stats;
+        }
+
+        /**
+         * Returns a snapshot of this object's state.
+         *
+         * @return  nested map
+         */
+        Map<String,Object> getSnapshot() {
+            Map<String,Object> map = new LinkedHashMap<String,Object>();
+            map.put( "nudges", Long.valueOf( nNudges_.get() ) );
+            map.put( "busy", Long.valueOf( nBusy_.get() ) );
+            map.put( "pulls", Long.valueOf( nPulls_.get() ) );
+            map.put( "pullTimeouts", Long.valueOf( nPullTimeouts_.get() ) );
+            map.put( "nudgeMillis", nudge_.getSnapshot() );
+            map.put( "queueMillis", queue_.getSnapshot() );
+            map.put( "pullMillis", pull_.getSnapshot() );
+            Map<String,Object> methodsMap = new LinkedHashMap<String,Object>();
+            for ( Map.Entry<String,MethodStats> entry :
+                  methodStats_.entrySet() ) {
+                methodsMap.put( entry.getKey(),
+                                entry.getValue().getSnapshot() );
+            }
+            map.put( "methods", methodsMap );
+            return map;
+        }
+    }
+
+    /**
+     * Counters and latency histograms for a single method at one relay.
+     */
+    static class MethodStats {
+        final AtomicLong nCalls_;
+        final AtomicLong nErrors_;
+        final AtomicLong nReturnFailures_;
+        final LatencyHistogram handle_;
+        final LatencyHistogram return_;
+        final LatencyHistogram total_;
+
+        /**
+         * Constructor.
+         */
+        MethodStats() {
+            nCalls_ = new AtomicLong();
+            nErrors_ = new AtomicLong();
+            nReturnFailures_ = new AtomicLong();
+            handle_ = new LatencyHistogram();
+            return_ = new LatencyHistogram();
+            total_ = new LatencyHistogram();
+        }
+
+        /**
+         * Returns a snapshot of this object's state.
+         *
+         * @return  nested map
+         */
+        Map<String,Object> getSnapshot() {
+            Map<String,Object> map = new LinkedHashMap<String,Object>();
+            map.put( "calls", Long.valueOf( nCalls_.get() ) );
+            map.put( "errors", Long.valueOf( nErrors_.get() ) );
+            map.put( "returnFailures", Long.valueOf( nReturnFailures_.get() ) );
+            map.put( "handleMillis", handle_.getSnapshot() );
+            map.put( "returnMillis", return_.getSnapshot() );
+            map.put( "totalMillis", total_.getSnapshot() );
+            return map;
+        }
+    }
+}
@@ -10,11 +10,11 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import javax.imageio.ImageIO;
 import javax.swing.Icon;
-import javax.swing.JPanel;
 import org.astrogrid.samp.httpd.HttpServer;
 
 /**
@@ -23,22 +23,136 @@ import org.astrogrid.samp.httpd.HttpServer;
  * The web client may hide them in any case.
  * Used with TLS hub.
  *
+ * <p>The images are rendered to PNG once only, the first time
+ * any of them is required (or when {@link #prepare} is called),
+ * and the responses returned are shared, immutable instances,
+ * so serving one costs no rendering and no allocation.
+ * Rendering uses only off-screen images, so works headless.
+ *
  * @author   Mark Taylor
  * @since    11 Mar 2016
  */
 class ImageResponse {
 
+    /**
+     * Width in pixels of the image returned by {@link #getSessionResponse}.
+     * This differs from the width of the other images,
+     * so that a web client can tell them apart.
+     */
+    public static final int SESSION_WIDTH = 14;
+
+    /**
+     * Width in pixels of the image returned by {@link #getBusyResponse}.
+     * This differs from the width of the other images,
+     * so that a web client can tell them apart.
+     */
+    public static final int BUSY_WIDTH = 16;
+
+    /** Retry interval in seconds suggested by the busy response. */
+    public static final int BUSY_RETRY_SEC = 2;
+
+    /** Width and height of the basic images. */
+    private static final int SIZE = 12;
+
+    /** Number of distinct frames in the spinning wheel. */
+    private static final int NFRAME = 12;
+
+    /**
+     * Private constructor prevents instantiation.
+     */
+    private ImageResponse() {
+    }
+
+    /**
+     * Ensures that all the images have been rendered, so that the
+     * first requests for them are not delayed.
+     */
+    public static void prepare() {
+        Frames.init();
+    }
+
     /**
      * Returns an image response representing an on/off state.
      *
      * @param  isOn  true for on, false for off
      * @return  image-typed HTTP response
      */
-    public static HttpServer.Response
-            createToggleResponse( final boolean isOn ) {
-        final int d = 12;
+    public static HttpServer.Response getToggleResponse( boolean isOn ) {
+        return isOn ? Frames.ON : Frames.OFF;
+    }
+
+    /**
+     * Returns an image response representing some kind of spinning wheel.
+     *
+     * @param  iseq  sequence number, incrementing it spins the wheel
+     * @return  image-typed HTTP response
+     */
+    public static HttpServer.Response getSpinResponse( int iseq ) {
+        return Frames.SPIN[ frameIndex( iseq ) ];
+    }
+
+    /**
+     * Returns an image response like a spinning wheel, but with width
+     * {@link #SESSION_WIDTH}, signalling that the hub has accepted
+     * a session.
+     *
+     * @param  iseq  sequence number, incrementing it spins the wheel
+     * @return  image-typed HTTP response
+     */
+    public static HttpServer.Response getSessionResponse( int iseq ) {
+        return Frames.SESSION[ frameIndex( iseq ) ];
+    }
+
+    /**
+     * Returns an image response with width {@link #BUSY_WIDTH},
+     * signalling that the hub is too busy to collect the nudged call.
+     * It carries a Retry-After header of {@link #BUSY_RETRY_SEC}.
+     *
+     * @return  image-typed HTTP response
+     */
+    public static HttpServer.Response getBusyResponse() {
+        return Frames.BUSY;
+    }
+
+    /**
+     * Returns an image-typed HTTP response based on a given icon.
+     * Some default MIME type is used.
+     * The image is rendered on every call.
+     *
+     * @param   icon   icon, which must not require a component for painting
+     * @return  image-typed HTTP response
+     */
+    public static HttpServer.Response createImageResponse( Icon icon ) {
+        try {
+            return createResponse( renderPng( icon ),
+                                   new LinkedHashMap<String,String>(), false );
+        }
+        catch ( IOException e ) {
+            return HttpServer.createErrorResponse( 500, "Server error", e );
+        }
+    }
+
+    /**
+     * Maps a sequence number to a spin frame index.
+     *
+     * @param  iseq  sequence number
+     * @return  index in range 0..NFRAME-1
+     */
+    private static int frameIndex( int iseq ) {
+        int ifr = iseq % NFRAME;
+        return ifr < 0 ? ifr + NFRAME : ifr;
+    }
+
+    /**
+     * Returns an icon representing an on/off state.
+     *
+     * @param  isOn  true for on, false for off
+     * @return  icon
+     */
+    private static Icon createToggleIcon( final boolean isOn ) {
+        final int d = SIZE;
         final int s = 1;
-        Icon icon = new Icon() {
+        return new Icon() {
             public int getIconWidth() {
                 return d;
             }
@@ -55,92 +169,170 @@ class ImageResponse {
                 g.setColor( color0 );
             }
         };
-        return createImageResponse( icon );
     }
 
     /**
-     * Returns an image response representing some kind of spinning wheel.
+     * Returns an icon representing some kind of spinning wheel.
      *
      * @param  iseq  sequence number, incrementing it spins the wheel
-     * @return  image-typed HTTP response
+     * @param  width  icon width; the wheel is centred horizontally
+     * @return  icon
      */
-    public static HttpServer.Response createSpinResponse( final int iseq ) {
-        final int d = 12;
-        Icon icon = new Icon() {
+    private static Icon createSpinIcon( final int iseq, final int width ) {
+        final int d = SIZE;
+        return new Icon() {
             public int getIconWidth() {
-                return d;
+                return width;
             }
             public int getIconHeight() {
                 return d;
             }
             public void paintIcon( Component c, Graphics g, int x, int y ) {
+                int x0 = x + ( width - d ) / 2;
                 Color color0 = g.getColor();
                 g.setColor( Color.LIGHT_GRAY );
-                g.fillOval( x, y, d, d );
+                g.fillOval( x0, y, d, d );
                 g.setColor( Color.DARK_GRAY );
-                g.fillArc( x, y, d, d, ( -60 - iseq * 30 ) % 360, 60 );
+                g.fillArc( x0, y, d, d, ( -60 - iseq * 30 ) % 360, 60 );
                 g.setColor( color0 );
             }
         };
-        return createImageResponse( icon );
     }
 
     /**
-     * Returns an image-typed HTTP response based on a given icon.
-     * Some default MIME type is used.
+     * Returns an icon signalling that the hub is busy.
      *
-     * @param  icon   icon
-     * @return  image-typed HTTP response
+     * @return  icon
      */
-    public static HttpServer.Response createImageResponse( Icon icon ) {
-        return createImageResponse( icon, "PNG", "image/png" );
+    private static Icon createBusyIcon() {
+        final int d = SIZE;
+        final int w = BUSY_WIDTH;
+        return new Icon() {
+            public int getIconWidth() {
+                return w;
+            }
+            public int getIconHeight() {
+                return d;
+            }
+            public void paintIcon( Component c, Graphics g, int x, int y ) {
+                int x0 = x + ( w - d ) / 2;
+                Color color0 = g.getColor();
+                g.setColor( Color.GRAY );
+                g.fillOval( x0, y, d, d );
+                g.setColor( Color.WHITE );
+                g.fillRect( x0 + 2, y + d / 2 - 1, d - 4, 2 );
+                g.setColor( color0 );
+            }
+        };
     }
 
     /**
-     * Returns an HTTP response representing an image using a
-     * given image format.
+     * Renders an icon to the bytes of a PNG image.
+     * The icon is painted with a null component.
      *
-     * @param  icon   icon
-     * @param   fmtName   ImageIO format name
-     * @param   mimeType  MIME type corresponding to fmtName
-     * @return  HTTP response
+     * @param   icon   icon
+     * @return  PNG file content
      */
-    public static HttpServer.Response
-            createImageResponse( Icon icon, String fmtName, String mimeType ) {
+    private static byte[] renderPng( Icon icon ) throws IOException {
         int w = icon.getIconWidth();
         int h = icon.getIconHeight();
         BufferedImage img =
             new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
         Graphics2D g2 = img.createGraphics();
-        Color color0 = g2.getColor();
         g2.setColor( Color.WHITE );
         g2.fillRect( 0, 0, w, h );
-        g2.setColor( color0 );
-        RenderingHints hints = g2.getRenderingHints();
         g2.setRenderingHint( RenderingHints.KEY_ANTIALIASING,
                              RenderingHints.VALUE_ANTIALIAS_ON );
-        icon.paintIcon( new JPanel(), g2, 0, 0 );
-        g2.setRenderingHints( hints );
-        try {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            OutputStream out = new BufferedOutputStream( bout );
-            boolean done = ImageIO.write( img, fmtName, out );
-            out.flush();
-            if ( ! done ) {
-                throw new IOException( "Unknown image format " + fmtName );
+        icon.paintIcon( null, g2, 0, 0 );
+        g2.dispose();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        OutputStream out = new BufferedOutputStream( bout );
+        boolean done = ImageIO.write( img, "PNG", out );
+        out.flush();
+        if ( ! done ) {
+            throw new IOException( "No PNG writer" );
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * Returns an HTTP 200 response containing a PNG image.
+     *
+     * @param  buf  PNG file content
+     * @param  hdrMap   map to which the content headers are added,
+     *                  and which is used as the response header map
+     * @param  isFixed  if true, the headers cannot be modified
+     *                  after this call
+     * @return  HTTP response
+     */
+    private static HttpServer.Response
+            createResponse( final byte[] buf, Map<String,String> hdrMap,
+                            boolean isFixed ) {
+        hdrMap.put( "Content-Type", "image/png" );
+        hdrMap.put( "Content-Length", Integer.toString( buf.length ) );
+        return new HttpServer.Response( 200, "OK",
+                                        isFixed
+                                      ? Collections.unmodifiableMap( hdrMap )
+                                      : hdrMap ) {
+            public void writeBody( OutputStream out ) throws IOException {
+                out.write( buf );
             }
-            final byte[] buf = bout.toByteArray();
-            Map hdrMap = new LinkedHashMap();
-            hdrMap.put( "Content-Type", mimeType );
-            hdrMap.put( "Content-Length", Integer.toString( buf.length ) );
-            return new HttpServer.Response( 200, "OK", hdrMap ) {
-                public void writeBody( OutputStream out ) throws IOException {
-                    out.write( buf );
-                }
-            };
+        };
+    }
+
+    /**
+     * Returns a shareable response containing a rendered icon.
+     * Its headers forbid caching, and cannot be modified.
+     *
+     * @param  icon  icon
+     * @param  extraHdrs  additional header name, value pairs
+     * @return  HTTP response
+     */
+    private static HttpServer.Response
+            createFixedResponse( Icon icon, String... extraHdrs ) {
+        byte[] buf;
+        try {
+            buf = renderPng( icon );
         }
         catch ( IOException e ) {
-            return HttpServer.createErrorResponse( 500, "Server error", e );
+            throw new RuntimeException( "Image rendering failed", e );
+        }
+        Map<String,String> hdrMap = new LinkedHashMap<String,String>();
+        hdrMap.put( "Cache-Control", "no-cache" );
+        for ( int i = 0; i < extraHdrs.length; i += 2 ) {
+            hdrMap.put( extraHdrs[ i ], extraHdrs[ i + 1 ] );
+        }
+        return createResponse( buf, hdrMap, true );
+    }
+
+    /**
+     * Holds the prepared responses.  The class is initialised,
+     * and the images rendered, on first use.
+     */
+    private static class Frames {
+        static final HttpServer.Response ON;
+        static final HttpServer.Response OFF;
+        static final HttpServer.Response BUSY;
+        static final HttpServer.Response[] SPIN;
+        static final HttpServer.Response[] SESSION;
+        static {
+            ON = createFixedResponse( createToggleIcon( true ) );
+            OFF = createFixedResponse( createToggleIcon( false ) );
+            BUSY = createFixedResponse( createBusyIcon(), "Retry-After",
+                                        Integer.toString( BUSY_RETRY_SEC ) );
+            SPIN = new HttpServer.Response[ NFRAME ];
+            SESSION = new HttpServer.Response[ NFRAME ];
+            for ( int i = 0; i < NFRAME; i++ ) {
+                SPIN[ i ] = createFixedResponse( createSpinIcon( i, SIZE ) );
+                SESSION[ i ] =
+                    createFixedResponse( createSpinIcon( i, SESSION_WIDTH ) );
+            }
+        }
+
+        /**
+         * No-op, called to force class initialisation.
+         */
+        static void init() {
         }
     }
 }
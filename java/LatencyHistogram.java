@@ -0,0 +1,116 @@
+package org.astrogrid.samp.tls;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, with fixed, roughly logarithmic
+ * bucket boundaries from 1ms to 10 minutes.
+ * Percentiles are reported as the upper bound of the bucket
+ * in which they fall, so are accurate to within a factor of
+ * about 2.5, but never exceed the maximum recorded value.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+class LatencyHistogram {
+
+    private final AtomicLongArray counts_;
+    private final AtomicLong count_;
+    private final AtomicLong sumMicros_;
+    private final AtomicLong maxMicros_;
+    private static final long[] BOUNDS_MILLIS = new long[] {
+        1, 2, 5, 10, 20, 50, 100, 200, 500,
+        1000, 2000, 5000, 10000, 20000, 60000, 120000, 300000, 600000,
+    };
+
+    /**
+     * Constructor.
+     */
+    LatencyHistogram() {
+        counts_ = new AtomicLongArray( BOUNDS_MILLIS.length + 1 );
+        count_ = new AtomicLong();
+        sumMicros_ = new AtomicLong();
+        maxMicros_ = new AtomicLong();
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param  nanos  duration in nanoseconds
+     */
+    void record( long nanos ) {
+        long micros = Math.max( 0, nanos / 1000 );
+        long millis = micros / 1000;
+        int ib = 0;
+        while ( ib < BOUNDS_MILLIS.length &&
+                millis >= BOUNDS_MILLIS[ ib ] ) {
+            ib++;
+        }
+        counts_.incrementAndGet( ib );
+        count_.incrementAndGet();
+        sumMicros_.addAndGet( micros );
+        for ( long max; micros > ( max = maxMicros_.get() ) &&
+                        ! maxMicros_.compareAndSet( max, micros ); ) {
+        }
+    }
+
+    /**
+     * Returns a snapshot of this histogram's state.
+     * Values are in milliseconds.
+     *
+     * @return  map with entries count, mean, p50, p90, p99, max
+     */
+    Map<String,Object> getSnapshot() {
+        long n = count_.get();
+        double maxMillis = maxMicros_.get() / 1000.0;
+        long[] counts = new long[ counts_.length() ];
+        for ( int ib = 0; ib < counts.length; ib++ ) {
+            counts[ ib ] = counts_.get( ib );
+        }
+        Map<String,Object> map = new LinkedHashMap<String,Object>();
+        map.put( "count", Long.valueOf( n ) );
+        long meanMicros = n > 0 ? sumMicros_.get() / n : 0;
+        map.put( "mean", Double.valueOf( meanMicros / 1000.0 ) );
+        map.put( "p50", Double.valueOf( percentile( counts, 0.50,
+                                                maxMillis ) ) );
+        map.put( "p90", Double.valueOf( percentile( counts, 0.90,
+                                                maxMillis ) ) );
+        map.put( "p99", Double.valueOf( percentile( counts, 0.99,
+                                                maxMillis ) ) );
+        map.put( "max", Double.valueOf( maxMillis ) );
+        return map;
+    }
+
+    /**
+     * Estimates a percentile from bucket counts.
+     *
+     * @param  counts  bucket counts
+     * @param  frac  fraction in range 0..1
+     * @param  maxMillis  largest recorded value
+     * @return  percentile estimate in milliseconds
+     */
+    private static double percentile( long[] counts, double frac,
+                                      double maxMillis ) {
+        long total = 0;
+        for ( long c : counts ) {
+            total += c;
+        }
+        if ( total == 0 ) {
+            return 0;
+        }
+        long target = (long) Math.ceil( frac * total );
+        long cum = 0;
+        for ( int ib = 0; ib < counts.length; ib++ ) {
+            cum += counts[ ib ];
+            if ( cum >= target ) {
+                return ib < BOUNDS_MILLIS.length
+                     ? Math.min( BOUNDS_MILLIS[ ib ], maxMillis )
+                     : maxMillis;
+            }
+        }
+        return maxMillis;
+    }
+}
@@ -0,0 +1,204 @@
+package org.astrogrid.samp.tls;
+
+import java.util.List;
+import java.util.Map;
+import org.astrogrid.samp.Message;
+import org.astrogrid.samp.Metadata;
+import org.astrogrid.samp.RegInfo;
+import org.astrogrid.samp.Response;
+import org.astrogrid.samp.Subscriptions;
+import org.astrogrid.samp.client.CallableClient;
+import org.astrogrid.samp.client.ClientProfile;
+import org.astrogrid.samp.client.HubConnection;
+import org.astrogrid.samp.client.SampException;
+
+/**
+ * Hub-side client profile wrapper that lets the TLS profile hear
+ * about callbacks for web clients as soon as they are queued.
+ *
+ * <p>The Web Profile hub implementation queues callbacks for a
+ * callable web client in a callable client object which it installs
+ * on the client's hub connection, and hands them over only when
+ * the client polls for them.  To push the callbacks to a relay
+ * mailbox instead, the TLS profile needs to know when they arrive.
+ * Connections from this profile pass through everything to those of
+ * the base profile, except that if a notifier has been
+ * {@link #bindNotifier bound} to the current thread when a callable
+ * is installed, the callable is wrapped so that the notifier is run
+ * after each callback has been passed on to it.
+ * Since the Web Profile hub installs the callable synchronously
+ * when it services <code>allowReverseCallbacks</code>,
+ * binding a notifier around that call is sufficient.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ * @see      CallbackMailboxes
+ */
+class MailboxClientProfile implements ClientProfile {
+
+    private final ClientProfile base_;
+    private static final ThreadLocal<Runnable> notifier_ =
+        new ThreadLocal<Runnable>();
+
+    /**
+     * Constructor.
+     *
+     * @param  base  base profile
+     */
+    MailboxClientProfile( ClientProfile base ) {
+        base_ = base;
+    }
+
+    public HubConnection register() throws SampException {
+        HubConnection conn = base_.register();
+        return conn == null ? null : new MailboxHubConnection( conn );
+    }
+
+    public boolean isHubRunning() {
+        return base_.isHubRunning();
+    }
+
+    /**
+     * Sets the notifier to be attached to any callable installed
+     * by the current thread.
+     *
+     * @param  notifier  task to run after each callback is queued,
+     *                   or null to clear
+     */
+    public static void bindNotifier( Runnable notifier ) {
+        if ( notifier == null ) {
+            notifier_.remove();
+        }
+        else {
+            notifier_.set( notifier );
+        }
+    }
+
+    /**
+     * Callable client wrapper that runs a notifier after each callback.
+     */
+    private static class NotifyingCallableClient implements CallableClient {
+        private final CallableClient base_;
+        private final Runnable notifier_;
+
+        /**
+         * Constructor.
+         *
+         * @param  base  base callable
+         * @param  notifier   task to run after each callback
+         */
+        NotifyingCallableClient( CallableClient base, Runnable notifier ) {
+            base_ = base;
+            notifier_ = notifier;
+        }
+
+        public void receiveNotification( String senderId, Message msg )
+                throws Exception {
+            base_.receiveNotification( senderId, msg );
+            notifier_.run();
+        }
+
+        public void receiveCall( String senderId, String msgId, Message msg )
+                throws Exception {
+            base_.receiveCall( senderId, msgId, msg );
+            notifier_.run();
+        }
+
+        public void receiveResponse( String responderId, String msgTag,
+                                     Response response )
+                throws Exception {
+            base_.receiveResponse( responderId, msgTag, response );
+            notifier_.run();
+        }
+    }
+
+    /**
+     * Hub connection wrapper that may wrap installed callables.
+     */
+    private static class MailboxHubConnection implements HubConnection {
+        private final HubConnection base_;
+
+        /**
+         * Constructor.
+         *
+         * @param  base  base connection
+         */
+        MailboxHubConnection( HubConnection base ) {
+            base_ = base;
+        }
+
+        public void setCallable( CallableClient callable )
+                throws SampException {
+            Runnable notifier = notifier_.get();
+            base_.setCallable( callable == null || notifier == null
+                             ? callable
+                             : new NotifyingCallableClient( callable,
+                                                            notifier ) );
+        }
+
+        public RegInfo getRegInfo() {
+            return base_.getRegInfo();
+        }
+
+        public void ping() throws SampException {
+            base_.ping();
+        }
+
+        public void unregister() throws SampException {
+            base_.unregister();
+        }
+
+        public void declareMetadata( Map meta ) throws SampException {
+            base_.declareMetadata( meta );
+        }
+
+        public Metadata getMetadata( String clientId ) throws SampException {
+            return base_.getMetadata( clientId );
+        }
+
+        public void declareSubscriptions( Map subs ) throws SampException {
+            base_.declareSubscriptions( subs );
+        }
+
+        public Subscriptions getSubscriptions( String clientId )
+                throws SampException {
+            return base_.getSubscriptions( clientId );
+        }
+
+        public String[] getRegisteredClients() throws SampException {
+            return base_.getRegisteredClients();
+        }
+
+        public Map getSubscribedClients( String mtype ) throws SampException {
+            return base_.getSubscribedClients( mtype );
+        }
+
+        public void notify( String recipientId, Map msg )
+                throws SampException {
+            base_.notify( recipientId, msg );
+        }
+
+        public List notifyAll( Map msg ) throws SampException {
+            return base_.notifyAll( msg );
+        }
+
+        public String call( String recipientId, String msgTag, Map msg )
+                throws SampException {
+            return base_.call( recipientId, msgTag, msg );
+        }
+
+        public Map callAll( String msgTag, Map msg ) throws SampException {
+            return base_.callAll( msgTag, msg );
+        }
+
+        public Response callAndWait( String recipientId, Map msg,
+                                     int timeout )
+                throws SampException {
+            return base_.callAndWait( recipientId, msg, timeout );
+        }
+
+        public void reply( String msgId, Map response ) throws SampException {
+            base_.reply( msgId, response );
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package org.astrogrid.samp.tls;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.astrogrid.samp.httpd.HttpServer;
+
+/**
+ * Abstract superclass for collections of operational statistics
+ * that can be published over HTTP and JMX.
+ *
+ * <p>Gauges report instantaneous values such as queue sizes,
+ * and are evaluated only when a snapshot is taken.
+ * Subclasses add their own counters and histograms to the snapshot.
+ *
+ * <p>The statistics are available as a nested map by
+ * {@link #getSnapshot}, as a JSON document by {@link #toJson},
+ * and, once {@link #registerMBean} has been called,
+ * as the read-only attributes of a JMX MBean.
+ * MBean attribute names are the snapshot keys joined with dots.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public abstract class MetricsMBean implements DynamicMBean {
+
+    private final String mbeanType_;
+    private final String description_;
+    private final Map<String,Gauge> gauges_;
+    private ObjectName mbeanName_;
+
+    /** JMX domain for registered MBeans. */
+    public static final String JMX_DOMAIN = "org.astrogrid.samp.tls";
+
+    /** MIME type for JSON statistics. */
+    public static final String JSON_MIME_TYPE =
+        "application/json; charset=UTF-8";
+
+    /**
+     * Constructor.
+     *
+     * @param  mbeanType  value of the <code>type</code> key in the
+     *                    JMX object name
+     * @param  description  short description of this MBean
+     */
+    protected MetricsMBean( String mbeanType, String description ) {
+        mbeanType_ = mbeanType;
+        description_ = description;
+        gauges_ = new LinkedHashMap<String,Gauge>();
+    }
+
+    /**
+     * Adds a named gauge.
+     * Gauges appear in snapshots in order of addition,
+     * before any other statistics.
+     *
+     * @param  name  gauge name
+     * @param  gauge  gauge
+     */
+    public void addGauge( String name, Gauge gauge ) {
+        synchronized ( gauges_ ) {
+            gauges_.put( name, gauge );
+        }
+    }
+
+    /**
+     * Adds entries representing statistics other than the gauges
+     * to a snapshot map.
+     * Keys must be strings, and values numbers or further such maps.
+     *
+     * @param  map  map to populate
+     */
+    protected abstract void addStatistics( Map<String,Object> map );
+
+    /**
+     * Returns a snapshot of the current statistics as a nested map.
+     * Keys are strings, and values are numbers or further maps.
+     *
+     * @return  statistics snapshot
+     */
+    public Map<String,Object> getSnapshot() {
+        Map<String,Object> map = new LinkedHashMap<String,Object>();
+        synchronized ( gauges_ ) {
+            for ( Map.Entry<String,Gauge> entry : gauges_.entrySet() ) {
+                map.put( entry.getKey(),
+                         Long.valueOf( entry.getValue().getValue() ) );
+            }
+        }
+        addStatistics( map );
+        return map;
+    }
+
+    /**
+     * Returns a snapshot of the current statistics as a JSON object.
+     *
+     * @return  JSON text
+     */
+    public String toJson() {
+        StringBuilder sbuf = new StringBuilder();
+        appendJson( sbuf, getSnapshot(), "" );
+        return sbuf.append( '\n' ).toString();
+    }
+
+    /**
+     * Returns an HTTP response containing a snapshot of the current
+     * statistics as JSON.
+     *
+     * @return  uncacheable HTTP 200 response
+     */
+    public HttpServer.Response createJsonResponse() {
+        final byte[] json;
+        try {
+            json = toJson().getBytes( "UTF-8" );
+        }
+        catch ( UnsupportedEncodingException e ) {
+            throw new AssertionError( e );
+        }
+        Map<String,String> hdrMap = new LinkedHashMap<String,String>();
+        hdrMap.put( "Content-Type", JSON_MIME_TYPE );
+        hdrMap.put( "Content-Length", Integer.toString( json.length ) );
+        hdrMap.put( "Cache-Control", "no-cache" );
+        return new HttpServer.Response( 200, "OK", hdrMap ) {
+            public void writeBody( OutputStream out ) throws IOException {
+                out.write( json );
+            }
+        };
+    }
+
+    /**
+     * Registers this object with the platform MBean server.
+     * Any previous registration by this object is withdrawn first.
+     *
+     * @param  name  value of the <code>name</code> key in the
+     *               object name; must be a legal ObjectName value
+     * @return  registered object name
+     */
+    public synchronized ObjectName registerMBean( String name )
+            throws JMException {
+        unregisterMBean();
+        ObjectName oname =
+            new ObjectName( JMX_DOMAIN + ":type=" + mbeanType_
+                          + ",name=" + name );
+        ManagementFactory.getPlatformMBeanServer()
+                         .registerMBean( this, oname );
+        mbeanName_ = oname;
+        return oname;
+    }
+
+    /**
+     * Withdraws registration with the platform MBean server,
+     * if this object is registered.
+     */
+    public synchronized void unregisterMBean() {
+        if ( mbeanName_ != null ) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean( mbeanName_ );
+            }
+            catch ( JMException e ) {
+                // already gone
+            }
+            mbeanName_ = null;
+        }
+    }
+
+    public Object getAttribute( String attName )
+            throws AttributeNotFoundException {
+        Object value = getFlatSnapshot().get( attName );
+        if ( value == null ) {
+            throw new AttributeNotFoundException( attName );
+        }
+        return value;
+    }
+
+    public AttributeList getAttributes( String[] attNames ) {
+        Map<String,Object> flat = getFlatSnapshot();
+        AttributeList list = new AttributeList();
+        for ( String attName : attNames ) {
+            Object value = flat.get( attName );
+            if ( value != null ) {
+                list.add( new Attribute( attName, value ) );
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute( Attribute att )
+            throws AttributeNotFoundException {
+        throw new AttributeNotFoundException( "Read-only: " + att.getName() );
+    }
+
+    public AttributeList setAttributes( AttributeList atts ) {
+        return new AttributeList();
+    }
+
+    public Object invoke( String actionName, Object[] params,
+                          String[] signature )
+            throws ReflectionException {
+        throw new ReflectionException( new NoSuchMethodException( actionName ),
+                                       "No operations" );
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attList = new ArrayList<MBeanAttributeInfo>();
+        for ( Map.Entry<String,Object> entry :
+              getFlatSnapshot().entrySet() ) {
+            attList.add( new MBeanAttributeInfo( entry.getKey(),
+                                                 entry.getValue().getClass()
+                                                      .getName(),
+                                                 entry.getKey(),
+                                                 true, false, false ) );
+        }
+        return new MBeanInfo( getClass().getName(), description_,
+                              attList.toArray( new MBeanAttributeInfo[ 0 ] ),
+                              new MBeanConstructorInfo[ 0 ],
+                              new MBeanOperationInfo[ 0 ],
+                              new MBeanNotificationInfo[ 0 ] );
+    }
+
+    /**
+     * Returns the current snapshot flattened to a single-level map
+     * with dot-separated keys.
+     *
+     * @return  flat map of names to numeric values
+     */
+    private Map<String,Object> getFlatSnapshot() {
+        Map<String,Object> flat = new LinkedHashMap<String,Object>();
+        flatten( flat, "", getSnapshot() );
+        return flat;
+    }
+
+    /**
+     * Adds the entries of a nested map to a flat one.
+     *
+     * @param  flat  destination map
+     * @param  prefix  key prefix
+     * @param  map   nested map
+     */
+    private static void flatten( Map<String,Object> flat, String prefix,
+                                 Map<?,?> map ) {
+        for ( Map.Entry<?,?> entry : map.entrySet() ) {
+            String key = prefix + entry.getKey();
+            Object value = entry.getValue();
+            if ( value instanceof Map ) {
+                flatten( flat, key + ".", (Map<?,?>) value );
+            }
+            else {
+                flat.put( key, value );
+            }
+        }
+    }
+
+    /**
+     * Appends the JSON representation of a snapshot value to a buffer.
+     *
+     * @param  sbuf  buffer
+     * @param  value  map, number or string
+     * @param  indent  indentation of current level
+     */
+    private static void appendJson( StringBuilder sbuf, Object value,
+                                    String indent ) {
+        if ( value instanceof Map ) {
+            Map<?,?> map = (Map<?,?>) value;
+            if ( map.isEmpty() ) {
+                sbuf.append( "{}" );
+                return;
+            }
+            String indent1 = indent + "  ";
+            sbuf.append( "{" );
+            boolean isFirst = true;
+            for ( Map.Entry<?,?> entry : map.entrySet() ) {
+                sbuf.append( isFirst ? "\n" : ",\n" )
+                    .append( indent1 );
+                appendJson( sbuf, entry.getKey().toString(), indent1 );
+                sbuf.append( ": " );
+                appendJson( sbuf, entry.getValue(), indent1 );
+                isFirst = false;
+            }
+            sbuf.append( '\n' )
+                .append( indent )
+                .append( '}' );
+        }
+        else if ( value instanceof Double ) {
+            double dval = ((Double) value).doubleValue();
+            sbuf.append( Double.isNaN( dval ) || Double.isInfinite( dval )
+                         ? "null"
+                         : Double.toString( dval ) );
+        }
+        else if ( value instanceof Number ) {
+            sbuf.append( value );
+        }
+        else {
+            String txt = String.valueOf( value );
+            sbuf.append( '"' );
+            for ( int i = 0; i < txt.length(); i++ ) {
+                char c = txt.charAt( i );
+                if ( c == '"' || c == '\\' ) {
+                    sbuf.append( '\\' ).append( c );
+                }
+                else if ( c < 0x20 || c > 0x7e ) {
+                    String hex = Integer.toHexString( c );
+                    sbuf.append( "\\u" )
+                        .append( "0000".substring( hex.length() ) )
+                        .append( hex );
+                }
+                else {
+                    sbuf.append( c );
+                }
+            }
+            sbuf.append( '"' );
+        }
+    }
+
+    /**
+     * Supplies an instantaneous value.
+     */
+    public interface Gauge {
+
+        /**
+         * Returns the current value.
+         *
+         * @return  value
+         */
+        long getValue();
+    }
+}
@@ -0,0 +1,2033 @@
+package org.astrogrid.samp.tls;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import org.astrogrid.samp.httpd.HttpServer;
+import org.astrogrid.samp.xmlrpc.internal.XmlRpcCall;
+
+/**
+ * Standalone HTTP(S) harness for the relay that multiplexes all its
+ * connections on a single selector thread.
+ *
+ * <p>Unlike {@link StandaloneServer}, which uses the thread-per-connection
+ * JSAMP HttpServer, this uses non-blocking I/O together with the
+ * {@link AsyncXmlRpcHandler} interface, so that a connection whose
+ * relay call is waiting for its partner costs a little memory but
+ * no thread.  XML-RPC decoding is done on a small pool of worker threads,
+ * and the relay handlers complete requests from their own timer or from
+ * the thread servicing the partner call.
+ * Handlers which also implement {@link XmlRpcDecoder.OpaquePolicy}
+ * can receive parameters they don't need to examine as
+ * undecoded {@link OpaqueValue}s.
+ * TLS is optionally supported using an SSLEngine.
+ *
+ * <p>The request object passed to the handlers is an
+ * {@link org.astrogrid.samp.httpd.HttpServer.Request}, so the handlers
+ * can use the same {@link HttpRequestFormat} as the StandaloneServer.
+ *
+ * <p>The HTTP implementation is minimal; it understands
+ * persistent HTTP/1.1 connections and request bodies with a declared
+ * Content-Length, which is what XML-RPC clients send.
+ * POST requests to the relay path are handled as XML-RPC calls,
+ * and CORS preflight requests are honoured for any origin.
+ * If {@link #setMetrics} has been called, a GET request to the relay path
+ * with the query string <code>?stats</code> returns the relay
+ * statistics as JSON.
+ * If {@link #setResourceRelay} has been called, resource transfers
+ * are relayed between PUT and GET requests as described there;
+ * these are the only requests for which chunked bodies are accepted.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class NioRelayServer {
+
+    private final ServerSocketChannel serverChannel_;
+    private final Selector selector_;
+    private final String relayPath_;
+    private final SSLContext sslContext_;
+    private final AsyncXmlRpcHandler[] handlers_;
+    private final XmlRpcDecoder.OpaquePolicy opaquePolicy_;
+    private final ExecutorService workerExecutor_;
+    private final Queue<Runnable> loopTasks_;
+    private final AtomicInteger nConn_;
+    private final Thread loopThread_;
+    private volatile boolean stopped_;
+    private volatile RelayMetrics metrics_;
+    private volatile ResourceRelay resources_;
+    private volatile RendezvousStore<String,Pipe> pipes_;
+
+    /**
+     * Name of system property giving the secret shared by the nodes
+     * of a relay cluster when run from the command line.
+     */
+    public static final String CLUSTER_SECRET_PROP = "tlsamp.cluster.secret";
+
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
+    private static final long IDLE_TIMEOUT_MILLIS = 120 * 1000;
+    private static final long BODY_TIMEOUT_MILLIS = 30 * 1000;
+    private static final int MIN_BODY_BYTES_PER_SEC = 16 * 1024;
+    private static final int PIPE_READ_BYTES = 64 * 1024;
+    private static final int PIPE_HIGH_WATER = 256 * 1024;
+    private static final int PIPE_LOW_WATER = 64 * 1024;
+    private static final int MAX_LINE_BYTES = 1024;
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+    private static final byte[] CRLFCRLF =
+        new byte[] { '\r', '\n', '\r', '\n' };
+    private static final String ISO8859 = "ISO-8859-1";
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate( 0 );
+    private static final Logger logger_ =
+        Logger.getLogger( NioRelayServer.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  port  port to bind to; if zero, one is chosen
+     * @param  relayPath   server endpoint for hub relay XML-RPC server
+     * @param  sslContext  context for TLS connections;
+     *                     if null, plain HTTP is used
+     * @param  handlers   XML-RPC handlers, normally the receive and
+     *                    dispense handlers of an {@link XmlRpcRelay}
+     * @param  nWorker   number of threads used for decoding requests
+     */
+    public NioRelayServer( int port, String relayPath, SSLContext sslContext,
+                           AsyncXmlRpcHandler[] handlers, int nWorker )
+            throws IOException {
+        relayPath_ = relayPath;
+        sslContext_ = sslContext;
+        handlers_ = handlers.clone();
+        opaquePolicy_ = new XmlRpcDecoder.OpaquePolicy() {
+            public int getDecodedParamCount( String methodName ) {
+                AsyncXmlRpcHandler handler = getHandler( methodName );
+                return handler instanceof XmlRpcDecoder.OpaquePolicy
+                     ? ((XmlRpcDecoder.OpaquePolicy) handler)
+                      .getDecodedParamCount( methodName )
+                     : -1;
+            }
+        };
+        loopTasks_ = new ConcurrentLinkedQueue<Runnable>();
+        nConn_ = new AtomicInteger();
+        selector_ = Selector.open();
+        serverChannel_ = ServerSocketChannel.open();
+        ServerSocket ssock = serverChannel_.socket();
+        ssock.setReuseAddress( true );
+        ssock.bind( new InetSocketAddress( port ), 1024 );
+        serverChannel_.configureBlocking( false );
+        serverChannel_.register( selector_, SelectionKey.OP_ACCEPT );
+        workerExecutor_ =
+                Executors.newFixedThreadPool( nWorker, new ThreadFactory() {
+            private int iw_;
+            public synchronized Thread newThread( Runnable r ) {
+                Thread thread =
+                    new Thread( r, "TLS-SAMP relay worker " + ++iw_ );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        loopThread_ = new Thread( "TLS-SAMP relay selector" ) {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        };
+        logger_.warning( "Running NIO "
+                       + ( sslContext == null ? "HTTP" : "HTTPS" )
+                       + " relay on port " + getPort() );
+    }
+
+    /**
+     * Returns the port on which this server is listening.
+     *
+     * @return  port number
+     */
+    public int getPort() {
+        return serverChannel_.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of client connections currently open.
+     *
+     * @return  connection count
+     */
+    public int getConnectionCount() {
+        return nConn_.get();
+    }
+
+    /**
+     * Sets the statistics to be served in response to
+     * <code>GET &lt;relayPath&gt;?stats</code> requests.
+     *
+     * @param  metrics  relay metrics, or null to disable the endpoint
+     */
+    public void setMetrics( RelayMetrics metrics ) {
+        metrics_ = metrics;
+    }
+
+    /**
+     * Enables resource transfers, which are PUT (from the hub) and
+     * GET (from the web application) requests to the relay path
+     * with the query string <code>?resource=&lt;callTag&gt;</code>.
+     * The uploaded body, which may use chunked encoding, is passed on
+     * to the download response as it arrives.  Reading from the upload
+     * is suspended while more than a fixed amount of it is queued for
+     * writing to the download, so the memory used by a transfer
+     * does not depend on its size.
+     * If the relay has a {@link ResourceCache}, cached content is
+     * served directly, and relayed content is copied into the cache
+     * as it passes.
+     * Should be called before {@link #start}.
+     *
+     * @param  resources  resource relay, or null to disable transfers
+     */
+    public void setResourceRelay( ResourceRelay resources ) {
+        pipes_ = resources == null
+               ? null
+               : new RendezvousStore<String,Pipe>( resources.getTimer() );
+        resources_ = resources;
+    }
+
+    /**
+     * Starts this server running.
+     */
+    public void start() {
+        loopThread_.start();
+    }
+
+    /**
+     * Stops this server running and closes all its connections.
+     */
+    public void stop() {
+        stopped_ = true;
+        selector_.wakeup();
+        workerExecutor_.shutdown();
+    }
+
+    /**
+     * Runs the event loop.  Called from the selector thread.
+     */
+    private void runLoop() {
+        long lastSweep = System.currentTimeMillis();
+        while ( ! stopped_ ) {
+            try {
+                selector_.select( 1000 );
+                for ( Runnable task; ( task = loopTasks_.poll() ) != null; ) {
+                    task.run();
+                }
+                for ( Iterator<SelectionKey> it =
+                          selector_.selectedKeys().iterator();
+                      it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if ( key.isValid() && key.isAcceptable() ) {
+                        accept();
+                    }
+                    else if ( key.isValid() ) {
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if ( key.isWritable() ) {
+                                conn.flush();
+                            }
+                            if ( key.isValid() && key.isReadable() &&
+                                 ! conn.readPaused_ ) {
+                                conn.readInput();
+                            }
+                        }
+                        catch ( IOException e ) {
+                            logger_.log( Level.FINE, "Connection error", e );
+                            conn.close();
+                        }
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if ( now - lastSweep > 1000 ) {
+                    lastSweep = now;
+                    closeIdleConnections( now );
+                }
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.WARNING, "Selector error", e );
+            }
+        }
+        for ( SelectionKey key : selector_.keys() ) {
+            if ( key.attachment() instanceof Connection ) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel_.close();
+            selector_.close();
+        }
+        catch ( IOException e ) {
+            logger_.log( Level.WARNING, "Close error", e );
+        }
+    }
+
+    /**
+     * Accepts any pending connections.  Called from the selector thread.
+     */
+    private void accept() throws IOException {
+        for ( SocketChannel channel;
+              ( channel = serverChannel_.accept() ) != null; ) {
+            channel.configureBlocking( false );
+            channel.socket().setTcpNoDelay( true );
+            SSLEngine engine = null;
+            if ( sslContext_ != null ) {
+                engine = sslContext_.createSSLEngine();
+                engine.setUseClientMode( false );
+                engine.beginHandshake();
+            }
+            Connection conn = new Connection( channel, engine );
+            conn.key_ = channel.register( selector_, SelectionKey.OP_READ,
+                                          conn );
+            nConn_.incrementAndGet();
+        }
+    }
+
+    /**
+     * Closes connections which have no request in progress and have
+     * been inactive for a while, which are part of a resource
+     * transfer that has made no progress for a while, or which have
+     * taken too long to deliver a request body.
+     * Called from the selector thread.
+     *
+     * @param  now  current epoch time in milliseconds
+     */
+    private void closeIdleConnections( long now ) {
+        for ( SelectionKey key : selector_.keys() ) {
+            Object att = key.attachment();
+            if ( att instanceof Connection ) {
+                Connection conn = (Connection) att;
+                Pipe pipe = conn.pipe_;
+                boolean isIdle = pipe != null
+                    ? now - pipe.lastActive_ > IDLE_TIMEOUT_MILLIS
+                    : ! conn.busy_ &&
+                      ( now - conn.lastActive_ > IDLE_TIMEOUT_MILLIS ||
+                        ( conn.bodyDeadline_ > 0 &&
+                          now > conn.bodyDeadline_ ) );
+                if ( isIdle ) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Arranges for a task to be run on the selector thread.
+     *
+     * @param  task  task
+     */
+    private void runOnLoop( Runnable task ) {
+        loopTasks_.add( task );
+        selector_.wakeup();
+    }
+
+    /**
+     * Decodes and dispatches an XML-RPC request.
+     * Called from a worker thread.
+     *
+     * @param  conn  connection on which request arrived
+     * @param  request   request
+     */
+    private void serviceXmlRpc( final Connection conn,
+                                HttpServer.Request request ) {
+        Map hdrMap = request.getHeaderMap();
+        final String origin = HttpServer.getHeader( hdrMap, "Origin" );
+        String reqCoding = HttpServer.getHeader( hdrMap, "Content-Encoding" );
+        if ( ! ContentCoding.isSupported( reqCoding ) ) {
+            conn.respondLater( 415, "Unsupported Media Type", false );
+            return;
+        }
+        RelayMetrics metrics = metrics_;
+        final ContentCoding.Stats stats =
+            metrics == null ? null : metrics.getCompressionStats();
+        final String respCoding =
+            ContentCoding
+           .chooseCoding( HttpServer.getHeader( hdrMap, "Accept-Encoding" ) );
+        final AsyncXmlRpcHandler handler;
+        final XmlRpcCall call;
+        try {
+            byte[] body = request.getBody();
+            if ( ! ContentCoding.isIdentity( reqCoding ) ) {
+                int wireLeng = body.length;
+                body = ContentCoding.decode( body, 0, wireLeng, reqCoding,
+                                             MAX_BODY_BYTES );
+                if ( stats != null ) {
+                    stats.recordIn( wireLeng, body.length );
+                }
+            }
+            call = XmlRpcDecoder
+                  .decodeCall( body, 0, body.length, opaquePolicy_ );
+            handler = getHandler( call.getMethodName() );
+            if ( handler == null ) {
+                throw new IllegalArgumentException( "No such method "
+                                                  + call.getMethodName() );
+            }
+        }
+        catch ( Exception e ) {
+            respondFault( conn, origin, e );
+            return;
+        }
+        handler.handleCallAsync( call.getMethodName(), call.getParams(),
+                                 request,
+                                 new AsyncXmlRpcHandler.Completion() {
+            public void completed( Object result ) {
+                try {
+                    XmlRpcEncoder
+                   .writeResult( result,
+                                 new SegmentSink( conn, origin, respCoding,
+                                                  stats ) );
+                }
+                catch ( Throwable e ) {
+                    respondFault( conn, origin, e );
+                }
+            }
+            public void failed( Throwable error ) {
+                respondFault( conn, origin, error );
+            }
+        } );
+    }
+
+    /**
+     * Returns the requesting host identifier for an HTTP request.
+     * No DNS lookup is involved; see {@link HostIdentity}.
+     *
+     * @param  request  request
+     * @return  hostname, or null
+     */
+    private static String getHostName( HttpServer.Request request ) {
+        return StandaloneServer.getRequestFormat().getHostName( request );
+    }
+
+    /**
+     * Returns a buffer containing the ASCII encoding of a string.
+     *
+     * @param  txt  text
+     * @return  new buffer ready for reading
+     */
+    private static ByteBuffer toAsciiBuffer( String txt ) {
+        try {
+            return ByteBuffer.wrap( txt.getBytes( ISO8859 ) );
+        }
+        catch ( UnsupportedEncodingException e ) {
+            throw new AssertionError( e );
+        }
+    }
+
+    /**
+     * Identifies the correct XML-RPC handler for a given XML-RPC method name.
+     *
+     * @param  methodName  XML-RPC methodName element content
+     * @return   handler for named method, or null if none known
+     */
+    private AsyncXmlRpcHandler getHandler( String methodName ) {
+        for ( AsyncXmlRpcHandler h : handlers_ ) {
+            if ( h.canHandleCall( methodName ) ) {
+                return h;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends the XML-RPC fault corresponding to an error.
+     * May be called from any thread.
+     *
+     * @param  conn  connection
+     * @param  origin  value of request Origin header, or null
+     * @param  error  error
+     */
+    private static void respondFault( Connection conn, String origin,
+                                      Throwable error ) {
+        try {
+            XmlRpcEncoder.writeFault( error,
+                                      new SegmentSink( conn, origin,
+                                                       null, null ) );
+        }
+        catch ( IOException e ) {
+            throw new RuntimeException( "Can't serialize fault", e );
+        }
+    }
+
+    /**
+     * Returns the index of a byte sequence within a buffer.
+     *
+     * @param  buf  buffer
+     * @param  off  start index of searched region
+     * @param  len  length of searched region
+     * @param  seq  sequence to find
+     * @return  index of start of sequence in buf, or -1
+     */
+    private static int indexOf( byte[] buf, int off, int len, byte[] seq ) {
+        int end = off + len - seq.length;
+        outer:
+        for ( int i = off; i <= end; i++ ) {
+            for ( int j = 0; j < seq.length; j++ ) {
+                if ( buf[ i + j ] != seq[ j ] ) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a buffer like a given one but with at least a given
+     * amount of free space.
+     *
+     * @param  buf  buffer in write mode
+     * @param  minFree  minimum required remaining space
+     * @return  buffer, possibly the input one, in write mode
+     */
+    private static ByteBuffer ensureFree( ByteBuffer buf, int minFree ) {
+        return ensureFree( buf, minFree, Integer.MAX_VALUE );
+    }
+
+    /**
+     * Returns a buffer like a given one but with at least a given
+     * amount of free space, where the buffer is not expected to need
+     * to exceed a given size.  The capacity is doubled as required,
+     * but not beyond that size unless the minimum free space requires it.
+     *
+     * @param  buf  buffer in write mode
+     * @param  minFree  minimum required remaining space
+     * @param  maxSize  size beyond which growth is not expected
+     * @return  buffer, possibly the input one, in write mode
+     */
+    private static ByteBuffer ensureFree( ByteBuffer buf, int minFree,
+                                          int maxSize ) {
+        if ( buf.remaining() >= minFree ) {
+            return buf;
+        }
+        long doubled = Math.min( buf.capacity() * 2L, maxSize );
+        int size = (int) Math.max( doubled, buf.position() + minFree );
+        ByteBuffer buf1 = ByteBuffer.allocate( size );
+        buf.flip();
+        buf1.put( buf );
+        return buf1;
+    }
+
+    /**
+     * Represents the state of one client connection.
+     * Apart from {@link #respondXml}, methods must be called from
+     * the selector thread.
+     */
+    private class Connection {
+        final SocketChannel channel_;
+        final SSLEngine engine_;
+        final SocketAddress remoteAddress_;
+        final Deque<ByteBuffer> outQueue_;
+        final Set<ByteBuffer> pooledOut_;
+        SelectionKey key_;
+        ByteBuffer appIn_;
+        ByteBuffer netIn_;
+        ByteBuffer netOut_;
+        boolean busy_;
+        boolean closeAfterWrite_;
+        boolean closed_;
+        boolean readPaused_;
+        long lastActive_;
+        long bodyDeadline_;
+        int inputTarget_;
+        Pipe pipe_;
+
+        /**
+         * Constructor.
+         *
+         * @param  channel  socket channel
+         * @param  engine   SSL engine, or null for plain HTTP
+         */
+        Connection( SocketChannel channel, SSLEngine engine ) {
+            channel_ = channel;
+            engine_ = engine;
+            remoteAddress_ = channel.socket().getRemoteSocketAddress();
+            outQueue_ = new ArrayDeque<ByteBuffer>();
+            pooledOut_ = Collections
+                        .newSetFromMap( new IdentityHashMap<ByteBuffer,
+                                                            Boolean>() );
+            appIn_ = ByteBuffer.allocate( 4096 );
+            if ( engine != null ) {
+                int pktSize = engine.getSession().getPacketBufferSize();
+                netIn_ = ByteBuffer.allocate( pktSize );
+                netOut_ = ByteBuffer.allocate( pktSize );
+                netOut_.flip();
+            }
+            lastActive_ = System.currentTimeMillis();
+        }
+
+        /**
+         * Reads available bytes from the network and acts on them.
+         */
+        void readInput() throws IOException {
+            lastActive_ = System.currentTimeMillis();
+            if ( engine_ == null ) {
+                int target = inputTarget_ > appIn_.position()
+                           ? inputTarget_
+                           : Integer.MAX_VALUE;
+                appIn_ = ensureFree( appIn_,
+                                     Math.min( 1024, target
+                                                   - appIn_.position() ),
+                                     target );
+                if ( channel_.read( appIn_ ) < 0 ) {
+                    close();
+                    return;
+                }
+            }
+            else {
+                if ( channel_.read( netIn_ ) < 0 ) {
+                    engine_.closeInbound();
+                    close();
+                    return;
+                }
+                unwrap();
+                flush();
+            }
+            processInput();
+        }
+
+        /**
+         * Decrypts as much data as possible from the network input buffer
+         * into the application input buffer, progressing the handshake
+         * as required.
+         */
+        private void unwrap() throws IOException {
+            netIn_.flip();
+            try {
+                while ( true ) {
+                    SSLEngineResult result = engine_.unwrap( netIn_, appIn_ );
+                    switch ( result.getStatus() ) {
+                        case BUFFER_OVERFLOW:
+                            int appSize = engine_.getSession()
+                                         .getApplicationBufferSize();
+                            appIn_ = ensureFree( appIn_, appSize );
+                            continue;
+                        case BUFFER_UNDERFLOW:
+                            int pktSize =
+                                engine_.getSession().getPacketBufferSize();
+                            if ( netIn_.capacity() < pktSize ) {
+                                ByteBuffer nb = ByteBuffer.allocate( pktSize );
+                                nb.put( netIn_ );
+                                netIn_ = nb;
+                                netIn_.flip();
+                            }
+                            return;
+                        case CLOSED:
+                            closeAfterWrite_ = true;
+                            return;
+                        default:
+                    }
+                    if ( runDelegatedTasks() ) {
+                        continue;
+                    }
+                    SSLEngineResult.HandshakeStatus hs =
+                        engine_.getHandshakeStatus();
+                    if ( hs == SSLEngineResult.HandshakeStatus.NEED_WRAP ) {
+                        flush();
+                        if ( closed_ ) {
+                            return;
+                        }
+                    }
+                    if ( ! netIn_.hasRemaining() ||
+                         ( result.bytesConsumed() == 0 &&
+                           result.bytesProduced() == 0 &&
+                           engine_.getHandshakeStatus() != SSLEngineResult
+                                                         .HandshakeStatus
+                                                         .NEED_UNWRAP ) ) {
+                        return;
+                    }
+                }
+            }
+            finally {
+                netIn_.compact();
+            }
+        }
+
+        /**
+         * Runs any tasks required by the SSL engine.
+         * They are run synchronously, which is simple but means that
+         * the selector thread is briefly busy during handshakes.
+         *
+         * @return  true iff any tasks were run
+         */
+        private boolean runDelegatedTasks() {
+            boolean ran = false;
+            for ( Runnable task;
+                  ( task = engine_.getDelegatedTask() ) != null; ) {
+                task.run();
+                ran = true;
+            }
+            return ran;
+        }
+
+        /**
+         * Parses and dispatches any complete HTTP requests in the
+         * application input buffer.  Only one request per connection
+         * is serviced at once; further pipelined requests are left
+         * in the buffer until the current one has been responded to.
+         */
+        void processInput() throws IOException {
+            if ( pipe_ != null && pipe_.up_ == this ) {
+                pipe_.pump();
+                return;
+            }
+            if ( busy_ || closed_ || closeAfterWrite_ ) {
+                return;
+            }
+            byte[] buf = appIn_.array();
+            int len = appIn_.position();
+            int ihdrEnd = indexOf( buf, 0, len, CRLFCRLF );
+            if ( ihdrEnd < 0 ) {
+                if ( len > MAX_HEADER_BYTES ) {
+                    respond( 431, "Request Header Fields Too Large",
+                             null, null, true );
+                }
+                return;
+            }
+            String[] lines =
+                new String( buf, 0, ihdrEnd, ISO8859 ).split( "\r\n" );
+            String[] reqLine = lines[ 0 ].split( " " );
+            if ( reqLine.length != 3 ||
+                 ! reqLine[ 2 ].startsWith( "HTTP/" ) ) {
+                respond( 400, "Bad Request", null, null, true );
+                return;
+            }
+            String method = reqLine[ 0 ];
+            String url = reqLine[ 1 ];
+            Map<String,String> hdrMap = new LinkedHashMap<String,String>();
+            for ( int il = 1; il < lines.length; il++ ) {
+                String line = lines[ il ];
+                int ic = line.indexOf( ':' );
+                if ( ic > 0 ) {
+                    hdrMap.put( line.substring( 0, ic ).trim(),
+                                line.substring( ic + 1 ).trim() );
+                }
+            }
+            String connHdr = HttpServer.getHeader( hdrMap, "Connection" );
+            boolean keepAlive = "HTTP/1.1".equals( reqLine[ 2 ] )
+                              ? ! "close".equalsIgnoreCase( connHdr )
+                              : "keep-alive".equalsIgnoreCase( connHdr );
+            if ( "PUT".equals( method ) ) {
+                consumeInput( ihdrEnd + CRLFCRLF.length );
+                busy_ = true;
+                closeAfterWrite_ = ! keepAlive;
+                startUpload( new HttpServer.Request( method, url, hdrMap,
+                                                     remoteAddress_,
+                                                     new byte[ 0 ] ) );
+                return;
+            }
+            String clHdr = HttpServer.getHeader( hdrMap, "Content-Length" );
+            int bodyLeng;
+            try {
+                bodyLeng = clHdr == null ? 0 : Integer.parseInt( clHdr );
+            }
+            catch ( NumberFormatException e ) {
+                respond( 400, "Bad Content-Length", null, null, true );
+                return;
+            }
+            if ( HttpServer.getHeader( hdrMap, "Transfer-Encoding" )
+                 != null ) {
+                respond( 411, "Length Required", null, null, true );
+                return;
+            }
+            if ( bodyLeng < 0 || bodyLeng > MAX_BODY_BYTES ) {
+                respond( 413, "Payload Too Large", null, null, true );
+                return;
+            }
+            int bodyStart = ihdrEnd + CRLFCRLF.length;
+            int reqEnd = bodyStart + bodyLeng;
+
+            // Wait for the rest of the body.  The input buffer grows
+            // only as bytes arrive, not to the declared length up front,
+            // and a body that arrives too slowly causes the connection
+            // to be closed.
+            if ( len < reqEnd ) {
+                inputTarget_ = reqEnd;
+                if ( bodyDeadline_ == 0 ) {
+                    bodyDeadline_ = System.currentTimeMillis()
+                                  + BODY_TIMEOUT_MILLIS
+                                  + 1000L * bodyLeng / MIN_BODY_BYTES_PER_SEC;
+                }
+                return;
+            }
+            bodyDeadline_ = 0;
+            inputTarget_ = 0;
+            byte[] body = new byte[ bodyLeng ];
+            System.arraycopy( buf, bodyStart, body, 0, bodyLeng );
+            consumeInput( reqEnd );
+            busy_ = true;
+            closeAfterWrite_ = ! keepAlive;
+            dispatch( new HttpServer.Request( method, url, hdrMap,
+                                              remoteAddress_, body ) );
+        }
+
+        /**
+         * Discards bytes from the start of the application input buffer.
+         *
+         * @param  nbyte  number of bytes to discard
+         */
+        private void consumeInput( int nbyte ) {
+            appIn_.flip();
+            appIn_.position( nbyte );
+            appIn_.compact();
+        }
+
+        /**
+         * Acts on a parsed HTTP request.
+         *
+         * @param  request  request
+         */
+        private void dispatch( final HttpServer.Request request )
+                throws IOException {
+            String method = request.getMethod();
+            String path = request.getUrl().replaceFirst( "[?#].*", "" );
+            if ( ! relayPath_.equals( path ) ) {
+                respond( 404, "Not Found", null, null, false );
+            }
+            else if ( "POST".equals( method ) ) {
+                workerExecutor_.execute( new Runnable() {
+                    public void run() {
+                        serviceXmlRpc( Connection.this, request );
+                    }
+                } );
+            }
+            else if ( "OPTIONS".equals( method ) ) {
+                Map<String,String> hdrs = new LinkedHashMap<String,String>();
+                Map reqHdrs = request.getHeaderMap();
+                String origin = HttpServer.getHeader( reqHdrs, "Origin" );
+                String reqMethod =
+                    HttpServer.getHeader( reqHdrs,
+                                          "Access-Control-Request-Method" );
+                if ( origin != null && reqMethod != null ) {
+                    hdrs.put( "Access-Control-Allow-Origin", origin );
+                    hdrs.put( "Access-Control-Allow-Methods", reqMethod );
+                    hdrs.put( "Access-Control-Allow-Headers",
+                              "Content-Type, Content-Encoding, If-None-Match" );
+                }
+                respond( 200, "OK", hdrs, null, false );
+            }
+            else if ( "GET".equals( method ) && resources_ != null &&
+                      ResourceRelay.getResourceTag( request.getUrl() )
+                      != null ) {
+                startDownload( request );
+            }
+            else if ( "GET".equals( method ) || "HEAD".equals( method ) ) {
+                Map<String,String> hdrs = new LinkedHashMap<String,String>();
+                RelayMetrics metrics = metrics_;
+                byte[] msg;
+                if ( metrics != null &&
+                     RelayMetrics.isStatsRequest( request.getUrl() ) ) {
+                    hdrs.put( "Content-Type", MetricsMBean.JSON_MIME_TYPE );
+                    hdrs.put( "Cache-Control", "no-cache" );
+                    msg = metrics.toJson().getBytes( "UTF-8" );
+                }
+                else {
+                    hdrs.put( "Content-Type", "text/plain" );
+                    msg = ( "This is an XML-RPC service.  "
+                          + "You should POST to it.\n" )
+                         .getBytes( ISO8859 );
+                }
+                respond( 200, "OK", hdrs,
+                         "HEAD".equals( method ) ? null : msg, false );
+            }
+            else {
+                Map<String,String> hdrs = new LinkedHashMap<String,String>();
+                hdrs.put( "Allow", "GET, HEAD, POST, OPTIONS"
+                                 + ( resources_ == null ? "" : ", PUT" ) );
+                respond( 405, "Method Not Allowed", hdrs, null, false );
+            }
+        }
+
+        /**
+         * Begins handling a resource upload whose headers have been read.
+         * Input is suspended until the matching download has been found,
+         * since the body is read only as it can be passed on.
+         *
+         * @param  request  request with empty body
+         */
+        private void startUpload( final HttpServer.Request request )
+                throws IOException {
+            final ResourceRelay resources = resources_;
+            final RendezvousStore<String,Pipe> pipes = pipes_;
+            String url = request.getUrl();
+            final String tag = ResourceRelay.getResourceTag( url );
+            Map hdrMap = request.getHeaderMap();
+            String teHdr = HttpServer.getHeader( hdrMap, "Transfer-Encoding" );
+            String clHdr = HttpServer.getHeader( hdrMap, "Content-Length" );
+            if ( ! relayPath_.equals( url.replaceFirst( "[?#].*", "" ) ) ) {
+                respond( 404, "Not Found", null, null, true );
+                return;
+            }
+            if ( resources == null || tag == null ) {
+                Map<String,String> hdrs = new LinkedHashMap<String,String>();
+                hdrs.put( "Allow", "GET, HEAD, POST, OPTIONS" );
+                respond( 405, "Method Not Allowed", hdrs, null, true );
+                return;
+            }
+            final long leng;
+            if ( teHdr != null ) {
+                if ( ! "chunked".equalsIgnoreCase( teHdr.trim() ) ) {
+                    respond( 501, "Not Implemented", null, null, true );
+                    return;
+                }
+                leng = -1;
+            }
+            else if ( clHdr == null ) {
+                respond( 411, "Length Required", null, null, true );
+                return;
+            }
+            else {
+                try {
+                    leng = Long.parseLong( clHdr.trim() );
+                }
+                catch ( NumberFormatException e ) {
+                    respond( 400, "Bad Content-Length", null, null, true );
+                    return;
+                }
+                if ( leng < 0 ) {
+                    respond( 400, "Bad Content-Length", null, null, true );
+                    return;
+                }
+            }
+            final String contentType =
+                HttpServer.getHeader( hdrMap, "Content-Type" );
+            final boolean isContinue =
+                "100-continue"
+               .equalsIgnoreCase( HttpServer.getHeader( hdrMap, "Expect" ) );
+            setReadPaused( true );
+            workerExecutor_.execute( new Runnable() {
+                public void run() {
+                    final ResourceCache.Writer cacheWriter;
+                    try {
+                        cacheWriter =
+                            resources.checkUpload( tag,
+                                                   getHostName( request ) );
+                    }
+                    catch ( ResourceRelay.ResourceException e ) {
+                        respondLater( e.getStatus(), e.getMessage(), true );
+                        return;
+                    }
+
+                    // Invite the body now, though it will not be read
+                    // until the download turns up.
+                    if ( isContinue ) {
+                        runOnLoop( new Runnable() {
+                            public void run() {
+                                sendContinue();
+                            }
+                        } );
+                    }
+                    pipes.takeAsync( tag, ResourceRelay.PAIR_MILLIS )
+                         .thenAccept( new Consumer<Pipe>() {
+                        public void accept( final Pipe pipe ) {
+                            runOnLoop( new Runnable() {
+                                public void run() {
+                                    attachUpload( pipe, contentType, leng,
+                                                  cacheWriter );
+                                }
+                            } );
+                        }
+                    } );
+                }
+            } );
+        }
+
+        /**
+         * Connects this upload connection to a download once the
+         * download has been found.
+         *
+         * @param  pipe   pipe from the download, or null if none arrived
+         * @param  contentType  upload Content-Type, or null
+         * @param  leng   upload Content-Length, or -1 for chunked
+         * @param  cacheWriter  writer for caching content, or null
+         */
+        private void attachUpload( Pipe pipe, String contentType, long leng,
+                                   ResourceCache.Writer cacheWriter ) {
+            if ( cacheWriter != null &&
+                 ( pipe == null || closed_ || pipe.down_.closed_ ) ) {
+                cacheWriter.abandon();
+            }
+            try {
+                if ( pipe == null ) {
+                    respond( 504, "No download for resource", null, null,
+                             true );
+                }
+                else if ( closed_ ) {
+                    pipe.down_.respond( 502, "Bad Gateway", null, null,
+                                        false );
+                }
+                else if ( pipe.down_.closed_ ) {
+                    respond( 502, "Download closed", null, null, true );
+                }
+                else {
+                    pipe.start( this, contentType, leng, cacheWriter );
+                }
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.FINE, "Connection error", e );
+                close();
+            }
+        }
+
+        /**
+         * Sends a 100 Continue interim response to an upload.
+         */
+        private void sendContinue() {
+            if ( closed_ ) {
+                return;
+            }
+            queueOutput( toAsciiBuffer( "HTTP/1.1 100 Continue\r\n\r\n" ),
+                         false );
+            try {
+                flush();
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.FINE, "Connection error", e );
+                close();
+            }
+        }
+
+        /**
+         * Begins handling a resource download.  Unless the content is
+         * cached, the response is not sent until the matching upload
+         * arrives.
+         *
+         * @param  request  request
+         */
+        private void startDownload( final HttpServer.Request request ) {
+            final ResourceRelay resources = resources_;
+            final RendezvousStore<String,Pipe> pipes = pipes_;
+            final String tag =
+                ResourceRelay.getResourceTag( request.getUrl() );
+            final Map hdrMap = request.getHeaderMap();
+            final Pipe pipe =
+                new Pipe( this, HttpServer.getHeader( hdrMap, "Origin" ) );
+            workerExecutor_.execute( new Runnable() {
+                public void run() {
+                    final ResourceCache.Entry cached;
+                    try {
+                        cached =
+                            resources.checkDownload( tag,
+                                                     getHostName( request ) );
+                    }
+                    catch ( ResourceRelay.ResourceException e ) {
+                        respondLater( e.getStatus(), e.getMessage(), false );
+                        return;
+                    }
+                    if ( cached != null ) {
+                        serveCached( cached, pipe.origin_,
+                                     HttpServer.getHeader( hdrMap,
+                                                           "If-None-Match" ) );
+                        return;
+                    }
+                    if ( ! pipes.putNew( tag, pipe ) ) {
+                        respondLater( 409, "Download already pending", false );
+                        return;
+                    }
+                    pipes.removeUntakenAsync( tag, ResourceRelay.PAIR_MILLIS )
+                         .thenAccept( new Consumer<Boolean>() {
+                        public void accept( Boolean isRemoved ) {
+                            if ( isRemoved.booleanValue() ) {
+                                respondLater( 504, "No upload for resource",
+                                              false );
+                            }
+                        }
+                    } );
+                }
+            } );
+        }
+
+        /**
+         * Responds to a download with cached content.
+         * Called from a worker thread, since a disk entry is mapped here.
+         *
+         * @param  cached   cached content
+         * @param  origin   value of request Origin header, or null
+         * @param  ifNoneMatch  value of request If-None-Match header,
+         *                      or null
+         */
+        private void serveCached( ResourceCache.Entry cached, String origin,
+                                  String ifNoneMatch ) {
+            final Map<String,String> hdrs =
+                new LinkedHashMap<String,String>();
+            String etag = cached.getETag();
+            String ctype = cached.getContentType();
+            hdrs.put( "Content-Type", ctype == null
+                                    ? "application/octet-stream"
+                                    : ctype );
+            hdrs.put( "Cache-Control", "no-cache" );
+            hdrs.put( "ETag", etag );
+            if ( origin != null ) {
+                hdrs.put( "Access-Control-Allow-Origin", origin );
+                hdrs.put( "Access-Control-Expose-Headers", "ETag" );
+            }
+            final boolean isMatch =
+                ResourceCache.matchesETag( ifNoneMatch, etag );
+            final List<ByteBuffer> body;
+            if ( isMatch ) {
+                body = Collections.<ByteBuffer>emptyList();
+            }
+            else {
+                try {
+                    body = Collections.singletonList( cached.getContent() );
+                }
+                catch ( IOException e ) {
+                    logger_.log( Level.WARNING, "Cached resource unreadable",
+                                 e );
+                    respondLater( 500, "Cached resource unreadable", false );
+                    return;
+                }
+            }
+            runOnLoop( new Runnable() {
+                public void run() {
+                    try {
+                        if ( isMatch ) {
+                            respond( 304, "Not Modified", hdrs, body,
+                                     false, false );
+                        }
+                        else {
+                            respond( 200, "OK", hdrs, body, false, false );
+                        }
+                    }
+                    catch ( IOException e ) {
+                        logger_.log( Level.FINE, "Connection error", e );
+                        close();
+                    }
+                }
+            } );
+        }
+
+        /**
+         * Sends an HTTP response with no body from the selector thread.
+         * May be called from any thread.
+         *
+         * @param  status  HTTP status code
+         * @param  phrase  HTTP status phrase
+         * @param  close   if true, the connection is closed after
+         *                 the response is written
+         */
+        void respondLater( final int status, final String phrase,
+                           final boolean close ) {
+            runOnLoop( new Runnable() {
+                public void run() {
+                    try {
+                        respond( status, phrase, null, null, close );
+                    }
+                    catch ( IOException e ) {
+                        logger_.log( Level.FINE, "Connection error", e );
+                        close();
+                    }
+                }
+            } );
+        }
+
+        /**
+         * Sends an XML-RPC response.  May be called from any thread.
+         * The response advertises the content codings accepted
+         * for request bodies.
+         *
+         * @param  origin   value of request Origin header, or null
+         * @param  body    response body segments
+         * @param  coding  content coding of body, or null
+         * @param  isPooled  if true, the body buffers wrap arrays from
+         *                   the encoder buffer pool, and are returned to it
+         *                   once written
+         */
+        void respondXml( String origin, final List<ByteBuffer> body,
+                         String coding, final boolean isPooled ) {
+            final Map<String,String> hdrs =
+                new LinkedHashMap<String,String>();
+            hdrs.put( "Content-Type", "text/xml" );
+            if ( coding != null ) {
+                hdrs.put( "Content-Encoding", coding );
+            }
+            hdrs.put( "Vary", "Accept-Encoding" );
+            hdrs.put( "Accept-Encoding", ContentCoding.ACCEPTED );
+            if ( origin != null ) {
+                hdrs.put( "Access-Control-Allow-Origin", origin );
+            }
+            runOnLoop( new Runnable() {
+                public void run() {
+                    try {
+                        respond( 200, "OK", hdrs, body, isPooled, false );
+                    }
+                    catch ( IOException e ) {
+                        logger_.log( Level.FINE, "Connection error", e );
+                        close();
+                    }
+                }
+            } );
+        }
+
+        /**
+         * Queues an HTTP response for output, and prepares to read
+         * the next request.
+         *
+         * @param  status  HTTP status code
+         * @param  phrase  HTTP status phrase
+         * @param  hdrs   additional headers, or null
+         * @param  body   response body, or null
+         * @param  close   if true, the connection is closed after
+         *                 the response is written
+         */
+        private void respond( int status, String phrase,
+                              Map<String,String> hdrs, byte[] body,
+                              boolean close )
+                throws IOException {
+            List<ByteBuffer> bufs = body == null
+                                  ? Collections.<ByteBuffer>emptyList()
+                                  : Collections
+                                   .singletonList( ByteBuffer.wrap( body ) );
+            respond( status, phrase, hdrs, bufs, false, close );
+        }
+
+        /**
+         * Queues an HTTP response with a segmented body for output,
+         * and prepares to read the next request.
+         *
+         * @param  status  HTTP status code
+         * @param  phrase  HTTP status phrase
+         * @param  hdrs   additional headers, or null
+         * @param  body   response body segments
+         * @param  isPooled  if true, the body arrays are returned to the
+         *                   encoder buffer pool once written
+         * @param  close   if true, the connection is closed after
+         *                 the response is written
+         */
+        private void respond( int status, String phrase,
+                              Map<String,String> hdrs, List<ByteBuffer> body,
+                              boolean isPooled, boolean close )
+                throws IOException {
+            if ( closed_ ) {
+                return;
+            }
+            closeAfterWrite_ = closeAfterWrite_ || close;
+            long leng = 0;
+            for ( ByteBuffer buf : body ) {
+                leng += buf.remaining();
+            }
+            queueHead( status, phrase, hdrs, leng );
+            for ( ByteBuffer buf : body ) {
+                queueOutput( buf, isPooled );
+            }
+            endResponse();
+        }
+
+        /**
+         * Queues the status line and headers of an HTTP response for output.
+         *
+         * @param  status  HTTP status code
+         * @param  phrase  HTTP status phrase
+         * @param  hdrs   additional headers, or null
+         * @param  leng   length of body, or -1 for chunked encoding
+         */
+        void queueHead( int status, String phrase, Map<String,String> hdrs,
+                        long leng ) {
+            StringBuffer sbuf = new StringBuffer()
+                .append( "HTTP/1.1 " )
+                .append( status )
+                .append( ' ' )
+                .append( phrase )
+                .append( "\r\n" );
+            if ( hdrs != null ) {
+                for ( Map.Entry<String,String> entry : hdrs.entrySet() ) {
+                    sbuf.append( entry.getKey() )
+                        .append( ": " )
+                        .append( entry.getValue() )
+                        .append( "\r\n" );
+                }
+            }
+            if ( leng < 0 ) {
+                sbuf.append( "Transfer-Encoding: chunked\r\n" );
+            }
+            else if ( status != 204 && status != 304 ) {
+                sbuf.append( "Content-Length: " )
+                    .append( leng )
+                    .append( "\r\n" );
+            }
+            if ( closeAfterWrite_ ) {
+                sbuf.append( "Connection: close\r\n" );
+            }
+            sbuf.append( "\r\n" );
+            queueOutput( toAsciiBuffer( sbuf.toString() ), false );
+        }
+
+        /**
+         * Adds a buffer to the output queue.
+         *
+         * @param  buf  buffer ready for reading
+         * @param  isPooled  if true, the buffer array is returned to the
+         *                   encoder buffer pool once written
+         */
+        void queueOutput( ByteBuffer buf, boolean isPooled ) {
+            outQueue_.add( buf );
+            if ( isPooled ) {
+                pooledOut_.add( buf );
+            }
+        }
+
+        /**
+         * Marks the current response as complete once its output
+         * has been queued, and prepares to read the next request.
+         */
+        void endResponse() throws IOException {
+            busy_ = false;
+            lastActive_ = System.currentTimeMillis();
+            flush();
+            processInput();
+        }
+
+        /**
+         * Writes as much queued output as possible to the network,
+         * and registers interest in writability if some remains.
+         */
+        void flush() throws IOException {
+            if ( closed_ ) {
+                return;
+            }
+            boolean pending;
+            if ( engine_ == null ) {
+                while ( ! outQueue_.isEmpty() ) {
+                    ByteBuffer buf = outQueue_.peek();
+                    channel_.write( buf );
+                    if ( buf.hasRemaining() ) {
+                        break;
+                    }
+                    pollOutput();
+                }
+                pending = ! outQueue_.isEmpty();
+            }
+            else {
+                pending = wrapAndWrite();
+            }
+            int readOps = readPaused_ ? 0 : SelectionKey.OP_READ;
+            if ( pending ) {
+                key_.interestOps( readOps | SelectionKey.OP_WRITE );
+            }
+            else if ( closeAfterWrite_ && ! busy_ ) {
+                close();
+            }
+            else {
+                key_.interestOps( readOps );
+            }
+
+            // Resume a throttled resource upload if this is its download
+            // and the backlog has drained.
+            if ( pipe_ != null && pipe_.down_ == this &&
+                 pipe_.up_.readPaused_ &&
+                 getQueuedBytes() < PIPE_LOW_WATER ) {
+                pipe_.pump();
+            }
+        }
+
+        /**
+         * Suspends or resumes reading from the network.
+         *
+         * @param  isPaused  true to stop reading, false to resume
+         */
+        void setReadPaused( boolean isPaused ) {
+            if ( isPaused != readPaused_ && ! closed_ ) {
+                readPaused_ = isPaused;
+                int ops = key_.interestOps();
+                key_.interestOps( isPaused ? ops & ~SelectionKey.OP_READ
+                                           : ops | SelectionKey.OP_READ );
+            }
+        }
+
+        /**
+         * Returns the number of bytes queued for output and not yet
+         * written to the network.
+         *
+         * @return  queued byte count
+         */
+        long getQueuedBytes() {
+            long n = netOut_ == null ? 0 : netOut_.remaining();
+            for ( ByteBuffer buf : outQueue_ ) {
+                n += buf.remaining();
+            }
+            return n;
+        }
+
+        /**
+         * Encrypts queued output and handshake data, and writes it to
+         * the network.
+         *
+         * @return  true iff some output remains unwritten
+         */
+        private boolean wrapAndWrite() throws IOException {
+            while ( true ) {
+
+                // Write out any encrypted bytes already prepared.
+                if ( netOut_.hasRemaining() ) {
+                    channel_.write( netOut_ );
+                    if ( netOut_.hasRemaining() ) {
+                        return true;
+                    }
+                }
+
+                // Prepare more encrypted bytes if required.
+                SSLEngineResult.HandshakeStatus hs =
+                    engine_.getHandshakeStatus();
+                boolean needWrap =
+                    hs == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+                boolean canSend =
+                    hs == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING ||
+                    hs == SSLEngineResult.HandshakeStatus.FINISHED;
+                ByteBuffer src;
+                if ( canSend && ! outQueue_.isEmpty() ) {
+                    src = outQueue_.peek();
+                }
+                else if ( needWrap ) {
+                    src = EMPTY;
+                }
+                else {
+                    runDelegatedTasks();
+                    return engine_.getHandshakeStatus()
+                           == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+                }
+                netOut_.clear();
+                SSLEngineResult result = engine_.wrap( src, netOut_ );
+                netOut_.flip();
+                if ( src != EMPTY && ! src.hasRemaining() ) {
+                    pollOutput();
+                }
+                switch ( result.getStatus() ) {
+                    case BUFFER_OVERFLOW:
+                        netOut_ = ByteBuffer.allocate( engine_.getSession()
+                                                      .getPacketBufferSize() );
+                        netOut_.flip();
+                        break;
+                    case CLOSED:
+                        if ( ! netOut_.hasRemaining() ) {
+                            closeAfterWrite_ = true;
+                            return false;
+                        }
+                        break;
+                    default:
+                }
+                runDelegatedTasks();
+            }
+        }
+
+        /**
+         * Discards the head of the output queue, which has been completely
+         * written, returning its array to the pool if appropriate.
+         */
+        private void pollOutput() {
+            ByteBuffer buf = outQueue_.poll();
+            if ( pooledOut_.remove( buf ) ) {
+                XmlRpcEncoder.releaseBuffer( buf.array() );
+            }
+        }
+
+        /**
+         * Closes this connection.
+         */
+        void close() {
+            if ( closed_ ) {
+                return;
+            }
+            closed_ = true;
+            nConn_.decrementAndGet();
+            if ( pipe_ != null ) {
+                pipe_.abort();
+            }
+            if ( engine_ != null ) {
+                engine_.closeOutbound();
+            }
+            if ( key_ != null ) {
+                key_.cancel();
+            }
+            try {
+                channel_.close();
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.FINE, "Close error", e );
+            }
+        }
+    }
+
+    /**
+     * Passes the body of a resource upload request to the response of
+     * the corresponding download request.
+     * Each read of upload data is copied into pooled buffers and queued
+     * on the download connection, and offered to the cache writer
+     * if there is one; reading from the upload is paused
+     * while the download queue is above a high water mark and resumed
+     * when it falls below a low water mark.
+     * A chunked upload is relayed as a chunked download,
+     * otherwise the upload's Content-Length is passed on.
+     * Apart from construction, methods must be called from the
+     * selector thread.
+     */
+    private class Pipe {
+        final Connection down_;
+        final String origin_;
+        Connection up_;
+        long lastActive_;
+        private boolean isChunked_;
+        private BodyState state_;
+        private long remaining_;
+        private long nbyte_;
+        private boolean isPumping_;
+        private boolean done_;
+        private String contentType_;
+        private ResourceCache.Writer cacheWriter_;
+
+        /**
+         * Constructor.
+         *
+         * @param  down  download connection
+         * @param  origin  value of download request Origin header, or null
+         */
+        Pipe( Connection down, String origin ) {
+            down_ = down;
+            origin_ = origin;
+        }
+
+        /**
+         * Starts the transfer.
+         *
+         * @param  up   upload connection
+         * @param  contentType  upload Content-Type, or null
+         * @param  leng   upload Content-Length, or -1 for chunked
+         * @param  cacheWriter  writer for caching content, or null
+         */
+        void start( Connection up, String contentType, long leng,
+                    ResourceCache.Writer cacheWriter ) throws IOException {
+            up_ = up;
+            contentType_ = contentType;
+            cacheWriter_ = cacheWriter;
+            up.pipe_ = this;
+            down_.pipe_ = this;
+            isChunked_ = leng < 0;
+            state_ = isChunked_ ? BodyState.SIZE : BodyState.DATA;
+            remaining_ = leng;
+            lastActive_ = System.currentTimeMillis();
+            resources_.transferStarted();
+            Map<String,String> hdrs = new LinkedHashMap<String,String>();
+            hdrs.put( "Content-Type", contentType == null
+                                    ? "application/octet-stream"
+                                    : contentType );
+            hdrs.put( "Cache-Control", "no-cache" );
+            if ( origin_ != null ) {
+                hdrs.put( "Access-Control-Allow-Origin", origin_ );
+            }
+            down_.queueHead( 200, "OK", hdrs, leng );
+            up.appIn_ = ensureFree( up.appIn_, PIPE_READ_BYTES );
+            pump();
+        }
+
+        /**
+         * Moves as much buffered upload data as possible to the download
+         * output queue, pausing or resuming upload reads as appropriate,
+         * and finishes the transfer if the upload body is complete.
+         */
+        void pump() {
+            if ( isPumping_ || done_ ) {
+                return;
+            }
+            isPumping_ = true;
+            try {
+                while ( pumpOnce() ) {
+                }
+            }
+            finally {
+                isPumping_ = false;
+            }
+        }
+
+        /**
+         * Does the work of a single pump pass.
+         *
+         * @return  true iff another pass should be made immediately,
+         *          which happens if the download queue drained below
+         *          the low water mark while it was being flushed
+         */
+        private boolean pumpOnce() {
+            ByteBuffer in = up_.appIn_;
+            boolean isBlocked = false;
+            boolean isBad = false;
+            in.flip();
+            try {
+                while ( state_ != BodyState.END ) {
+                    if ( down_.getQueuedBytes() >= PIPE_HIGH_WATER ) {
+                        isBlocked = true;
+                        break;
+                    }
+                    if ( ! step( in ) ) {
+                        break;
+                    }
+                }
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.INFO, "Bad resource upload", e );
+                isBad = true;
+            }
+            finally {
+                in.compact();
+            }
+            if ( isBad ) {
+                abort();
+                return false;
+            }
+            else if ( state_ == BodyState.END ) {
+                finish();
+                return false;
+            }
+            up_.setReadPaused( isBlocked );
+            try {
+                down_.flush();
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.FINE, "Connection error", e );
+                down_.close();
+                return false;
+            }
+            return isBlocked && ! done_
+                && down_.getQueuedBytes() < PIPE_LOW_WATER;
+        }
+
+        /**
+         * Makes one step of progress through the upload body.
+         *
+         * @param  in  upload input buffer in read mode
+         * @return  true iff progress was made
+         * @throws  IOException  if the body is not correctly encoded
+         */
+        private boolean step( ByteBuffer in ) throws IOException {
+            String line;
+            switch ( state_ ) {
+                case DATA:
+                    if ( remaining_ == 0 ) {
+                        state_ = isChunked_ ? BodyState.DATA_END
+                                            : BodyState.END;
+                        return true;
+                    }
+                    if ( ! in.hasRemaining() ) {
+                        return false;
+                    }
+                    byte[] buf = XmlRpcEncoder.acquireBuffer();
+                    int n = (int) Math.min( Math.min( remaining_,
+                                                      in.remaining() ),
+                                            buf.length );
+                    in.get( buf, 0, n );
+                    if ( cacheWriter_ != null ) {
+                        cacheWriter_.write( buf, 0, n );
+                    }
+                    remaining_ -= n;
+                    nbyte_ += n;
+                    lastActive_ = System.currentTimeMillis();
+                    if ( isChunked_ ) {
+                        down_.queueOutput( toAsciiBuffer( Integer
+                                                         .toHexString( n )
+                                                        + "\r\n" ),
+                                           false );
+                    }
+                    down_.queueOutput( ByteBuffer.wrap( buf, 0, n ), true );
+                    if ( isChunked_ ) {
+                        down_.queueOutput( ByteBuffer.wrap( CRLF ), false );
+                    }
+                    return true;
+                case DATA_END:
+                    line = readLine( in );
+                    if ( line == null ) {
+                        return false;
+                    }
+                    if ( line.length() > 0 ) {
+                        throw new IOException( "Missing CRLF after chunk" );
+                    }
+                    state_ = BodyState.SIZE;
+                    return true;
+                case SIZE:
+                    line = readLine( in );
+                    if ( line == null ) {
+                        return false;
+                    }
+                    int isc = line.indexOf( ';' );
+                    String hex = ( isc >= 0 ? line.substring( 0, isc )
+                                            : line ).trim();
+                    long size;
+                    try {
+                        size = Long.parseLong( hex, 16 );
+                    }
+                    catch ( NumberFormatException e ) {
+                        throw new IOException( "Bad chunk size: " + hex );
+                    }
+                    if ( size < 0 ) {
+                        throw new IOException( "Bad chunk size: " + hex );
+                    }
+                    if ( size == 0 ) {
+                        state_ = BodyState.TRAILER;
+                    }
+                    else {
+                        remaining_ = size;
+                        state_ = BodyState.DATA;
+                    }
+                    return true;
+                case TRAILER:
+                    line = readLine( in );
+                    if ( line == null ) {
+                        return false;
+                    }
+                    if ( line.length() == 0 ) {
+                        state_ = BodyState.END;
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Reads a CRLF-terminated line from the upload input buffer.
+         *
+         * @param  in  upload input buffer in read mode
+         * @return  line without terminator, or null if no complete line
+         *          is available yet
+         * @throws  IOException  if the line is unreasonably long
+         */
+        private String readLine( ByteBuffer in ) throws IOException {
+            int pos = in.position();
+            int ix = indexOf( in.array(), pos, in.remaining(), CRLF );
+            if ( ix < 0 ) {
+                if ( in.remaining() > MAX_LINE_BYTES ) {
+                    throw new IOException( "Chunk header too long" );
+                }
+                return null;
+            }
+            String line = new String( in.array(), pos, ix - pos, ISO8859 );
+            in.position( ix + CRLF.length );
+            return line;
+        }
+
+        /**
+         * Completes a successful transfer, ending the download response
+         * and responding to the upload.
+         */
+        private void finish() {
+            done_ = true;
+            resources_.transferEnded( nbyte_, true );
+            down_.pipe_ = null;
+            up_.pipe_ = null;
+            final ResourceCache.Writer cacheWriter = cacheWriter_;
+            if ( cacheWriter != null ) {
+                cacheWriter_ = null;
+                workerExecutor_.execute( new Runnable() {
+                    public void run() {
+                        cacheWriter.commit( contentType_ );
+                    }
+                } );
+            }
+            if ( isChunked_ ) {
+                down_.queueOutput( toAsciiBuffer( "0\r\n\r\n" ), false );
+            }
+            try {
+                down_.endResponse();
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.FINE, "Connection error", e );
+                down_.close();
+            }
+            up_.setReadPaused( false );
+            try {
+                up_.respond( 204, "No Content", null, null, false );
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.FINE, "Connection error", e );
+                up_.close();
+            }
+        }
+
+        /**
+         * Abandons a transfer that has failed.
+         * The download connection is closed, since its response has
+         * already begun, and the upload gets an error response if it
+         * is still open.
+         */
+        void abort() {
+            if ( done_ ) {
+                return;
+            }
+            done_ = true;
+            resources_.transferEnded( nbyte_, false );
+            down_.pipe_ = null;
+            up_.pipe_ = null;
+            if ( cacheWriter_ != null ) {
+                cacheWriter_.abandon();
+                cacheWriter_ = null;
+            }
+            down_.close();
+            if ( ! up_.closed_ ) {
+                try {
+                    up_.respond( 502, "Bad Gateway", null, null, true );
+                }
+                catch ( IOException e ) {
+                    logger_.log( Level.FINE, "Connection error", e );
+                    up_.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse state of a resource upload body.
+     */
+    private enum BodyState {
+
+        /** Expecting a chunk size line. */
+        SIZE,
+
+        /** Expecting chunk or body content. */
+        DATA,
+
+        /** Expecting the CRLF that follows chunk content. */
+        DATA_END,
+
+        /** Expecting trailer lines or the final empty line. */
+        TRAILER,
+
+        /** Body complete. */
+        END;
+    }
+
+    /**
+     * Encoder sink which collects the response in pooled buffers and
+     * passes them to a connection for output.
+     * Since the whole response is available before any of it is sent,
+     * its length is known and no chunked encoding is required.
+     * If a content coding is given and the response is large enough,
+     * it is compressed, and the pooled buffers released, before output.
+     */
+    private static class SegmentSink implements XmlRpcEncoder.Sink {
+        private final Connection conn_;
+        private final String origin_;
+        private final String coding_;
+        private final ContentCoding.Stats stats_;
+        private final List<ByteBuffer> segments_;
+        private long leng_;
+
+        /**
+         * Constructor.
+         *
+         * @param  conn  connection
+         * @param  origin   value of request Origin header, or null
+         * @param  coding  content coding acceptable to the client, or null
+         * @param  stats   compression statistics to update, or null
+         */
+        SegmentSink( Connection conn, String origin, String coding,
+                     ContentCoding.Stats stats ) {
+            conn_ = conn;
+            origin_ = origin;
+            coding_ = coding;
+            stats_ = stats;
+            segments_ = new ArrayList<ByteBuffer>();
+        }
+
+        public byte[] acceptSegment( byte[] buf, int length ) {
+            segments_.add( ByteBuffer.wrap( buf, 0, length ) );
+            leng_ += length;
+            return XmlRpcEncoder.acquireBuffer();
+        }
+
+        public void acceptLast( byte[] buf, int length ) {
+            segments_.add( ByteBuffer.wrap( buf, 0, length ) );
+            leng_ += length;
+            if ( coding_ != null &&
+                 leng_ >= ContentCoding.MIN_COMPRESS_BYTES ) {
+                byte[] encoded = encodeSegments();
+                if ( stats_ != null ) {
+                    stats_.recordOut( leng_, encoded.length );
+                }
+                conn_.respondXml( origin_,
+                                  Collections
+                                 .singletonList( ByteBuffer.wrap( encoded ) ),
+                                  coding_, false );
+            }
+            else {
+                conn_.respondXml( origin_, segments_, null, true );
+            }
+        }
+
+        /**
+         * Compresses the collected segments into a single array,
+         * and returns their buffers to the pool.
+         *
+         * @return  encoded body
+         */
+        private byte[] encodeSegments() {
+            ByteArrayOutputStream bout =
+                new ByteArrayOutputStream( (int) ( leng_ / 4 ) );
+            try {
+                OutputStream out =
+                    ContentCoding.createEncoder( bout, coding_ );
+                for ( ByteBuffer seg : segments_ ) {
+                    out.write( seg.array(), seg.arrayOffset()
+                                          + seg.position(),
+                               seg.remaining() );
+                    XmlRpcEncoder.releaseBuffer( seg.array() );
+                }
+                out.close();
+            }
+            catch ( IOException e ) {
+                throw new AssertionError( e );
+            }
+            return bout.toByteArray();
+        }
+    }
+
+    /**
+     * Main method.  Runs an HTTPS relay server using the default
+     * SSLContext, so the usual javax.net.ssl.keyStore* system properties
+     * should be set.  With the flag "-http" it runs plain HTTP instead.
+     *
+     * <p>With the "-cluster" flag, giving a comma-separated list of
+     * the relay endpoint URLs of all the nodes, and "-self",
+     * giving this node's one, it runs as a node of a {@link RelayCluster}.
+     * The secret shared by the nodes is taken from the system property
+     * {@link #CLUSTER_SECRET_PROP}.
+     *
+     * <p>With the "-cache" flag, relayed resources are cached in
+     * the given number of megabytes of memory, and optionally in
+     * a directory with its own limit in megabytes.
+     */
+    public static void main( String[] args ) throws Exception {
+        String usage = "Usage: " + NioRelayServer.class.getName()
+                     + " [-http] [-port n]"
+                     + " [-cluster url,url,... -self url]"
+                     + " [-cache mbytes[,dir,disk-mbytes]]";
+        boolean isHttp = false;
+        int port = 2114;
+        URL[] nodeUrls = null;
+        URL selfUrl = null;
+        String[] cacheOpts = null;
+        for ( int i = 0; i < args.length; i++ ) {
+            String arg = args[ i ];
+            boolean hasNext = i + 1 < args.length;
+            if ( "-http".equals( arg ) ) {
+                isHttp = true;
+            }
+            else if ( "-port".equals( arg ) && hasNext ) {
+                port = Integer.parseInt( args[ ++i ] );
+            }
+            else if ( "-cluster".equals( arg ) && hasNext ) {
+                String[] locs = args[ ++i ].split( "," );
+                nodeUrls = new URL[ locs.length ];
+                for ( int il = 0; il < locs.length; il++ ) {
+                    nodeUrls[ il ] = new URL( locs[ il ] );
+                }
+            }
+            else if ( "-self".equals( arg ) && hasNext ) {
+                selfUrl = new URL( args[ ++i ] );
+            }
+            else if ( "-cache".equals( arg ) && hasNext ) {
+                cacheOpts = args[ ++i ].split( "," );
+                if ( cacheOpts.length != 1 && cacheOpts.length != 3 ) {
+                    System.err.println( usage );
+                    System.exit( 1 );
+                }
+            }
+            else {
+                System.err.println( usage );
+                System.exit( 1 );
+            }
+        }
+        if ( ( nodeUrls == null ) != ( selfUrl == null ) ) {
+            System.err.println( usage );
+            System.exit( 1 );
+        }
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.INFO );
+        String relayPath = "/xmlrpc";
+        XmlRpcRelay relay;
+        AsyncXmlRpcHandler[] handlers;
+        if ( nodeUrls == null ) {
+            relay = new XmlRpcRelay( StandaloneServer.getRequestFormat(),
+                                     true, true );
+            handlers = new AsyncXmlRpcHandler[] {
+                relay.getReceiveHandler(),
+                relay.getDispenseHandler(),
+            };
+        }
+        else {
+            RelayCluster cluster =
+                new RelayCluster( StandaloneServer.getRequestFormat(), true,
+                                  selfUrl, nodeUrls,
+                                  System.getProperty( CLUSTER_SECRET_PROP ),
+                                  new RelayClientFactory() );
+            relay = cluster.getRelay();
+            handlers = new AsyncXmlRpcHandler[] {
+                cluster.getReceiveHandler(),
+                cluster.getDispenseHandler(),
+                cluster.getNodeHandler(),
+            };
+        }
+        NioRelayServer server =
+            new NioRelayServer( port, relayPath,
+                                isHttp ? null : SSLContext.getDefault(),
+                                handlers,
+                                Runtime.getRuntime().availableProcessors() );
+        server.setMetrics( relay.getMetrics() );
+        if ( nodeUrls == null ) {
+            ResourceRelay resources = relay.getResources();
+            if ( cacheOpts != null ) {
+                long mega = 1024 * 1024;
+                long memBytes = Long.parseLong( cacheOpts[ 0 ] ) * mega;
+                File diskDir = null;
+                long diskBytes = 0;
+                if ( cacheOpts.length == 3 ) {
+                    diskDir = new File( cacheOpts[ 1 ] );
+                    diskBytes = Long.parseLong( cacheOpts[ 2 ] ) * mega;
+                }
+                resources.setCache( new ResourceCache( memBytes, diskDir,
+                                                       diskBytes ) );
+            }
+            server.setResourceRelay( resources );
+        }
+        try {
+            relay.getMetrics().registerMBean( "nio-" + port );
+        }
+        catch ( JMException e ) {
+            logger_.log( Level.WARNING, "Relay MBean not registered", e );
+        }
+        server.start();
+        logger_.info( "Relay at " + ( isHttp ? "http" : "https" )
+                    + "://<host>:" + port + relayPath
+                    + ( selfUrl == null ? "" : " (cluster node " + selfUrl
+                                             + ")" ) );
+    }
+}
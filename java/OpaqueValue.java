@@ -0,0 +1,313 @@
+package org.astrogrid.samp.tls;
+
+import java.io.IOException;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * XML-RPC value held as the undecoded bytes of its
+ * <code>&lt;value&gt;</code> element.
+ * Instances are produced by {@link XmlRpcDecoder} for parameters
+ * that the relay only needs to pass on, not to examine;
+ * {@link XmlRpcEncoder} splices the bytes unchanged into the
+ * responses that contain them.
+ *
+ * <p>The bytes are checked for well-formedness when the instance is
+ * created, so splicing them cannot corrupt the surrounding document,
+ * but their XML-RPC content is not validated until, if ever,
+ * one of the decoding methods is called.
+ *
+ * <p>A large value may instead be held outside the heap, in a file,
+ * so that it does not take up heap space while waiting to be relayed.
+ * Encoding such a value reads it from the file a segment at a time,
+ * and decoding it copies it onto the heap first.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class OpaqueValue {
+
+    private final byte[] buf_;
+    private final int off_;
+    private final int len_;
+    private final FileChannel extChan_;
+
+    /**
+     * Constructor.  The supplied array is not copied, and must not be
+     * modified while this object is in use.
+     *
+     * @param  buf  buffer containing value element
+     * @param  off  offset of value start tag in buffer
+     * @param  len  length in bytes of value element
+     */
+    OpaqueValue( byte[] buf, int off, int len ) {
+        buf_ = buf;
+        off_ = off;
+        len_ = len;
+        extChan_ = null;
+    }
+
+    /**
+     * Constructs a value held in a file.
+     * The first <code>len</code> bytes of the file must be a well-formed
+     * value element, and must not be modified while this object is
+     * in use.  Only positional reads are made, so the channel may be
+     * shared between threads.  Once the channel has been closed,
+     * attempts to encode or decode this value fail.
+     *
+     * @param  extChan  channel open for reading the file
+     * @param  len  length in bytes of value element
+     */
+    OpaqueValue( FileChannel extChan, int len ) {
+        buf_ = null;
+        off_ = 0;
+        len_ = len;
+        extChan_ = extChan;
+    }
+
+    /**
+     * Returns the length of the encoded value element.
+     *
+     * @return  length in bytes
+     */
+    public int getLength() {
+        return len_;
+    }
+
+    /**
+     * Indicates whether this value is held outside the heap.
+     *
+     * @return  true iff the value is in a file
+     */
+    public boolean isExternal() {
+        return extChan_ != null;
+    }
+
+    /**
+     * Reads bytes of an external value element into a buffer.
+     * As many bytes are read as will fit in the buffer,
+     * unless the end of the value is reached first.
+     *
+     * @param  pos   offset into the value element of the first byte
+     * @param  dst   buffer to receive bytes
+     * @throws  IOException  if the value cannot be read, for instance
+     *                       because its file has been closed
+     */
+    void readExternal( long pos, ByteBuffer dst ) throws IOException {
+        int n = (int) Math.min( dst.remaining(), len_ - pos );
+        dst.limit( dst.position() + n );
+        while ( dst.hasRemaining() ) {
+            int nr = extChan_.read( dst, pos );
+            if ( nr < 0 ) {
+                throw new EOFException( "External value truncated" );
+            }
+            pos += nr;
+        }
+    }
+
+    /**
+     * Returns the array buffer containing the value element.
+     *
+     * @return  buffer, not to be modified, or null for an external value
+     */
+    byte[] getBuffer() {
+        return buf_;
+    }
+
+    /**
+     * Returns the offset of the value element in the buffer.
+     *
+     * @return  offset
+     */
+    int getOffset() {
+        return off_;
+    }
+
+    /**
+     * Decodes this value fully into a SAMP-compatible object.
+     *
+     * @return  String, List or Map
+     * @throws  IOException  if the content is not valid XML-RPC
+     */
+    public Object decode() throws IOException {
+        if ( extChan_ != null ) {
+            return toHeap().decode();
+        }
+        return XmlRpcDecoder.decodeValue( buf_, off_, len_ );
+    }
+
+    /**
+     * Decodes this value as a string.
+     *
+     * @return  string value, or null if this is not a string
+     * @throws  IOException  if the content is not valid XML-RPC
+     */
+    public String getString() throws IOException {
+        if ( extChan_ != null ) {
+            return toHeap().getString();
+        }
+        XmlByteScanner scanner = new XmlByteScanner( buf_, off_, len_ );
+        int tok = scanner.nextTag();
+        return XmlRpcDecoder.scanString( scanner, tok );
+    }
+
+    /**
+     * Splits this value into struct members without decoding them.
+     *
+     * @return  map of member names to undecoded member values,
+     *          or null if this is not a struct
+     * @throws  IOException  if the content is not valid XML-RPC
+     */
+    public Map<String,OpaqueValue> getMembers() throws IOException {
+        if ( extChan_ != null ) {
+            return toHeap().getMembers();
+        }
+        XmlByteScanner scanner = openTyped( "struct" );
+        if ( scanner == null ) {
+            return null;
+        }
+        Map<String,OpaqueValue> map = new LinkedHashMap<String,OpaqueValue>();
+        while ( scanner.nextTag() == XmlByteScanner.START_TAG ) {
+            requireName( scanner, "member" );
+            String key = null;
+            OpaqueValue value = null;
+            int tok;
+            while ( ( tok = scanner.nextTag() ) != XmlByteScanner.END_TAG ) {
+                if ( scanner.isName( "name" ) &&
+                     tok == XmlByteScanner.START_TAG ) {
+                    key = scanner.readText();
+                }
+                else if ( scanner.isName( "value" ) ) {
+                    value = readSlice( scanner, tok );
+                }
+                else {
+                    throw new IOException( "Unexpected child of <member>" );
+                }
+            }
+            if ( key == null || value == null ) {
+                throw new IOException( "Incomplete struct member" );
+            }
+            map.put( key, value );
+        }
+        return map;
+    }
+
+    /**
+     * Splits this value into array elements without decoding them.
+     *
+     * @return  list of undecoded array elements,
+     *          or null if this is not an array
+     * @throws  IOException  if the content is not valid XML-RPC
+     */
+    public List<OpaqueValue> getElements() throws IOException {
+        if ( extChan_ != null ) {
+            return toHeap().getElements();
+        }
+        XmlByteScanner scanner = openTyped( "array" );
+        if ( scanner == null ) {
+            return null;
+        }
+        List<OpaqueValue> list = new ArrayList<OpaqueValue>();
+        int tok = scanner.nextTag();
+        requireName( scanner, "data" );
+        if ( tok == XmlByteScanner.START_TAG ) {
+            while ( ( tok = scanner.nextTag() ) != XmlByteScanner.END_TAG ) {
+                list.add( readSlice( scanner, tok ) );
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return "<" + len_ + " bytes>";
+    }
+
+    /**
+     * Returns an equivalent value which does not share its byte array
+     * with anything else.  If this value is external, or already
+     * occupies the whole of its array, it is returned unchanged.
+     * Otherwise a copy in a right-sized array is returned, so that
+     * the larger array, typically a whole request body,
+     * is not kept reachable by this value.
+     *
+     * @return  value owning its storage
+     */
+    OpaqueValue compact() {
+        if ( buf_ == null || ( off_ == 0 && len_ == buf_.length ) ) {
+            return this;
+        }
+        byte[] buf = new byte[ len_ ];
+        System.arraycopy( buf_, off_, buf, 0, len_ );
+        return new OpaqueValue( buf, 0, len_ );
+    }
+
+    /**
+     * Returns an equivalent value held in a byte array.
+     *
+     * @return  value on the heap
+     */
+    private OpaqueValue toHeap() throws IOException {
+        byte[] buf = new byte[ len_ ];
+        readExternal( 0, ByteBuffer.wrap( buf ) );
+        return new OpaqueValue( buf, 0, len_ );
+    }
+
+    /**
+     * Returns a scanner positioned just after the start tag of the
+     * typed child element of this value, if it has a given type.
+     *
+     * @param  type  typed element name
+     * @return  positioned scanner, or null if this value is of another type
+     */
+    private XmlByteScanner openTyped( String type ) throws IOException {
+        XmlByteScanner scanner = new XmlByteScanner( buf_, off_, len_ );
+        if ( scanner.nextTag() != XmlByteScanner.START_TAG ) {
+            return null;
+        }
+        int tok;
+        do {
+            tok = scanner.next();
+        } while ( tok == XmlByteScanner.TEXT &&
+                  scanner.getText().trim().length() == 0 );
+        return tok == XmlByteScanner.START_TAG && scanner.isName( type )
+             ? scanner
+             : null;
+    }
+
+    /**
+     * Reads a value element as an undecoded slice of this one's buffer.
+     *
+     * @param  scanner  scanner positioned just after a value tag
+     * @param  tok  token type of the tag, START_TAG or EMPTY_TAG
+     * @return  value slice
+     */
+    private OpaqueValue readSlice( XmlByteScanner scanner, int tok )
+            throws IOException {
+        int start = scanner.getTokenStart();
+        requireName( scanner, "value" );
+        if ( tok == XmlByteScanner.START_TAG ) {
+            scanner.skipElement();
+        }
+        return new OpaqueValue( buf_, start, scanner.getPosition() - start );
+    }
+
+    /**
+     * Checks that the most recently read tag has a given name.
+     *
+     * @param  scanner  scanner
+     * @param  name  required name
+     * @throws  IOException  if it doesn't
+     */
+    private static void requireName( XmlByteScanner scanner, String name )
+            throws IOException {
+        if ( ! scanner.isName( name ) ) {
+            throw new IOException( "Expected <" + name + ">" );
+        }
+    }
+}
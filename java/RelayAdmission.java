@@ -0,0 +1,574 @@
+package org.astrogrid.samp.tls;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.astrogrid.samp.client.SampException;
+
+/**
+ * Admission control for calls submitted to an {@link XmlRpcRelay}.
+ *
+ * <p>Submitted calls are first checked for well-formedness:
+ * the method must be one of the Web Profile hub methods in the
+ * TLS namespace, with the right number of parameters after
+ * a call tag of sensible length and content.
+ * Calls are then subject to limits applied per requesting host,
+ * and more tightly per combination of requesting host and
+ * Origin header, so that one misbehaving page cannot use up
+ * the whole allowance of its host.
+ * Each limit is a token bucket restricting the call rate,
+ * and a cap on the number of calls that have been admitted but
+ * not yet completed.
+ * The host limit is checked first, so that a host over its limit
+ * cannot make the relay track new Origin values.
+ * The number of buckets tracked is bounded; once that many are
+ * in use, sources without a bucket of their own share an
+ * overflow bucket of the same kind.
+ *
+ * <p>Hosts are identified by {@link HostIdentity}.  Behind a reverse
+ * proxy that is not configured as trusted, every call appears to come
+ * from the proxy, so all clients share one host allowance.
+ * If the first {@link #SOLE_HOST_WARN_COUNT} calls all come from
+ * the same host, a warning to that effect is logged.
+ *
+ * <p>All checks are made before the relay allocates any resources
+ * to the call.  Rejected calls fail immediately with a
+ * {@link RejectedException}, which gives a suggested retry delay.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RelayAdmission {
+
+    private final Limits originLimits_;
+    private final Limits hostLimits_;
+    private final ConcurrentMap<String,Bucket> buckets_;
+    private final Bucket overflowOriginBucket_;
+    private final Bucket overflowHostBucket_;
+    private final AtomicLong nMalformed_;
+    private final AtomicLong nRateLimited_;
+    private final AtomicLong nPendingLimited_;
+    private final AtomicLong nSoleHost_;
+    private volatile String soleHost_;
+    private volatile boolean isHostVaried_;
+    private volatile long lastPurgeNanos_;
+
+    /** Default limits per host and Origin. */
+    public static final Limits DFLT_ORIGIN_LIMITS = new Limits( 20, 100, 64 );
+
+    /** Default limits per host. */
+    public static final Limits DFLT_HOST_LIMITS = new Limits( 100, 500, 512 );
+
+    /**
+     * Number of calls from a single host after which a warning
+     * about proxy configuration is logged.
+     */
+    public static final int SOLE_HOST_WARN_COUNT = 1000;
+
+    /** Maximum length of an acceptable call tag. */
+    public static final int MAX_TAG_LENGTH = 256;
+
+    /** Maximum number of buckets tracked individually. */
+    private static final int MAX_BUCKETS = 4096;
+
+    private static final Map<String,int[]> ARITIES = createArities();
+    private static final String ORIGIN_HDR = "Origin";
+    private static final Logger logger_ =
+        Logger.getLogger( RelayAdmission.class.getName() );
+
+    /**
+     * Constructs an admission controller with default limits.
+     */
+    public RelayAdmission() {
+        this( DFLT_ORIGIN_LIMITS, DFLT_HOST_LIMITS );
+    }
+
+    /**
+     * Constructs an admission controller with given limits.
+     *
+     * @param  originLimits  limits per combination of host and Origin,
+     *                       or null for no limit
+     * @param  hostLimits    limits per host, or null for no limit
+     */
+    public RelayAdmission( Limits originLimits, Limits hostLimits ) {
+        originLimits_ = originLimits;
+        hostLimits_ = hostLimits;
+        buckets_ = new ConcurrentHashMap<String,Bucket>();
+        overflowOriginBucket_ = originLimits == null
+                              ? null
+                              : new Bucket( originLimits );
+        overflowHostBucket_ = hostLimits == null
+                            ? null
+                            : new Bucket( hostLimits );
+        nMalformed_ = new AtomicLong();
+        nRateLimited_ = new AtomicLong();
+        nPendingLimited_ = new AtomicLong();
+        nSoleHost_ = new AtomicLong();
+    }
+
+    /**
+     * Checks whether a submitted call is acceptable, and if so
+     * returns a ticket which must be released when it completes.
+     *
+     * @param  methodName  XML-RPC method name
+     * @param  params   XML-RPC parameter list
+     * @param  hostname   hostname of requester, or null if not known
+     * @param  reqFormat  understands HTTP request objects
+     * @param  reqInfo   information about the HTTP request
+     * @return  ticket for admitted call, not null
+     * @throws  RejectedException  if the call is not admitted
+     */
+    public Ticket admit( String methodName, List params, String hostname,
+                         HttpRequestFormat reqFormat, Object reqInfo )
+            throws RejectedException {
+        String err = checkCall( methodName, params );
+        if ( err != null ) {
+            nMalformed_.incrementAndGet();
+            throw new RejectedException( err, -1 );
+        }
+        checkSoleHost( hostname );
+        String hostKey = "host " + ( hostname == null ? "" : hostname );
+        String origin = reqFormat.getHeader( reqInfo, ORIGIN_HDR );
+        String originKey = hostKey + " origin " + origin;
+        Bucket hostBucket = hostLimits_ == null
+                          ? null
+                          : getBucket( hostKey, hostLimits_,
+                                       overflowHostBucket_ );
+        long now = System.nanoTime();
+        acquire( hostBucket, hostKey, now );
+        Bucket originBucket;
+        try {
+            originBucket = originLimits_ == null
+                         ? null
+                         : getBucket( originKey, originLimits_,
+                                      overflowOriginBucket_ );
+            acquire( originBucket, originKey, now );
+        }
+        catch ( RejectedException e ) {
+            if ( hostBucket != null ) {
+                hostBucket.release();
+            }
+            throw e;
+        }
+        return new Ticket( hostBucket, originBucket );
+    }
+
+    /**
+     * Keeps track of whether all calls so far have come from the same
+     * host, and logs a warning if that persists for long enough.
+     *
+     * @param  hostname  hostname of requester, or null
+     */
+    private void checkSoleHost( String hostname ) {
+        if ( isHostVaried_ || nSoleHost_.get() >= SOLE_HOST_WARN_COUNT ) {
+            return;
+        }
+        String host = hostname == null ? "" : hostname;
+        synchronized ( nSoleHost_ ) {
+            if ( soleHost_ == null ) {
+                soleHost_ = host;
+            }
+            else if ( ! soleHost_.equals( host ) ) {
+                isHostVaried_ = true;
+                return;
+            }
+        }
+        if ( nSoleHost_.incrementAndGet() == SOLE_HOST_WARN_COUNT ) {
+            logger_.warning( "All of the first " + SOLE_HOST_WARN_COUNT
+                           + " calls came from host " + host
+                           + "; if that is a reverse proxy, list it in"
+                           + " system property "
+                           + HostIdentity.TRUSTED_PROXIES_PROP
+                           + ", or all clients will share its per-host"
+                           + " limits" );
+        }
+    }
+
+    /**
+     * Returns the number of calls rejected as malformed.
+     *
+     * @return  malformed call count
+     */
+    public long getMalformedCount() {
+        return nMalformed_.get();
+    }
+
+    /**
+     * Returns the number of calls rejected for exceeding a rate limit.
+     *
+     * @return  rate limited call count
+     */
+    public long getRateLimitedCount() {
+        return nRateLimited_.get();
+    }
+
+    /**
+     * Returns the number of calls rejected for exceeding a limit
+     * on pending calls.
+     *
+     * @return  pending limited call count
+     */
+    public long getPendingLimitedCount() {
+        return nPendingLimited_.get();
+    }
+
+    /**
+     * Returns the number of hosts and host/Origin combinations
+     * currently tracked.
+     *
+     * @return  tracked key count
+     */
+    public int getTrackedCount() {
+        return buckets_.size();
+    }
+
+    /**
+     * Takes a token from a bucket and registers a pending call with it.
+     *
+     * @param  bucket  bucket, or null for no limit
+     * @param  key   bucket key, for logging
+     * @param  now   current value of System.nanoTime
+     * @throws  RejectedException  if a limit would be exceeded
+     */
+    private void acquire( Bucket bucket, String key, long now )
+            throws RejectedException {
+        if ( bucket != null ) {
+            int retrySec = bucket.acquire( now );
+            if ( retrySec > 0 ) {
+                boolean isRate = retrySec < Integer.MAX_VALUE;
+                ( isRate ? nRateLimited_ : nPendingLimited_ )
+                         .incrementAndGet();
+                logger_.info( "Rejected call from " + key + ": "
+                            + ( isRate ? "rate" : "pending" ) + " limit" );
+                throw new RejectedException( isRate ? "Rate limit exceeded"
+                                                    : "Too many pending calls",
+                                             isRate ? retrySec : 1 );
+            }
+        }
+    }
+
+    /**
+     * Returns the bucket for a given key, creating it if necessary.
+     * If the maximum number of buckets is already tracked,
+     * and none can be discarded, no new bucket is created
+     * and the supplied overflow bucket is returned instead.
+     *
+     * @param  key  key
+     * @param  limits  limits for a new bucket
+     * @param  overflow  bucket to use if no new bucket can be created
+     * @return  bucket
+     */
+    private Bucket getBucket( String key, Limits limits, Bucket overflow ) {
+        Bucket bucket = buckets_.get( key );
+        if ( bucket == null ) {
+            if ( buckets_.size() >= MAX_BUCKETS ) {
+                purge();
+                if ( buckets_.size() >= MAX_BUCKETS ) {
+                    return overflow;
+                }
+            }
+            Bucket bucket1 = new Bucket( limits );
+            bucket = buckets_.putIfAbsent( key, bucket1 );
+            if ( bucket == null ) {
+                bucket = bucket1;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Discards buckets which have no pending calls and would be full
+     * anyway, so that they are equivalent to new ones.
+     * To avoid repeated scans, this does nothing if it has been done
+     * in the last second.
+     */
+    private void purge() {
+        long now = System.nanoTime();
+        if ( now - lastPurgeNanos_ > 1000000000L ) {
+            lastPurgeNanos_ = now;
+            for ( Iterator<Bucket> it = buckets_.values().iterator();
+                  it.hasNext(); ) {
+                if ( it.next().isIdle( now ) ) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the form of a submitted call.
+     *
+     * @param  methodName  XML-RPC method name
+     * @param  params   XML-RPC parameter list
+     * @return  error message, or null if the call is acceptable
+     */
+    static String checkCall( String methodName, List params ) {
+        String prefix = TlsHubProfile.COLLECTOR_PREFIX;
+        int[] arity = methodName.startsWith( prefix )
+                    ? ARITIES.get( methodName.substring( prefix.length() ) )
+                    : null;
+        if ( arity == null ) {
+            return "Unknown method " + methodName;
+        }
+        int nparam = params.size() - 1;
+        if ( nparam < arity[ 0 ] || nparam > arity[ 1 ] ) {
+            return "Wrong number of parameters for " + methodName;
+        }
+        Object tag = params.get( 0 );
+        if ( ! ( tag instanceof String ) || ! isValidTag( (String) tag ) ) {
+            return "Bad call tag for " + methodName;
+        }
+        return null;
+    }
+
+    /**
+     * Indicates whether a string is acceptable as a call tag.
+     * It must be non-empty, not too long, and consist of printable
+     * ASCII characters other than space.
+     *
+     * @param  tag  tag
+     * @return  true iff tag is acceptable
+     */
+    private static boolean isValidTag( String tag ) {
+        int leng = tag.length();
+        if ( leng == 0 || leng > MAX_TAG_LENGTH ) {
+            return false;
+        }
+        for ( int i = 0; i < leng; i++ ) {
+            char c = tag.charAt( i );
+            if ( c <= ' ' || c > '~' ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the permitted parameter counts, not including the call tag,
+     * of the TLS Profile hub methods.
+     *
+     * @return  map from unprefixed method name to (min, max) count
+     */
+    private static Map<String,int[]> createArities() {
+        Map<String,int[]> map = new HashMap<String,int[]>();
+        map.put( "ping", new int[] { 0, 1 } );
+        map.put( "register", new int[] { 1, 1 } );
+        map.put( "unregister", new int[] { 1, 1 } );
+        map.put( "declareMetadata", new int[] { 2, 2 } );
+        map.put( "getMetadata", new int[] { 2, 2 } );
+        map.put( "declareSubscriptions", new int[] { 2, 2 } );
+        map.put( "getSubscriptions", new int[] { 2, 2 } );
+        map.put( "getRegisteredClients", new int[] { 1, 1 } );
+        map.put( "getSubscribedClients", new int[] { 2, 2 } );
+        map.put( "notify", new int[] { 3, 3 } );
+        map.put( "notifyAll", new int[] { 2, 2 } );
+        map.put( "call", new int[] { 4, 4 } );
+        map.put( "callAll", new int[] { 3, 3 } );
+        map.put( "callAndWait", new int[] { 4, 4 } );
+        map.put( "reply", new int[] { 3, 3 } );
+        map.put( "allowReverseCallbacks", new int[] { 2, 2 } );
+        map.put( "pullCallbacks", new int[] { 2, 2 } );
+        map.put( ResourceRelay.REQUEST_METHOD, new int[] { 2, 2 } );
+        map.put( CallbackMailboxes.OPEN_METHOD, new int[] { 1, 1 } );
+        map.put( CallbackMailboxes.PULL_METHOD, new int[] { 1, 1 } );
+        return map;
+    }
+
+    /**
+     * Defines the limits applied to calls from one source.
+     */
+    public static class Limits {
+        final double ratePerSec_;
+        final int burst_;
+        final int maxPending_;
+
+        /**
+         * Constructor.
+         *
+         * @param  ratePerSec  sustained call rate permitted
+         * @param  burst   number of calls permitted in a burst
+         * @param  maxPending  maximum number of calls admitted but
+         *                     not yet completed
+         */
+        public Limits( double ratePerSec, int burst, int maxPending ) {
+            ratePerSec_ = ratePerSec;
+            burst_ = burst;
+            maxPending_ = maxPending;
+        }
+    }
+
+    /**
+     * Handle for an admitted call.
+     * Its {@link #release} method must be called exactly once
+     * when the call has completed or failed, which can be arranged
+     * by using the completion returned by its {@link #wrap} method.
+     */
+    public static class Ticket {
+        private final Bucket hostBucket_;
+        private final Bucket originBucket_;
+        private final AtomicBoolean isReleased_;
+
+        /**
+         * Constructor.
+         *
+         * @param  hostBucket  host bucket, or null
+         * @param  originBucket  origin bucket, or null
+         */
+        Ticket( Bucket hostBucket, Bucket originBucket ) {
+            hostBucket_ = hostBucket;
+            originBucket_ = originBucket;
+            isReleased_ = new AtomicBoolean();
+        }
+
+        /**
+         * Indicates that the admitted call is no longer pending.
+         * Calls after the first have no effect.
+         */
+        public void release() {
+            if ( ! isReleased_.getAndSet( true ) ) {
+                if ( hostBucket_ != null ) {
+                    hostBucket_.release();
+                }
+                if ( originBucket_ != null ) {
+                    originBucket_.release();
+                }
+            }
+        }
+
+        /**
+         * Returns a completion that releases this ticket before
+         * passing on the outcome of the call.
+         *
+         * @param  completion  completion for call outcome
+         * @return  wrapped completion
+         */
+        public AsyncXmlRpcHandler.Completion
+                wrap( final AsyncXmlRpcHandler.Completion completion ) {
+            return new AsyncXmlRpcHandler.Completion() {
+                public void completed( Object result ) {
+                    release();
+                    completion.completed( result );
+                }
+                public void failed( Throwable error ) {
+                    release();
+                    completion.failed( error );
+                }
+            };
+        }
+    }
+
+    /**
+     * Exception indicating that a call has not been admitted.
+     */
+    public static class RejectedException extends SampException {
+        private static final long serialVersionUID = 1L;
+        private final int retrySec_;
+
+        /**
+         * Constructor.
+         *
+         * @param  msg  reason for rejection
+         * @param  retrySec  suggested delay in seconds before retrying,
+         *                   or -1 if retrying will not help
+         */
+        RejectedException( String msg, int retrySec ) {
+            super( retrySec >= 0 ? msg + " (retry after " + retrySec + "s)"
+                                 : msg );
+            retrySec_ = retrySec;
+        }
+
+        /**
+         * Returns the suggested delay before retrying.
+         *
+         * @return  delay in seconds, or -1 if retrying will not help
+         */
+        public int getRetryAfterSec() {
+            return retrySec_;
+        }
+    }
+
+    /**
+     * Token bucket and pending call counter for one source.
+     * All access is synchronized on the bucket.
+     */
+    private static class Bucket {
+        private final Limits limits_;
+        private double tokens_;
+        private long lastNanos_;
+        private int nPending_;
+
+        /**
+         * Constructor.
+         *
+         * @param  limits  limits
+         */
+        Bucket( Limits limits ) {
+            limits_ = limits;
+            tokens_ = limits.burst_;
+            lastNanos_ = System.nanoTime();
+        }
+
+        /**
+         * Attempts to admit a call.
+         *
+         * @param  now  current value of System.nanoTime
+         * @return  0 for success, Integer.MAX_VALUE for failure because
+         *          of the pending limit, or the number of seconds to wait
+         *          for failure because of the rate limit
+         */
+        synchronized int acquire( long now ) {
+            refill( now );
+            if ( nPending_ >= limits_.maxPending_ ) {
+                return Integer.MAX_VALUE;
+            }
+            if ( tokens_ < 1 ) {
+                return Math.max( 1, (int) Math.ceil( ( 1 - tokens_ )
+                                                   / limits_.ratePerSec_ ) );
+            }
+            tokens_ -= 1;
+            nPending_++;
+            return 0;
+        }
+
+        /**
+         * Records that an admitted call is no longer pending.
+         */
+        synchronized void release() {
+            nPending_--;
+        }
+
+        /**
+         * Indicates whether this bucket is indistinguishable from
+         * a newly created one.
+         *
+         * @param  now  current value of System.nanoTime
+         * @return  true iff there are no pending calls and the bucket is full
+         */
+        synchronized boolean isIdle( long now ) {
+            refill( now );
+            return nPending_ == 0 && tokens_ >= limits_.burst_;
+        }
+
+        /**
+         * Adds tokens for the time elapsed since the last refill.
+         * Concurrent callers may present timestamps out of order;
+         * a timestamp earlier than the last one is ignored.
+         *
+         * @param  now  value of System.nanoTime taken by the caller
+         */
+        private void refill( long now ) {
+            if ( now - lastNanos_ > 0 ) {
+                tokens_ = Math.min( limits_.burst_,
+                                    tokens_ + ( now - lastNanos_ ) * 1e-9
+                                              * limits_.ratePerSec_ );
+                lastNanos_ = now;
+            }
+        }
+    }
+}
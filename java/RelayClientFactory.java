@@ -0,0 +1,481 @@
+package org.astrogrid.samp.tls;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClientFactory;
+import org.astrogrid.samp.xmlrpc.internal.InternalClient;
+
+/**
+ * XML-RPC client factory for use by the hub when talking to relays.
+ *
+ * <p>The clients it dispenses are cached per endpoint URL, and unlike
+ * JSAMP's <code>InternalClient</code>, which disconnects after every
+ * call, they leave their connections open for reuse by the JDK's
+ * HTTP keep-alive cache, so a hub making a stream of pullCall and
+ * receiveResult requests to the same relay does not pay for a new
+ * TCP connection and TLS handshake each time.
+ * HTTPS connections are all made using a single socket factory,
+ * which is a requirement for keep-alive reuse, and means that when new
+ * connections are required their TLS sessions can usually be resumed
+ * rather than negotiated from scratch.
+ * Counts of HTTPS connections and handshakes are kept, so that the
+ * effectiveness of this can be monitored.
+ * Plain HTTP connections are reused in the same way but not counted.
+ *
+ * <p>Response bodies are requested compressed, and request bodies
+ * such as receiveResult calls are compressed if the relay has advertised,
+ * by an Accept-Encoding header in an earlier response, that it accepts
+ * compressed requests; see {@link ContentCoding}.
+ * If a compressed request is refused with status 415 it is resent
+ * uncompressed, and compression is not used for that relay again.
+ *
+ * <p>The number of idle connections retained per relay is limited by
+ * the JDK's <code>http.maxConnections</code> system property
+ * (default 5).
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RelayClientFactory implements SampXmlRpcClientFactory {
+
+    private final SSLSocketFactory sslFactory_;
+    private final ConcurrentMap<String,SampXmlRpcClient> clientMap_;
+    private final Map<String,Boolean> sessionIds_;
+    private final AtomicLong nRequest_;
+    private final AtomicLong nHttpsRequest_;
+    private final AtomicLong nConnection_;
+    private final AtomicLong nFullHandshake_;
+    private final AtomicLong nResumedHandshake_;
+    private final ContentCoding.Stats compression_;
+    private static final int MAX_CLIENTS = 64;
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_SESSION_IDS = 256;
+    private static final Logger logger_ =
+        Logger.getLogger( RelayClientFactory.class.getName() );
+
+    /**
+     * Constructs a factory using a given SSL context for HTTPS
+     * connections.
+     *
+     * @param  sslContext  SSL context
+     */
+    public RelayClientFactory( SSLContext sslContext ) {
+        sslFactory_ = new CountingSocketFactory( sslContext
+                                                .getSocketFactory() );
+        clientMap_ = new ConcurrentHashMap<String,SampXmlRpcClient>();
+        sessionIds_ = new LinkedHashMap<String,Boolean>() {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry eldest ) {
+                return size() > MAX_SESSION_IDS;
+            }
+        };
+        nRequest_ = new AtomicLong();
+        nHttpsRequest_ = new AtomicLong();
+        nConnection_ = new AtomicLong();
+        nFullHandshake_ = new AtomicLong();
+        nResumedHandshake_ = new AtomicLong();
+        compression_ = new ContentCoding.Stats();
+    }
+
+    /**
+     * Constructs a factory using the default SSL context.
+     */
+    public RelayClientFactory() throws NoSuchAlgorithmException {
+        this( SSLContext.getDefault() );
+    }
+
+    public SampXmlRpcClient createClient( URL endpoint ) throws IOException {
+        String key = endpoint.toString();
+        SampXmlRpcClient client = clientMap_.get( key );
+        if ( client == null ) {
+            if ( clientMap_.size() >= MAX_CLIENTS ) {
+                clientMap_.clear();
+            }
+            SampXmlRpcClient client1 = new RelayClient( endpoint );
+            client = clientMap_.putIfAbsent( key, client1 );
+            if ( client == null ) {
+                client = client1;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Opens an HTTP connection for a non-XML-RPC request to a relay,
+     * such as a resource upload, using the same TLS configuration
+     * as the XML-RPC clients.
+     *
+     * @param  url  target URL
+     * @return  unconnected connection
+     */
+    public HttpURLConnection openConnection( URL url ) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        nRequest_.incrementAndGet();
+        if ( conn instanceof HttpsURLConnection ) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory( sslFactory_ );
+            nHttpsRequest_.incrementAndGet();
+        }
+        return conn;
+    }
+
+    /**
+     * Returns the number of XML-RPC requests made by clients
+     * from this factory.
+     *
+     * @return  request count
+     */
+    public long getRequestCount() {
+        return nRequest_.get();
+    }
+
+    /**
+     * Returns the number of new HTTPS connections opened.
+     *
+     * @return  connection count
+     */
+    public long getConnectionCount() {
+        return nConnection_.get();
+    }
+
+    /**
+     * Returns the number of HTTPS requests that were sent over an
+     * existing connection rather than a new one.
+     *
+     * @return  connection reuse count
+     */
+    public long getReusedConnectionCount() {
+        return Math.max( 0, nHttpsRequest_.get() - nConnection_.get() );
+    }
+
+    /**
+     * Returns the number of TLS handshakes which negotiated a new session.
+     * Resumption is recognised by a repeated session ID, which
+     * TLS 1.3 does not provide, so for TLS 1.3 connections
+     * this counts all handshakes.
+     *
+     * @return  full handshake count
+     */
+    public long getFullHandshakeCount() {
+        return nFullHandshake_.get();
+    }
+
+    /**
+     * Returns the number of TLS handshakes which resumed an existing
+     * session.
+     *
+     * @return  resumed handshake count
+     */
+    public long getResumedHandshakeCount() {
+        return nResumedHandshake_.get();
+    }
+
+    /**
+     * Returns the object recording compression of XML-RPC bodies
+     * exchanged by clients from this factory.
+     *
+     * @return  compression statistics
+     */
+    ContentCoding.Stats getCompressionStats() {
+        return compression_;
+    }
+
+    @Override
+    public String toString() {
+        return "requests: " + getRequestCount()
+             + ", connections: " + getConnectionCount()
+             + ", reused: " + getReusedConnectionCount()
+             + ", handshakes: " + getFullHandshakeCount()
+             + ", resumed: " + getResumedHandshakeCount();
+    }
+
+    /**
+     * Records the completion of a TLS handshake.
+     *
+     * @param  evt  handshake event
+     */
+    private void handshakeCompleted( HandshakeCompletedEvent evt ) {
+        byte[] id = evt.getSession().getId();
+        StringBuilder sbuf = new StringBuilder( evt.getSession()
+                                               .getPeerHost() )
+                            .append( ':' );
+        for ( byte b : id ) {
+            sbuf.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) )
+                .append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        String key = sbuf.toString();
+        boolean isResumed;
+        synchronized ( sessionIds_ ) {
+            isResumed = id.length > 0 &&
+                        sessionIds_.put( key, Boolean.TRUE ) != null;
+        }
+        ( isResumed ? nResumedHandshake_ : nFullHandshake_ )
+       .incrementAndGet();
+    }
+
+    /**
+     * XML-RPC client which leaves its connections open for reuse.
+     */
+    private class RelayClient extends InternalClient {
+
+        private final URL endpoint_;
+        private volatile String requestCoding_;
+
+        /**
+         * Constructor.
+         *
+         * @param  endpoint  XML-RPC server URL
+         */
+        RelayClient( URL endpoint ) {
+            super( endpoint );
+            endpoint_ = endpoint;
+        }
+
+        @Override
+        public Object callAndWait( String method, List params )
+                throws IOException {
+            return call( method, params, true );
+        }
+
+        /**
+         * Makes an XML-RPC call and returns the result.
+         *
+         * @param  method  method name
+         * @param  params  parameter list
+         * @param  mayCompress  whether the request body may be compressed
+         * @return  result value
+         */
+        private Object call( String method, List params, boolean mayCompress )
+                throws IOException {
+            byte[] callBuf = serializeCall( method, params );
+            String coding = mayCompress ? requestCoding_ : null;
+            if ( coding != null &&
+                 callBuf.length >= ContentCoding.MIN_COMPRESS_BYTES ) {
+                int rawLeng = callBuf.length;
+                callBuf = ContentCoding.encode( callBuf, 0, rawLeng, coding );
+                compression_.recordOut( rawLeng, callBuf.length );
+            }
+            else {
+                coding = null;
+            }
+            HttpURLConnection conn =
+                (HttpURLConnection) endpoint_.openConnection();
+            nRequest_.incrementAndGet();
+            if ( conn instanceof HttpsURLConnection ) {
+                ((HttpsURLConnection) conn).setSSLSocketFactory( sslFactory_ );
+                nHttpsRequest_.incrementAndGet();
+            }
+            conn.setDoOutput( true );
+            conn.setDoInput( true );
+            conn.setUseCaches( false );
+            conn.setRequestMethod( "POST" );
+            conn.setRequestProperty( "Content-Type", "text/xml" );
+            conn.setRequestProperty( "Accept-Encoding",
+                                     ContentCoding.ACCEPTED );
+            if ( coding != null ) {
+                conn.setRequestProperty( "Content-Encoding", coding );
+            }
+            conn.setFixedLengthStreamingMode( callBuf.length );
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write( callBuf );
+            }
+            finally {
+                out.close();
+            }
+            int code = conn.getResponseCode();
+            if ( code == HttpURLConnection.HTTP_UNSUPPORTED_TYPE &&
+                 coding != null ) {
+                consume( conn.getErrorStream() );
+                requestCoding_ = null;
+                return call( method, params, false );
+            }
+            if ( code != HttpURLConnection.HTTP_OK ) {
+                consume( conn.getErrorStream() );
+                throw new IOException( code + " " + conn.getResponseMessage() );
+            }
+            if ( mayCompress ) {
+                requestCoding_ =
+                    ContentCoding
+                   .chooseCoding( conn.getHeaderField( "Accept-Encoding" ) );
+            }
+            String respCoding = conn.getHeaderField( "Content-Encoding" );
+            InputStream in = conn.getInputStream();
+            try {
+                if ( ContentCoding.isIdentity( respCoding ) ) {
+                    return deserializeResponse( in );
+                }
+                else {
+                    byte[] wire = readAll( in );
+                    byte[] body =
+                        ContentCoding.decode( wire, 0, wire.length,
+                                              respCoding, MAX_RESPONSE_BYTES );
+                    compression_.recordIn( wire.length, body.length );
+                    return deserializeResponse(
+                               new ByteArrayInputStream( body ) );
+                }
+            }
+            finally {
+                consume( in );
+            }
+        }
+
+        @Override
+        public void callAndForget( final String method, final List params ) {
+            Thread thread = new Thread( "XML-RPC send " + method ) {
+                public void run() {
+                    try {
+                        callAndWait( method, params );
+                    }
+                    catch ( IOException e ) {
+                        logger_.log( Level.WARNING,
+                                     "XML-RPC " + method + " failed", e );
+                    }
+                }
+            };
+            thread.setDaemon( true );
+            thread.start();
+        }
+    }
+
+    /**
+     * Reads the whole content of a response stream.
+     *
+     * @param  in  input stream
+     * @return  content
+     */
+    private static byte[] readAll( InputStream in ) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buf = new byte[ 8192 ];
+        for ( int n; ( n = in.read( buf ) ) >= 0; ) {
+            if ( bout.size() + n > MAX_RESPONSE_BYTES ) {
+                throw new IOException( "Response too large" );
+            }
+            bout.write( buf, 0, n );
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * Reads a response stream to the end and closes it,
+     * which allows the underlying connection to be reused.
+     *
+     * @param  in  input stream, or null
+     */
+    private static void consume( InputStream in ) {
+        if ( in != null ) {
+            try {
+                byte[] buf = new byte[ 4096 ];
+                while ( in.read( buf ) >= 0 ) {
+                }
+                in.close();
+            }
+            catch ( IOException e ) {
+                // connection won't be reused, but no other harm done
+            }
+        }
+    }
+
+    /**
+     * SSLSocketFactory wrapper that counts the connections it makes
+     * and monitors their handshakes.
+     */
+    private class CountingSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory base_;
+        private final HandshakeCompletedListener listener_;
+
+        /**
+         * Constructor.
+         *
+         * @param  base  factory to which socket creation is delegated
+         */
+        CountingSocketFactory( SSLSocketFactory base ) {
+            base_ = base;
+            listener_ = new HandshakeCompletedListener() {
+                public void handshakeCompleted( HandshakeCompletedEvent evt ) {
+                    RelayClientFactory.this.handshakeCompleted( evt );
+                }
+            };
+        }
+
+        public String[] getDefaultCipherSuites() {
+            return base_.getDefaultCipherSuites();
+        }
+
+        public String[] getSupportedCipherSuites() {
+            return base_.getSupportedCipherSuites();
+        }
+
+        public Socket createSocket() throws IOException {
+            return monitor( base_.createSocket() );
+        }
+
+        public Socket createSocket( Socket s, String host, int port,
+                                    boolean autoClose )
+                throws IOException {
+            return monitor( base_.createSocket( s, host, port, autoClose ) );
+        }
+
+        public Socket createSocket( String host, int port )
+                throws IOException {
+            return monitor( base_.createSocket( host, port ) );
+        }
+
+        public Socket createSocket( String host, int port,
+                                    InetAddress localHost, int localPort )
+                throws IOException {
+            return monitor( base_.createSocket( host, port,
+                                                localHost, localPort ) );
+        }
+
+        public Socket createSocket( InetAddress host, int port )
+                throws IOException {
+            return monitor( base_.createSocket( host, port ) );
+        }
+
+        public Socket createSocket( InetAddress address, int port,
+                                    InetAddress localAddress, int localPort )
+                throws IOException {
+            return monitor( base_.createSocket( address, port,
+                                                localAddress, localPort ) );
+        }
+
+        /**
+         * Records creation of a socket and arranges to be told about
+         * its handshake.
+         *
+         * @param  sock  new socket
+         * @return  sock
+         */
+        private Socket monitor( Socket sock ) {
+            if ( sock instanceof SSLSocket ) {
+                nConnection_.incrementAndGet();
+                ((SSLSocket) sock).addHandshakeCompletedListener( listener_ );
+            }
+            return sock;
+        }
+    }
+}
@@ -0,0 +1,735 @@
+package org.astrogrid.samp.tls;
+
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.astrogrid.samp.client.SampException;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClientFactory;
+
+/**
+ * Runs an {@link XmlRpcRelay} as one node of a cluster of relays
+ * sharing the work between them.
+ *
+ * <p>A relay call only succeeds if the submitter's call and the
+ * servicer's pull and result for the same call tag all reach the
+ * same relay, since that is where the rendezvous state is held.
+ * Behind a load balancer that can't be guaranteed, so each call tag
+ * has an owner node, chosen by consistent hashing, and the handlers
+ * provided here forward any request for a tag owned by another node
+ * to that node, where it is handled by the local relay as if it had
+ * arrived there directly.  Adding a node moves only the share of tags
+ * that the new node takes on.
+ *
+ * <p>The hash is of the session token for call tags that belong to
+ * a session (see {@link TlsHubProfile#SESSION_SEP}), and otherwise of
+ * the whole tag, so that all the calls of a session and the hub's
+ * <code>pullSessionCalls</code> requests for it meet at the same node.
+ * Batch requests naming tags with different owners are split,
+ * and the partial results merged in order.
+ *
+ * <p>Nodes talk to each other using XML-RPC method
+ * <code>samp.tlsnode.forward(secret, methodName, hostname, headers,
+ * params)</code> at their ordinary relay endpoints, served by the
+ * {@link #getNodeHandler node handler}, which the harness should install
+ * alongside the other two.  The hostname and the Referer and Origin
+ * headers of the original request are passed on so that the owner can
+ * check and record them and apply admission control, so the forward
+ * method is protected by a secret shared by all the nodes.
+ * Forwarding blocks a thread for the duration of the forwarded request,
+ * which for a long poll may be several minutes; virtual threads are
+ * used where available.  The number of forwarded requests in progress
+ * at once is limited, and a request that would exceed the limit fails
+ * straight away with a fault rather than waiting for a thread.
+ *
+ * <p>The handlers here require fully decoded parameters,
+ * so opaque forwarding is not used in cluster mode.
+ * Membership is fixed at construction time, and if a node is down,
+ * calls whose tags it owns will fail.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RelayCluster {
+
+    private final XmlRpcRelay relay_;
+    private final HttpRequestFormat reqFormat_;
+    private final String selfLoc_;
+    private final Map<String,URL> nodeMap_;
+    private final SortedMap<Long,String> ring_;
+    private final byte[] secret_;
+    private final String secretTxt_;
+    private final SampXmlRpcClientFactory clientFactory_;
+    private final ExecutorService forwardExecutor_;
+    private final Semaphore forwardPermits_;
+    private final AsyncXmlRpcHandler receiveHandler_;
+    private final AsyncXmlRpcHandler dispenseHandler_;
+    private final AsyncXmlRpcHandler nodeHandler_;
+    private final AtomicLong nForwarded_;
+    private final AtomicLong nForwardFailed_;
+    private final AtomicLong nForwardRejected_;
+    private final AtomicLong nNodeReceived_;
+    private final AtomicLong nNodeRejected_;
+
+    /** Prefix for XML-RPC methods used between cluster nodes. */
+    public static final String NODE_PREFIX = "samp.tlsnode.";
+
+    /** Maximum number of forwarded requests in progress at once. */
+    private static final int MAX_FORWARDS = 256;
+
+    /** Number of points on the hash ring per node. */
+    private static final int POINTS_PER_NODE = 128;
+
+    private static final String[] FORWARDED_HEADERS =
+        new String[] { "Referer", "Origin" };
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final Logger logger_ =
+        Logger.getLogger( RelayCluster.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  reqFormat  understands HTTP request objects
+     * @param  checkHostnames  if true, ensure that the submitter and servicer
+     *                         are on the same host for each named call
+     * @param  selfUrl   relay endpoint URL of this node,
+     *                   which must be one of <code>nodeUrls</code>
+     * @param  nodeUrls  relay endpoint URLs of all the nodes in the cluster,
+     *                   the same for each node
+     * @param  secret    secret shared by all nodes in the cluster
+     * @param  clientFactory  factory for clients talking to other nodes
+     */
+    public RelayCluster( HttpRequestFormat reqFormat, boolean checkHostnames,
+                         URL selfUrl, URL[] nodeUrls, String secret,
+                         SampXmlRpcClientFactory clientFactory ) {
+        if ( secret == null || secret.length() == 0 ) {
+            throw new IllegalArgumentException( "No cluster secret" );
+        }
+        reqFormat_ = reqFormat;
+        secretTxt_ = secret;
+        secret_ = secret.getBytes( UTF8 );
+        clientFactory_ = clientFactory;
+
+        // URLs are keyed by their string forms, since URL.equals
+        // may do DNS lookups.
+        selfLoc_ = selfUrl.toString();
+        nodeMap_ = new LinkedHashMap<String,URL>();
+        ring_ = new TreeMap<Long,String>();
+        for ( URL nodeUrl : nodeUrls ) {
+            String nodeLoc = nodeUrl.toString();
+            nodeMap_.put( nodeLoc, nodeUrl );
+            for ( int ip = 0; ip < POINTS_PER_NODE; ip++ ) {
+                ring_.put( Long.valueOf( hash( nodeLoc + "#" + ip ) ),
+                           nodeLoc );
+            }
+        }
+        if ( ! nodeMap_.containsKey( selfLoc_ ) ) {
+            throw new IllegalArgumentException( "Self URL " + selfUrl
+                                              + " not among nodes" );
+        }
+        forwardExecutor_ = createForwardExecutor();
+        forwardPermits_ = new Semaphore( MAX_FORWARDS );
+        nForwarded_ = new AtomicLong();
+        nForwardFailed_ = new AtomicLong();
+        nForwardRejected_ = new AtomicLong();
+        nNodeReceived_ = new AtomicLong();
+        nNodeRejected_ = new AtomicLong();
+        relay_ = new XmlRpcRelay( new ClusterRequestFormat( reqFormat ),
+                                  checkHostnames );
+        receiveHandler_ = new RoutingHandler( relay_.getReceiveHandler() );
+        dispenseHandler_ = new RoutingHandler( relay_.getDispenseHandler() );
+        nodeHandler_ = new NodeHandler();
+        RelayMetrics metrics = relay_.getMetrics();
+        metrics.addGauge( "clusterForwarded", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return nForwarded_.get();
+            }
+        } );
+        metrics.addGauge( "clusterForwardFailed", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return nForwardFailed_.get();
+            }
+        } );
+        metrics.addGauge( "clusterForwardRejected",
+                          new MetricsMBean.Gauge() {
+            public long getValue() {
+                return nForwardRejected_.get();
+            }
+        } );
+        metrics.addGauge( "clusterNodeReceived", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return nNodeReceived_.get();
+            }
+        } );
+        metrics.addGauge( "clusterNodeRejected", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return nNodeRejected_.get();
+            }
+        } );
+    }
+
+    /**
+     * Returns the relay run by this node.
+     *
+     * @return  local relay
+     */
+    public XmlRpcRelay getRelay() {
+        return relay_;
+    }
+
+    /**
+     * Returns the handler for submitter requests,
+     * to be used in place of the relay's own.
+     *
+     * @return  submitter handler
+     */
+    public AsyncXmlRpcHandler getReceiveHandler() {
+        return receiveHandler_;
+    }
+
+    /**
+     * Returns the handler for servicer requests,
+     * to be used in place of the relay's own.
+     *
+     * @return  servicer handler
+     */
+    public AsyncXmlRpcHandler getDispenseHandler() {
+        return dispenseHandler_;
+    }
+
+    /**
+     * Returns the handler for requests forwarded from other nodes.
+     *
+     * @return  node handler
+     */
+    public AsyncXmlRpcHandler getNodeHandler() {
+        return nodeHandler_;
+    }
+
+    /**
+     * Returns the node that owns a given call tag.
+     *
+     * @param  callTag  call tag
+     * @return   relay endpoint URL of owning node
+     */
+    public URL getOwner( String callTag ) {
+        return nodeMap_.get( getTagOwner( callTag ) );
+    }
+
+    /**
+     * Releases resources.
+     */
+    public void close() {
+        forwardExecutor_.shutdownNow();
+        relay_.close();
+    }
+
+    /**
+     * Returns the node that owns a given call tag.
+     *
+     * @param  callTag  call tag
+     * @return  relay endpoint location of owning node
+     */
+    private String getTagOwner( String callTag ) {
+        int isep = callTag.lastIndexOf( TlsHubProfile.SESSION_SEP );
+        return getKeyOwner( isep > 0 ? callTag.substring( 0, isep )
+                                     : callTag );
+    }
+
+    /**
+     * Returns the node that owns a given routing key.
+     *
+     * @param  key  session token or call tag
+     * @return  relay endpoint location of owning node
+     */
+    private String getKeyOwner( String key ) {
+        SortedMap<Long,String> tail =
+            ring_.tailMap( Long.valueOf( hash( key ) ) );
+        return tail.isEmpty() ? ring_.get( ring_.firstKey() )
+                              : tail.get( tail.firstKey() );
+    }
+
+    /**
+     * Forwards a request to the node that owns it.
+     * If too many forwarded requests are already in progress,
+     * the completion fails at once.
+     *
+     * @param  nodeLoc  relay endpoint location of owner node
+     * @param  methodName  XML-RPC method name
+     * @param  params   XML-RPC parameter list
+     * @param  reqInfo   information about the HTTP request
+     * @param  completion   receives the call result
+     */
+    private void forward( String nodeLoc, String methodName, List params,
+                          Object reqInfo,
+                          final AsyncXmlRpcHandler.Completion completion ) {
+        String hostname = reqFormat_.getHostName( reqInfo );
+        Map<String,String> headers = new LinkedHashMap<String,String>();
+        for ( String hdrName : FORWARDED_HEADERS ) {
+            String value = reqFormat_.getHeader( reqInfo, hdrName );
+            if ( value != null ) {
+                headers.put( hdrName, value );
+            }
+        }
+        final List<Object> fwdParams = Arrays.asList( new Object[] {
+            secretTxt_,
+            methodName,
+            hostname == null ? "" : hostname,
+            headers,
+            params,
+        } );
+        final URL nodeUrl = nodeMap_.get( nodeLoc );
+        if ( ! forwardPermits_.tryAcquire() ) {
+            nForwardRejected_.incrementAndGet();
+            completion.failed( new RelayAdmission
+                                  .RejectedException( "Too many requests"
+                                                    + " forwarded in cluster",
+                                                      1 ) );
+            return;
+        }
+        nForwarded_.incrementAndGet();
+        Runnable task = new Runnable() {
+            public void run() {
+                Object result;
+                try {
+                    SampXmlRpcClient xClient =
+                        clientFactory_.createClient( nodeUrl );
+                    result = xClient.callAndWait( NODE_PREFIX + "forward",
+                                                  fwdParams );
+                }
+                catch ( Throwable e ) {
+                    nForwardFailed_.incrementAndGet();
+                    completion.failed( e );
+                    return;
+                }
+                finally {
+                    forwardPermits_.release();
+                }
+                completion.completed( result );
+            }
+        };
+        try {
+            forwardExecutor_.execute( task );
+        }
+        catch ( RejectedExecutionException e ) {
+            forwardPermits_.release();
+            nForwardFailed_.incrementAndGet();
+            completion.failed( e );
+        }
+    }
+
+    /**
+     * Returns an executor for forwarding requests to other nodes.
+     * Each task blocks for as long as the forwarded request takes.
+     * The executor itself is not bounded; the caller limits the number
+     * of tasks submitted at once.
+     *
+     * @return  new executor
+     */
+    private static ExecutorService createForwardExecutor() {
+        final String name = "Relay forwarder";
+        ExecutorService vExec = VirtualThreads.createExecutor( name );
+        if ( vExec != null ) {
+            return vExec;
+        }
+        return Executors.newCachedThreadPool( new ThreadFactory() {
+            private final AtomicInteger iThread_ = new AtomicInteger();
+            public Thread newThread( Runnable r ) {
+                Thread th =
+                    new Thread( r, name + "-" + iThread_.getAndIncrement() );
+                th.setDaemon( true );
+                return th;
+            }
+        } );
+    }
+
+    /**
+     * Returns a hash code for a string.
+     *
+     * @param  txt  string
+     * @return  64-bit hash
+     */
+    private static long hash( String txt ) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance( "MD5" );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new RuntimeException( "No MD5??", e );
+        }
+        byte[] digest = md5.digest( txt.getBytes( UTF8 ) );
+        long h = 0;
+        for ( int i = 0; i < 8; i++ ) {
+            h = ( h << 8 ) | ( digest[ i ] & 0xff );
+        }
+        return h;
+    }
+
+    /**
+     * Handler that routes each request, or each part of a batch request,
+     * to the local relay or to the node that owns it.
+     */
+    private class RoutingHandler implements AsyncXmlRpcHandler {
+        private final AsyncXmlRpcHandler local_;
+
+        /**
+         * Constructor.
+         *
+         * @param  local  local relay handler
+         */
+        RoutingHandler( AsyncXmlRpcHandler local ) {
+            local_ = local;
+        }
+
+        public boolean canHandleCall( String methodName ) {
+            return local_.canHandleCall( methodName );
+        }
+
+        public Object handleCall( String methodName, List params,
+                                  Object reqInfo )
+                throws Exception {
+            return XmlRpcRelay
+                  .waitForCompletion( this, methodName, params, reqInfo );
+        }
+
+        public void handleCallAsync( String methodName, List params,
+                                     Object reqInfo, Completion completion ) {
+            String dispensePrefix = TlsHubProfile.DISPENSER_PREFIX;
+            Object param0 = params.size() > 0 ? params.get( 0 ) : null;
+            String owner = null;
+            if ( ( dispensePrefix + "pullSessionCalls" )
+                .equals( methodName ) ) {
+                if ( param0 instanceof String ) {
+                    owner = getKeyOwner( (String) param0 );
+                }
+            }
+            else if ( ( dispensePrefix + "pullCalls" ).equals( methodName ) ||
+                      ( dispensePrefix + "receiveResults" )
+                     .equals( methodName ) ) {
+                if ( param0 instanceof List ) {
+                    handleBatch( methodName, params, reqInfo, completion );
+                    return;
+                }
+            }
+            else if ( ! ( dispensePrefix + "ping" ).equals( methodName ) ) {
+                if ( param0 instanceof String ) {
+                    owner = getTagOwner( (String) param0 );
+                }
+            }
+
+            // Malformed requests, and those with no tag, are left
+            // to the local relay to deal with.
+            if ( owner == null || owner.equals( selfLoc_ ) ) {
+                local_.handleCallAsync( methodName, params, reqInfo,
+                                        completion );
+            }
+            else {
+                forward( owner, methodName, params, reqInfo, completion );
+            }
+        }
+
+        /**
+         * Handles a pullCalls or receiveResults request,
+         * splitting it between owners if required.
+         * Partial failures are represented in the merged result
+         * as they would be by the relay for failures of individual entries.
+         *
+         * @param  methodName  XML-RPC method name
+         * @param  params   XML-RPC parameter list
+         * @param  reqInfo   information about the HTTP request
+         * @param  completion   receives the call result
+         */
+        private void handleBatch( String methodName, List params,
+                                  Object reqInfo,
+                                  final Completion completion ) {
+            final boolean isPull =
+                ( TlsHubProfile.DISPENSER_PREFIX + "pullCalls" )
+               .equals( methodName );
+            List items = (List) params.get( 0 );
+            int n = items.size();
+
+            // Group item indices by owner.
+            Map<String,List<Integer>> groups =
+                new LinkedHashMap<String,List<Integer>>();
+            for ( int i = 0; i < n; i++ ) {
+                String tag = isPull ? asString( items.get( i ) )
+                                    : getResultTag( items.get( i ) );
+                String owner = tag == null ? selfLoc_ : getTagOwner( tag );
+                List<Integer> group = groups.get( owner );
+                if ( group == null ) {
+                    group = new ArrayList<Integer>();
+                    groups.put( owner, group );
+                }
+                group.add( Integer.valueOf( i ) );
+            }
+
+            // If there's only one owner, handle it in one piece.
+            if ( groups.size() <= 1 ) {
+                String owner = groups.isEmpty()
+                             ? selfLoc_
+                             : groups.keySet().iterator().next();
+                if ( owner.equals( selfLoc_ ) ) {
+                    local_.handleCallAsync( methodName, params, reqInfo,
+                                            completion );
+                }
+                else {
+                    forward( owner, methodName, params, reqInfo, completion );
+                }
+                return;
+            }
+
+            // Otherwise split it.
+            final Object[] merged = new Object[ n ];
+            final AtomicInteger nPending =
+                new AtomicInteger( groups.size() );
+            for ( Map.Entry<String,List<Integer>> entry :
+                  groups.entrySet() ) {
+                String owner = entry.getKey();
+                final List<Integer> indices = entry.getValue();
+                List<Object> subItems = new ArrayList<Object>();
+                for ( Integer index : indices ) {
+                    subItems.add( items.get( index.intValue() ) );
+                }
+                List<Object> subParams = new ArrayList<Object>( params );
+                subParams.set( 0, subItems );
+                Completion subCompletion = new Completion() {
+                    public void completed( Object result ) {
+                        List resultList = result instanceof List
+                                        ? (List) result
+                                        : null;
+                        for ( int j = 0; j < indices.size(); j++ ) {
+                            Object item =
+                                resultList != null && j < resultList.size()
+                                    ? resultList.get( j )
+                                    : null;
+                            merged[ indices.get( j ).intValue() ] =
+                                item != null ? item : failedItem( null );
+                        }
+                        done();
+                    }
+                    public void failed( Throwable error ) {
+                        logger_.warning( "Batch part failed: " + error );
+                        for ( Integer index : indices ) {
+                            merged[ index.intValue() ] = failedItem( error );
+                        }
+                        done();
+                    }
+                    private Object failedItem( Throwable error ) {
+                        if ( isPull ) {
+                            return new HashMap();
+                        }
+                        else {
+                            String msg = error == null ? null
+                                                       : error.getMessage();
+                            return msg == null ? "error" : msg;
+                        }
+                    }
+                    private void done() {
+                        if ( nPending.decrementAndGet() == 0 ) {
+                            completion.completed( Arrays.asList( merged ) );
+                        }
+                    }
+                };
+                if ( owner.equals( selfLoc_ ) ) {
+                    local_.handleCallAsync( methodName, subParams, reqInfo,
+                                            subCompletion );
+                }
+                else {
+                    forward( owner, methodName, subParams, reqInfo,
+                             subCompletion );
+                }
+            }
+        }
+
+        /**
+         * Returns the call tag from a receiveResults batch entry.
+         *
+         * @param  entry  batch entry
+         * @return  call tag, or null if it can't be found
+         */
+        private String getResultTag( Object entry ) {
+            return entry instanceof Map
+                 ? asString( ((Map) entry).get( TlsHubProfile.BATCH_TAG_KEY ) )
+                 : null;
+        }
+
+        /**
+         * Returns an object as a string if it is one.
+         *
+         * @param  obj  object
+         * @return  obj if it is a string, else null
+         */
+        private String asString( Object obj ) {
+            return obj instanceof String ? (String) obj : null;
+        }
+    }
+
+    /**
+     * Handler for requests forwarded from other nodes.
+     * These are passed to the local relay.
+     *
+     * This has one method:
+     * <pre>
+     *    Object forward(String secret, String methodName, String hostname,
+     *                   Map headers, List params)
+     * </pre>
+     * prefixed with {@link #NODE_PREFIX}.
+     * The hostname is an empty string if not known, the headers map
+     * contains those of {@link #FORWARDED_HEADERS} present in the
+     * original request, and the return value is that of the
+     * forwarded request.
+     */
+    private class NodeHandler implements AsyncXmlRpcHandler {
+
+        public boolean canHandleCall( String fqName ) {
+            return fqName.startsWith( NODE_PREFIX );
+        }
+
+        public Object handleCall( String fqName, List params, Object reqInfo )
+                throws Exception {
+            return XmlRpcRelay
+                  .waitForCompletion( this, fqName, params, reqInfo );
+        }
+
+        public void handleCallAsync( String fqName, List params,
+                                     Object reqInfo, Completion completion ) {
+            try {
+                handleForward( fqName, params, completion );
+            }
+            catch ( Throwable e ) {
+                completion.failed( e );
+            }
+        }
+
+        /**
+         * Does the work for handling a forwarded request.
+         *
+         * @param  fqName  XML-RPC method name
+         * @param  params   XML-RPC parameter list
+         * @param  completion   receives the call result
+         */
+        private void handleForward( String fqName, List params,
+                                    Completion completion )
+                throws SampException {
+            if ( ! ( NODE_PREFIX + "forward" ).equals( fqName ) ) {
+                throw new SampException( "Unknown node method: " + fqName );
+            }
+            if ( params.size() != 5 ||
+                 ! ( params.get( 0 ) instanceof String ) ||
+                 ! ( params.get( 1 ) instanceof String ) ||
+                 ! ( params.get( 2 ) instanceof String ) ||
+                 ! ( params.get( 3 ) instanceof Map ) ||
+                 ! ( params.get( 4 ) instanceof List ) ) {
+                throw new SampException( "Wrong params for " + fqName
+                                       + "(string secret, string methodName,"
+                                       + " string hostname, map headers,"
+                                       + " list params)" );
+            }
+            byte[] secret = ((String) params.get( 0 )).getBytes( UTF8 );
+            if ( ! MessageDigest.isEqual( secret, secret_ ) ) {
+                nNodeRejected_.incrementAndGet();
+                logger_.warning( "Rejected forwarded request"
+                               + " with bad secret" );
+                throw new SampException( "Not authorized" );
+            }
+            String methodName = (String) params.get( 1 );
+            String hostname = (String) params.get( 2 );
+            Map headers = (Map) params.get( 3 );
+            List fwdParams = new ArrayList( (List) params.get( 4 ) );
+            AsyncXmlRpcHandler handler;
+            if ( relay_.getReceiveHandler().canHandleCall( methodName ) ) {
+                handler = relay_.getReceiveHandler();
+            }
+            else if ( relay_.getDispenseHandler()
+                            .canHandleCall( methodName ) ) {
+                handler = relay_.getDispenseHandler();
+            }
+            else {
+                throw new SampException( "Can't forward " + methodName );
+            }
+            nNodeReceived_.incrementAndGet();
+            ForwardedRequest fwdReq =
+                new ForwardedRequest( hostname.length() > 0 ? hostname : null,
+                                      headers );
+            handler.handleCallAsync( methodName, fwdParams, fwdReq,
+                                     completion );
+        }
+    }
+
+    /**
+     * Request information object standing in for the HTTP request
+     * originally received by another node.
+     */
+    private static class ForwardedRequest {
+        final String hostname_;
+        final Map headers_;
+
+        /**
+         * Constructor.
+         *
+         * @param  hostname  hostname of original requester, or null
+         * @param  headers   map of selected headers from original request
+         */
+        ForwardedRequest( String hostname, Map headers ) {
+            hostname_ = hostname;
+            headers_ = headers;
+        }
+    }
+
+    /**
+     * Request format that understands forwarded requests as well as
+     * those understood by a base format.
+     */
+    private static class ClusterRequestFormat implements HttpRequestFormat {
+        private final HttpRequestFormat base_;
+
+        /**
+         * Constructor.
+         *
+         * @param  base  format for requests received directly
+         */
+        ClusterRequestFormat( HttpRequestFormat base ) {
+            base_ = base;
+        }
+
+        public String getHostName( Object reqObj ) {
+            return reqObj instanceof ForwardedRequest
+                 ? ((ForwardedRequest) reqObj).hostname_
+                 : base_.getHostName( reqObj );
+        }
+
+        public String getHeader( Object reqObj, String hdrName ) {
+            if ( reqObj instanceof ForwardedRequest ) {
+                for ( Object entry :
+                      ((ForwardedRequest) reqObj).headers_.entrySet() ) {
+                    Map.Entry hdr = (Map.Entry) entry;
+                    if ( hdrName.equalsIgnoreCase( (String) hdr.getKey() ) &&
+                         hdr.getValue() instanceof String ) {
+                        return (String) hdr.getValue();
+                    }
+                }
+                return null;
+            }
+            else {
+                return base_.getHeader( reqObj, hdrName );
+            }
+        }
+    }
+}
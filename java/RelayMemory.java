@@ -0,0 +1,575 @@
+package org.astrogrid.samp.tls;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accounts for the memory used by calls and results held in an
+ * {@link XmlRpcRelay}, and limits it.
+ *
+ * <p>Each submitted call is charged an estimate of the number of
+ * bytes it occupies, and so is its result when that arrives,
+ * until the submitter has been answered.
+ * A call is refused if it would take the total charged to all
+ * requesting hosts, or to its own host, over a quota,
+ * or if the heap is already nearly full of live objects
+ * as measured after the most recent garbage collection.
+ * Hosts are identified as for {@link RelayAdmission}, so behind
+ * an untrusted reverse proxy the per-host quota applies to all
+ * clients together.
+ *
+ * <p>Large undecoded parameter values can also be spilled to
+ * temporary files, so that calls waiting for a hub
+ * to collect them hold their payloads outside the heap.
+ * Each file belongs to the reservation of its call, and is closed
+ * when that is released, so that its disk space is reclaimed as soon
+ * as the call is over rather than whenever the garbage collector
+ * gets round to it.  Where the platform permits, the file is unlinked
+ * as soon as it has been written, so that nothing is left behind
+ * if the JVM exits; otherwise it is deleted on release.
+ * Spilled bytes stay charged to the quotas until release,
+ * so the quotas bound the disk space used as well as the heap.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RelayMemory {
+
+    private final long maxBytes_;
+    private final long maxHostBytes_;
+    private final double maxHeapFraction_;
+    private final int spillThreshold_;
+    private final File spillDir_;
+    private final Map<String,long[]> hostBytes_;
+    private final List<MemoryPoolMXBean> heapPools_;
+    private final AtomicLong nQuotaRejected_;
+    private final AtomicLong nHeapRejected_;
+    private final AtomicLong nSpilled_;
+    private final AtomicLong spilledBytes_;
+    private final AtomicLong spillHeldBytes_;
+    private long totalBytes_;
+    private volatile long lastHeapCheckNanos_;
+    private volatile boolean isHeapFull_;
+
+    /** Default fraction of live heap above which calls are refused. */
+    public static final double DFLT_MAX_HEAP_FRACTION = 0.85;
+
+    /** Default size in bytes above which parameter values are spilled. */
+    public static final int DFLT_SPILL_THRESHOLD = 256 * 1024;
+
+    /** Nominal per-object overhead in bytes used for size estimates. */
+    private static final int OBJ_OVERHEAD = 32;
+
+    /** Minimum interval between heap usage checks. */
+    private static final long HEAP_CHECK_NANOS = 200 * 1000 * 1000;
+
+    private static final Logger logger_ =
+        Logger.getLogger( RelayMemory.class.getName() );
+
+    /**
+     * Constructs a memory controller with default limits.
+     * The global quota is a quarter of the maximum heap size,
+     * and the quota per host is a quarter of that.
+     * Values are spilled to the default temporary directory.
+     */
+    public RelayMemory() {
+        this( Runtime.getRuntime().maxMemory() / 4,
+              Runtime.getRuntime().maxMemory() / 16,
+              DFLT_MAX_HEAP_FRACTION, DFLT_SPILL_THRESHOLD, null );
+    }
+
+    /**
+     * Constructs a memory controller with given limits.
+     *
+     * @param  maxBytes   maximum bytes charged to all hosts together
+     * @param  maxHostBytes  maximum bytes charged to any single host
+     * @param  maxHeapFraction  fraction of the maximum heap size which,
+     *                          if occupied by live objects, causes
+     *                          new calls to be refused;
+     *                          1 or more means no check
+     * @param  spillThreshold  size in bytes of an undecoded value above
+     *                         which it is spilled to a file;
+     *                         zero or negative means never spill
+     * @param  spillDir   directory for spill files,
+     *                    or null for the default temporary directory
+     */
+    public RelayMemory( long maxBytes, long maxHostBytes,
+                        double maxHeapFraction, int spillThreshold,
+                        File spillDir ) {
+        maxBytes_ = maxBytes;
+        maxHostBytes_ = maxHostBytes;
+        maxHeapFraction_ = maxHeapFraction;
+        spillThreshold_ = spillThreshold;
+        spillDir_ = spillDir;
+        hostBytes_ = new HashMap<String,long[]>();
+        heapPools_ = new ArrayList<MemoryPoolMXBean>();
+        if ( maxHeapFraction < 1 ) {
+            for ( MemoryPoolMXBean pool :
+                  ManagementFactory.getMemoryPoolMXBeans() ) {
+                if ( pool.getType() == MemoryType.HEAP &&
+                     pool.isCollectionUsageThresholdSupported() ) {
+                    heapPools_.add( pool );
+                }
+            }
+        }
+        nQuotaRejected_ = new AtomicLong();
+        nHeapRejected_ = new AtomicLong();
+        nSpilled_ = new AtomicLong();
+        spilledBytes_ = new AtomicLong();
+        spillHeldBytes_ = new AtomicLong();
+    }
+
+    /**
+     * Charges the estimated size of a submitted call to its host,
+     * if the limits permit.
+     *
+     * @param  hostname  hostname of requester, or null if not known
+     * @param  params   XML-RPC parameter list of submitted call
+     * @return  reservation for the charged bytes, not null
+     * @throws  RelayAdmission.RejectedException  if the call is refused
+     */
+    public Reservation reserve( String hostname, List params )
+            throws RelayAdmission.RejectedException {
+        if ( isHeapFull() ) {
+            nHeapRejected_.incrementAndGet();
+            logger_.warning( "Rejected call from " + hostname
+                           + ": heap nearly full" );
+            throw new RelayAdmission.RejectedException( "Relay heap full",
+                                                        1 );
+        }
+        String hostKey = hostname == null ? "" : hostname;
+        Reservation resv = new Reservation( hostKey );
+        resv.charge( estimateSize( params ) );
+        return resv;
+    }
+
+    /**
+     * Returns a parameter list in which any undecoded values larger than
+     * the spill threshold have been replaced by equivalent values held
+     * in files.  The files are closed, and their space reclaimed,
+     * when the supplied reservation is released, after which the
+     * spilled values can no longer be read.
+     * If spilling fails, the value is left on the heap.
+     *
+     * <p>Undecoded values are typically slices of the whole request
+     * body, so if anything is spilled, the remaining undecoded values
+     * are copied into arrays of their own; otherwise they would keep
+     * the body, including the spilled bytes, reachable.
+     *
+     * @param  params   parameter list
+     * @param  resv   reservation for the call to which the
+     *                parameters belong
+     * @return   parameter list with large values spilled;
+     *           the input list if nothing has been spilled
+     */
+    public List spill( List params, Reservation resv ) {
+        if ( spillThreshold_ <= 0 ) {
+            return params;
+        }
+        List outParams = params;
+        int n = params.size();
+        for ( int i = 0; i < n; i++ ) {
+            Object param = params.get( i );
+            if ( param instanceof OpaqueValue &&
+                 ! ((OpaqueValue) param).isExternal() &&
+                 ((OpaqueValue) param).getLength() > spillThreshold_ ) {
+                OpaqueValue spilled;
+                try {
+                    spilled = spillValue( (OpaqueValue) param, resv );
+                }
+                catch ( IOException e ) {
+                    logger_.log( Level.WARNING,
+                                 "Failed to spill call parameter", e );
+                    return outParams;
+                }
+                if ( outParams == params ) {
+                    outParams = new ArrayList( params );
+                }
+                outParams.set( i, spilled );
+            }
+        }
+        if ( outParams != params ) {
+            for ( int i = 0; i < n; i++ ) {
+                Object param = outParams.get( i );
+                if ( param instanceof OpaqueValue ) {
+                    outParams.set( i, ((OpaqueValue) param).compact() );
+                }
+            }
+        }
+        return outParams;
+    }
+
+    /**
+     * Returns the total number of bytes currently charged.
+     *
+     * @return  total charged bytes
+     */
+    public synchronized long getChargedBytes() {
+        return totalBytes_;
+    }
+
+    /**
+     * Returns the number of hosts with bytes currently charged.
+     *
+     * @return  charged host count
+     */
+    public synchronized int getHostCount() {
+        return hostBytes_.size();
+    }
+
+    /**
+     * Returns the number of calls and results refused because a
+     * byte quota would have been exceeded.
+     *
+     * @return  quota rejection count
+     */
+    public long getQuotaRejectedCount() {
+        return nQuotaRejected_.get();
+    }
+
+    /**
+     * Returns the number of calls refused because the heap was
+     * nearly full.
+     *
+     * @return  heap rejection count
+     */
+    public long getHeapRejectedCount() {
+        return nHeapRejected_.get();
+    }
+
+    /**
+     * Returns the number of values that have been spilled to files.
+     *
+     * @return  spilled value count
+     */
+    public long getSpilledCount() {
+        return nSpilled_.get();
+    }
+
+    /**
+     * Returns the total number of bytes that have been spilled to files.
+     *
+     * @return  spilled byte count
+     */
+    public long getSpilledBytes() {
+        return spilledBytes_.get();
+    }
+
+    /**
+     * Returns the number of spilled bytes whose files are still held,
+     * because the calls they belong to have not yet been released.
+     *
+     * @return  held spill file byte count
+     */
+    public long getSpillHeldBytes() {
+        return spillHeldBytes_.get();
+    }
+
+    /**
+     * Estimates the number of heap bytes occupied by a SAMP value.
+     * Undecoded values are counted by their encoded length;
+     * those held outside the heap are counted in the same way,
+     * since they still occupy memory or disk.
+     *
+     * @param  value  String, List, Map or OpaqueValue
+     * @return  approximate size in bytes
+     */
+    public static long estimateSize( Object value ) {
+        if ( value instanceof String ) {
+            return OBJ_OVERHEAD + 2L * ((String) value).length();
+        }
+        else if ( value instanceof OpaqueValue ) {
+            return OBJ_OVERHEAD + ((OpaqueValue) value).getLength();
+        }
+        else if ( value instanceof List ) {
+            long size = OBJ_OVERHEAD;
+            for ( Object item : (List) value ) {
+                size += 8 + estimateSize( item );
+            }
+            return size;
+        }
+        else if ( value instanceof Map ) {
+            long size = OBJ_OVERHEAD;
+            for ( Object obj : ((Map) value).entrySet() ) {
+                Map.Entry entry = (Map.Entry) obj;
+                size += OBJ_OVERHEAD + estimateSize( entry.getKey() )
+                                     + estimateSize( entry.getValue() );
+            }
+            return size;
+        }
+        else {
+            return OBJ_OVERHEAD;
+        }
+    }
+
+    /**
+     * Indicates whether live objects occupy more than the permitted
+     * fraction of the heap.  The measurement is the usage of the
+     * heap memory pools following the most recent collection,
+     * so that garbage is not counted;
+     * it is repeated at most every few hundred milliseconds.
+     *
+     * @return  true iff new calls should be refused
+     */
+    private boolean isHeapFull() {
+        if ( heapPools_.isEmpty() ) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if ( now - lastHeapCheckNanos_ > HEAP_CHECK_NANOS ) {
+            lastHeapCheckNanos_ = now;
+            long used = 0;
+            long max = 0;
+            for ( MemoryPoolMXBean pool : heapPools_ ) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                long poolMax = pool.getUsage().getMax();
+                if ( usage != null && poolMax > 0 ) {
+                    used += usage.getUsed();
+                    max += poolMax;
+                }
+            }
+            isHeapFull_ = max > 0 && used > maxHeapFraction_ * max;
+        }
+        return isHeapFull_;
+    }
+
+    /**
+     * Adds to the bytes charged to a host, if the quotas permit.
+     *
+     * @param  hostKey  host key
+     * @param  nbytes   number of bytes to add
+     * @return  true iff the bytes were charged
+     */
+    private synchronized boolean add( String hostKey, long nbytes ) {
+        long[] hostCount = hostBytes_.get( hostKey );
+        long hostTotal = hostCount == null ? 0 : hostCount[ 0 ];
+        if ( totalBytes_ + nbytes > maxBytes_ ||
+             hostTotal + nbytes > maxHostBytes_ ) {
+            return false;
+        }
+        if ( hostCount == null ) {
+            hostCount = new long[ 1 ];
+            hostBytes_.put( hostKey, hostCount );
+        }
+        hostCount[ 0 ] += nbytes;
+        totalBytes_ += nbytes;
+        return true;
+    }
+
+    /**
+     * Removes bytes charged to a host.
+     *
+     * @param  hostKey  host key
+     * @param  nbytes   number of bytes previously charged
+     */
+    private synchronized void remove( String hostKey, long nbytes ) {
+        long[] hostCount = hostBytes_.get( hostKey );
+        if ( hostCount != null ) {
+            hostCount[ 0 ] -= nbytes;
+            if ( hostCount[ 0 ] <= 0 ) {
+                hostBytes_.remove( hostKey );
+            }
+        }
+        totalBytes_ -= nbytes;
+    }
+
+    /**
+     * Copies an undecoded value to a temporary file.
+     *
+     * @param  value  value on the heap
+     * @param  resv   reservation which will own the file
+     * @return   equivalent value held in the file
+     */
+    private OpaqueValue spillValue( OpaqueValue value, Reservation resv )
+            throws IOException {
+        File file = File.createTempFile( "tlsamp", ".spill", spillDir_ );
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile( file, "rw" );
+            FileChannel chan = raf.getChannel();
+            ByteBuffer bbuf =
+                ByteBuffer.wrap( value.getBuffer(), value.getOffset(),
+                                 value.getLength() );
+            while ( bbuf.hasRemaining() ) {
+                chan.write( bbuf );
+            }
+        }
+        catch ( IOException e ) {
+            if ( raf != null ) {
+                raf.close();
+            }
+            file.delete();
+            throw e;
+        }
+        SpillFile spillFile =
+            new SpillFile( raf, file.delete() ? null : file,
+                           value.getLength() );
+        nSpilled_.incrementAndGet();
+        spilledBytes_.addAndGet( value.getLength() );
+        spillHeldBytes_.addAndGet( value.getLength() );
+        resv.addSpillFile( spillFile );
+        return new OpaqueValue( raf.getChannel(), value.getLength() );
+    }
+
+    /**
+     * Bytes charged on behalf of a single call.
+     * Its {@link #release} method must be called exactly once
+     * when the call has completed or failed, which can be arranged
+     * by using the completion returned by its {@link #wrap} method.
+     */
+    public class Reservation {
+        private final String hostKey_;
+        private final List<SpillFile> spillFiles_;
+        private long nbytes_;
+        private boolean isReleased_;
+
+        /**
+         * Constructor.
+         *
+         * @param  hostKey  key of host charged
+         */
+        Reservation( String hostKey ) {
+            hostKey_ = hostKey;
+            spillFiles_ = new ArrayList<SpillFile>();
+        }
+
+        /**
+         * Charges additional bytes to this reservation,
+         * if the quotas permit.
+         * Has no effect if this reservation has been released.
+         *
+         * @param  nbytes  number of bytes
+         * @throws  RelayAdmission.RejectedException  if a quota would be
+         *                                            exceeded
+         */
+        public synchronized void charge( long nbytes )
+                throws RelayAdmission.RejectedException {
+            if ( isReleased_ ) {
+                return;
+            }
+            if ( ! add( hostKey_, nbytes ) ) {
+                nQuotaRejected_.incrementAndGet();
+                logger_.info( "Rejected " + nbytes + " bytes from host "
+                            + hostKey_ + ": memory quota" );
+                throw new RelayAdmission
+                         .RejectedException( "Relay memory quota exceeded",
+                                             nbytes > maxHostBytes_ ? -1
+                                                                    : 1 );
+            }
+            nbytes_ += nbytes;
+        }
+
+        /**
+         * Indicates that the charged bytes are no longer held.
+         * Any spill files belonging to this reservation are closed.
+         * Calls after the first have no effect.
+         */
+        public void release() {
+            long nbytes;
+            List<SpillFile> spillFiles;
+            synchronized ( this ) {
+                if ( isReleased_ ) {
+                    return;
+                }
+                isReleased_ = true;
+                nbytes = nbytes_;
+                spillFiles = new ArrayList<SpillFile>( spillFiles_ );
+                spillFiles_.clear();
+            }
+            for ( SpillFile spillFile : spillFiles ) {
+                spillFile.close();
+            }
+            remove( hostKey_, nbytes );
+        }
+
+        /**
+         * Gives this reservation ownership of a spill file.
+         * If it has already been released, the file is closed at once.
+         *
+         * @param  spillFile  spill file
+         */
+        void addSpillFile( SpillFile spillFile ) {
+            synchronized ( this ) {
+                if ( ! isReleased_ ) {
+                    spillFiles_.add( spillFile );
+                    return;
+                }
+            }
+            spillFile.close();
+        }
+
+        /**
+         * Returns a completion that releases this reservation before
+         * passing on the outcome of the call.
+         *
+         * @param  completion  completion for call outcome
+         * @return  wrapped completion
+         */
+        public AsyncXmlRpcHandler.Completion
+                wrap( final AsyncXmlRpcHandler.Completion completion ) {
+            return new AsyncXmlRpcHandler.Completion() {
+                public void completed( Object result ) {
+                    release();
+                    completion.completed( result );
+                }
+                public void failed( Throwable error ) {
+                    release();
+                    completion.failed( error );
+                }
+            };
+        }
+    }
+
+    /**
+     * Temporary file holding a spilled value.
+     */
+    private class SpillFile {
+        private final RandomAccessFile raf_;
+        private final File file_;
+        private final long nbytes_;
+
+        /**
+         * Constructor.
+         *
+         * @param  raf  open file
+         * @param  file  file to delete on closing,
+         *               or null if it has already been unlinked
+         * @param  nbytes  number of bytes spilled
+         */
+        SpillFile( RandomAccessFile raf, File file, long nbytes ) {
+            raf_ = raf;
+            file_ = file;
+            nbytes_ = nbytes;
+        }
+
+        /**
+         * Closes and deletes the file.
+         */
+        void close() {
+            try {
+                raf_.close();
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.WARNING, "Failed to close spill file", e );
+            }
+            if ( file_ != null && ! file_.delete() ) {
+                logger_.warning( "Failed to delete spill file " + file_ );
+            }
+            spillHeldBytes_.addAndGet( -nbytes_ );
+        }
+    }
+}
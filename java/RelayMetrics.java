@@ -0,0 +1,163 @@
+package org.astrogrid.samp.tls;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects operational statistics for an {@link XmlRpcRelay}.
+ *
+ * <p>Gauges report queue sizes and expiry counts.
+ * For each relayed method (<code>samp.tlshub.*</code>),
+ * counters record how many calls were submitted and how each ended,
+ * and histograms record the latency of three stages:
+ * rendezvous (submission until collection by the hub),
+ * hub (collection until the result arrives),
+ * and total (submission until the result arrives).
+ * Recording uses only atomic updates, so is cheap enough to do
+ * for every call.
+ * Gauges named <code>compression*</code> report the sizes of
+ * compressed XML-RPC bodies before and after encoding.
+ * MBean attribute names look like
+ * <code>methods.notifyAll.totalMillis.p99</code>.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RelayMetrics extends MetricsMBean {
+
+    private final ConcurrentMap<String,MethodStats> methodStats_;
+    private final ContentCoding.Stats compression_;
+
+    /** Maximum number of distinct method names tracked. */
+    private static final int MAX_METHODS = 64;
+
+    /** Name under which calls to untracked methods are counted. */
+    private static final String OTHER_METHOD = "other";
+
+    /**
+     * Query string which, appended to the relay endpoint URL in
+     * a GET request, asks the relay harness for statistics in JSON form.
+     */
+    public static final String STATS_QUERY = "stats";
+
+    /**
+     * Constructor.
+     */
+    public RelayMetrics() {
+        super( "XmlRpcRelay", "TLS-SAMP relay metrics" );
+        methodStats_ = new ConcurrentHashMap<String,MethodStats>();
+        compression_ = new ContentCoding.Stats();
+        compression_.addGauges( this );
+    }
+
+    /**
+     * Returns the object recording compression of XML-RPC bodies
+     * exchanged by the relay harness.
+     *
+     * @return  compression statistics
+     */
+    ContentCoding.Stats getCompressionStats() {
+        return compression_;
+    }
+
+    /**
+     * Returns the statistics object for a given method.
+     * Beyond a fixed number of distinct names, calls to further
+     * methods are all accounted under a single name, so that
+     * arbitrary method names supplied by clients cannot consume
+     * unlimited memory.
+     *
+     * @param  methodName  method name, without namespace prefix
+     * @return  statistics object
+     */
+    MethodStats getMethodStats( String methodName ) {
+        MethodStats stats = methodStats_.get( methodName );
+        if ( stats == null ) {
+            String key = methodStats_.size() < MAX_METHODS ? methodName
+                                                           : OTHER_METHOD;
+            MethodStats stats1 = new MethodStats();
+            stats = methodStats_.putIfAbsent( key, stats1 );
+            if ( stats == null ) {
+                stats = stats1;
+            }
+        }
+        return stats;
+    }
+
+    protected void addStatistics( Map<String,Object> map ) {
+        Map<String,Object> methodsMap = new LinkedHashMap<String,Object>();
+        for ( Map.Entry<String,MethodStats> entry :
+              methodStats_.entrySet() ) {
+            methodsMap.put( entry.getKey(), entry.getValue().getSnapshot() );
+        }
+        map.put( "methods", methodsMap );
+    }
+
+    /**
+     * Indicates whether a request URL asks for statistics,
+     * that is whether its query string is {@link #STATS_QUERY}.
+     * The path is not checked.
+     *
+     * @param  url  request URL or path, including any query string
+     * @return  true iff statistics are requested
+     */
+    public static boolean isStatsRequest( String url ) {
+        int iq = url.indexOf( '?' );
+        return iq >= 0 && STATS_QUERY.equals( url.substring( iq + 1 ) );
+    }
+
+    /**
+     * Counters and latency histograms for a single relayed method.
+     */
+    static class MethodStats {
+        final AtomicLong nSubmitted_;
+        final AtomicLong nRejected_;
+        final AtomicLong nSucceeded_;
+        final AtomicLong nFaulted_;
+        final AtomicLong nFailed_;
+        final AtomicLong nCollectExpired_;
+        final AtomicLong nResultExpired_;
+        final LatencyHistogram rendezvous_;
+        final LatencyHistogram hub_;
+        final LatencyHistogram total_;
+
+        /**
+         * Constructor.
+         */
+        MethodStats() {
+            nSubmitted_ = new AtomicLong();
+            nRejected_ = new AtomicLong();
+            nSucceeded_ = new AtomicLong();
+            nFaulted_ = new AtomicLong();
+            nFailed_ = new AtomicLong();
+            nCollectExpired_ = new AtomicLong();
+            nResultExpired_ = new AtomicLong();
+            rendezvous_ = new LatencyHistogram();
+            hub_ = new LatencyHistogram();
+            total_ = new LatencyHistogram();
+        }
+
+        /**
+         * Returns a snapshot of this object's state.
+         *
+         * @return  nested map
+         */
+        Map<String,Object> getSnapshot() {
+            Map<String,Object> map = new LinkedHashMap<String,Object>();
+            map.put( "submitted", Long.valueOf( nSubmitted_.get() ) );
+            map.put( "rejected", Long.valueOf( nRejected_.get() ) );
+            map.put( "succeeded", Long.valueOf( nSucceeded_.get() ) );
+            map.put( "faulted", Long.valueOf( nFaulted_.get() ) );
+            map.put( "failed", Long.valueOf( nFailed_.get() ) );
+            map.put( "collectExpired", Long.valueOf( nCollectExpired_.get() ) );
+            map.put( "resultExpired", Long.valueOf( nResultExpired_.get() ) );
+            map.put( "rendezvousMillis", rendezvous_.getSnapshot() );
+            map.put( "hubMillis", hub_.getSnapshot() );
+            map.put( "totalMillis", total_.getSnapshot() );
+            return map;
+        }
+    }
+}
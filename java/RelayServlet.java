@@ -1,30 +1,59 @@
 package org.astrogrid.samp.tls;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.DocumentBuilderFactory;
+import org.astrogrid.samp.DataException;
 import org.astrogrid.samp.xmlrpc.SampXmlRpcHandler;
-import org.astrogrid.samp.xmlrpc.internal.InternalServer;
 import org.astrogrid.samp.xmlrpc.internal.XmlRpcCall;
-import org.astrogrid.samp.xmlrpc.internal.XmlUtils;
-import org.w3c.dom.Document;
 
 /**
  * Servlet harness for the TLS hub relay functionality.
  * By default, CORS is implemented.
  *
+ * <p>If the container supports Servlet 3.0 asynchronous processing
+ * (and the servlet is declared with <code>async-supported</code>),
+ * relay calls are serviced asynchronously, so that calls waiting for
+ * the hub or for a result do not occupy container threads.
+ * Otherwise each call blocks a container thread until it completes.
+ *
+ * <p>Resource relay transfers, identified by a query string
+ * <code>?resource=&lt;callTag&gt;</code>, are accepted as PUT requests
+ * from the hub and GET requests from the web application;
+ * the uploading request thread writes the content straight to the
+ * downloading response, so no more than a buffer of it is held at once.
+ * Both requests occupy a container thread for the duration.
+ * If the web application's context init-parameter
+ * <code>resourceCacheBytes</code> is set, relayed content is held in
+ * a {@link ResourceCache} of that many bytes, with an optional
+ * disk tier given by <code>resourceCacheDir</code> and
+ * <code>resourceCacheDiskBytes</code>.
+ *
+ * <p>A GET request with the query string <code>?stats</code> returns
+ * the relay's {@link RelayMetrics} as JSON.
+ * The same statistics are registered as a JMX MBean named after the
+ * web application, if the container permits.
+ *
  * @author   Mark Taylor
  * @since    11 Mar 2016
  * @see   <a href="http://www.w3.org/TR/cors/"
@@ -34,17 +63,26 @@ public class RelayServlet extends HttpServlet {
 
     private static final HttpRequestFormat reqFormat_ =
         new ServletHttpRequestFormat();
+    private static final AsyncSupport asyncSupport_ =
+        AsyncSupport.createInstance();
+    private static final Logger logger_ =
+        Logger.getLogger( RelayServlet.class.getName() );
     private SampXmlRpcHandler receiveHandler_;
     private SampXmlRpcHandler dispenseHandler_;
-    private DocumentBuilderFactory dbFact_;
+    private RelayMetrics metrics_;
+    private ResourceRelay resources_;
+    private final XmlRpcDecoder.OpaquePolicy opaquePolicy_;
 
     private final boolean checkHostnames_;
     private final boolean useCors_;
 
     private static final String RELAY_ATTNAME =
         XmlRpcRelay.class.getName();
-    private static final String DBFACT_ATTNAME =
-        RelayServlet.class.getName() + ".dbfact";
+
+    private static final String CACHE_BYTES_PARAM = "resourceCacheBytes";
+    private static final String CACHE_DIR_PARAM = "resourceCacheDir";
+    private static final String CACHE_DISK_BYTES_PARAM =
+        "resourceCacheDiskBytes";
 
     private static final String ORIGIN_KEY = "Origin";
     private static final String ALLOW_ORIGIN_KEY =
@@ -55,6 +93,11 @@ public class RelayServlet extends HttpServlet {
         "Access-Control-Allow-Methods";
     private static final String ALLOW_HEADERS_KEY =
         "Access-Control-Allow-Headers";
+    private static final String EXPOSE_HEADERS_KEY =
+        "Access-Control-Expose-Headers";
+
+    /** Maximum length of a decompressed request body. */
+    private static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
 
     /**
      * Constructor.
@@ -62,6 +105,15 @@ public class RelayServlet extends HttpServlet {
     public RelayServlet() {
         checkHostnames_ = true;
         useCors_ = true;
+        opaquePolicy_ = new XmlRpcDecoder.OpaquePolicy() {
+            public int getDecodedParamCount( String methodName ) {
+                SampXmlRpcHandler handler = getHandler( methodName );
+                return handler instanceof XmlRpcDecoder.OpaquePolicy
+                     ? ((XmlRpcDecoder.OpaquePolicy) handler)
+                      .getDecodedParamCount( methodName )
+                     : -1;
+            }
+        };
     }
 
     @Override
@@ -79,14 +131,13 @@ public class RelayServlet extends HttpServlet {
         }
 
         // Initialise persistent state for this servlet.
-        Object dbfactObj = context.getAttribute( DBFACT_ATTNAME );
         Object relayObj = context.getAttribute( RELAY_ATTNAME );
-        if ( dbfactObj instanceof DocumentBuilderFactory &&
-             relayObj instanceof XmlRpcRelay ) {
-            dbFact_ = (DocumentBuilderFactory) dbfactObj;
+        if ( relayObj instanceof XmlRpcRelay ) {
             XmlRpcRelay relay = (XmlRpcRelay) relayObj;
             receiveHandler_ = relay.getReceiveHandler();
             dispenseHandler_ = relay.getDispenseHandler();
+            metrics_ = relay.getMetrics();
+            resources_ = relay.getResources();
         }
         else {
             throw new ServletException( "Init failed" );
@@ -97,8 +148,29 @@ public class RelayServlet extends HttpServlet {
     protected void doGet( HttpServletRequest req, HttpServletResponse resp )
             throws IOException {
 
-        // Emit a message, but this doesn't support GET in a meaningful way,
-        // since XML-RPC is only defined for POST.
+        // Serve resource download if requested.
+        String resourceTag =
+            ResourceRelay.getResourceTag( req.getQueryString() );
+        if ( resourceTag != null ) {
+            downloadResource( req, resp, resourceTag );
+            return;
+        }
+
+        // Serve statistics if requested.
+        if ( RelayMetrics.STATS_QUERY.equals( req.getQueryString() ) ) {
+            byte[] json = metrics_.toJson().getBytes( "UTF-8" );
+            resp.setStatus( HttpServletResponse.SC_OK );
+            resp.setContentType( MetricsMBean.JSON_MIME_TYPE );
+            resp.setHeader( "Cache-Control", "no-cache" );
+            resp.setContentLength( json.length );
+            OutputStream out = resp.getOutputStream();
+            out.write( json );
+            out.flush();
+            return;
+        }
+
+        // Otherwise emit a message, but this doesn't support GET
+        // in a meaningful way, since XML-RPC is only defined for POST.
         resp.setStatus( HttpServletResponse.SC_OK );
         resp.setContentType( "text/plain" );
         PrintStream out = new PrintStream( resp.getOutputStream() );
@@ -109,23 +181,134 @@ public class RelayServlet extends HttpServlet {
     @Override
     protected void doPost( HttpServletRequest req, HttpServletResponse resp )
             throws IOException {
-        byte[] outBytes;
+        final String origin = req.getHeader( ORIGIN_KEY );
+        String reqCoding = req.getHeader( "Content-Encoding" );
+        if ( ! ContentCoding.isSupported( reqCoding ) ) {
+            resp.setHeader( "Accept-Encoding", ContentCoding.ACCEPTED );
+            resp.sendError( HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE );
+            return;
+        }
+        if ( req.getContentLength() > MAX_BODY_BYTES ) {
+            resp.sendError( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE );
+            return;
+        }
+        final String coding =
+            ContentCoding.chooseCoding( req.getHeader( "Accept-Encoding" ) );
+
+        // Decode the request.
+        final XmlRpcCall call;
+        final SampXmlRpcHandler handler;
         try {
-            outBytes = getResponseBytes( req );
+            call = parseCall( req, reqCoding );
+            handler = getHandler( call.getMethodName() );
+            if ( handler == null ) {
+                throw new IllegalArgumentException( "No such method "
+                                                  + call.getMethodName() );
+            }
+        }
+        catch ( BodyTooLargeException e ) {
+            resp.sendError( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE );
+            return;
         }
         catch ( Exception e ) {
-            outBytes = InternalServer.getFaultBytes( e );
+            writeFault( resp, origin, e );
+            return;
         }
-        resp.setStatus( HttpServletResponse.SC_OK );
-        resp.setContentLength( outBytes.length );
-        resp.setContentType( "text/xml" );
-        String origin = req.getHeader( ORIGIN_KEY );
-        if ( origin != null && isAuthorizedCorsOrigin( origin ) ) {
-            resp.setHeader( ALLOW_ORIGIN_KEY, origin );
+
+        // If possible, suspend the request and write the response
+        // when the result is available.  The completion may be called
+        // on the relay's timer thread, so the (blocking) write is handed
+        // to a container thread rather than done there.
+        if ( handler instanceof AsyncXmlRpcHandler &&
+             asyncSupport_ != null && asyncSupport_.isAsyncSupported( req ) ) {
+            final Object asyncContext = asyncSupport_.startAsync( req );
+            final HttpServletResponse aresp =
+                asyncSupport_.getResponse( asyncContext );
+            ((AsyncXmlRpcHandler) handler)
+           .handleCallAsync( call.getMethodName(), call.getParams(), req,
+                             new AsyncXmlRpcHandler.Completion() {
+                public void completed( final Object result ) {
+                    asyncSupport_.start( asyncContext, new Runnable() {
+                        public void run() {
+                            try {
+                                writeResult( aresp, origin, coding, result );
+                            }
+                            catch ( IOException e ) {
+                                logger_.log( Level.INFO,
+                                             "Response write failed", e );
+                            }
+                            finally {
+                                asyncSupport_.complete( asyncContext );
+                            }
+                        }
+                    } );
+                }
+                public void failed( final Throwable error ) {
+                    asyncSupport_.start( asyncContext, new Runnable() {
+                        public void run() {
+                            try {
+                                writeFault( aresp, origin, error );
+                            }
+                            catch ( IOException e ) {
+                                logger_.log( Level.INFO,
+                                             "Response write failed", e );
+                            }
+                            finally {
+                                asyncSupport_.complete( asyncContext );
+                            }
+                        }
+                    } );
+                }
+            } );
+        }
+
+        // Otherwise, block until it's done.
+        else {
+            Object result;
+            try {
+                result = handler.handleCall( call.getMethodName(),
+                                             call.getParams(), req );
+            }
+            catch ( Exception e ) {
+                writeFault( resp, origin, e );
+                return;
+            }
+            writeResult( resp, origin, coding, result );
+        }
+    }
+
+    @Override
+    protected void doPut( HttpServletRequest req, HttpServletResponse resp )
+            throws IOException {
+        String resourceTag =
+            ResourceRelay.getResourceTag( req.getQueryString() );
+        if ( resourceTag == null ) {
+            resp.sendError( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
+            return;
+        }
+        String lengHdr = req.getHeader( "Content-Length" );
+        long leng;
+        try {
+            leng = lengHdr == null ? -1 : Long.parseLong( lengHdr.trim() );
+        }
+        catch ( NumberFormatException e ) {
+            resp.sendError( HttpServletResponse.SC_BAD_REQUEST );
+            return;
+        }
+        try {
+            resources_.upload( resourceTag, reqFormat_.getHostName( req ),
+                               req.getContentType(), leng,
+                               req.getInputStream() );
+            resp.setStatus( HttpServletResponse.SC_NO_CONTENT );
+        }
+        catch ( ResourceRelay.ResourceException e ) {
+            resp.sendError( e.getStatus(), e.getMessage() );
+        }
+        catch ( IOException e ) {
+            logger_.log( Level.INFO, "Resource upload failed", e );
+            resp.sendError( HttpServletResponse.SC_BAD_GATEWAY,
+                            "Transfer failed" );
         }
-        OutputStream out = resp.getOutputStream();
-        out.write( outBytes );
-        out.flush();
     }
 
     @Override
@@ -141,7 +324,8 @@ public class RelayServlet extends HttpServlet {
              reqMethod != null ) {
             resp.setHeader( ALLOW_ORIGIN_KEY, origin );
             resp.setHeader( ALLOW_METHOD_KEY, reqMethod );
-            resp.setHeader( ALLOW_HEADERS_KEY, "Content-Type" );
+            resp.setHeader( ALLOW_HEADERS_KEY, "Content-Type, Content-Encoding"
+                                             + ", If-None-Match" );
         }
     }
 
@@ -161,26 +345,190 @@ public class RelayServlet extends HttpServlet {
     }
 
     /**
-     * This method does the work for handling an XML-RPC request and
-     * generating a non-error response.  It turns an HTTP request into
-     * the content of an HTTP response.
+     * Serves a resource download by waiting for the corresponding upload
+     * and passing on its content, or from the cache if the content
+     * is already held there.
+     * If the transfer fails once the response has been committed,
+     * the exception is rethrown so that the container aborts the
+     * response rather than completing it normally.
+     *
+     * @param  req  request
+     * @param  resp  response
+     * @param  resourceTag  call tag identifying the transfer
+     */
+    private void downloadResource( HttpServletRequest req,
+                                   HttpServletResponse resp,
+                                   String resourceTag )
+            throws IOException {
+        String origin = req.getHeader( ORIGIN_KEY );
+        ResourceRelay.Download download;
+        try {
+            download = resources_.download( resourceTag,
+                                            reqFormat_.getHostName( req ) );
+        }
+        catch ( ResourceRelay.ResourceException e ) {
+            resp.sendError( e.getStatus(), e.getMessage() );
+            return;
+        }
+        if ( origin != null && isAuthorizedCorsOrigin( origin ) ) {
+            resp.setHeader( ALLOW_ORIGIN_KEY, origin );
+            resp.setHeader( EXPOSE_HEADERS_KEY, "ETag" );
+        }
+        resp.setHeader( "Cache-Control", "no-cache" );
+        String etag = download.getETag();
+        if ( etag != null ) {
+            resp.setHeader( "ETag", etag );
+            if ( ResourceCache
+                .matchesETag( req.getHeader( "If-None-Match" ), etag ) ) {
+                resp.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                download.cancel();
+                return;
+            }
+        }
+        String contentType = download.getContentType();
+        long contentLength = download.getContentLength();
+        resp.setStatus( HttpServletResponse.SC_OK );
+        resp.setContentType( contentType == null ? "application/octet-stream"
+                                                 : contentType );
+        if ( contentLength >= 0 ) {
+            resp.setHeader( "Content-Length",
+                            Long.toString( contentLength ) );
+        }
+        download.writeContent( resp.getOutputStream() );
+    }
+
+    /**
+     * Writes a successful XML-RPC response to an HTTP response.
+     * If the result is not a legal SAMP value, a fault is written instead.
+     *
+     * @param  resp  response
+     * @param  origin  content of the request Origin header, may be null
+     * @param  coding  content coding acceptable to the client, or null
+     * @param  result  XML-RPC result value
+     */
+    private void writeResult( HttpServletResponse resp, String origin,
+                              String coding, Object result )
+            throws IOException {
+        try {
+            XmlRpcEncoder.writeResult( result,
+                                       new ResponseSink( resp, origin,
+                                                         coding ) );
+        }
+        catch ( DataException e ) {
+            writeFault( resp, origin, e );
+        }
+    }
+
+    /**
+     * Writes an XML-RPC fault response to an HTTP response.
+     *
+     * @param  resp  response
+     * @param  origin  content of the request Origin header, may be null
+     * @param  error   error
+     */
+    private void writeFault( HttpServletResponse resp, String origin,
+                             Throwable error )
+            throws IOException {
+        XmlRpcEncoder.writeFault( error,
+                                  new ResponseSink( resp, origin, null ) );
+    }
+
+    /**
+     * Sets the headers for an XML-RPC response and returns the stream
+     * to which its body should be written.
+     * The response advertises the content codings accepted
+     * for request bodies.
+     *
+     * @param  resp  response
+     * @param  origin  content of the request Origin header, may be null
+     * @param  coding  content coding of body, or null
+     * @param  contentLength  length of body in bytes, or -1 if not known
+     * @return  output stream for body
+     */
+    private OutputStream startResponse( HttpServletResponse resp,
+                                        String origin, String coding,
+                                        int contentLength )
+            throws IOException {
+        resp.setStatus( HttpServletResponse.SC_OK );
+        if ( contentLength >= 0 ) {
+            resp.setContentLength( contentLength );
+        }
+        resp.setContentType( "text/xml" );
+        if ( coding != null ) {
+            resp.setHeader( "Content-Encoding", coding );
+        }
+        resp.setHeader( "Vary", "Accept-Encoding" );
+        resp.setHeader( "Accept-Encoding", ContentCoding.ACCEPTED );
+        if ( origin != null && isAuthorizedCorsOrigin( origin ) ) {
+            resp.setHeader( ALLOW_ORIGIN_KEY, origin );
+        }
+        return resp.getOutputStream();
+    }
+
+    /**
+     * Decodes the XML-RPC call represented by an HTTP request.
+     * The body is read into memory so that parameters which the
+     * relay handlers don't need to examine can be forwarded
+     * without decoding.
      *
      * @param  req  request
-     * @return   byte content for XML response
+     * @param  coding  request Content-Encoding header value, or null
+     * @return   XML-RPC call
      */
-    private byte[] getResponseBytes( HttpServletRequest req ) throws Exception {
-        Document doc = dbFact_.newDocumentBuilder()
-                      .parse( req.getInputStream() );
-        XmlRpcCall call = XmlRpcCall.createCall( doc );
-        String methodName = call.getMethodName();
-        List params = call.getParams();
-        SampXmlRpcHandler handler = getHandler( methodName );
-        if ( handler == null ) {
-            throw new IllegalArgumentException( "No such method "
-                                              + methodName );
-        }
-        Object result = handler.handleCall( methodName, params, req );
-        return InternalServer.getResultBytes( result );
+    private XmlRpcCall parseCall( HttpServletRequest req, String coding )
+            throws Exception {
+        byte[] body = readBody( req );
+        if ( ! ContentCoding.isIdentity( coding ) ) {
+            int wireLeng = body.length;
+            body = ContentCoding.decode( body, 0, wireLeng, coding,
+                                         MAX_BODY_BYTES );
+            metrics_.getCompressionStats().recordIn( wireLeng, body.length );
+        }
+        return XmlRpcDecoder.decodeCall( body, 0, body.length, opaquePolicy_ );
+    }
+
+    /**
+     * Reads the body of an HTTP request.
+     * Bodies longer than {@link #MAX_BODY_BYTES} are refused,
+     * whether or not they declare a Content-Length.
+     * The buffer grows as bytes arrive rather than being sized up front
+     * from the declared length, so that requests which declare a large
+     * body but do not send it cost little memory; stalled requests are
+     * left to the container's read timeout.
+     *
+     * @param  req  request
+     * @return   body content
+     * @throws  BodyTooLargeException  if the body is too long
+     */
+    private static byte[] readBody( HttpServletRequest req )
+            throws IOException {
+        InputStream in = req.getInputStream();
+        int leng = req.getContentLength();
+        if ( leng > MAX_BODY_BYTES ) {
+            throw new BodyTooLargeException();
+        }
+        int limit = leng >= 0 ? leng : MAX_BODY_BYTES;
+        ByteArrayOutputStream bout =
+            new ByteArrayOutputStream( Math.min( limit, 8192 ) );
+        byte[] buf = new byte[ 8192 ];
+        while ( bout.size() < limit ) {
+            int n = in.read( buf, 0,
+                             Math.min( buf.length, limit - bout.size() ) );
+            if ( n < 0 ) {
+                break;
+            }
+            bout.write( buf, 0, n );
+        }
+        if ( leng >= 0 ) {
+            if ( bout.size() < leng ) {
+                throw new EOFException( "Request body shorter than"
+                                      + " Content-Length" );
+            }
+        }
+        else if ( bout.size() == limit && in.read() >= 0 ) {
+            throw new BodyTooLargeException();
+        }
+        return bout.toByteArray();
     }
 
     /**
@@ -200,8 +548,98 @@ public class RelayServlet extends HttpServlet {
         return null;
     }
 
+    /**
+     * Encoder sink which writes to an HTTP response.
+     * If the whole response fits in one buffer, it is sent with a
+     * Content-Length header; otherwise no length is declared,
+     * so that the container streams it using chunked transfer encoding.
+     * If a content coding is given, the response is compressed
+     * on the fly, unless it fits in one buffer and is too small
+     * to be worth it.
+     */
+    private class ResponseSink implements XmlRpcEncoder.Sink {
+        private final HttpServletResponse resp_;
+        private final String origin_;
+        private final String coding_;
+        private OutputStream out_;
+        private ContentCoding.CountingOutputStream wireOut_;
+        private long rawLeng_;
+
+        /**
+         * Constructor.
+         *
+         * @param  resp  response
+         * @param  origin  content of the request Origin header, may be null
+         * @param  coding  content coding acceptable to the client, or null
+         */
+        ResponseSink( HttpServletResponse resp, String origin,
+                      String coding ) {
+            resp_ = resp;
+            origin_ = origin;
+            coding_ = coding;
+        }
+
+        public byte[] acceptSegment( byte[] buf, int length )
+                throws IOException {
+            if ( out_ == null ) {
+                OutputStream out = startResponse( resp_, origin_, coding_, -1 );
+                if ( coding_ == null ) {
+                    out_ = out;
+                }
+                else {
+                    wireOut_ = new ContentCoding.CountingOutputStream( out );
+                    out_ = ContentCoding.createEncoder( wireOut_, coding_ );
+                }
+            }
+            out_.write( buf, 0, length );
+            rawLeng_ += length;
+            return buf;
+        }
+
+        public void acceptLast( byte[] buf, int length ) throws IOException {
+            try {
+                if ( out_ == null ) {
+                    if ( coding_ != null &&
+                         length >= ContentCoding.MIN_COMPRESS_BYTES ) {
+                        byte[] encoded =
+                            ContentCoding.encode( buf, 0, length, coding_ );
+                        metrics_.getCompressionStats()
+                                .recordOut( length, encoded.length );
+                        OutputStream out =
+                            startResponse( resp_, origin_, coding_,
+                                           encoded.length );
+                        out.write( encoded );
+                        out.flush();
+                    }
+                    else {
+                        OutputStream out =
+                            startResponse( resp_, origin_, null, length );
+                        out.write( buf, 0, length );
+                        out.flush();
+                    }
+                }
+                else {
+                    out_.write( buf, 0, length );
+                    rawLeng_ += length;
+                    if ( wireOut_ != null ) {
+                        out_.close();
+                        metrics_.getCompressionStats()
+                                .recordOut( rawLeng_, wireOut_.getCount() );
+                    }
+                    else {
+                        out_.flush();
+                    }
+                }
+            }
+            finally {
+                XmlRpcEncoder.releaseBuffer( buf );
+            }
+        }
+    }
+
     /**
      * HttpRequestFormat implementation for servlet framework.
+     * Host names are numeric identifiers from {@link HostIdentity}.
      */
     private static class ServletHttpRequestFormat implements HttpRequestFormat {
 
@@ -211,13 +649,16 @@ public class RelayServlet extends HttpServlet {
                 // We need to return the host name for the host at which
                 // the XML-RPC request originated.  Pull it out from
                 // the incoming HttpServletRequest object.
-                // That sounds OK, but there may be a problem -
-                // if the request has been through an HTTP proxy,
+                // If the request has been through an HTTP proxy,
                 // this address might be the wrong one
-                // (see ServletRequest.getRemoteAddr javadocs).
-                // So, maybe we need to identify originating calls by
-                // tokens explicitly inserted by clients instead.  Hmm.
-                return ((HttpServletRequest) reqObj).getRemoteAddr();
+                // (see ServletRequest.getRemoteAddr javadocs);
+                // HostIdentity uses the X-Forwarded-For header instead
+                // if the proxy has been configured as trusted.
+                HttpServletRequest req = (HttpServletRequest) reqObj;
+                return HostIdentity.getInstance()
+                      .getIdentity( req.getRemoteAddr(),
+                                    req.getHeader( HostIdentity
+                                                  .FORWARDED_FOR_HEADER ) );
             }
             else {
                 return null;
@@ -247,13 +688,188 @@ public class RelayServlet extends HttpServlet {
         }
         public void contextInitialized( ServletContextEvent evt ) {
             ServletContext context = evt.getServletContext();
-            context.setAttribute( RELAY_ATTNAME,
-                                  new XmlRpcRelay( reqFormat_,
-                                                   checkHostnames_ ) );
-            context.setAttribute( DBFACT_ATTNAME,
-                                  DocumentBuilderFactory.newInstance() );
+            XmlRpcRelay relay =
+                new XmlRpcRelay( reqFormat_, checkHostnames_, true );
+            String cacheBytes = context.getInitParameter( CACHE_BYTES_PARAM );
+            if ( cacheBytes != null ) {
+                String cacheDir = context.getInitParameter( CACHE_DIR_PARAM );
+                String diskBytes =
+                    context.getInitParameter( CACHE_DISK_BYTES_PARAM );
+                try {
+                    relay.getResources()
+                         .setCache( new ResourceCache(
+                              Long.parseLong( cacheBytes.trim() ),
+                              cacheDir == null ? null : new File( cacheDir ),
+                              diskBytes == null
+                                  ? 0
+                                  : Long.parseLong( diskBytes.trim() ) ) );
+                }
+                catch ( Exception e ) {
+                    logger_.log( Level.WARNING,
+                                 "Resource cache not configured", e );
+                }
+            }
+            String appName = context.getServletContextName();
+            try {
+                relay.getMetrics()
+                     .registerMBean( ObjectName.quote( appName == null
+                                                     ? "servlet"
+                                                     : appName ) );
+            }
+            catch ( Exception e ) {
+                logger_.log( Level.WARNING, "Relay MBean not registered", e );
+            }
+            context.setAttribute( RELAY_ATTNAME, relay );
         }
         public void contextDestroyed( ServletContextEvent evt ) {
+            Object relayObj =
+                evt.getServletContext().getAttribute( RELAY_ATTNAME );
+            if ( relayObj instanceof XmlRpcRelay ) {
+                ((XmlRpcRelay) relayObj).close();
+            }
+        }
+    }
+
+    /**
+     * Provides access to Servlet 3.0 asynchronous processing.
+     * This class is compiled against the Servlet 2.x API, so the
+     * relevant methods are invoked reflectively; if they are not
+     * present at runtime, no instance is available.
+     */
+    private static class AsyncSupport {
+        private static final String ASYNC_CONTEXT_CLASS =
+            "javax.servlet.AsyncContext";
+        private final Method isAsyncSupportedMethod_;
+        private final Method startAsyncMethod_;
+        private final Method setTimeoutMethod_;
+        private final Method getResponseMethod_;
+        private final Method completeMethod_;
+        private final Method startMethod_;
+
+        /**
+         * Constructor.
+         *
+         * @param  ctxClazz  javax.servlet.AsyncContext class
+         */
+        private AsyncSupport( Class<?> ctxClazz ) throws NoSuchMethodException {
+            isAsyncSupportedMethod_ =
+                ServletRequest.class.getMethod( "isAsyncSupported" );
+            startAsyncMethod_ = ServletRequest.class.getMethod( "startAsync" );
+            setTimeoutMethod_ = ctxClazz.getMethod( "setTimeout", long.class );
+            getResponseMethod_ = ctxClazz.getMethod( "getResponse" );
+            completeMethod_ = ctxClazz.getMethod( "complete" );
+            startMethod_ = ctxClazz.getMethod( "start", Runnable.class );
+        }
+
+        /**
+         * Indicates whether a given request may be put into
+         * asynchronous mode.
+         *
+         * @param  req  request
+         * @return  true iff startAsync may be called
+         */
+        boolean isAsyncSupported( ServletRequest req ) {
+            return Boolean.TRUE.equals( invoke( isAsyncSupportedMethod_,
+                                                req ) );
+        }
+
+        /**
+         * Puts a request into asynchronous mode with no container timeout;
+         * the relay is responsible for completing every call.
+         *
+         * @param  req  request
+         * @return  AsyncContext object
+         */
+        Object startAsync( ServletRequest req ) {
+            Object ctx = invoke( startAsyncMethod_, req );
+            invoke( setTimeoutMethod_, ctx, Long.valueOf( 0L ) );
+            return ctx;
+        }
+
+        /**
+         * Returns the response object associated with an AsyncContext.
+         *
+         * @param  ctx  AsyncContext object
+         * @return  HTTP response
+         */
+        HttpServletResponse getResponse( Object ctx ) {
+            return (HttpServletResponse) invoke( getResponseMethod_, ctx );
+        }
+
+        /**
+         * Runs a task on a container-managed thread on behalf of
+         * an asynchronous request.
+         *
+         * @param  ctx  AsyncContext object
+         * @param  task  task to run
+         */
+        void start( Object ctx, Runnable task ) {
+            invoke( startMethod_, ctx, task );
+        }
+
+        /**
+         * Completes asynchronous processing of a request.
+         *
+         * @param  ctx  AsyncContext object
+         */
+        void complete( Object ctx ) {
+            invoke( completeMethod_, ctx );
+        }
+
+        /**
+         * Invokes a method, rethrowing any exceptions unchecked.
+         *
+         * @param  method  method
+         * @param  target  target object
+         * @param  args   method arguments
+         * @return   method return value
+         */
+        private static Object invoke( Method method, Object target,
+                                      Object... args ) {
+            try {
+                return method.invoke( target, args );
+            }
+            catch ( IllegalAccessException e ) {
+                throw new IllegalStateException( e );
+            }
+            catch ( InvocationTargetException e ) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException
+                    ? (RuntimeException) cause
+                    : new IllegalStateException( cause );
+            }
+        }
+
+        /**
+         * Returns an instance of this class if the runtime servlet API
+         * supports asynchronous processing.
+         *
+         * @return  instance, or null
+         */
+        static AsyncSupport createInstance() {
+            try {
+                return new AsyncSupport( Class.forName( ASYNC_CONTEXT_CLASS ) );
+            }
+            catch ( ClassNotFoundException e ) {
+                return null;
+            }
+            catch ( NoSuchMethodException e ) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Signals that a request body exceeds {@link #MAX_BODY_BYTES}.
+     */
+    private static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor.
+         */
+        BodyTooLargeException() {
+            super( "Request body too large" );
         }
     }
 }
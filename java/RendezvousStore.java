@@ -0,0 +1,354 @@
+package org.astrogrid.samp.tls;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Concurrent rendezvous point at which a value placed under a key
+ * by one party can be collected by another.
+ * It has the same contract as {@link BlockingStore}, but rather than
+ * guarding a single map with a single monitor, each key gets its own
+ * slot with its own completion handles.
+ * Arrival or collection of an entry therefore only wakes up threads
+ * that are interested in that key, and unrelated keys do not contend
+ * for any lock.
+ *
+ * <p>The general expectation is that a given key will be placed into
+ * the store once {@link #putNew}, and removed once {@link #take},
+ * but those calls may be received in any order.
+ * Non-blocking variants {@link #takeAsync} and {@link #removeUntakenAsync}
+ * are also provided; these use a {@link TimingWheel} rather than
+ * a waiting thread to implement their timeouts.
+ * Each taker has its own deadline; a taker that gives up does not
+ * affect others waiting for the same key, and the key's slot is only
+ * discarded when no takers remain and no value has been placed.
+ *
+ * @param  <K>  key type
+ * @param  <V>  value type
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RendezvousStore<K,V> {
+
+    private final ConcurrentMap<K,Slot<V>> slotMap_;
+    private final TimingWheel timer_;
+
+    /**
+     * Constructor.
+     *
+     * @param  timer  timer used for timeouts of asynchronous requests
+     */
+    public RendezvousStore( TimingWheel timer ) {
+        slotMap_ = new ConcurrentHashMap<K,Slot<V>>();
+        timer_ = timer;
+    }
+
+    /**
+     * Adds a new entry to the store, if no entry under the given key is
+     * currently present.  If an entry for the given key is present,
+     * the store is not changed.
+     *
+     * @param   key  key
+     * @param   value   new value to associate with <code>key</code>,
+     *                  not null
+     * @return   true if the entry was added,
+     *           false if not (because an entry for that key already existed)
+     */
+    public boolean putNew( K key, V value ) {
+        while ( true ) {
+            Slot<V> slot = getSlot( key );
+            boolean isAbandoned;
+            synchronized ( slot ) {
+                isAbandoned = slot.isAbandoned_;
+                if ( ! isAbandoned ) {
+                    if ( slot.isOffered_ ) {
+                        return false;
+                    }
+                    slot.isOffered_ = true;
+                }
+            }
+
+            // Complete outside the lock, since that runs the callbacks
+            // of any asynchronous takers.
+            if ( ! isAbandoned ) {
+                slot.offer_.complete( value );
+                return true;
+            }
+
+            // The slot was abandoned by its last taker just after we
+            // got hold of it; try again with a fresh one.
+            slotMap_.remove( key, slot );
+        }
+    }
+
+    /**
+     * Blocks until an entry with the given key is available, then returns it.
+     *
+     * @param  key  key
+     * @param  waitMillis  maximum number of milliseconds to block for
+     * @return   value associated with <code>key</code> if it is available at
+     *           call time or becomes available within the specified wait time,
+     *           otherwise null
+     */
+    public V take( K key, long waitMillis ) throws InterruptedException {
+        Slot<V> slot = addTaker( key );
+        V value;
+        try {
+            value = slot.offer_.get( Math.max( waitMillis, 0 ),
+                                     TimeUnit.MILLISECONDS );
+        }
+        catch ( TimeoutException e ) {
+            value = null;
+        }
+        catch ( ExecutionException e ) {
+            throw new AssertionError( e );
+        }
+        catch ( InterruptedException e ) {
+            removeTaker( key, slot );
+            throw e;
+        }
+
+        // No value turned up in time; withdraw interest in the key,
+        // unless a value arrived in the meantime.
+        if ( value == null ) {
+            synchronized ( slot ) {
+                if ( ! slot.isOffered_ ) {
+                    removeTaker( key, slot );
+                    return null;
+                }
+            }
+            value = slot.offer_.join();
+        }
+        return claim( key, slot, value );
+    }
+
+    /**
+     * Takes an entry with the given key if it is currently available,
+     * without waiting.
+     *
+     * @param  key  key
+     * @return   value associated with <code>key</code>, or null if it
+     *           is not currently present
+     */
+    public V takeNow( K key ) {
+        Slot<V> slot = slotMap_.get( key );
+        if ( slot == null ) {
+            return null;
+        }
+        return claim( key, slot, slot.offer_.getNow( null ) );
+    }
+
+    /**
+     * Blocks for as long as a specified key remains in the store,
+     * and then returns.  If the key is still in the store by the end of
+     * the specified timeout period, it is removed.
+     * On exit, the key will be absent from the store.
+     *
+     * @param  key  key
+     * @param  waitMillis  maximum number of milliseconds to block for
+     * @return   true iff this method removed the given entry, because
+     *           it had not been taken within the given timeout
+     */
+    public boolean removeUntaken( K key, long waitMillis )
+            throws InterruptedException {
+        Slot<V> slot = slotMap_.get( key );
+        if ( slot == null || ! slot.offer_.isDone() ) {
+            return false;
+        }
+        try {
+            slot.claim_.get( Math.max( waitMillis, 0 ), TimeUnit.MILLISECONDS );
+            return false;
+        }
+        catch ( TimeoutException e ) {
+            if ( slot.claim_.complete( Boolean.FALSE ) ) {
+                slotMap_.remove( key, slot );
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
+        catch ( ExecutionException e ) {
+            throw new AssertionError( e );
+        }
+    }
+
+    /**
+     * Non-blocking version of {@link #take}.
+     * The returned future completes with the value associated with
+     * <code>key</code> if it is available at call time or becomes
+     * available within the specified wait time, otherwise with null.
+     *
+     * @param  key  key
+     * @param  waitMillis  maximum number of milliseconds to wait for
+     * @return   future value
+     */
+    public CompletableFuture<V> takeAsync( final K key, long waitMillis ) {
+        final Slot<V> slot = addTaker( key );
+        final CompletableFuture<V> result = new CompletableFuture<V>();
+
+        // Set by whichever of the timeout and the offer gets in first.
+        final AtomicBoolean isDecided = new AtomicBoolean();
+        final TimingWheel.Timeout timeout =
+            timer_.schedule( new Runnable() {
+                public void run() {
+                    synchronized ( slot ) {
+                        if ( slot.isOffered_ ||
+                             ! isDecided.compareAndSet( false, true ) ) {
+                            return;
+                        }
+                        removeTaker( key, slot );
+                    }
+                    result.complete( null );
+                }
+            }, waitMillis );
+        slot.offer_.whenComplete( new BiConsumer<V,Throwable>() {
+            public void accept( V value, Throwable error ) {
+                if ( isDecided.compareAndSet( false, true ) ) {
+                    timeout.cancel();
+                    result.complete( claim( key, slot, value ) );
+                }
+            }
+        } );
+        return result;
+    }
+
+    /**
+     * Non-blocking version of {@link #removeUntaken}.
+     * The returned future completes when the entry has been taken,
+     * or when the specified timeout has elapsed, whichever is sooner.
+     * In the latter case the entry is removed from the store.
+     *
+     * @param  key  key
+     * @param  waitMillis  maximum number of milliseconds to wait for
+     * @return   future which completes with true iff the given entry
+     *           was removed because it had not been taken within
+     *           the given timeout
+     */
+    public CompletableFuture<Boolean> removeUntakenAsync( final K key,
+                                                          long waitMillis ) {
+        final Slot<V> slot = slotMap_.get( key );
+        if ( slot == null || ! slot.offer_.isDone() ) {
+            return CompletableFuture.completedFuture( Boolean.FALSE );
+        }
+        final CompletableFuture<Boolean> result =
+            new CompletableFuture<Boolean>();
+        final TimingWheel.Timeout timeout =
+            timer_.schedule( new Runnable() {
+                public void run() {
+                    if ( slot.claim_.complete( Boolean.FALSE ) ) {
+                        slotMap_.remove( key, slot );
+                    }
+                }
+            }, waitMillis );
+        slot.claim_.whenComplete( new BiConsumer<Boolean,Throwable>() {
+            public void accept( Boolean isTaken, Throwable error ) {
+                timeout.cancel();
+                result.complete( Boolean.valueOf( ! isTaken.booleanValue() ) );
+            }
+        } );
+        return result;
+    }
+
+    /**
+     * Returns the slot currently associated with a given key,
+     * creating and installing a new one if necessary.
+     *
+     * @param  key  key
+     * @return   slot, not null
+     */
+    private Slot<V> getSlot( K key ) {
+        Slot<V> slot = slotMap_.get( key );
+        if ( slot == null ) {
+            Slot<V> slot1 = new Slot<V>();
+            slot = slotMap_.putIfAbsent( key, slot1 );
+            if ( slot == null ) {
+                slot = slot1;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot for a given key, registering a new taker with it.
+     *
+     * @param  key  key
+     * @return   slot, not abandoned
+     */
+    private Slot<V> addTaker( K key ) {
+        while ( true ) {
+            Slot<V> slot = getSlot( key );
+            synchronized ( slot ) {
+                if ( ! slot.isAbandoned_ ) {
+                    slot.nTakers_++;
+                    return slot;
+                }
+            }
+            slotMap_.remove( key, slot );
+        }
+    }
+
+    /**
+     * Unregisters a taker that has given up waiting for a slot.
+     * If it was the last one, and no value has been offered,
+     * the slot is abandoned and removed from the store.
+     * Must be called with the slot's lock held.
+     *
+     * @param  key  key
+     * @param  slot  slot associated with key
+     */
+    private void removeTaker( K key, Slot<V> slot ) {
+        if ( --slot.nTakers_ == 0 && ! slot.isOffered_ ) {
+            slot.isAbandoned_ = true;
+            slotMap_.remove( key, slot );
+        }
+    }
+
+    /**
+     * Claims the value offered for a slot, unless the submitter has
+     * already withdrawn it or another taker has beaten us to it.
+     *
+     * @param  key  key
+     * @param  slot  slot associated with key
+     * @param  value  value offered, or null
+     * @return  value if claimed, otherwise null
+     */
+    private V claim( K key, Slot<V> slot, V value ) {
+        if ( value != null && slot.claim_.complete( Boolean.TRUE ) ) {
+            slotMap_.remove( key, slot );
+            return value;
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Holds the completion state for a single key.
+     * The offer future is completed with the value when it is placed
+     * in the store.
+     * The claim future is completed with TRUE when the value is taken,
+     * or with FALSE if the submitter withdraws it untaken.
+     * The taker count and the offered and abandoned flags are guarded
+     * by the slot's lock; a slot is only abandoned if no offer has
+     * been made, and no offer is made to an abandoned slot.
+     */
+    private static class Slot<V> {
+        final CompletableFuture<V> offer_;
+        final CompletableFuture<Boolean> claim_;
+        int nTakers_;
+        boolean isOffered_;
+        boolean isAbandoned_;
+        Slot() {
+            offer_ = new CompletableFuture<V>();
+            claim_ = new CompletableFuture<Boolean>();
+        }
+    }
+}
@@ -0,0 +1,639 @@
+package org.astrogrid.samp.tls;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relay-side cache of resource relay content, so that a resource
+ * loaded repeatedly by web applications need only be uploaded once.
+ *
+ * <p>Content is stored under its SHA-256 digest, so that identical
+ * content from different sources is held only once.
+ * Separately, each source key maps to the digest of the content
+ * last stored for it.  A source key is supplied by the hub and
+ * identifies both the source URL and its version
+ * (by ETag or modification time), so a changed resource has a
+ * different key and is never confused with the cached copy.
+ * The digest also serves as a strong ETag for the content.
+ *
+ * <p>The total size of content held in memory is bounded,
+ * and the least recently used entries are evicted first.
+ * If a disk directory is given, entries evicted from memory,
+ * and new ones too large to be held there, are written to files
+ * in it instead, subject to a separate bound.
+ * Content is not retained between runs.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class ResourceCache {
+
+    private final long maxMemBytes_;
+    private final long maxEntryMemBytes_;
+    private final File diskDir_;
+    private final long maxDiskBytes_;
+    private final Map<String,String> sources_;
+    private final LinkedHashMap<String,Entry> memEntries_;
+    private final LinkedHashMap<String,Entry> diskEntries_;
+    private long memBytes_;
+    private long diskBytes_;
+    private long nHit_;
+    private long nMiss_;
+    private long nStored_;
+    private long nEvicted_;
+
+    /** Maximum number of source keys remembered. */
+    public static final int MAX_SOURCES = 4096;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String ENTRY_SUFFIX = ".rsc";
+    private static final String PART_SUFFIX = ".part";
+    private static final int WRITE_BUFSIZ = 64 * 1024;
+    private static final char[] HEX_DIGITS =
+        "0123456789abcdef".toCharArray();
+    private static final Logger logger_ =
+        Logger.getLogger( ResourceCache.class.getName() );
+
+    /**
+     * Constructor.  If a disk directory is given, it is created if
+     * necessary, and any cache files left in it by a previous run
+     * are deleted.
+     *
+     * @param  maxMemBytes  maximum total size of content held in memory
+     * @param  diskDir   directory for disk tier, or null for memory only
+     * @param  maxDiskBytes  maximum total size of content held on disk;
+     *                       ignored if diskDir is null
+     */
+    public ResourceCache( long maxMemBytes, File diskDir, long maxDiskBytes )
+            throws IOException {
+        maxMemBytes_ = maxMemBytes;
+        maxEntryMemBytes_ = maxMemBytes / 4;
+        diskDir_ = diskDir;
+        maxDiskBytes_ = diskDir == null ? 0 : maxDiskBytes;
+        sources_ = new LinkedHashMap<String,String>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String,String> e ) {
+                return size() > MAX_SOURCES;
+            }
+        };
+        memEntries_ = new LinkedHashMap<String,Entry>( 16, 0.75f, true );
+        diskEntries_ = new LinkedHashMap<String,Entry>( 16, 0.75f, true );
+        if ( diskDir != null ) {
+            if ( ! diskDir.isDirectory() && ! diskDir.mkdirs() ) {
+                throw new IOException( "Can't create cache directory "
+                                     + diskDir );
+            }
+            File[] files = diskDir.listFiles();
+            for ( File f : files == null ? new File[ 0 ] : files ) {
+                String name = f.getName();
+                if ( name.endsWith( ENTRY_SUFFIX ) ||
+                     name.endsWith( PART_SUFFIX ) ) {
+                    deleteFile( f );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cached content for a given source key.
+     *
+     * @param  sourceKey  key identifying source and version
+     * @return  cached entry, or null if none
+     */
+    public synchronized Entry get( String sourceKey ) {
+        String digest = sources_.get( sourceKey );
+        Entry entry = null;
+        if ( digest != null ) {
+            entry = memEntries_.get( digest );
+            if ( entry == null ) {
+                entry = diskEntries_.get( digest );
+            }
+            if ( entry == null ) {
+                sources_.remove( sourceKey );
+            }
+        }
+        if ( entry == null ) {
+            nMiss_++;
+        }
+        else {
+            nHit_++;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns an object into which content for a given source key
+     * can be written as it arrives.  Writing never fails;
+     * if the content turns out to be too large, or the disk tier
+     * gives trouble, the writer just declines to store it.
+     *
+     * @param  sourceKey  key identifying source and version
+     * @return  new writer
+     */
+    public Writer createWriter( String sourceKey ) {
+        return new Writer( sourceKey );
+    }
+
+    /**
+     * Returns the number of lookups that found cached content.
+     *
+     * @return  hit count
+     */
+    public synchronized long getHitCount() {
+        return nHit_;
+    }
+
+    /**
+     * Returns the number of lookups that found no cached content.
+     *
+     * @return  miss count
+     */
+    public synchronized long getMissCount() {
+        return nMiss_;
+    }
+
+    /**
+     * Returns the number of distinct content items that have been stored.
+     *
+     * @return  store count
+     */
+    public synchronized long getStoredCount() {
+        return nStored_;
+    }
+
+    /**
+     * Returns the number of content items discarded to respect the
+     * size bounds.
+     *
+     * @return  eviction count
+     */
+    public synchronized long getEvictedCount() {
+        return nEvicted_;
+    }
+
+    /**
+     * Returns the total size of content currently held in memory.
+     *
+     * @return  memory byte count
+     */
+    public synchronized long getMemoryBytes() {
+        return memBytes_;
+    }
+
+    /**
+     * Returns the total size of content currently held on disk.
+     *
+     * @return  disk byte count
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes_;
+    }
+
+    /**
+     * Returns a hexadecimal string representing a byte array.
+     *
+     * @param  bytes  byte array
+     * @return  lower-case hex string, two characters per byte
+     */
+    static String toHex( byte[] bytes ) {
+        char[] chrs = new char[ bytes.length * 2 ];
+        for ( int i = 0; i < bytes.length; i++ ) {
+            chrs[ i * 2 ] = HEX_DIGITS[ ( bytes[ i ] >> 4 ) & 0xf ];
+            chrs[ i * 2 + 1 ] = HEX_DIGITS[ bytes[ i ] & 0xf ];
+        }
+        return new String( chrs );
+    }
+
+    /**
+     * Returns a new SHA-256 message digest.
+     *
+     * @return  digest
+     */
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance( DIGEST_ALGORITHM );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new AssertionError( "No " + DIGEST_ALGORITHM );
+        }
+    }
+
+    /**
+     * Indicates whether the value of an HTTP If-None-Match header
+     * matches a given entity tag.  Weak comparison is used,
+     * as required for If-None-Match.
+     *
+     * @param  ifNoneMatch  header value, or null
+     * @param  etag   entity tag, including quotes
+     * @return  true iff the condition identifies the given tag
+     */
+    public static boolean matchesETag( String ifNoneMatch, String etag ) {
+        if ( ifNoneMatch == null || etag == null ) {
+            return false;
+        }
+        String tag = etag.startsWith( "W/" ) ? etag.substring( 2 ) : etag;
+        for ( String item : ifNoneMatch.split( "," ) ) {
+            String t = item.trim();
+            if ( t.startsWith( "W/" ) ) {
+                t = t.substring( 2 );
+            }
+            if ( "*".equals( t ) || tag.equals( t ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds completed content to this cache.
+     *
+     * @param  sourceKey  source key
+     * @param  entry   new entry
+     * @return  entry now stored for the content, which may be an
+     *          existing one with the same digest
+     */
+    private Entry store( String sourceKey, Entry entry ) {
+        List<Entry> demoted;
+        Entry stored;
+        synchronized ( this ) {
+            String digest = entry.digest_;
+            Entry existing = memEntries_.get( digest );
+            if ( existing == null ) {
+                existing = diskEntries_.get( digest );
+            }
+            if ( existing == null ) {
+                if ( entry.file_ == null ) {
+                    memEntries_.put( digest, entry );
+                    memBytes_ += entry.length_;
+                }
+                else {
+                    diskEntries_.put( digest, entry );
+                    diskBytes_ += entry.length_;
+                }
+                nStored_++;
+                stored = entry;
+            }
+            else {
+                stored = existing;
+            }
+            sources_.put( sourceKey, digest );
+            demoted = trimMemory();
+        }
+        if ( stored != entry && entry.file_ != null ) {
+            deleteFile( entry.file_ );
+        }
+        for ( Entry e : demoted ) {
+            demote( e );
+        }
+        return stored;
+    }
+
+    /**
+     * Removes least recently used entries from memory until the
+     * memory bound is respected.  Must be called with the lock held.
+     *
+     * @return  removed entries that should be written to disk
+     */
+    private List<Entry> trimMemory() {
+        List<Entry> demoted = new ArrayList<Entry>();
+        for ( Iterator<Entry> it = memEntries_.values().iterator();
+              memBytes_ > maxMemBytes_ && it.hasNext(); ) {
+            Entry entry = it.next();
+            it.remove();
+            memBytes_ -= entry.length_;
+            if ( diskDir_ != null && entry.length_ <= maxDiskBytes_ ) {
+                demoted.add( entry );
+            }
+            else {
+                nEvicted_++;
+            }
+        }
+        return demoted;
+    }
+
+    /**
+     * Removes least recently used entries from disk until the
+     * disk bound is respected.  Must be called with the lock held.
+     */
+    private void trimDisk() {
+        for ( Iterator<Entry> it = diskEntries_.values().iterator();
+              diskBytes_ > maxDiskBytes_ && it.hasNext(); ) {
+            Entry entry = it.next();
+            it.remove();
+            diskBytes_ -= entry.length_;
+            nEvicted_++;
+            deleteFile( entry.file_ );
+        }
+    }
+
+    /**
+     * Writes an entry evicted from memory to the disk tier.
+     * The file is written without the lock held.
+     *
+     * @param  entry  memory entry
+     */
+    private void demote( Entry entry ) {
+        File file = new File( diskDir_, entry.digest_ + ENTRY_SUFFIX );
+        try {
+            OutputStream out = new FileOutputStream( file );
+            try {
+                out.write( entry.data_, 0, (int) entry.length_ );
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch ( IOException e ) {
+            logger_.log( Level.WARNING, "Cache disk write failed", e );
+            deleteFile( file );
+            synchronized ( this ) {
+                nEvicted_++;
+            }
+            return;
+        }
+        Entry diskEntry = new Entry( entry.digest_, entry.contentType_,
+                                     entry.length_, null, file );
+        synchronized ( this ) {
+            if ( ! memEntries_.containsKey( entry.digest_ ) &&
+                 ! diskEntries_.containsKey( entry.digest_ ) ) {
+                diskEntries_.put( entry.digest_, diskEntry );
+                diskBytes_ += entry.length_;
+                trimDisk();
+                return;
+            }
+        }
+        deleteFile( file );
+    }
+
+    /**
+     * Deletes a file, logging any failure.
+     *
+     * @param  file  file to delete
+     */
+    private static void deleteFile( File file ) {
+        if ( file.exists() && ! file.delete() ) {
+            logger_.warning( "Failed to delete cache file " + file );
+        }
+    }
+
+    /**
+     * Cached content.  An entry remains usable by holders of it
+     * after it has been evicted, except that the file of an evicted
+     * disk entry may no longer be readable on some platforms.
+     */
+    public static class Entry {
+        private final String digest_;
+        private final String contentType_;
+        private final long length_;
+        private final byte[] data_;
+        private final File file_;
+
+        /**
+         * Constructor.
+         *
+         * @param  digest  hex digest of content
+         * @param  contentType  MIME type, or null
+         * @param  length   content length in bytes
+         * @param  data   array holding content, or null for disk entry
+         * @param  file   file holding content, or null for memory entry
+         */
+        Entry( String digest, String contentType, long length, byte[] data,
+               File file ) {
+            digest_ = digest;
+            contentType_ = contentType;
+            length_ = length;
+            data_ = data;
+            file_ = file;
+        }
+
+        /**
+         * Returns the MIME type of the content.
+         *
+         * @return  content type, or null if unknown
+         */
+        public String getContentType() {
+            return contentType_;
+        }
+
+        /**
+         * Returns the length of the content.
+         *
+         * @return  length in bytes
+         */
+        public long getLength() {
+            return length_;
+        }
+
+        /**
+         * Returns a strong entity tag for the content,
+         * derived from its digest.
+         *
+         * @return  quoted ETag value
+         */
+        public String getETag() {
+            return "\"" + digest_ + "\"";
+        }
+
+        /**
+         * Returns a read-only buffer containing the content.
+         * For disk entries this maps the file, so the content is not
+         * copied onto the heap.
+         *
+         * @return  buffer ready for reading
+         */
+        public ByteBuffer getContent() throws IOException {
+            if ( data_ != null ) {
+                return ByteBuffer.wrap( data_, 0, (int) length_ )
+                                 .asReadOnlyBuffer();
+            }
+            FileInputStream in = new FileInputStream( file_ );
+            try {
+                return in.getChannel()
+                         .map( FileChannel.MapMode.READ_ONLY, 0, length_ );
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Returns a stream supplying the content.
+         *
+         * @return  input stream
+         */
+        public InputStream openStream() throws IOException {
+            return data_ != null
+                 ? new ByteArrayInputStream( data_, 0, (int) length_ )
+                 : new FileInputStream( file_ );
+        }
+    }
+
+    /**
+     * Accumulates content for storage in the cache.
+     * Content is held in memory up to the per-entry memory limit,
+     * which is a quarter of the memory bound, and spills to a file
+     * in the disk tier beyond that if there is one.
+     * Methods are not thread-safe, but may be called from
+     * different threads in sequence.
+     */
+    public class Writer {
+        private final String sourceKey_;
+        private final MessageDigest digest_;
+        private byte[] buf_;
+        private long length_;
+        private File file_;
+        private OutputStream fout_;
+        private boolean failed_;
+
+        /**
+         * Constructor.
+         *
+         * @param  sourceKey  key identifying source and version
+         */
+        Writer( String sourceKey ) {
+            sourceKey_ = sourceKey;
+            digest_ = createDigest();
+            buf_ = new byte[ (int) Math.min( WRITE_BUFSIZ,
+                                             Math.max( maxEntryMemBytes_,
+                                                       0 ) ) ];
+        }
+
+        /**
+         * Adds content.
+         *
+         * @param  b  buffer
+         * @param  off  offset of data in buffer
+         * @param  len  number of bytes
+         */
+        public void write( byte[] b, int off, int len ) {
+            if ( failed_ ) {
+                return;
+            }
+            long leng1 = length_ + len;
+            if ( leng1 > Math.max( maxEntryMemBytes_, maxDiskBytes_ ) ) {
+                abandon();
+                return;
+            }
+            digest_.update( b, off, len );
+            try {
+                if ( fout_ == null && leng1 > maxEntryMemBytes_ ) {
+                    file_ = File.createTempFile( "upload", PART_SUFFIX,
+                                                 diskDir_ );
+                    fout_ = new BufferedOutputStream(
+                                new FileOutputStream( file_ ),
+                                WRITE_BUFSIZ );
+                    fout_.write( buf_, 0, (int) length_ );
+                    buf_ = null;
+                }
+                if ( fout_ != null ) {
+                    fout_.write( b, off, len );
+                }
+                else {
+                    if ( leng1 > buf_.length ) {
+                        byte[] buf1 =
+                            new byte[ (int) Math.min( Math.max( leng1,
+                                                          buf_.length * 2L ),
+                                                      maxEntryMemBytes_ ) ];
+                        System.arraycopy( buf_, 0, buf1, 0, (int) length_ );
+                        buf_ = buf1;
+                    }
+                    System.arraycopy( b, off, buf_, (int) length_, len );
+                }
+                length_ = leng1;
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.WARNING, "Cache spill failed", e );
+                abandon();
+            }
+        }
+
+        /**
+         * Stores the content written so far in the cache.
+         * No further methods should be called after this one.
+         *
+         * @param  contentType  MIME type of content, or null
+         * @return  cached entry, or null if the content could not be
+         *          stored
+         */
+        public Entry commit( String contentType ) {
+            if ( failed_ ) {
+                return null;
+            }
+            if ( fout_ != null ) {
+                try {
+                    fout_.close();
+                }
+                catch ( IOException e ) {
+                    logger_.log( Level.WARNING, "Cache spill failed", e );
+                    abandon();
+                    return null;
+                }
+            }
+            String digest = toHex( digest_.digest() );
+            File file = null;
+            if ( file_ != null ) {
+                file = new File( diskDir_, digest + ENTRY_SUFFIX );
+                if ( file.exists() || ! file_.renameTo( file ) ) {
+                    file = file_;
+                }
+            }
+            byte[] data = null;
+            if ( file == null ) {
+                data = buf_.length - length_ > length_ / 8
+                     ? Arrays.copyOf( buf_, (int) length_ )
+                     : buf_;
+            }
+            Entry entry = new Entry( digest, contentType, length_, data,
+                                     file );
+            failed_ = true;
+            buf_ = null;
+            file_ = null;
+            fout_ = null;
+            Entry stored = store( sourceKey_, entry );
+            synchronized ( ResourceCache.this ) {
+                trimDisk();
+            }
+            return stored;
+        }
+
+        /**
+         * Discards any content written so far.
+         * Further writes are ignored.
+         */
+        public void abandon() {
+            failed_ = true;
+            buf_ = null;
+            if ( fout_ != null ) {
+                try {
+                    fout_.close();
+                }
+                catch ( IOException e ) {
+                    logger_.log( Level.FINE, "Close error", e );
+                }
+                fout_ = null;
+            }
+            if ( file_ != null ) {
+                deleteFile( file_ );
+                file_ = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,779 @@
+package org.astrogrid.samp.tls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Relay-side state for the resource relay, which does for the TLS Profile
+ * what the URL translator does for the Web Profile.
+ *
+ * <p>A web application that wants the content of a URL it can't
+ * read directly, typically a <code>file:</code> or localhost URL
+ * sent to it by a desktop client, makes the call
+ * <code>samp.tlshub.requestResource(callTag, privateKey, url)</code>
+ * in the usual way.  If the hub is prepared to supply the resource,
+ * it returns the relay's resource URL for that call tag,
+ * and once the result has been passed back through the relay
+ * it PUTs the content to that URL.
+ * The web application meanwhile GETs the same URL,
+ * and the relay passes the content from one request to the other
+ * as it arrives, without holding more than a bounded amount of it.
+ *
+ * <p>This class records which call tags have been granted transfers,
+ * checks the requests that arrive for them, and keeps statistics.
+ * Moving the bytes is the job of the HTTP harness.
+ * Harnesses that use a thread per request can use the
+ * {@link #upload upload} and {@link #download download} methods here,
+ * in which the uploading thread writes directly to the downloader's
+ * response, so that flow control is provided by blocking writes;
+ * non-blocking harnesses must pair up the requests and throttle
+ * the upload themselves.
+ *
+ * <p>If a {@link ResourceCache} is installed, relayed content is
+ * also offered to it.  The hub may add a source key identifying
+ * the resource and its version to the resource URL it returns;
+ * if content for that key is already cached when the transfer is
+ * granted, the download is served from the cache straight away,
+ * and the hub's upload is refused with status 412
+ * (Precondition Failed) before its body is sent.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class ResourceRelay {
+
+    private final TimingWheel timer_;
+    private final boolean checkHostnames_;
+    private final ConcurrentMap<String,Grant> grants_;
+    private final RendezvousStore<String,StreamTarget> streamStore_;
+    private final AtomicLong nGranted_;
+    private final AtomicLong nRefused_;
+    private final AtomicLong nCompleted_;
+    private final AtomicLong nFailed_;
+    private final AtomicLong nBytes_;
+    private final AtomicInteger nActive_;
+    private volatile ResourceCache cache_;
+
+    /** Unprefixed name of the hub method that requests a resource. */
+    public static final String REQUEST_METHOD = "requestResource";
+
+    /** Name of the query parameter that identifies a resource transfer. */
+    public static final String RESOURCE_PARAM = "resource";
+
+    /** Name of the query parameter that identifies cacheable content. */
+    public static final String SOURCE_PARAM = "source";
+
+    /** Time for which a granted transfer may be started. */
+    public static final long GRANT_MILLIS = 60 * 1000;
+
+    /** Time for which an upload or download waits for its partner. */
+    public static final long PAIR_MILLIS = 30 * 1000;
+
+    private static final int COPY_BUFSIZ = 64 * 1024;
+    private static final Logger logger_ =
+        Logger.getLogger( ResourceRelay.class.getName() );
+
+    /**
+     * Constructor.
+     *
+     * @param  timer  timer for expiring grants and pairing requests
+     * @param  checkHostnames  if true, uploads and downloads must come
+     *                         from the same host as the resource request
+     */
+    public ResourceRelay( TimingWheel timer, boolean checkHostnames ) {
+        timer_ = timer;
+        checkHostnames_ = checkHostnames;
+        grants_ = new ConcurrentHashMap<String,Grant>();
+        streamStore_ = new RendezvousStore<String,StreamTarget>( timer );
+        nGranted_ = new AtomicLong();
+        nRefused_ = new AtomicLong();
+        nCompleted_ = new AtomicLong();
+        nFailed_ = new AtomicLong();
+        nBytes_ = new AtomicLong();
+        nActive_ = new AtomicInteger();
+    }
+
+    /**
+     * Returns the timer used by this object.
+     *
+     * @return  timer
+     */
+    public TimingWheel getTimer() {
+        return timer_;
+    }
+
+    /**
+     * Installs a cache for relayed content.
+     *
+     * @param  cache  cache, or null for no caching
+     */
+    public void setCache( ResourceCache cache ) {
+        cache_ = cache;
+    }
+
+    /**
+     * Returns the cache for relayed content.
+     *
+     * @return  cache, or null if there is none
+     */
+    public ResourceCache getCache() {
+        return cache_;
+    }
+
+    /**
+     * Permits a single transfer for a given call tag.
+     * Called when a hub has returned a successful result for a
+     * resource request.  The grant expires if the transfer has not
+     * started within {@link #GRANT_MILLIS}.
+     *
+     * @param  callTag  tag of resource request call
+     * @param  hostname  hostname of the resource request submitter,
+     *                   or null if not known
+     * @param  resultUrl  resource URL returned by the hub,
+     *                    or null if not known
+     */
+    void grant( final String callTag, String hostname, String resultUrl ) {
+        String sourceKey = getSourceKey( resultUrl );
+        ResourceCache cache = cache_;
+        String cacheKey = cache == null || sourceKey == null
+                        ? null
+                        : ( hostname == null ? "" : hostname ) + " "
+                          + sourceKey;
+        final Grant grant =
+            new Grant( hostname, cacheKey,
+                       cacheKey == null ? null : cache.get( cacheKey ) );
+        if ( grants_.putIfAbsent( callTag, grant ) == null ) {
+            nGranted_.incrementAndGet();
+            grant.expiry_ = timer_.schedule( new Runnable() {
+                public void run() {
+                    grants_.remove( callTag, grant );
+                }
+            }, GRANT_MILLIS );
+        }
+    }
+
+    /**
+     * Checks that an upload request is permitted.
+     * A given tag may only be uploaded once.
+     *
+     * @param  callTag  call tag
+     * @param  hostname  hostname of requester, or null if not known
+     * @return  writer to which the uploaded content should be copied
+     *          as well as relayed, or null if it is not to be cached
+     * @throws  ResourceException  with status 404 if not permitted,
+     *                             or 412 if the content is cached
+     */
+    public ResourceCache.Writer checkUpload( String callTag,
+                                             String hostname )
+            throws ResourceException {
+        Grant grant = claim( callTag, hostname, true );
+        if ( grant.cached_ != null ) {
+            throw new ResourceException( 412, "Resource already cached" );
+        }
+        ResourceCache cache = cache_;
+        return cache == null || grant.cacheKey_ == null
+             ? null
+             : cache.createWriter( grant.cacheKey_ );
+    }
+
+    /**
+     * Checks that a download request is permitted.
+     * A given tag may only be downloaded once.
+     *
+     * @param  callTag  call tag
+     * @param  hostname  hostname of requester, or null if not known
+     * @return  cached content with which the download should be served,
+     *          or null if it must wait for the upload
+     * @throws  ResourceException  with status 404 if not permitted
+     */
+    public ResourceCache.Entry checkDownload( String callTag,
+                                              String hostname )
+            throws ResourceException {
+        return claim( callTag, hostname, false ).cached_;
+    }
+
+    /**
+     * Indicates whether the content for a given call tag will be served
+     * from the cache.  Unlike {@link #checkUpload checkUpload},
+     * this does not claim the transfer.
+     *
+     * @param  callTag  call tag
+     * @return  true iff an upload for the tag would be refused
+     *          with status 412
+     */
+    public boolean isCached( String callTag ) {
+        Grant grant = callTag == null ? null : grants_.get( callTag );
+        return grant != null && grant.cached_ != null;
+    }
+
+    /**
+     * Records that a transfer has started.
+     */
+    public void transferStarted() {
+        nActive_.incrementAndGet();
+    }
+
+    /**
+     * Records that a transfer has finished.
+     *
+     * @param  nbytes  number of bytes relayed
+     * @param  isSuccess  true iff all the content was relayed
+     */
+    public void transferEnded( long nbytes, boolean isSuccess ) {
+        nActive_.decrementAndGet();
+        nBytes_.addAndGet( nbytes );
+        ( isSuccess ? nCompleted_ : nFailed_ ).incrementAndGet();
+    }
+
+    /**
+     * Relays uploaded content to a download request,
+     * blocking until it has all been written or the transfer fails.
+     * The content is copied a buffer at a time,
+     * so the rate is governed by the downloader.
+     * If the content is cacheable, it is stored in the cache once
+     * the transfer has completed successfully.
+     *
+     * @param  callTag  call tag
+     * @param  hostname  hostname of requester, or null if not known
+     * @param  contentType  MIME type of content, or null
+     * @param  contentLength  length of content in bytes, or -1 if unknown
+     * @param  in   stream supplying content
+     * @return  number of bytes relayed
+     * @throws  ResourceException  if the upload is not permitted,
+     *                             the content is already cached,
+     *                             or no download arrives in time
+     * @throws  IOException  if the transfer fails
+     */
+    public long upload( String callTag, String hostname, String contentType,
+                        long contentLength, InputStream in )
+            throws IOException {
+        ResourceCache.Writer cacheWriter = checkUpload( callTag, hostname );
+        try {
+            StreamTarget target;
+            try {
+                target = streamStore_.take( callTag, PAIR_MILLIS );
+            }
+            catch ( InterruptedException e ) {
+                throw (IOException)
+                      new InterruptedIOException( "Interrupted" )
+                     .initCause( e );
+            }
+            if ( target == null ) {
+                throw new ResourceException( 504, "No download for resource" );
+            }
+            transferStarted();
+            long nbytes = 0;
+            IOException error = null;
+            try {
+                OutputStream out = target.open( contentType, contentLength );
+                byte[] buf = new byte[ COPY_BUFSIZ ];
+                for ( int n; ( n = in.read( buf ) ) >= 0; ) {
+                    out.write( buf, 0, n );
+                    if ( cacheWriter != null ) {
+                        cacheWriter.write( buf, 0, n );
+                    }
+                    nbytes += n;
+                }
+                if ( contentLength >= 0 && nbytes != contentLength ) {
+                    throw new IOException( "Content length mismatch ("
+                                         + nbytes + " != " + contentLength
+                                         + ")" );
+                }
+                out.flush();
+            }
+            catch ( IOException e ) {
+                error = e;
+                throw e;
+            }
+            finally {
+                transferEnded( nbytes, error == null );
+                target.done( error );
+            }
+            if ( cacheWriter != null ) {
+                cacheWriter.commit( contentType );
+                cacheWriter = null;
+            }
+            return nbytes;
+        }
+        finally {
+            if ( cacheWriter != null ) {
+                cacheWriter.abandon();
+            }
+        }
+    }
+
+    /**
+     * Prepares to serve a download request, blocking until its content
+     * is available.  Cached content is available immediately,
+     * otherwise this waits until the corresponding upload has begun.
+     * The caller should then write the response using the
+     * returned object.
+     *
+     * @param  callTag  call tag
+     * @param  hostname  hostname of requester, or null if not known
+     * @return  download ready to be written
+     * @throws  ResourceException  if the download is not permitted
+     *                             or no upload arrives in time
+     * @throws  IOException  if the upload failed before it started
+     */
+    public Download download( String callTag, String hostname )
+            throws IOException {
+        ResourceCache.Entry cached = checkDownload( callTag, hostname );
+        if ( cached != null ) {
+            return new Download( cached, null );
+        }
+        StreamTarget target = new StreamTarget();
+        if ( ! streamStore_.putNew( callTag, target ) ) {
+            throw new ResourceException( 409, "Download already pending" );
+        }
+        try {
+            if ( streamStore_.removeUntaken( callTag, PAIR_MILLIS ) ) {
+                throw new ResourceException( 504, "No upload for resource" );
+            }
+            target.opened_.await();
+        }
+        catch ( InterruptedException e ) {
+            throw (IOException)
+                  new InterruptedIOException( "Interrupted" ).initCause( e );
+        }
+        if ( target.error_ != null ) {
+            throw target.error_;
+        }
+        return new Download( null, target );
+    }
+
+    /**
+     * Returns the number of transfers granted and not yet claimed
+     * or expired.
+     *
+     * @return  pending grant count
+     */
+    public int getGrantCount() {
+        return grants_.size();
+    }
+
+    /**
+     * Returns the number of transfers currently in progress.
+     *
+     * @return  active transfer count
+     */
+    public int getActiveCount() {
+        return nActive_.get();
+    }
+
+    /**
+     * Returns the number of transfers that have completed successfully.
+     *
+     * @return  completed transfer count
+     */
+    public long getCompletedCount() {
+        return nCompleted_.get();
+    }
+
+    /**
+     * Returns the number of transfers that started but failed.
+     *
+     * @return  failed transfer count
+     */
+    public long getFailedCount() {
+        return nFailed_.get();
+    }
+
+    /**
+     * Returns the number of upload and download requests refused.
+     *
+     * @return  refused request count
+     */
+    public long getRefusedCount() {
+        return nRefused_.get();
+    }
+
+    /**
+     * Returns the total number of bytes relayed.
+     *
+     * @return  byte count
+     */
+    public long getByteCount() {
+        return nBytes_.get();
+    }
+
+    /**
+     * Returns the resource transfer URL for a given call at a given relay.
+     *
+     * @param  relayUrl  relay XML-RPC endpoint URL
+     * @param  callTag   tag of resource request call
+     * @param  sourceKey  key identifying the content for caching,
+     *                    or null
+     * @return  URL to which the hub uploads and from which the
+     *          web application downloads
+     */
+    public static String getResourceUrl( String relayUrl, String callTag,
+                                         String sourceKey ) {
+        try {
+            return relayUrl + ( relayUrl.indexOf( '?' ) >= 0 ? '&' : '?' )
+                 + RESOURCE_PARAM + "="
+                 + URLEncoder.encode( callTag, "UTF-8" )
+                 + ( sourceKey == null
+                         ? ""
+                         : "&" + SOURCE_PARAM + "="
+                           + URLEncoder.encode( sourceKey, "UTF-8" ) );
+        }
+        catch ( UnsupportedEncodingException e ) {
+            throw new AssertionError( e );
+        }
+    }
+
+    /**
+     * Extracts the call tag from the URL of a resource transfer request.
+     *
+     * @param  url  request URL, or just its query part
+     * @return  call tag, or null if this is not a resource transfer URL
+     */
+    public static String getResourceTag( String url ) {
+        return getQueryParam( url, RESOURCE_PARAM );
+    }
+
+    /**
+     * Extracts the source key from a resource transfer URL.
+     *
+     * @param  url  resource URL, or just its query part
+     * @return  source key, or null if none is present
+     */
+    public static String getSourceKey( String url ) {
+        return getQueryParam( url, SOURCE_PARAM );
+    }
+
+    /**
+     * Extracts the value of a query parameter from a URL.
+     *
+     * @param  url  URL, or just its query part, or null
+     * @param  name  parameter name
+     * @return  decoded parameter value, or null if absent
+     */
+    private static String getQueryParam( String url, String name ) {
+        if ( url == null ) {
+            return null;
+        }
+        int iq = url.indexOf( '?' );
+        String query = iq >= 0 ? url.substring( iq + 1 ) : url;
+        String key = name + "=";
+        for ( String part : query.split( "&" ) ) {
+            if ( part.startsWith( key ) ) {
+                try {
+                    return URLDecoder.decode( part.substring( key.length() ),
+                                              "UTF-8" );
+                }
+                catch ( UnsupportedEncodingException e ) {
+                    throw new AssertionError( e );
+                }
+                catch ( IllegalArgumentException e ) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Claims one side of a granted transfer.
+     *
+     * @param  callTag  call tag
+     * @param  hostname  hostname of requester, or null if not known
+     * @param  isUpload  true for upload, false for download
+     * @return  claimed grant
+     * @throws  ResourceException  with status 404 if not permitted
+     */
+    private Grant claim( String callTag, String hostname, boolean isUpload )
+            throws ResourceException {
+        String side = isUpload ? "upload" : "download";
+        Grant grant = callTag == null ? null : grants_.get( callTag );
+        String err;
+        if ( grant == null ) {
+            err = "No such resource";
+        }
+        else if ( checkHostnames_ &&
+                  ( hostname == null ||
+                    ! hostname.equals( grant.hostname_ ) ) ) {
+            err = "Hostname mismatch";
+        }
+        else if ( ! grant.claim( isUpload ) ) {
+            err = "Resource " + side + " already claimed";
+        }
+        else {
+            err = null;
+        }
+        if ( err != null ) {
+            nRefused_.incrementAndGet();
+            logger_.info( "Refused resource " + side + " for " + callTag
+                        + " from " + hostname + ": " + err );
+            throw new ResourceException( 404, err );
+        }
+        if ( grant.isClaimed() && grants_.remove( callTag, grant ) ) {
+            TimingWheel.Timeout expiry = grant.expiry_;
+            if ( expiry != null ) {
+                expiry.cancel();
+            }
+        }
+        return grant;
+    }
+
+    /**
+     * IOException indicating that a transfer request is not
+     * acceptable, with a suggested HTTP response status.
+     */
+    public static class ResourceException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int status_;
+
+        /**
+         * Constructor.
+         *
+         * @param  status  HTTP status code
+         * @param  msg   message
+         */
+        ResourceException( int status, String msg ) {
+            super( msg );
+            status_ = status;
+        }
+
+        /**
+         * Returns the HTTP status code that describes this failure.
+         *
+         * @return  HTTP status code
+         */
+        public int getStatus() {
+            return status_;
+        }
+    }
+
+    /**
+     * Permission for a single transfer.
+     */
+    private static class Grant {
+        final String hostname_;
+        final String cacheKey_;
+        final ResourceCache.Entry cached_;
+        volatile TimingWheel.Timeout expiry_;
+        private boolean isUploadClaimed_;
+        private boolean isDownloadClaimed_;
+
+        /**
+         * Constructor.
+         *
+         * @param  hostname  hostname of submitter, or null
+         * @param  cacheKey  key under which content may be cached, or null
+         * @param  cached   content already cached, or null
+         */
+        Grant( String hostname, String cacheKey, ResourceCache.Entry cached ) {
+            hostname_ = hostname;
+            cacheKey_ = cacheKey;
+            cached_ = cached;
+        }
+
+        /**
+         * Claims one side of this grant.
+         *
+         * @param  isUpload  true for upload, false for download
+         * @return  true iff it had not been claimed before
+         */
+        synchronized boolean claim( boolean isUpload ) {
+            boolean wasClaimed = isUpload ? isUploadClaimed_
+                                          : isDownloadClaimed_;
+            if ( isUpload ) {
+                isUploadClaimed_ = true;
+            }
+            else {
+                isDownloadClaimed_ = true;
+            }
+            return ! wasClaimed;
+        }
+
+        /**
+         * Indicates whether both sides of this grant have been claimed.
+         *
+         * @return  true iff fully claimed
+         */
+        synchronized boolean isClaimed() {
+            return isUploadClaimed_ && isDownloadClaimed_;
+        }
+    }
+
+    /**
+     * Download whose content is ready to be written,
+     * as returned by the blocking {@link ResourceRelay#download download}
+     * method.
+     */
+    public static class Download {
+        private final ResourceCache.Entry cached_;
+        private final StreamTarget target_;
+
+        /**
+         * Constructor.  Exactly one of the arguments is non-null.
+         *
+         * @param  cached  cached content
+         * @param  target  upload rendezvous
+         */
+        private Download( ResourceCache.Entry cached, StreamTarget target ) {
+            cached_ = cached;
+            target_ = target;
+        }
+
+        /**
+         * Returns the MIME type of the content.
+         *
+         * @return  content type, or null if unknown
+         */
+        public String getContentType() {
+            return cached_ != null ? cached_.getContentType()
+                                   : target_.contentType_;
+        }
+
+        /**
+         * Returns the length of the content.
+         *
+         * @return  length in bytes, or -1 if unknown
+         */
+        public long getContentLength() {
+            return cached_ != null ? cached_.getLength()
+                                   : target_.contentLength_;
+        }
+
+        /**
+         * Returns the entity tag of the content.  This is only known
+         * for cached content; a client presenting it in an If-None-Match
+         * header may be given a 304 (Not Modified) response.
+         *
+         * @return  ETag value, or null
+         */
+        public String getETag() {
+            return cached_ != null ? cached_.getETag() : null;
+        }
+
+        /**
+         * Writes the content, blocking until it has all been written.
+         * If the content is being relayed, it is written by the
+         * uploading thread.
+         *
+         * @param  out  destination stream
+         * @throws  IOException  if the transfer fails
+         */
+        public void writeContent( OutputStream out ) throws IOException {
+            if ( cached_ != null ) {
+                InputStream in = cached_.openStream();
+                try {
+                    byte[] buf = new byte[ COPY_BUFSIZ ];
+                    for ( int n; ( n = in.read( buf ) ) >= 0; ) {
+                        out.write( buf, 0, n );
+                    }
+                    out.flush();
+                }
+                finally {
+                    in.close();
+                }
+                return;
+            }
+            target_.out_ = out;
+            target_.supplied_.countDown();
+            try {
+                target_.done_.await();
+            }
+            catch ( InterruptedException e ) {
+                throw (IOException)
+                      new InterruptedIOException( "Interrupted" )
+                     .initCause( e );
+            }
+            if ( target_.error_ != null ) {
+                throw target_.error_;
+            }
+        }
+
+        /**
+         * Declines the content without writing it.
+         * Any upload in progress fails.
+         */
+        public void cancel() {
+            if ( target_ != null ) {
+                target_.supplied_.countDown();
+            }
+        }
+    }
+
+    /**
+     * Rendezvous between upload and download threads used by the
+     * blocking transfer methods.
+     */
+    private static class StreamTarget {
+        final CountDownLatch opened_;
+        final CountDownLatch supplied_;
+        final CountDownLatch done_;
+        volatile String contentType_;
+        volatile long contentLength_;
+        volatile OutputStream out_;
+        volatile IOException error_;
+
+        /**
+         * Constructor.
+         */
+        StreamTarget() {
+            opened_ = new CountDownLatch( 1 );
+            supplied_ = new CountDownLatch( 1 );
+            done_ = new CountDownLatch( 1 );
+        }
+
+        /**
+         * Called from the uploading thread to describe the content
+         * and wait for the stream to which it should be written.
+         *
+         * @param  contentType  MIME type of content, or null if unknown
+         * @param  contentLength  length of content in bytes,
+         *                        or -1 if unknown
+         * @return  output stream for content
+         * @throws  IOException  if the downloader does not supply
+         *                       a stream in time
+         */
+        OutputStream open( String contentType, long contentLength )
+                throws IOException {
+            contentType_ = contentType;
+            contentLength_ = contentLength;
+            opened_.countDown();
+            boolean isSupplied;
+            try {
+                isSupplied = supplied_.await( PAIR_MILLIS,
+                                              TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException e ) {
+                throw (IOException)
+                      new InterruptedIOException( "Interrupted" )
+                     .initCause( e );
+            }
+            OutputStream out = out_;
+            if ( ! isSupplied || out == null ) {
+                throw new IOException( "Download not accepted" );
+            }
+            return out;
+        }
+
+        /**
+         * Records that the transfer has finished.
+         *
+         * @param  error  failure, or null for success
+         */
+        void done( IOException error ) {
+            error_ = error;
+            opened_.countDown();
+            done_.countDown();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.astrogrid.samp.tls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hub-side half of a resource relay transfer.
+ * It opens a local resource that a web application has asked for
+ * with <code>samp.tlshub.requestResource</code>, and once the successful
+ * result of that call has been accepted by the relay,
+ * streams the content up to the relay's resource URL
+ * with a chunked PUT request.
+ *
+ * <p>If the resource has a validator, that is an ETag or a modification
+ * time, a source key derived from the URL and validator is included
+ * in the resource URL, so that a relay with a {@link ResourceCache}
+ * can recognise content it already holds.  The upload is sent with
+ * <code>Expect: 100-continue</code>, so that a relay which already
+ * has the content can refuse it with status 412 before the body is sent;
+ * that counts as success.  A relay that cannot accept chunked uploads
+ * and refuses with status 411 is sent a fixed-length upload instead,
+ * if the resource length is known.
+ *
+ * <p>The resource is opened at construction time, so that its
+ * availability can be reported in the call result.
+ * Either {@link #run} or {@link #cancel} should be called afterwards
+ * to release it.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ * @see      ResourceRelay
+ */
+class ResourceUpload implements Runnable {
+
+    private final URL sourceUrl_;
+    private final String sourceKey_;
+    private final URL targetUrl_;
+    private final RelayClientFactory connFactory_;
+    private final URLConnection source_;
+    private final InputStream in_;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String UNKNOWN_TYPE = "content/unknown";
+    private static final Logger logger_ =
+        Logger.getLogger( ResourceUpload.class.getName() );
+
+    /**
+     * Constructor.  Opens the source resource.
+     *
+     * @param  sourceUrl  URL of resource requested by the web application
+     * @param  relayUrl   relay XML-RPC endpoint URL
+     * @param  callTag    tag of the resource request call
+     * @param  connFactory  supplies connections to the relay
+     *                      with suitable TLS configuration,
+     *                      or null to use default connections
+     * @throws  IOException  if the resource is not available
+     */
+    ResourceUpload( URL sourceUrl, URL relayUrl, String callTag,
+                    RelayClientFactory connFactory ) throws IOException {
+        sourceUrl_ = sourceUrl;
+        connFactory_ = connFactory;
+        source_ = sourceUrl.openConnection();
+        in_ = source_.getInputStream();
+        sourceKey_ = createSourceKey( sourceUrl, source_ );
+        targetUrl_ =
+            new URL( ResourceRelay.getResourceUrl( relayUrl.toString(),
+                                                   callTag, sourceKey_ ) );
+    }
+
+    /**
+     * Returns the URL from which the web application can download
+     * the resource.
+     *
+     * @return  relay resource URL
+     */
+    public URL getTargetUrl() {
+        return targetUrl_;
+    }
+
+    /**
+     * Uploads the resource to the relay, logging any failure.
+     */
+    public void run() {
+        try {
+            long nbyte = upload();
+            logger_.info( nbyte < 0
+                          ? "Relay already holds " + sourceUrl_
+                          : "Uploaded " + nbyte + " bytes from " + sourceUrl_
+                          + " to " + targetUrl_ );
+        }
+        catch ( IOException e ) {
+            logger_.warning( "Resource upload failed for " + sourceUrl_
+                           + ": " + e );
+        }
+        finally {
+            cancel();
+        }
+    }
+
+    /**
+     * Releases the source resource without uploading it.
+     */
+    public void cancel() {
+        try {
+            in_.close();
+        }
+        catch ( IOException e ) {
+            logger_.log( Level.FINE, "Close error", e );
+        }
+    }
+
+    /**
+     * Performs the upload.
+     *
+     * @return  number of bytes uploaded, or -1 if the relay
+     *          already had the content
+     */
+    private long upload() throws IOException {
+        HttpURLConnection conn = openConnection();
+        conn.setRequestProperty( "Expect", "100-continue" );
+        conn.setChunkedStreamingMode( CHUNK_SIZE );
+        long nbyte = send( conn );
+        int code = conn.getResponseCode();
+        long leng = source_.getContentLengthLong();
+        if ( nbyte < 0 && code == HttpURLConnection.HTTP_LENGTH_REQUIRED &&
+             leng >= 0 ) {
+            conn = openConnection();
+            conn.setFixedLengthStreamingMode( leng );
+            nbyte = send( conn );
+            code = conn.getResponseCode();
+        }
+        if ( nbyte < 0 && code == HttpURLConnection.HTTP_PRECON_FAILED ) {
+            return -1;
+        }
+        if ( code / 100 != 2 ) {
+            throw new IOException( "Relay refused upload: " + code + " "
+                                 + conn.getResponseMessage() );
+        }
+        return nbyte;
+    }
+
+    /**
+     * Returns a connection for a PUT request to the relay,
+     * with all headers but those governing the body framing.
+     *
+     * @return  unconnected connection
+     */
+    private HttpURLConnection openConnection() throws IOException {
+        HttpURLConnection conn = connFactory_ == null
+                               ? (HttpURLConnection) targetUrl_.openConnection()
+                               : connFactory_.openConnection( targetUrl_ );
+        conn.setDoOutput( true );
+        conn.setUseCaches( false );
+        conn.setRequestMethod( "PUT" );
+        String ctype = source_.getContentType();
+        if ( ctype != null && ! UNKNOWN_TYPE.equals( ctype ) ) {
+            conn.setRequestProperty( "Content-Type", ctype );
+        }
+        return conn;
+    }
+
+    /**
+     * Writes the resource content to a PUT request.
+     * If the relay responds before the body is sent,
+     * which can happen if a 100 Continue response was expected,
+     * nothing is read from the resource.
+     *
+     * @param  conn  connection
+     * @return  number of bytes written, or -1 if the relay responded
+     *          without reading the body
+     */
+    private long send( HttpURLConnection conn ) throws IOException {
+        OutputStream out;
+        try {
+            out = conn.getOutputStream();
+        }
+        catch ( ProtocolException e ) {
+            return -1;
+        }
+        long nbyte = 0;
+        try {
+            byte[] buf = new byte[ CHUNK_SIZE ];
+            for ( int n; ( n = in_.read( buf ) ) >= 0; ) {
+                out.write( buf, 0, n );
+                nbyte += n;
+            }
+        }
+        finally {
+            out.close();
+        }
+        return nbyte;
+    }
+
+    /**
+     * Returns a key identifying the content of an opened resource,
+     * for use by a relay-side cache.  It is a digest of the URL
+     * and a validator, which is the ETag if there is one, or else
+     * the modification time and length.
+     *
+     * @param  url  resource URL
+     * @param  conn  connection to resource, opened for input
+     * @return  source key, or null if the resource has no validator
+     */
+    private static String createSourceKey( URL url, URLConnection conn ) {
+        String validator = conn.getHeaderField( "ETag" );
+        if ( validator == null ) {
+            long modified = conn.getLastModified();
+            if ( modified > 0 ) {
+                validator = Long.toHexString( modified ) + "-"
+                          + Long.toHexString( conn.getContentLengthLong() );
+            }
+        }
+        if ( validator == null ) {
+            return null;
+        }
+        MessageDigest digest = ResourceCache.createDigest();
+        try {
+            digest.update( ( url + "\n" + validator ).getBytes( "UTF-8" ) );
+        }
+        catch ( UnsupportedEncodingException e ) {
+            throw new AssertionError( e );
+        }
+        return ResourceCache.toHex( digest.digest() );
+    }
+}
@@ -1,12 +1,18 @@
 package org.astrogrid.samp.tls;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketAddress;
 import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import org.astrogrid.samp.httpd.DirectoryMapperHandler;
@@ -18,6 +24,15 @@ import org.astrogrid.samp.tls.XmlRpcRelay;
 /**
  * This is a standalone HTTP server that can serve documents available
  * on the JVM's class path and run a TLS-SAMP hub relay.
+ * A GET request to the relay path with the query string
+ * <code>?stats</code> returns the relay statistics as JSON,
+ * and the same statistics are registered as a JMX MBean.
+ *
+ * <p>Resource relay transfers are also served.  Since this server only
+ * reads request bodies with a declared Content-Length, a chunked
+ * upload is refused with status 411 (Length Required), which prompts
+ * the hub to retry with a fixed-length one; the body is read into
+ * memory before it is relayed.
  *
  * @author   Mark Taylor
  * @since    11 Mar 2016
@@ -27,6 +42,7 @@ public class StandaloneServer {
     private static final HttpRequestFormat reqFormat_ =
         new StandaloneHttpRequestFormat();
     private final HttpServer hServer_;
+    private final XmlRpcRelay relay_;
 
     /**
      * Constructor.
@@ -53,17 +69,222 @@ public class StandaloneServer {
         ssock.bind( new InetSocketAddress( port ) );
         hServer_ = new HttpServer( ssock );
         hServer_.setDaemon( false );
+        relay_ = relayPath == null
+               ? null
+               : new XmlRpcRelay( reqFormat_, checkHostnames );
+        XmlRpcRelay relay = relay_;
+
+        // The statistics handler goes first, since the relay path
+        // may be inside the document path.
+        if ( relay != null ) {
+            hServer_.addHandler( createStatsHandler( relayPath,
+                                                     relay.getMetrics() ) );
+            hServer_.addHandler( createResourceHandler( relayPath,
+                                                 relay.getResources() ) );
+            try {
+                relay.getMetrics().registerMBean( "standalone-" + port );
+            }
+            catch ( JMException e ) {
+                Logger.getLogger( getClass().getName() )
+                      .log( Level.WARNING, "Relay MBean not registered", e );
+            }
+        }
         hServer_.addHandler( new DirectoryMapperHandler( localDocBase,
                                                          serverDocPath ) );
-        if ( relayPath != null ) {
+        if ( relay != null ) {
             SampXmlRpcServer xServer =
                     new InternalServer( hServer_, relayPath );
-            XmlRpcRelay relay = new XmlRpcRelay( reqFormat_, checkHostnames );
             xServer.addHandler( relay.getReceiveHandler() );
             xServer.addHandler( relay.getDispenseHandler() );
         }
     }
 
+    /**
+     * Returns an HTTP handler that serves relay statistics as JSON
+     * in response to GET requests for the relay path with the
+     * query string {@link RelayMetrics#STATS_QUERY}.
+     *
+     * @param  relayPath  server endpoint for hub relay
+     * @param  metrics   relay metrics
+     * @return  handler
+     */
+    private static HttpServer.Handler
+            createStatsHandler( final String relayPath,
+                                final RelayMetrics metrics ) {
+        return new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                String url = req.getUrl();
+                if ( ! "GET".equals( req.getMethod() ) ||
+                     ! url.startsWith( relayPath + "?" ) ||
+                     ! RelayMetrics.isStatsRequest( url ) ) {
+                    return null;
+                }
+                return metrics.createJsonResponse();
+            }
+        };
+    }
+
+    /**
+     * Returns an HTTP handler that serves resource relay uploads and
+     * downloads, using the blocking methods of the resource relay.
+     *
+     * @param  relayPath  server endpoint for hub relay
+     * @param  resources  resource relay
+     * @return  handler
+     */
+    private static HttpServer.Handler
+            createResourceHandler( final String relayPath,
+                                   final ResourceRelay resources ) {
+        return new HttpServer.Handler() {
+            public HttpServer.Response serveRequest( HttpServer.Request req ) {
+                String url = req.getUrl();
+                String tag = ResourceRelay.getResourceTag( url );
+                if ( tag == null ||
+                     ! relayPath.equals( url.replaceFirst( "[?#].*", "" ) ) ) {
+                    return null;
+                }
+                String method = req.getMethod();
+                try {
+                    if ( "GET".equals( method ) ) {
+                        return serveDownload( resources, tag, req );
+                    }
+                    else if ( "PUT".equals( method ) ) {
+                        return serveUpload( resources, tag, req );
+                    }
+                    else {
+                        return HttpServer
+                              .create405Response( new String[] { "GET",
+                                                                 "PUT" } );
+                    }
+                }
+                catch ( ResourceRelay.ResourceException e ) {
+                    return HttpServer.createErrorResponse( e.getStatus(),
+                                                           e.getMessage() );
+                }
+                catch ( IOException e ) {
+                    return HttpServer.createErrorResponse( 502,
+                                                           "Transfer failed",
+                                                           e );
+                }
+            }
+        };
+    }
+
+    /**
+     * Serves a resource download.  This blocks until the content is
+     * available, and the returned response writes it.
+     *
+     * @param  resources  resource relay
+     * @param  tag   call tag
+     * @param  req   download request
+     * @return  response
+     */
+    private static HttpServer.Response
+            serveDownload( ResourceRelay resources, String tag,
+                           HttpServer.Request req ) throws IOException {
+        final ResourceRelay.Download download =
+            resources.download( tag, reqFormat_.getHostName( req ) );
+        Map reqHdrs = req.getHeaderMap();
+        Map<String,String> hdrs = new LinkedHashMap<String,String>();
+        String ctype = download.getContentType();
+        hdrs.put( HttpServer.HDR_CONTENT_TYPE,
+                  ctype == null ? "application/octet-stream" : ctype );
+        hdrs.put( "Cache-Control", "no-cache" );
+        String origin = HttpServer.getHeader( reqHdrs, "Origin" );
+        if ( origin != null ) {
+            hdrs.put( "Access-Control-Allow-Origin", origin );
+            hdrs.put( "Access-Control-Expose-Headers", "ETag" );
+        }
+        String etag = download.getETag();
+        if ( etag != null ) {
+            hdrs.put( "ETag", etag );
+            if ( ResourceCache
+                .matchesETag( HttpServer.getHeader( reqHdrs,
+                                                    "If-None-Match" ),
+                              etag ) ) {
+                download.cancel();
+                return createEmptyResponse( 304, "Not Modified", hdrs );
+            }
+        }
+        long leng = download.getContentLength();
+        if ( leng >= 0 ) {
+            hdrs.put( "Content-Length", Long.toString( leng ) );
+        }
+        return new HttpServer.Response( 200, "OK", hdrs ) {
+            public void writeBody( OutputStream out ) throws IOException {
+                download.writeContent( out );
+            }
+        };
+    }
+
+    /**
+     * Serves a resource upload.  This blocks until the content has
+     * been relayed.
+     *
+     * @param  resources  resource relay
+     * @param  tag   call tag
+     * @param  req   upload request
+     * @return  response
+     */
+    private static HttpServer.Response
+            serveUpload( ResourceRelay resources, String tag,
+                         HttpServer.Request req ) throws IOException {
+        Map reqHdrs = req.getHeaderMap();
+
+        // A chunked body has not been read, so it can't be relayed,
+        // but if the content is cached it's not needed.
+        if ( HttpServer.getHeader( reqHdrs, "Transfer-Encoding" ) != null &&
+             ! resources.isCached( tag ) ) {
+            return HttpServer.createErrorResponse( 411, "Length Required" );
+        }
+        byte[] body = req.getBody();
+        if ( body == null ) {
+            body = new byte[ 0 ];
+        }
+        resources.upload( tag, reqFormat_.getHostName( req ),
+                          HttpServer.getHeader( reqHdrs,
+                                                HttpServer.HDR_CONTENT_TYPE ),
+                          body.length, new ByteArrayInputStream( body ) );
+        return createEmptyResponse( 204, "No Content",
+                                    new LinkedHashMap<String,String>() );
+    }
+
+    /**
+     * Returns an HTTP response with no body.
+     *
+     * @param  status  status code
+     * @param  phrase  status phrase
+     * @param  hdrs    headers
+     * @return  response
+     */
+    private static HttpServer.Response
+            createEmptyResponse( int status, String phrase,
+                                 Map<String,String> hdrs ) {
+        return new HttpServer.Response( status, phrase, hdrs ) {
+            public void writeBody( OutputStream out ) {
+            }
+        };
+    }
+
+    /**
+     * Returns the HttpRequestFormat suitable for use with request objects
+     * of type {@link org.astrogrid.samp.httpd.HttpServer.Request}.
+     *
+     * @return  request format
+     */
+    static HttpRequestFormat getRequestFormat() {
+        return reqFormat_;
+    }
+
+    /**
+     * Returns the relay run by this server.
+     *
+     * @return  relay, or null if none is run
+     */
+    public XmlRpcRelay getRelay() {
+        return relay_;
+    }
+
     /**
      * Starts this server running.
      */
@@ -73,17 +294,28 @@ public class StandaloneServer {
 
     /**
      * HttpRequestFormat implementation for JSAMP internal HTTP server.
+     * Host names are numeric identifiers from {@link HostIdentity},
+     * so no reverse DNS lookups are made.
      */
     private static class StandaloneHttpRequestFormat
             implements HttpRequestFormat {
 
         public String getHostName( Object reqObj ) {
             if ( reqObj instanceof HttpServer.Request ) {
-                SocketAddress saddr =
-                    ((HttpServer.Request) reqObj).getRemoteAddress();
+                HttpServer.Request req = (HttpServer.Request) reqObj;
+                SocketAddress saddr = req.getRemoteAddress();
                 if ( saddr instanceof InetSocketAddress ) {
                     InetSocketAddress naddr = (InetSocketAddress) saddr;
-                    return naddr.getHostName();
+                    InetAddress addr = naddr.getAddress();
+                    String fwd =
+                        HttpServer
+                       .getHeader( req.getHeaderMap(),
+                                   HostIdentity.FORWARDED_FOR_HEADER );
+                    return addr == null
+                         ? HostIdentity.getInstance()
+                          .getIdentity( naddr.getHostString(), fwd )
+                         : HostIdentity.getInstance()
+                          .getIdentity( addr, fwd );
                 }
             }
             return null;
@@ -130,6 +362,10 @@ public class StandaloneServer {
                                                         .createServerSocket(),
                                   httpsPort, relayPath,
                                   localDocBase, serverDocPath, checkHostnames );
+
+        // Cache relayed resources in memory.
+        httpsServer.getRelay().getResources()
+                   .setCache( new ResourceCache( 64 * 1024 * 1024, null, 0 ) );
         httpServer.start();
         logger.info( "Resources at http://localhost:" + httpPort
                    + serverDocPath );
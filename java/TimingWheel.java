@@ -0,0 +1,352 @@
+package org.astrogrid.samp.tls;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel for scheduling large numbers of timeouts cheaply.
+ *
+ * <p>A single daemon thread advances round a ring of buckets, one bucket
+ * per tick.  A timeout is placed in the bucket corresponding to its
+ * deadline modulo the wheel size, along with the number of complete
+ * revolutions still to go before it is due, so that timeouts much longer
+ * than one revolution need no more space than short ones.
+ * Scheduling and cancellation are constant-time and lock-free from the
+ * caller's point of view; all bucket manipulation is done by the
+ * wheel thread.  Timeouts fire no earlier than requested,
+ * and typically up to one tick later.
+ *
+ * <p>Tasks are run on the wheel thread, so they should be short and
+ * must not block.  In particular, a task that passes an outcome to an
+ * {@link AsyncXmlRpcHandler.Completion} relies on the completion
+ * itself not blocking.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class TimingWheel {
+
+    private final long tickNanos_;
+    private final Bucket[] wheel_;
+    private final int mask_;
+    private final long startNanos_;
+    private final Queue<Timeout> newTimeouts_;
+    private final Queue<Timeout> cancelledTimeouts_;
+    private final AtomicLong nScheduled_;
+    private final AtomicLong nExpired_;
+    private final AtomicLong nCancelled_;
+    private final Thread thread_;
+    private volatile boolean stopped_;
+    private static final Logger logger_ =
+        Logger.getLogger( TimingWheel.class.getName() );
+
+    /**
+     * Constructor.  The wheel thread is started immediately.
+     *
+     * @param  name  name for wheel thread
+     * @param  tickMillis  duration of one tick in milliseconds;
+     *                     this is the timer resolution
+     * @param  wheelSize  number of buckets in the wheel;
+     *                    must be a power of two
+     */
+    public TimingWheel( String name, long tickMillis, int wheelSize ) {
+        if ( wheelSize <= 0 || ( wheelSize & ( wheelSize - 1 ) ) != 0 ) {
+            throw new IllegalArgumentException( "Wheel size " + wheelSize
+                                              + " not a power of 2" );
+        }
+        if ( tickMillis <= 0 ) {
+            throw new IllegalArgumentException( "Non-positive tick" );
+        }
+        tickNanos_ = TimeUnit.MILLISECONDS.toNanos( tickMillis );
+        wheel_ = new Bucket[ wheelSize ];
+        for ( int i = 0; i < wheelSize; i++ ) {
+            wheel_[ i ] = new Bucket();
+        }
+        mask_ = wheelSize - 1;
+        newTimeouts_ = new ConcurrentLinkedQueue<Timeout>();
+        cancelledTimeouts_ = new ConcurrentLinkedQueue<Timeout>();
+        nScheduled_ = new AtomicLong();
+        nExpired_ = new AtomicLong();
+        nCancelled_ = new AtomicLong();
+        startNanos_ = System.nanoTime();
+        thread_ = new Thread( name ) {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        };
+        thread_.setDaemon( true );
+        thread_.start();
+    }
+
+    /**
+     * Schedules a task to run after a given delay.
+     *
+     * @param  task  task to run on the wheel thread
+     * @param  delayMillis  delay in milliseconds
+     * @return  handle which can be used to cancel the timeout
+     */
+    public Timeout schedule( Runnable task, long delayMillis ) {
+        long deadline = System.nanoTime() - startNanos_
+                      + TimeUnit.MILLISECONDS.toNanos( Math.max( delayMillis,
+                                                                 0 ) );
+        Timeout timeout = new Timeout( task, deadline );
+        nScheduled_.incrementAndGet();
+        newTimeouts_.add( timeout );
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel thread.  Pending timeouts will not fire.
+     */
+    public void stop() {
+        stopped_ = true;
+        thread_.interrupt();
+    }
+
+    /**
+     * Returns the number of timeouts scheduled over the lifetime
+     * of this wheel.
+     *
+     * @return  scheduled count
+     */
+    public long getScheduledCount() {
+        return nScheduled_.get();
+    }
+
+    /**
+     * Returns the number of timeouts which have fired.
+     *
+     * @return  expired count
+     */
+    public long getExpiredCount() {
+        return nExpired_.get();
+    }
+
+    /**
+     * Returns the number of timeouts which were cancelled before firing.
+     *
+     * @return  cancelled count
+     */
+    public long getCancelledCount() {
+        return nCancelled_.get();
+    }
+
+    /**
+     * Returns the number of timeouts which have been scheduled but
+     * have neither fired nor been cancelled.
+     *
+     * @return  pending count
+     */
+    public long getPendingCount() {
+        return nScheduled_.get() - nExpired_.get() - nCancelled_.get();
+    }
+
+    /**
+     * Runs the wheel.  Called from the wheel thread.
+     */
+    private void runWheel() {
+        long tick = 0;
+        while ( ! stopped_ ) {
+            long tickEnd = tickNanos_ * ( tick + 1 );
+            long sleepNanos;
+            while ( ( sleepNanos = tickEnd - ( System.nanoTime()
+                                             - startNanos_ ) ) > 0 ) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep( sleepNanos );
+                }
+                catch ( InterruptedException e ) {
+                    if ( stopped_ ) {
+                        return;
+                    }
+                }
+            }
+            removeCancelled();
+            transferNew( tick );
+            wheel_[ (int) ( tick & mask_ ) ].expire( tickEnd );
+            tick++;
+        }
+    }
+
+    /**
+     * Places newly scheduled timeouts in their buckets.
+     *
+     * @param  tick  current tick index
+     */
+    private void transferNew( long tick ) {
+        for ( Timeout timeout; ( timeout = newTimeouts_.poll() ) != null; ) {
+            if ( timeout.state_.get() == Timeout.CANCELLED ) {
+                continue;
+            }
+            long dueTick = timeout.deadline_ / tickNanos_;
+            timeout.rounds_ = ( dueTick - tick ) / wheel_.length;
+            wheel_[ (int) ( Math.max( dueTick, tick ) & mask_ ) ]
+                  .add( timeout );
+        }
+    }
+
+    /**
+     * Removes cancelled timeouts from their buckets, so that they
+     * do not retain memory until their deadlines.
+     */
+    private void removeCancelled() {
+        for ( Timeout timeout;
+              ( timeout = cancelledTimeouts_.poll() ) != null; ) {
+            if ( timeout.bucket_ != null ) {
+                timeout.bucket_.remove( timeout );
+            }
+        }
+    }
+
+    /**
+     * Handle for a scheduled task.
+     */
+    public class Timeout {
+        private final Runnable task_;
+        private final long deadline_;
+        private final AtomicInteger state_;
+        private long rounds_;
+        private Bucket bucket_;
+        private Timeout prev_;
+        private Timeout next_;
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        /**
+         * Constructor.
+         *
+         * @param  task  task
+         * @param  deadline   deadline in nanoseconds relative to
+         *                    wheel start time
+         */
+        private Timeout( Runnable task, long deadline ) {
+            task_ = task;
+            deadline_ = deadline;
+            state_ = new AtomicInteger( PENDING );
+        }
+
+        /**
+         * Cancels this timeout, if it has not already fired.
+         *
+         * @return  true iff this call prevented the task from running
+         */
+        public boolean cancel() {
+            if ( state_.compareAndSet( PENDING, CANCELLED ) ) {
+                nCancelled_.incrementAndGet();
+                cancelledTimeouts_.add( this );
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
+
+        /**
+         * Indicates whether this timeout has fired.
+         *
+         * @return  true iff the task has been run
+         */
+        public boolean isExpired() {
+            return state_.get() == EXPIRED;
+        }
+
+        /**
+         * Runs the task if this timeout has not been cancelled.
+         */
+        private void expire() {
+            if ( state_.compareAndSet( PENDING, EXPIRED ) ) {
+                nExpired_.incrementAndGet();
+                try {
+                    task_.run();
+                }
+                catch ( Throwable e ) {
+                    logger_.log( Level.WARNING, "Timeout task failed", e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubly-linked list of timeouts.  Only accessed from the wheel thread.
+     */
+    private class Bucket {
+        private Timeout head_;
+        private Timeout tail_;
+
+        /**
+         * Adds a timeout to this bucket.
+         *
+         * @param  timeout  timeout
+         */
+        void add( Timeout timeout ) {
+            timeout.bucket_ = this;
+            if ( head_ == null ) {
+                head_ = tail_ = timeout;
+            }
+            else {
+                tail_.next_ = timeout;
+                timeout.prev_ = tail_;
+                tail_ = timeout;
+            }
+        }
+
+        /**
+         * Removes a timeout from this bucket.
+         *
+         * @param  timeout  timeout currently in this bucket
+         */
+        void remove( Timeout timeout ) {
+            Timeout next = timeout.next_;
+            if ( timeout.prev_ != null ) {
+                timeout.prev_.next_ = next;
+            }
+            if ( timeout.next_ != null ) {
+                timeout.next_.prev_ = timeout.prev_;
+            }
+            if ( timeout == head_ ) {
+                head_ = next;
+            }
+            if ( timeout == tail_ ) {
+                tail_ = timeout.prev_;
+            }
+            timeout.prev_ = null;
+            timeout.next_ = null;
+            timeout.bucket_ = null;
+        }
+
+        /**
+         * Fires all timeouts in this bucket which are due,
+         * and counts down the revolutions of the others.
+         *
+         * @param  now  current time in nanoseconds relative to wheel start
+         */
+        void expire( long now ) {
+            for ( Timeout timeout = head_; timeout != null; ) {
+                Timeout next = timeout.next_;
+                if ( timeout.rounds_ <= 0 ) {
+                    remove( timeout );
+                    if ( timeout.deadline_ <= now ) {
+                        timeout.expire();
+                    }
+                    else {
+                        // Shouldn't happen; reschedule defensively.
+                        newTimeouts_.add( timeout );
+                    }
+                }
+                else if ( timeout.state_.get() == Timeout.CANCELLED ) {
+                    remove( timeout );
+                }
+                else {
+                    timeout.rounds_--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
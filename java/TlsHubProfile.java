@@ -1,12 +1,15 @@
 package org.astrogrid.samp.tls;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.ServerSocket;
 import java.net.SocketAddress;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -14,12 +17,16 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
 import org.astrogrid.samp.DataException;
 import org.astrogrid.samp.SampUtils;
 import org.astrogrid.samp.client.ClientProfile;
@@ -45,6 +52,16 @@ import org.astrogrid.samp.xmlrpc.XmlRpcKit;
  *
  * <p>Highly experimental at time of writing.
  *
+ * <p>The time spent at each stage of servicing relayed calls is recorded
+ * in a {@link HubMetrics} object.  While running, this is registered
+ * as a JMX MBean, and a GET request for {@link #STATS_PATH} on the
+ * nudge port returns it as JSON; that is only permitted from
+ * the local host.
+ *
+ * <p>A web client may ask for its callbacks to be pushed to a
+ * mailbox at the relay, which it polls directly, instead of
+ * polling the hub through the relay; see {@link CallbackMailboxes}.
+ *
  * @author   Mark Taylor
  * @since    14 March 2016
  */
@@ -55,21 +72,55 @@ public class TlsHubProfile implements HubProfile {
     private final MessageRestriction mrestrict_;
     private final SampXmlRpcClientFactory xClientFactory_;
     private final KeyGenerator keyGen_;
+    private boolean isVirtual_;
     private ExecutorService callExecutor_;
-    private ExecutorService collectorExecutor_;
+    private CollectionScheduler collector_;
     private WebHubXmlRpcHandler wxHandler_;
+    private UrlTracker urlTracker_;
     private HttpServer hServer_;
+    private TimingWheel batchTimer_;
+    private Batcher<String,String> pullBatcher_;
+    private Batcher<String,TaggedResult> resultBatcher_;
+    private final Set<String> unbatchedRelays_;
+    private final Set<String> unsessionedRelays_;
+    private final Map<String,SessionPoller> sessionPollers_;
+    private final Map<String,List<Object>> unforwarded_;
+    private final HubMetrics metrics_;
     private static final Logger logger_ =
         Logger.getLogger( TlsHubProfile.class.getName() );
 
     public static final int NUDGE_PORT = 21013;
     public static final String NUDGE_PATH = "/nudge";
+    public static final String STATS_PATH = "/stats";
     public static final String RELAYURL_PARAM = "relay";
     public static final String CALLTAG_PARAM = "callTag";
+    public static final String SESSION_PARAM = "session";
+    public static final String SESSION_SEP = "/";
     public static final String COLLECTOR_PREFIX = "samp.tlshub.";
     public static final String DISPENSER_PREFIX = "samp.tlsfwd.";
     public static final String REFERER_KEY = "samp.referer";
+    public static final String BATCH_TAG_KEY = "samp.callTag";
+    public static final String BATCH_RESULT_KEY = "samp.result";
+
+    /**
+     * Name of system property which, if set "true", causes relay
+     * collection and call invocation to run on virtual threads
+     * where available (Java 21+).
+     */
+    public static final String VIRTUAL_THREADS_PROP =
+        "tlsamp.hub.virtualThreads";
+
     private static final int TIMEOUT_SEC = 10;
+    private static final long BATCH_WINDOW_MILLIS = 20;
+    private static final int MAX_BATCH = 32;
+    private static final int SESSION_POLL_SEC = 30;
+    private static final long SESSION_IDLE_MILLIS = 60 * 1000;
+    private static final int MAX_COLLECTORS = 32;
+    private static final int MAX_COLLECTORS_PER_RELAY = 8;
+    private static final int MAX_COLLECTORS_PER_SESSION = 1;
+    private static final int MAX_SESSION_POLLERS = 128;
+    private static final int MAX_QUEUED_PER_RELAY = 64;
+    private static final int MAX_QUEUED = 1024;
 
     /**
      * Constructor.
@@ -89,6 +140,16 @@ public class TlsHubProfile implements HubProfile {
         mrestrict_ = mrestrict;
         xClientFactory_ = xClientFactory;
         keyGen_ = keyGen;
+        isVirtual_ = Boolean.getBoolean( VIRTUAL_THREADS_PROP );
+        unbatchedRelays_ =
+            Collections
+           .newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+        unsessionedRelays_ =
+            Collections
+           .newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+        sessionPollers_ = new HashMap<String,SessionPoller>();
+        unforwarded_ = new HashMap<String,List<Object>>();
+        metrics_ = createMetrics();
     }
 
     /**
@@ -99,7 +160,7 @@ public class TlsHubProfile implements HubProfile {
               new HubSwingClientAuthorizer( null,
                                             TlsCredentialPresenter.INSTANCE ),
               ListMessageRestriction.DEFAULT,
-              XmlRpcKit.getInstance().getClientFactory(),
+              createDefaultClientFactory(),
               new KeyGenerator( "tls:", 24, KeyGenerator.createRandom() ) );
     }
 
@@ -116,18 +177,56 @@ public class TlsHubProfile implements HubProfile {
         ServerSocket sock = new ServerSocket();
         sock.setReuseAddress( true );
         sock.bind( new InetSocketAddress( port_ ) );
+        ImageResponse.prepare();
         hServer_ = new HttpServer( sock );
         hServer_.addHandler( new NudgeHandler() );
+        hServer_.addHandler( new StatsHandler() );
         URL baseUrl = hServer_.getBaseUrl();  // not sure about that
-        UrlTracker urlTracker = null;  // not sure about that
-        wxHandler_ = new WebHubXmlRpcHandler( clientProfile, auth_, keyGen_,
-                                              baseUrl, urlTracker );
-        callExecutor_ = Executors.newCachedThreadPool( new ThreadFactory() {
-            public Thread newThread( Runnable r ) {
-                return new Thread( r, "TLS-SAMP_relayed_call_invoker" );
-            }
-        } );
-        collectorExecutor_ = callExecutor_;
+        urlTracker_ = new UrlTracker();
+        wxHandler_ = new WebHubXmlRpcHandler( new MailboxClientProfile(
+                                                  clientProfile ),
+                                              auth_, keyGen_, baseUrl,
+                                              urlTracker_ );
+        callExecutor_ = createCallExecutor( isVirtual_ );
+
+        // Collection work is scheduled fairly between relays,
+        // and refused rather than queued without limit.
+        // Session pollers hold their slot for the life of the session,
+        // so they have their own budget rather than using the relay's.
+        collector_ =
+            new CollectionScheduler( callExecutor_, MAX_COLLECTORS,
+                                     MAX_COLLECTORS_PER_RELAY,
+                                     MAX_COLLECTORS_PER_SESSION,
+                                     MAX_SESSION_POLLERS,
+                                     MAX_QUEUED_PER_RELAY, MAX_QUEUED );
+
+        // Nudges and results for the same relay arriving close together
+        // are batched up to save relay round trips.
+        batchTimer_ = new TimingWheel( "TLS-SAMP batch timer", 5, 64 );
+        pullBatcher_ =
+            new Batcher<String,String>( batchTimer_, createCollectorExecutor(),
+                                        BATCH_WINDOW_MILLIS, MAX_BATCH,
+                                        new Batcher.Flusher<String,String>() {
+                public void flush( String relayLoc, List<String> callTags ) {
+                    collectCalls( relayLoc, callTags );
+                }
+            } );
+        resultBatcher_ =
+            new Batcher<String,TaggedResult>( batchTimer_, callExecutor_,
+                                              BATCH_WINDOW_MILLIS, MAX_BATCH,
+                                  new Batcher.Flusher<String,TaggedResult>() {
+                public void flush( String relayLoc,
+                                   List<TaggedResult> results ) {
+                    returnResults( relayLoc, results );
+                }
+            } );
+        try {
+            metrics_.registerMBean( "port-" + port_ );
+        }
+        catch ( JMException e ) {
+            logger_.log( Level.WARNING, "Hub metrics MBean not registered",
+                         e );
+        }
         hServer_.start();
     }
 
@@ -137,10 +236,13 @@ public class TlsHubProfile implements HubProfile {
             return;
         }
         hServer_.stop();
+        collector_.shutdown();
         callExecutor_.shutdown();
-        collectorExecutor_.shutdown();
+        batchTimer_.stop();
+        metrics_.unregisterMBean();
         hServer_ = null;
         wxHandler_ = null;
+        urlTracker_ = null;
     }
 
     public synchronized boolean isRunning() {
@@ -151,6 +253,164 @@ public class TlsHubProfile implements HubProfile {
         return mrestrict_;
     }
 
+    /**
+     * Configures whether relay collection and call invocation should
+     * use virtual threads, if the JVM supports them.
+     * Takes effect next time the profile is started.
+     * The default is taken from the {@link #VIRTUAL_THREADS_PROP}
+     * system property.
+     *
+     * @param  isVirtual  true to request virtual threads
+     */
+    public synchronized void setVirtualThreads( boolean isVirtual ) {
+        isVirtual_ = isVirtual;
+    }
+
+    /**
+     * Indicates whether virtual threads have been requested.
+     *
+     * @return  true iff virtual threads will be used if available
+     */
+    public synchronized boolean isVirtualThreads() {
+        return isVirtual_;
+    }
+
+    /**
+     * Returns the factory used to create XML-RPC clients for talking
+     * to relays.
+     *
+     * @return  client factory
+     */
+    public SampXmlRpcClientFactory getClientFactory() {
+        return xClientFactory_;
+    }
+
+    /**
+     * Returns the scheduler used for collecting calls from relays,
+     * which can report queue depths and rejection counts.
+     *
+     * @return  collection scheduler, or null if not running
+     */
+    public synchronized CollectionScheduler getCollectionScheduler() {
+        return collector_;
+    }
+
+    /**
+     * Returns the object that records how long the stages of servicing
+     * relayed calls take.
+     *
+     * @return  metrics
+     */
+    public HubMetrics getMetrics() {
+        return metrics_;
+    }
+
+    /**
+     * Creates the metrics object for this profile,
+     * including gauges for the collection scheduler.
+     *
+     * @return  new metrics
+     */
+    private HubMetrics createMetrics() {
+        HubMetrics metrics = new HubMetrics();
+        metrics.addGauge( "collectorsActive", new MetricsMBean.Gauge() {
+            public long getValue() {
+                CollectionScheduler collector = getCollectionScheduler();
+                return collector == null ? 0 : collector.getActiveCount();
+            }
+        } );
+        metrics.addGauge( "collectionsQueued", new MetricsMBean.Gauge() {
+            public long getValue() {
+                CollectionScheduler collector = getCollectionScheduler();
+                return collector == null ? 0 : collector.getQueuedCount();
+            }
+        } );
+        metrics.addGauge( "collectionsRejected", new MetricsMBean.Gauge() {
+            public long getValue() {
+                CollectionScheduler collector = getCollectionScheduler();
+                return collector == null ? 0 : collector.getRejectedCount();
+            }
+        } );
+        metrics.addGauge( "sessionPollers", new MetricsMBean.Gauge() {
+            public long getValue() {
+                synchronized ( sessionPollers_ ) {
+                    return sessionPollers_.size();
+                }
+            }
+        } );
+        if ( xClientFactory_ instanceof RelayClientFactory ) {
+            ((RelayClientFactory) xClientFactory_).getCompressionStats()
+                                                  .addGauges( metrics );
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns an executor that schedules tasks for a relay
+     * on the collection scheduler.
+     *
+     * @return  executor keyed by relay location
+     */
+    private Batcher.KeyedExecutor<String> createCollectorExecutor() {
+        final CollectionScheduler collector = collector_;
+        return new Batcher.KeyedExecutor<String>() {
+            public void execute( String relayLoc, Runnable task ) {
+                collector.execute( relayLoc, task );
+            }
+        };
+    }
+
+    /**
+     * Returns an executor service on which the blocking work of relay
+     * collection and call invocation is run.
+     * Each task gets its own thread; platform threads are reused
+     * when idle.
+     *
+     * @param  isVirtual  true to use virtual threads if available,
+     *                    false for platform threads
+     * @return  new executor service
+     */
+    static ExecutorService createCallExecutor( boolean isVirtual ) {
+        final String name = "TLS-SAMP_relayed_call_invoker";
+        if ( isVirtual ) {
+            ExecutorService vExecutor = VirtualThreads.createExecutor( name );
+            if ( vExecutor != null ) {
+                logger_.info( "Using virtual threads for relayed calls" );
+                if ( VirtualThreads.isMonitorPinning() ) {
+                    logger_.warning( "Virtual threads waiting for callbacks "
+                                   + "will pin carrier threads "
+                                   + "on this JVM (Java 24+ recommended)" );
+                }
+                return vExecutor;
+            }
+            logger_.warning( "Virtual threads not available; "
+                           + "using platform threads for relayed calls" );
+        }
+        return Executors.newCachedThreadPool( new ThreadFactory() {
+            public Thread newThread( Runnable r ) {
+                return new Thread( r, name );
+            }
+        } );
+    }
+
+    /**
+     * Returns the XML-RPC client factory used by default for relay
+     * communications.  This keeps connections to relays open for reuse.
+     *
+     * @return  client factory
+     */
+    private static SampXmlRpcClientFactory createDefaultClientFactory() {
+        try {
+            return new RelayClientFactory();
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            logger_.log( Level.WARNING,
+                         "No default SSL context; relay connections "
+                       + "won't be reused", e );
+            return XmlRpcKit.getInstance().getClientFactory();
+        }
+    }
+
     /**
      * HTTP handler invoked by localhost web client.
      * It returns a small image, but retrieval has side-effects,
@@ -163,42 +423,58 @@ public class TlsHubProfile implements HubProfile {
             if ( ! isPermittedHost( request.getRemoteAddress() ) ) {
                 return CorsHttpServer.createNonLocalErrorResponse( request );
             }
+            long startNanos = System.nanoTime();
             String method = request.getMethod();
             NudgeParsedUrl pu = new NudgeParsedUrl( request.getUrl() );
-            String path = pu.getPath();
-            final URL relayUrl = pu.getRelayUrl();
-            final String callTag = pu.getCallTag();
-            if ( NUDGE_PATH.equals( path ) ) {
+            if ( NUDGE_PATH.equals( pu.getPath() ) ) {
                 if ( ! "GET".equals( method ) ) {
                     return HttpServer
                           .create405Response( new String[] { "GET" } );
                 }
                 else if ( pu.isInit() ) {
-                    return ImageResponse.createToggleResponse( false );
+                    return ImageResponse.getToggleResponse( false );
                 }
-                else if ( relayUrl == null || callTag == null ) {
+                URL relayUrl = pu.getRelayUrl();
+                String callTag = pu.getCallTag();
+                String sessionId = pu.getSessionId();
+                if ( relayUrl == null || callTag == null ) {
                     return HttpServer
                           .createErrorResponse( 400, "Bad tls-samp params" );
                 }
-                logger_.info( "Nudged to collect message from " + relayUrl 
-                            + " with tag " + callTag );
+                if ( logger_.isLoggable( Level.INFO ) ) {
+                    logger_.info( "Nudged to collect message from " + relayUrl
+                                + " with tag " + callTag );
+                }
+                String relayLoc = relayUrl.toString();
+                HubMetrics.RelayStats rstats =
+                    metrics_.getRelayStats( relayLoc );
+                rstats.nNudges_.incrementAndGet();
+                metrics_.nudgeReceived( callTag, startNanos );
+                boolean isSession = false;
                 try {
-                    collectorExecutor_.execute( new Runnable() {
-                        public void run() {
-                            collectCall( relayUrl, callTag );
-                        }
-                    } );
+                    if ( sessionId != null &&
+                         callTag.startsWith( sessionId + SESSION_SEP ) &&
+                         ! unsessionedRelays_.contains( relayLoc ) ) {
+                        isSession = sessionNudge( relayUrl, sessionId,
+                                                  callTag );
+                    }
+                    else {
+                        collector_.checkAccepting( relayLoc );
+                        pullBatcher_.add( relayLoc, callTag );
+                    }
                 }
                 catch ( RejectedExecutionException e ) {
-                    String msg = "Can't collect call " + callTag;
-                    logger_.log( Level.WARNING, msg, e );
-                    return HttpServer
-                          .createErrorResponse( 500, msg, e );
+                    logger_.warning( "Can't collect call " + callTag
+                                   + " (" + e.getMessage() + ")" );
+                    rstats.nBusy_.incrementAndGet();
+                    metrics_.takeNudgeTime( callTag );
+                    return ImageResponse.getBusyResponse();
+                }
+                finally {
+                    rstats.nudge_.record( System.nanoTime() - startNanos );
                 }
-                HttpServer.Response response =
-                    ImageResponse.createSpinResponse( iseq_++ );
-                response.getHeaderMap().put( "Cache-Control", "no-cache" );
-                return response;
+                return isSession ? ImageResponse.getSessionResponse( iseq_++ )
+                                 : ImageResponse.getSpinResponse( iseq_++ );
             }
             else {
                 return null;
@@ -221,8 +497,116 @@ public class TlsHubProfile implements HubProfile {
     }
 
     /**
-     * Invoked when a nudge has been received to retrieve calls from
-     * a hub relay service.
+     * HTTP handler that serves the hub metrics as JSON.
+     * Only requests from the local host are permitted.
+     */
+    private class StatsHandler implements HttpServer.Handler {
+        public HttpServer.Response serveRequest( HttpServer.Request request ) {
+            String path = request.getUrl().replaceFirst( "[?#].*", "" );
+            if ( ! STATS_PATH.equals( path ) ) {
+                return null;
+            }
+            else if ( ! CorsHttpServer
+                       .isLocalHost( request.getRemoteAddress() ) ) {
+                return CorsHttpServer.createNonLocalErrorResponse( request );
+            }
+            else if ( ! "GET".equals( request.getMethod() ) ) {
+                return HttpServer.create405Response( new String[] { "GET" } );
+            }
+            else {
+                return metrics_.createJsonResponse();
+            }
+        }
+    }
+
+    /**
+     * Invoked when a nudge has been received for a call belonging to
+     * a session.  If no poller is running for the session, one is started.
+     * If the poller has confirmed that the relay is delivering calls
+     * for the session, the call will arrive that way, and the web client
+     * may stop nudging.  Otherwise the tag is recorded, so that it can
+     * be collected individually if the session turns out not to work.
+     *
+     * @param  relayUrl   URL of remote message relay service
+     * @param  sessionId  session token
+     * @param  callTag    identifier of call to be collected,
+     *                    prefixed by the session token
+     * @return  true iff the session is live
+     */
+    private boolean sessionNudge( URL relayUrl, String sessionId,
+                                  String callTag ) {
+        String key = relayUrl + " " + sessionId;
+        synchronized ( sessionPollers_ ) {
+            SessionPoller poller = sessionPollers_.get( key );
+            if ( poller == null ) {
+                poller = new SessionPoller( key, relayUrl, sessionId );
+                collector_.execute( relayUrl.toString(), key, poller );
+                sessionPollers_.put( key, poller );
+            }
+            return poller.nudged( callTag );
+        }
+    }
+
+    /**
+     * Invoked when one or more nudges have been received to retrieve
+     * calls from a hub relay service.
+     * If there are several, and the relay is not known to lack support
+     * for it, they are collected in a single batch request.
+     * Otherwise, or if the batch request fails, they are collected
+     * individually.
+     *
+     * @param  relayLoc   URL of remote message relay service
+     * @param  callTags   identifiers of calls to be collected
+     */
+    private void collectCalls( String relayLoc, List<String> callTags ) {
+        try {
+            final URL relayUrl = new URL( relayLoc );
+            if ( callTags.size() > 1 &&
+                 ! unbatchedRelays_.contains( relayLoc ) ) {
+                try {
+                    doCollectCalls( relayUrl, callTags, TIMEOUT_SEC );
+                    return;
+                }
+                catch ( ConnectException e ) {
+                    throw e;
+                }
+                catch ( IOException e ) {
+                    logger_.info( "Batch collection failed from " + relayUrl
+                                + " (" + e + ")"
+                                + " - reverting to single calls" );
+                    if ( isUnknownMethod( e, DISPENSER_PREFIX
+                                             + "pullCalls" ) ) {
+                        unbatchedRelays_.add( relayLoc );
+                    }
+                }
+            }
+            int nc = callTags.size();
+            for ( int ic = 0; ic < nc - 1; ic++ ) {
+                final String callTag = callTags.get( ic );
+                try {
+                    collector_.execute( relayLoc, new Runnable() {
+                        public void run() {
+                            collectCall( relayUrl, callTag );
+                        }
+                    } );
+                }
+                catch ( RejectedExecutionException e ) {
+                    logger_.warning( "Can't collect call " + callTag
+                                   + " (" + e.getMessage() + ")" );
+                }
+            }
+            collectCall( relayUrl, callTags.get( nc - 1 ) );
+        }
+        catch ( ConnectException e ) {
+            logger_.log( Level.WARNING, "No hub relay at " + relayLoc );
+        }
+        catch ( Throwable e ) {
+            logger_.log( Level.WARNING, "Call collection error", e );
+        }
+    }
+
+    /**
+     * Invoked to retrieve a single call from a hub relay service.
      *
      * @param  relayUrl   URL of remote message relay service
      * @param  callTag    identifier of call to be collected
@@ -240,8 +624,8 @@ public class TlsHubProfile implements HubProfile {
     }
 
     /**
-     * Pulls queued SampCall objects from a remote hub relay and
-     * submits them for processing.
+     * Pulls a queued SampCall object from a remote hub relay and
+     * submits it for processing.
      *
      * @param  relayUrl  URL of remote hub relay service
      * @param  callTag   tag of named call to collect
@@ -256,16 +640,24 @@ public class TlsHubProfile implements HubProfile {
         List<?> pullParams = Arrays.asList( new String[] {
             callTag, timeoutStr,
         } );
+        HubMetrics.RelayStats rstats =
+            metrics_.getRelayStats( relayUrl.toString() );
+        long pullNanos = System.nanoTime();
+        recordQueued( rstats, callTag, pullNanos );
         Object pulled =
             xClient.callAndWait( DISPENSER_PREFIX + "pullCall", pullParams );
+        rstats.nPulls_.incrementAndGet();
+        rstats.pull_.record( System.nanoTime() - pullNanos );
         if ( pulled instanceof Map ) {
             SampCall call = SampCall.asCall( (Map) pulled );
             if ( call.isEmpty() ) {
                 logger_.warning( "Failed to collect call " + callTag
                                + " (timeout?)" );
+                rstats.nPullTimeouts_.incrementAndGet();
+                metrics_.takeNudgeTime( callTag );
             }
             else {
-                handleCall( xClient, callTag, call, relayUrl );
+                handleCall( relayUrl, callTag, call );
             }
         }
         else {
@@ -274,38 +666,329 @@ public class TlsHubProfile implements HubProfile {
     }
 
     /**
-     * Handles a SampCall object and passes the response back to the
-     * remote service.
+     * Pulls a batch of queued SampCall objects from a remote hub relay
+     * using a single request, and submits them for concurrent processing.
+     *
+     * @param  relayUrl  URL of remote hub relay service
+     * @param  callTags  tags of named calls to collect
+     * @param  timeoutSec  maximum wait time in seconds
+     */
+    private void doCollectCalls( final URL relayUrl, List<String> callTags,
+                                 int timeoutSec )
+            throws IOException {
+        SampXmlRpcClient xClient = xClientFactory_.createClient( relayUrl );
+        String timeoutStr = SampUtils.encodeInt( timeoutSec );
+        List<?> pullParams = Arrays.asList( new Object[] {
+            new ArrayList<String>( callTags ), timeoutStr,
+        } );
+        HubMetrics.RelayStats rstats =
+            metrics_.getRelayStats( relayUrl.toString() );
+        long pullNanos = System.nanoTime();
+        for ( String callTag : callTags ) {
+            recordQueued( rstats, callTag, pullNanos );
+        }
+        Object pulled =
+            xClient.callAndWait( DISPENSER_PREFIX + "pullCalls", pullParams );
+        long pullTime = System.nanoTime() - pullNanos;
+        if ( ! ( pulled instanceof List ) ||
+             ( (List) pulled ).size() != callTags.size() ) {
+            throw new IOException( "Pulled calls not a list of "
+                                 + callTags.size() );
+        }
+        List pulledList = (List) pulled;
+        logger_.info( "Collected batch of " + callTags.size()
+                    + " calls from " + relayUrl );
+        for ( int ic = 0; ic < callTags.size(); ic++ ) {
+            final String callTag = callTags.get( ic );
+            Object item = pulledList.get( ic );
+            final SampCall call = item instanceof Map
+                                ? SampCall.asCall( (Map) item )
+                                : null;
+            rstats.nPulls_.incrementAndGet();
+            rstats.pull_.record( pullTime );
+            if ( call == null || call.isEmpty() ) {
+                logger_.warning( "Failed to collect call " + callTag
+                               + " (timeout?)" );
+                rstats.nPullTimeouts_.incrementAndGet();
+                metrics_.takeNudgeTime( callTag );
+            }
+            else {
+                callExecutor_.execute( new Runnable() {
+                    public void run() {
+                        handleCall( relayUrl, callTag, call );
+                    }
+                } );
+            }
+        }
+    }
+
+    /**
+     * Handles a SampCall object and queues the response to be passed back
+     * to the remote service.
      *
-     * @param  xClient   XML-RPC client for communicating with relay
-     * @param  callTag   tag by which the serialized call was requested
-     * @param  tlsCall     call object to be processed
      * @param  relayUrl   URL at which the hub relay resides
+     * @param  callTag   tag by which the serialized call was requested
+     * @param  call     call object to be processed
      */
-    private void handleCall( SampXmlRpcClient xClient, String callTag,
-                             SampCall call, URL relayUrl ) {
-        String callStr =
-              call.getMethodName().replaceFirst( COLLECTOR_PREFIX, "" )
-            + " " + callTag;
+    private void handleCall( URL relayUrl, String callTag, SampCall call ) {
+        String baseMethodName =
+            String.valueOf( call.getMethodName() )
+                  .replaceFirst( COLLECTOR_PREFIX, "" );
+        String callStr = baseMethodName + " " + callTag;
+        HubMetrics.MethodStats mstats =
+            metrics_.getRelayStats( relayUrl.toString() )
+                    .getMethodStats( baseMethodName );
         logger_.info( "Handling call: " + callStr );
-        SampResult result = getCallResult( callTag, call, relayUrl );
-        logger_.info( "Got result "
-                    + ( result.containsKey( "samp.value" ) ? "success"
-                                                           : "error" )
+        long handleNanos = System.nanoTime();
+        ResourceUpload upload = null;
+        MailboxForwarder mailbox = null;
+        SampResult result;
+        if ( ResourceRelay.REQUEST_METHOD.equals( baseMethodName ) ) {
+            try {
+                upload = prepareUpload( callTag, call, relayUrl );
+                result = SampResult
+                        .createSuccessResult( upload.getTargetUrl()
+                                                    .toString() );
+            }
+            catch ( Throwable e ) {
+                result = SampResult.createErrorResult( e.toString() );
+            }
+        }
+        else if ( CallbackMailboxes.OPEN_METHOD.equals( baseMethodName ) ) {
+            try {
+                mailbox = openMailbox( callTag, call, relayUrl );
+                result = SampResult.createSuccessResult( callTag );
+            }
+            catch ( Throwable e ) {
+                result = SampResult.createErrorResult( e.toString() );
+            }
+        }
+        else {
+            result = getCallResult( callTag, call, relayUrl );
+        }
+        long readyNanos = System.nanoTime();
+        boolean isSuccess = result.containsKey( "samp.value" );
+        mstats.nCalls_.incrementAndGet();
+        mstats.handle_.record( readyNanos - handleNanos );
+        if ( ! isSuccess ) {
+            mstats.nErrors_.incrementAndGet();
+        }
+        logger_.info( "Got result " + ( isSuccess ? "success" : "error" )
                     + " for " + callStr );
 
         // Pass the result back asynchronously to the relay.
-        List resultParams = Arrays.asList( new Object[] { callTag, result } );
+        TaggedResult tr =
+            new TaggedResult( callTag, result, callStr, mstats, readyNanos,
+                              upload, mailbox );
         try {
-            xClient.callAndWait( DISPENSER_PREFIX + "receiveResult",
-                                 resultParams );
+            resultBatcher_.add( relayUrl.toString(), tr );
         }
-        catch ( IOException e ) {
+        catch ( RejectedExecutionException e ) {
             logger_.log( Level.WARNING,
                          "Failed to pass result back for " + callStr, e );
+            resultFailed( tr );
+        }
+    }
+
+    /**
+     * Records the time between nudge arrival and collection of a call,
+     * if the nudge time is known.
+     *
+     * @param  rstats  statistics for the relay
+     * @param  callTag   tag of call about to be collected
+     * @param  pullNanos  System.nanoTime at which collection starts
+     */
+    private void recordQueued( HubMetrics.RelayStats rstats, String callTag,
+                               long pullNanos ) {
+        long nudgeNanos = metrics_.getNudgeTime( callTag );
+        if ( nudgeNanos >= 0 ) {
+            rstats.queue_.record( pullNanos - nudgeNanos );
+        }
+    }
+
+    /**
+     * Records that the relay has accepted a returned result.
+     *
+     * @param  tr  returned result
+     */
+    private void resultReturned( TaggedResult tr ) {
+        long now = System.nanoTime();
+        tr.stats_.return_.record( now - tr.readyNanos_ );
+        long nudgeNanos = metrics_.takeNudgeTime( tr.callTag_ );
+        if ( nudgeNanos >= 0 ) {
+            tr.stats_.total_.record( now - nudgeNanos );
+        }
+
+        // The relay is now expecting the requested resource.
+        if ( tr.upload_ != null ) {
+            try {
+                callExecutor_.execute( tr.upload_ );
+            }
+            catch ( RejectedExecutionException e ) {
+                logger_.warning( "No resource upload for " + tr.callStr_ );
+                tr.upload_.cancel();
+            }
+        }
+
+        // The relay now has a mailbox for the client's callbacks.
+        if ( tr.mailbox_ != null ) {
+            tr.mailbox_.activate();
+        }
+    }
+
+    /**
+     * Records that a result could not be returned to the relay.
+     *
+     * @param  tr  result
+     */
+    private void resultFailed( TaggedResult tr ) {
+        tr.stats_.nReturnFailures_.incrementAndGet();
+        metrics_.takeNudgeTime( tr.callTag_ );
+        if ( tr.upload_ != null ) {
+            tr.upload_.cancel();
+        }
+        if ( tr.mailbox_ != null ) {
+            tr.mailbox_.cancel();
         }
     }
 
+    /**
+     * Passes the results of one or more serviced calls back to the
+     * remote relay service.
+     * If there are several, and the relay is not known to lack support
+     * for it, they are sent in a single batch request.
+     * Otherwise, or if the batch request fails, they are sent
+     * individually.
+     *
+     * @param  relayLoc   URL at which the hub relay resides
+     * @param  results    results to return
+     */
+    private void returnResults( String relayLoc, List<TaggedResult> results ) {
+        SampXmlRpcClient xClient;
+        try {
+            xClient = xClientFactory_.createClient( new URL( relayLoc ) );
+        }
+        catch ( IOException e ) {
+            logger_.log( Level.WARNING, "No relay client for " + relayLoc, e );
+            for ( TaggedResult tr : results ) {
+                resultFailed( tr );
+            }
+            return;
+        }
+        if ( results.size() > 1 && ! unbatchedRelays_.contains( relayLoc ) ) {
+            List<Map> entries = new ArrayList<Map>();
+            for ( TaggedResult tr : results ) {
+                Map<String,Object> entry = new LinkedHashMap<String,Object>();
+                entry.put( BATCH_TAG_KEY, tr.callTag_ );
+                entry.put( BATCH_RESULT_KEY, tr.result_ );
+                entries.add( entry );
+            }
+            List<?> resultParams =
+                Collections.singletonList( entries );
+            try {
+                Object statuses =
+                    xClient.callAndWait( DISPENSER_PREFIX + "receiveResults",
+                                         resultParams );
+                if ( statuses instanceof List &&
+                     ( (List) statuses ).size() == results.size() ) {
+                    for ( int ir = 0; ir < results.size(); ir++ ) {
+                        Object status = ( (List) statuses ).get( ir );
+                        TaggedResult tr = results.get( ir );
+                        if ( "".equals( status ) ) {
+                            resultReturned( tr );
+                        }
+                        else {
+                            logger_.warning( "Failed to pass result back for "
+                                           + tr.callStr_ + ": " + status );
+                            resultFailed( tr );
+                        }
+                    }
+                    return;
+                }
+                logger_.warning( "Bad batch result statuses from " + relayLoc
+                               + " - reverting to single calls" );
+            }
+            catch ( ConnectException e ) {
+                logger_.log( Level.WARNING, "No hub relay at " + relayLoc );
+                for ( TaggedResult tr : results ) {
+                    resultFailed( tr );
+                }
+                return;
+            }
+            catch ( IOException e ) {
+                logger_.info( "Batch result return failed to " + relayLoc
+                            + " (" + e + ") - reverting to single calls" );
+                if ( isUnknownMethod( e, DISPENSER_PREFIX
+                                         + "receiveResults" ) ) {
+                    unbatchedRelays_.add( relayLoc );
+                }
+            }
+        }
+        for ( TaggedResult tr : results ) {
+            List resultParams =
+                Arrays.asList( new Object[] { tr.callTag_, tr.result_ } );
+            try {
+                xClient.callAndWait( DISPENSER_PREFIX + "receiveResult",
+                                     resultParams );
+                resultReturned( tr );
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.WARNING,
+                             "Failed to pass result back for " + tr.callStr_,
+                             e );
+                resultFailed( tr );
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the callbacks for a client that were taken
+     * from the hub for forwarding to a mailbox, but could not be posted.
+     *
+     * @param  privateKey  client private key
+     * @return   callbacks in order, or null if there are none
+     */
+    private List<Object> takeUnforwarded( String privateKey ) {
+        synchronized ( unforwarded_ ) {
+            return unforwarded_.remove( privateKey );
+        }
+    }
+
+    /**
+     * Stores callbacks for a client that could not be posted to
+     * its mailbox, so that they can be delivered by other means.
+     *
+     * @param  privateKey  client private key
+     * @param  callbacks   callbacks in order
+     */
+    private void putUnforwarded( String privateKey, List<Object> callbacks ) {
+        synchronized ( unforwarded_ ) {
+            List<Object> held = unforwarded_.get( privateKey );
+            if ( held == null ) {
+                unforwarded_.put( privateKey, callbacks );
+            }
+            else {
+                held.addAll( callbacks );
+            }
+        }
+    }
+
+    /**
+     * Indicates whether an exception from an XML-RPC call looks like
+     * a fault from a relay that does not implement the called method,
+     * rather than a transient failure.
+     * Relays report unknown methods with a fault message naming the method.
+     *
+     * @param  e  exception thrown by the call
+     * @param  methodName  fully qualified name of the called method
+     * @return  true iff the method appears to be unsupported
+     */
+    private static boolean isUnknownMethod( IOException e,
+                                            String methodName ) {
+        String msg = e.getMessage();
+        return msg != null && msg.indexOf( methodName ) >= 0;
+    }
+
     /**
      * Does the local processing that services the serialized call,
      * and return the corresponding serialized result.
@@ -333,6 +1016,23 @@ public class TlsHubProfile implements HubProfile {
         }
         String webMethodName = webCall.getMethodName();
         List webParams = webCall.getParams();
+
+        // Callbacks that could not be forwarded to a mailbox are
+        // delivered ahead of any still queued.
+        if ( webParams.size() > 0 && webParams.get( 0 ) instanceof String ) {
+            String privateKey = (String) webParams.get( 0 );
+            if ( ( WebClientProfile.WEBSAMP_HUB_PREFIX + "pullCallbacks" )
+                .equals( webMethodName ) ) {
+                List<Object> held = takeUnforwarded( privateKey );
+                if ( held != null ) {
+                    return SampResult.createSuccessResult( held );
+                }
+            }
+            else if ( ( WebClientProfile.WEBSAMP_HUB_PREFIX + "unregister" )
+                     .equals( webMethodName ) ) {
+                takeUnforwarded( privateKey );
+            }
+        }
         HttpServer.Request fakeRequest =
             new HttpServer.Request( null, null, new HashMap(), null, null );
         if ( wxHandler_.canHandleCall( webMethodName ) ) {
@@ -353,6 +1053,97 @@ public class TlsHubProfile implements HubProfile {
         }
     }
 
+    /**
+     * Services a <code>samp.tlshub.requestResource</code> call,
+     * which has no Web Profile equivalent.
+     * The caller's private key is checked, and the requested URL must
+     * be one that the URL tracker permits the web client to see,
+     * that is not a local URL unless it has been sent to a
+     * web client by another client.
+     *
+     * @param  callTag   tag by which the serialized call was requested
+     * @param  call    call with params (callTag, privateKey, url)
+     * @param  relayUrl   URL at which the hub relay resides
+     * @return   upload ready to run once the result has been returned
+     * @throws  Exception  if the request is not permitted or the
+     *                     resource is not available
+     */
+    private ResourceUpload prepareUpload( String callTag, SampCall call,
+                                          URL relayUrl )
+            throws Exception {
+        List params = call.getParams();
+        if ( params.size() != 3 || ! ( params.get( 2 ) instanceof String ) ) {
+            throw new SampException( "Bad params for "
+                                   + call.getMethodName() );
+        }
+
+        // Use the Web Profile handler to reject unregistered callers.
+        HttpServer.Request fakeRequest =
+            new HttpServer.Request( null, null, new HashMap(), null, null );
+        wxHandler_.handleCall( WebClientProfile.WEBSAMP_HUB_PREFIX
+                             + "getRegisteredClients",
+                               Collections.singletonList( params.get( 1 ) ),
+                               fakeRequest );
+        URL srcUrl = new URL( (String) params.get( 2 ) );
+        if ( ! urlTracker_.isUrlPermitted( srcUrl ) ) {
+            throw new SampException( "Access to " + srcUrl
+                                   + " not permitted" );
+        }
+        RelayClientFactory connFactory =
+            xClientFactory_ instanceof RelayClientFactory
+                ? (RelayClientFactory) xClientFactory_
+                : null;
+        return new ResourceUpload( srcUrl, relayUrl, callTag, connFactory );
+    }
+
+    /**
+     * Services a <code>samp.tlshub.openMailbox</code> call,
+     * which has no Web Profile equivalent.
+     * The caller is made callable, as for
+     * <code>allowReverseCallbacks</code>, but with a notifier attached
+     * that forwards its callbacks to the relay mailbox named by the
+     * call tag.  Any existing callable is replaced, so that a client
+     * can reopen a mailbox that the relay has discarded.
+     *
+     * @param  callTag   tag by which the serialized call was requested,
+     *                   used as the mailbox ID
+     * @param  call    call with params (callTag, privateKey)
+     * @param  relayUrl   URL at which the hub relay resides
+     * @return   forwarder to activate once the result has been returned
+     * @throws  Exception  if the caller is not registered
+     */
+    private MailboxForwarder openMailbox( String callTag, SampCall call,
+                                          URL relayUrl )
+            throws Exception {
+        List params = call.getParams();
+        if ( params.size() != 2 || ! ( params.get( 1 ) instanceof String ) ) {
+            throw new SampException( "Bad params for "
+                                   + call.getMethodName() );
+        }
+        String privateKey = (String) params.get( 1 );
+        MailboxForwarder forwarder =
+            new MailboxForwarder( relayUrl, callTag, privateKey );
+        String allowMethod = WebClientProfile.WEBSAMP_HUB_PREFIX
+                           + "allowReverseCallbacks";
+        HttpServer.Request fakeRequest =
+            new HttpServer.Request( null, null, new HashMap(), null, null );
+        MailboxClientProfile.bindNotifier( forwarder );
+        try {
+            wxHandler_.handleCall( allowMethod,
+                                   Arrays.asList( new Object[] {
+                                       privateKey, "0" } ),
+                                   fakeRequest );
+            wxHandler_.handleCall( allowMethod,
+                                   Arrays.asList( new Object[] {
+                                       privateKey, "1" } ),
+                                   fakeRequest );
+        }
+        finally {
+            MailboxClientProfile.bindNotifier( null );
+        }
+        return forwarder;
+    }
+
     /**
      * Converts a serialized call object from a samp.webhub.* (Web Profile)
      * call to the corresponding samp.tlshub.* (TLS Profile) call.
@@ -434,10 +1225,381 @@ public class TlsHubProfile implements HubProfile {
         }
     }
 
+    /**
+     * Keeps a long poll open to a relay for calls belonging to a session,
+     * and services them as they arrive.
+     * It stops when the session has been idle for a while,
+     * when the profile stops, or on error.
+     * Access to the tag list and confirmation flag is synchronized
+     * on the sessionPollers_ map.
+     */
+    private class SessionPoller implements Runnable {
+        private final String key_;
+        private final URL relayUrl_;
+        private final String sessionId_;
+        private final List<String> pendingTags_;
+        private boolean isConfirmed_;
+        private volatile long lastActive_;
+
+        /**
+         * Constructor.
+         *
+         * @param  key  key in sessionPollers_ map
+         * @param  relayUrl   URL of remote message relay service
+         * @param  sessionId  session token
+         */
+        SessionPoller( String key, URL relayUrl, String sessionId ) {
+            key_ = key;
+            relayUrl_ = relayUrl;
+            sessionId_ = sessionId;
+            pendingTags_ = new ArrayList<String>();
+            lastActive_ = System.currentTimeMillis();
+        }
+
+        /**
+         * Records a nudge for this session.
+         * Must be called with the sessionPollers_ lock held.
+         *
+         * @param  callTag  tag of nudged call
+         * @return  true iff the session is confirmed live
+         */
+        boolean nudged( String callTag ) {
+            lastActive_ = System.currentTimeMillis();
+            if ( ! isConfirmed_ ) {
+                pendingTags_.add( callTag );
+            }
+            return isConfirmed_;
+        }
+
+        public void run() {
+            boolean isSupported = false;
+            try {
+                SampXmlRpcClient xClient =
+                    xClientFactory_.createClient( relayUrl_ );
+                List<?> pollParams = Arrays.asList( new String[] {
+                    sessionId_, SampUtils.encodeInt( SESSION_POLL_SEC ),
+                } );
+                logger_.info( "Starting session poll at " + relayUrl_ );
+                while ( isRunning() &&
+                        System.currentTimeMillis() - lastActive_
+                        < SESSION_IDLE_MILLIS ) {
+                    Object polled =
+                        xClient.callAndWait( DISPENSER_PREFIX
+                                           + "pullSessionCalls", pollParams );
+                    if ( ! ( polled instanceof List ) ) {
+                        throw new IOException( "Session poll result "
+                                             + "not a list" );
+                    }
+                    isSupported = true;
+                    confirm();
+                    List polledList = (List) polled;
+                    if ( polledList.size() > 0 ) {
+                        lastActive_ = System.currentTimeMillis();
+                    }
+                    for ( Object item : polledList ) {
+                        submitSessionCall( item );
+                    }
+                }
+                logger_.info( "Ending idle session poll at " + relayUrl_ );
+            }
+            catch ( ConnectException e ) {
+                logger_.log( Level.WARNING, "No hub relay at " + relayUrl_ );
+            }
+            catch ( IOException e ) {
+                if ( isSupported ) {
+                    logger_.log( Level.WARNING, "Session poll error", e );
+                }
+                else {
+                    logger_.info( "No session support at " + relayUrl_
+                                + " (" + e + ")" );
+                    unsessionedRelays_.add( relayUrl_.toString() );
+                }
+            }
+            catch ( Throwable e ) {
+                logger_.log( Level.WARNING, "Session poll error", e );
+            }
+            finally {
+                retire();
+            }
+        }
+
+        /**
+         * Passes a call received by session poll for processing.
+         *
+         * @param  item  pulled call object
+         */
+        private void submitSessionCall( Object item ) {
+            final SampCall call = item instanceof Map
+                                ? SampCall.asCall( (Map) item )
+                                : null;
+            List params = call == null ? null : call.getParams();
+            if ( params == null || params.size() == 0 ||
+                 ! ( params.get( 0 ) instanceof String ) ) {
+                logger_.warning( "Bad session call: " + item );
+                return;
+            }
+            final String callTag = (String) params.get( 0 );
+            callExecutor_.execute( new Runnable() {
+                public void run() {
+                    handleCall( relayUrl_, callTag, call );
+                }
+            } );
+        }
+
+        /**
+         * Records that the relay is delivering calls for this session.
+         * Nudged tags no longer need to be collected individually.
+         */
+        private void confirm() {
+            synchronized ( sessionPollers_ ) {
+                isConfirmed_ = true;
+                pendingTags_.clear();
+            }
+        }
+
+        /**
+         * Removes this poller from service.  Any calls nudged but not
+         * known to have been delivered by the session are collected
+         * individually instead.
+         */
+        private void retire() {
+            List<String> tags;
+            synchronized ( sessionPollers_ ) {
+                if ( sessionPollers_.get( key_ ) == this ) {
+                    sessionPollers_.remove( key_ );
+                }
+                tags = new ArrayList<String>( pendingTags_ );
+                pendingTags_.clear();
+            }
+            for ( String callTag : tags ) {
+                try {
+                    pullBatcher_.add( relayUrl_.toString(), callTag );
+                }
+                catch ( RejectedExecutionException e ) {
+                    logger_.warning( "Can't collect call " + callTag );
+                }
+            }
+        }
+    }
+
+    /**
+     * Pushes the callbacks queued for a web client to its relay mailbox.
+     * It is run, as a notifier, each time a callback is queued;
+     * that schedules a task which drains the client's callback queue
+     * and posts the contents to the relay.  Tasks are coalesced,
+     * and posts for one mailbox are made in order.
+     * Nothing is posted until the relay has accepted the result of the
+     * open request, since the mailbox does not exist before then.
+     * If a post fails the forwarder gives up, and callbacks are left
+     * queued at the hub, where the client can collect them with
+     * <code>pullCallbacks</code> in the usual way;
+     * those of the failed post are held so that they come first.
+     * The forwarder then asks the relay to close the mailbox, so that
+     * the client's next poll of it fails and it reverts to polling
+     * the hub.  If the relay cannot be reached, that is retried
+     * when further callbacks are queued.
+     */
+    private class MailboxForwarder implements Runnable {
+        private final URL relayUrl_;
+        private final String mailboxId_;
+        private final String privateKey_;
+        private final AtomicBoolean isPending_;
+        private volatile boolean isActive_;
+        private volatile boolean isDead_;
+        private volatile boolean mustClose_;
+
+        /**
+         * Constructor.
+         *
+         * @param  relayUrl   URL at which the hub relay resides
+         * @param  mailboxId  mailbox ID
+         * @param  privateKey  private key of the web client
+         */
+        MailboxForwarder( URL relayUrl, String mailboxId,
+                          String privateKey ) {
+            relayUrl_ = relayUrl;
+            mailboxId_ = mailboxId;
+            privateKey_ = privateKey;
+            isPending_ = new AtomicBoolean();
+        }
+
+        /**
+         * Notes that a callback has been queued.
+         */
+        public void run() {
+            if ( isActive_ && ( ! isDead_ || mustClose_ ) &&
+                 isPending_.compareAndSet( false, true ) ) {
+                try {
+                    callExecutor_.execute( new Runnable() {
+                        public void run() {
+                            drain();
+                        }
+                    } );
+                }
+                catch ( RejectedExecutionException e ) {
+                    isPending_.set( false );
+                    logger_.warning( "No callback forwarding for mailbox "
+                                   + mailboxId_ );
+                }
+            }
+        }
+
+        /**
+         * Starts forwarding, including any callbacks queued so far.
+         */
+        void activate() {
+            isActive_ = true;
+            run();
+        }
+
+        /**
+         * Stops forwarding for good.
+         */
+        void cancel() {
+            isDead_ = true;
+        }
+
+        /**
+         * Takes all callbacks queued for the client and posts them to
+         * the mailbox.
+         */
+        private synchronized void drain() {
+            isPending_.set( false );
+            if ( mustClose_ ) {
+                closeMailbox();
+            }
+            WebHubXmlRpcHandler wxHandler = wxHandler_;
+            if ( isDead_ || wxHandler == null ) {
+                return;
+            }
+            HttpServer.Request fakeRequest =
+                new HttpServer.Request( null, null, new HashMap(), null,
+                                        null );
+            Object callbacks;
+            try {
+                callbacks =
+                    wxHandler.handleCall( WebClientProfile.WEBSAMP_HUB_PREFIX
+                                        + "pullCallbacks",
+                                          Arrays.asList( new Object[] {
+                                              privateKey_, "0" } ),
+                                          fakeRequest );
+            }
+            catch ( Exception e ) {
+                logger_.info( "Stopped forwarding to mailbox " + mailboxId_
+                            + ": " + e );
+                isDead_ = true;
+                mustClose_ = true;
+                closeMailbox();
+                return;
+            }
+            List<Object> batch = new ArrayList<Object>();
+            List<Object> held = takeUnforwarded( privateKey_ );
+            if ( held != null ) {
+                batch.addAll( held );
+            }
+            if ( callbacks instanceof List ) {
+                batch.addAll( (List<?>) callbacks );
+            }
+            if ( batch.isEmpty() ) {
+                return;
+            }
+            int ncb = batch.size();
+            try {
+                xClientFactory_.createClient( relayUrl_ )
+                               .callAndWait( DISPENSER_PREFIX
+                                           + CallbackMailboxes.POST_METHOD,
+                                             Arrays.asList( new Object[] {
+                                                 mailboxId_, batch } ) );
+                logger_.info( "Posted " + ncb + " callbacks to mailbox "
+                            + mailboxId_ );
+            }
+            catch ( IOException e ) {
+                logger_.warning( "Failed to post " + ncb
+                               + " callbacks to mailbox " + mailboxId_
+                               + " (" + e + ") - stopped forwarding" );
+                putUnforwarded( privateKey_, batch );
+                isDead_ = true;
+                mustClose_ = true;
+                closeMailbox();
+            }
+        }
+
+        /**
+         * Asks the relay to close the mailbox.
+         * If the relay cannot be reached, it will be asked again
+         * next time this forwarder runs.
+         */
+        private void closeMailbox() {
+            try {
+                xClientFactory_.createClient( relayUrl_ )
+                               .callAndWait( DISPENSER_PREFIX
+                                           + CallbackMailboxes.CLOSE_METHOD,
+                                             Collections
+                                            .singletonList( mailboxId_ ) );
+                logger_.info( "Closed mailbox " + mailboxId_ );
+                mustClose_ = false;
+            }
+            catch ( ConnectException e ) {
+                logger_.warning( "No hub relay at " + relayUrl_
+                               + " to close mailbox " + mailboxId_ );
+            }
+            catch ( IOException e ) {
+                logger_.info( "Failed to close mailbox " + mailboxId_
+                            + " (" + e + ")" );
+                mustClose_ = false;
+            }
+        }
+    }
+
+    /**
+     * Result of a serviced call, awaiting return to the relay.
+     */
+    private static class TaggedResult {
+        final String callTag_;
+        final SampResult result_;
+        final String callStr_;
+        final HubMetrics.MethodStats stats_;
+        final long readyNanos_;
+        final ResourceUpload upload_;
+        final MailboxForwarder mailbox_;
+
+        /**
+         * Constructor.
+         *
+         * @param  callTag   tag by which the serialized call was requested
+         * @param  result    serialized result object
+         * @param  callStr   short description of call for logging
+         * @param  stats   statistics for the call's method and relay
+         * @param  readyNanos  System.nanoTime at which result was ready
+         * @param  upload   resource upload to run once the result has been
+         *                  returned, or null
+         * @param  mailbox  mailbox forwarder to activate once the result
+         *                  has been returned, or null
+         */
+        TaggedResult( String callTag, SampResult result, String callStr,
+                      HubMetrics.MethodStats stats, long readyNanos,
+                      ResourceUpload upload, MailboxForwarder mailbox ) {
+            callTag_ = callTag;
+            result_ = result;
+            callStr_ = callStr;
+            stats_ = stats;
+            readyNanos_ = readyNanos;
+            upload_ = upload;
+            mailbox_ = mailbox;
+        }
+    }
+
     /**
      * Makes sense of a nudge URL.
+     * This is like {@link ParsedUrl}, but cheaper: the query is scanned
+     * once, only the parameters used by the nudge handler are kept,
+     * and text is only URL-decoded if it contains escapes.
      */
-    private static class NudgeParsedUrl extends ParsedUrl {
+    static class NudgeParsedUrl {
+        private final String path_;
+        private String relayLoc_;
+        private String callTag_;
+        private String sessionId_;
 
         /**
          * Constructor.
@@ -445,7 +1607,45 @@ public class TlsHubProfile implements HubProfile {
          * @param   localPart   local part of URL
          */
         NudgeParsedUrl( String localPart ) {
-            super( localPart );
+            int iq = localPart.indexOf( '?' );
+            if ( iq < 0 ) {
+                path_ = localPart;
+                return;
+            }
+            path_ = urlDecode( localPart.substring( 0, iq ) );
+            int leng = localPart.length();
+            for ( int is = iq + 1; is < leng; ) {
+                int ie = localPart.indexOf( '&', is );
+                if ( ie < 0 ) {
+                    ie = leng;
+                }
+                int iv = localPart.indexOf( '=', is );
+                if ( iv < 0 || iv > ie ) {
+                    iv = ie;
+                }
+                String value = iv < ie
+                             ? urlDecode( localPart.substring( iv + 1, ie ) )
+                             : "";
+                if ( isKey( localPart, is, iv, RELAYURL_PARAM ) ) {
+                    relayLoc_ = value;
+                }
+                else if ( isKey( localPart, is, iv, CALLTAG_PARAM ) ) {
+                    callTag_ = value;
+                }
+                else if ( isKey( localPart, is, iv, SESSION_PARAM ) ) {
+                    sessionId_ = value;
+                }
+                is = ie + 1;
+            }
+        }
+
+        /**
+         * Returns the path part of the supplied URL.
+         *
+         * @return   localPart excluding query part
+         */
+        String getPath() {
+            return path_;
         }
 
         /**
@@ -455,15 +1655,15 @@ public class TlsHubProfile implements HubProfile {
          * @return   remote URL for message retrieval, or null
          */
         URL getRelayUrl() {
-            String relayUrl = getParams().get( RELAYURL_PARAM );
-            if ( relayUrl == null ) {
+            if ( relayLoc_ == null ) {
                 return null;
             }
             try {
-                return new URL( relayUrl );
+                return new URL( relayLoc_ );
             }
             catch ( MalformedURLException e ) {
-                logger_.warning( "Relay location not URL (" + relayUrl + ")" );
+                logger_.warning( "Relay location not URL (" + relayLoc_
+                               + ")" );
                 return null;
             }
         }
@@ -475,7 +1675,16 @@ public class TlsHubProfile implements HubProfile {
          * @return  call tag
          */
         String getCallTag() {
-            return getParams().get( CALLTAG_PARAM );
+            return callTag_;
+        }
+
+        /**
+         * Returns the session token, if any.
+         *
+         * @return  session token, or null
+         */
+        String getSessionId() {
+            return sessionId_;
         }
 
         /**
@@ -485,7 +1694,48 @@ public class TlsHubProfile implements HubProfile {
          * @return  true if this is an initialisation call
          */
         public boolean isInit() {
-            return ! getParams().containsKey( RELAYURL_PARAM );
+            return relayLoc_ == null;
+        }
+
+        /**
+         * Indicates whether a region of a string, once decoded,
+         * is equal to a given parameter name.
+         *
+         * @param  txt  string
+         * @param  start  start index of region
+         * @param  end  end index of region
+         * @param  key  parameter name, containing no escapable characters
+         * @return  true iff region represents key
+         */
+        private static boolean isKey( String txt, int start, int end,
+                                      String key ) {
+            int leng = end - start;
+            return leng == key.length()
+                 ? txt.regionMatches( start, key, 0, leng )
+                 : leng > key.length() &&
+                   key.equals( urlDecode( txt.substring( start, end ) ) );
+        }
+
+        /**
+         * Decodes text if it contains escapes.
+         *
+         * @param   txt  input string
+         * @return   unescaped text
+         */
+        private static String urlDecode( String txt ) {
+            if ( txt.indexOf( '%' ) < 0 && txt.indexOf( '+' ) < 0 ) {
+                return txt;
+            }
+            try {
+                return URLDecoder.decode( txt, "UTF-8" );
+            }
+            catch ( UnsupportedEncodingException e ) {
+                throw new AssertionError( "UTF-8 unsupported??" );
+            }
+            catch ( IllegalArgumentException e ) {
+                logger_.warning( "Bad URL encoding: " + txt );
+                return txt;
+            }
         }
     }
 }
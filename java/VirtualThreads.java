@@ -0,0 +1,89 @@
+package org.astrogrid.samp.tls;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides virtual threads where the JVM supports them (Java 21+).
+ * The relevant API is invoked by reflection, so that this code
+ * can be compiled for, and run on, earlier JVMs, where the methods
+ * here just report that virtual threads are not available.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+class VirtualThreads {
+
+    private static final Logger logger_ =
+        Logger.getLogger( VirtualThreads.class.getName() );
+
+    /**
+     * Private constructor prevents instantiation.
+     */
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread.
+     *
+     * @param  name  thread name prefix; threads are named with a
+     *               sequence number appended
+     * @return  executor, or null if virtual threads are not available
+     */
+    public static ExecutorService createExecutor( String name ) {
+        try {
+            Class<?> builderClazz = Class.forName( "java.lang.Thread$Builder" );
+            Method ofVirtual = Thread.class.getMethod( "ofVirtual" );
+            Method nameMethod =
+                builderClazz.getMethod( "name", String.class, long.class );
+            Method factoryMethod = builderClazz.getMethod( "factory" );
+            Method newExecutor =
+                Executors.class.getMethod( "newThreadPerTaskExecutor",
+                                           ThreadFactory.class );
+            Object builder = ofVirtual.invoke( null );
+            builder = nameMethod.invoke( builder, name + "-",
+                                         Long.valueOf( 0 ) );
+            ThreadFactory tfact =
+                (ThreadFactory) factoryMethod.invoke( builder );
+            return (ExecutorService) newExecutor.invoke( null, tfact );
+        }
+        catch ( ClassNotFoundException e ) {
+            return null;
+        }
+        catch ( NoSuchMethodException e ) {
+            return null;
+        }
+
+        // For instance UnsupportedOperationException if this is a JVM
+        // on which virtual threads are a preview feature.
+        catch ( Exception e ) {
+            logger_.log( Level.INFO, "Virtual threads not available", e );
+            return null;
+        }
+    }
+
+    /**
+     * Indicates whether a virtual thread blocking in
+     * <code>Object.wait</code>, or waiting to enter a synchronized block,
+     * keeps hold of its carrier thread on this JVM.
+     * That is the case before Java 24.
+     * JSAMP uses monitors for some long waits, notably in the
+     * Web Profile <code>pullCallbacks</code> method,
+     * so on such JVMs virtual threads give less benefit than they might.
+     *
+     * @return  true iff monitors pin virtual threads
+     */
+    public static boolean isMonitorPinning() {
+        String version = System.getProperty( "java.specification.version" );
+        try {
+            return Integer.parseInt( version ) < 24;
+        }
+        catch ( NumberFormatException e ) {
+            return true;  // 1.8 and earlier
+        }
+    }
+}
@@ -0,0 +1,656 @@
+package org.astrogrid.samp.tls;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal pull tokenizer for UTF-8 XML held in a byte array.
+ * It is intended for locating the elements of XML-RPC documents
+ * cheaply, so that parts of them can be forwarded as raw bytes
+ * without being decoded.
+ *
+ * <p>Although it decodes very little, the scanner checks everything it
+ * passes over for the properties that matter if the bytes are to be
+ * spliced unchanged into another document: element tags are balanced,
+ * character and entity references are well-formed, and character data
+ * is legal UTF-8 without forbidden control characters.
+ * It does not support DTDs, attributes, or encodings other than
+ * UTF-8 (and its subset ASCII); it fails with an IOException if it
+ * finds them, so callers can fall back to a full XML parser.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+class XmlByteScanner {
+
+    /** Token type for end of input. */
+    public static final int EOF = 0;
+
+    /** Token type for character data, including references and CDATA. */
+    public static final int TEXT = 1;
+
+    /** Token type for a start tag. */
+    public static final int START_TAG = 2;
+
+    /** Token type for an end tag. */
+    public static final int END_TAG = 3;
+
+    /** Token type for an empty-element tag. */
+    public static final int EMPTY_TAG = 4;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final byte[] COMMENT_START = toAscii( "<!--" );
+    private static final byte[] COMMENT_END = toAscii( "-->" );
+    private static final byte[] CDATA_START = toAscii( "<![CDATA[" );
+    private static final byte[] CDATA_END = toAscii( "]]>" );
+    private static final byte[] PI_START = toAscii( "<?" );
+    private static final byte[] PI_END = toAscii( "?>" );
+    private static final byte[] XMLDECL_START = toAscii( "<?xml" );
+    private static final Pattern ENCODING_REGEX =
+        Pattern.compile( "encoding\\s*=\\s*[\"']([^\"']*)[\"']" );
+    private static final String[] ENTITY_NAMES =
+        { "amp", "lt", "gt", "quot", "apos" };
+    private static final char[] ENTITY_CHARS =
+        { '&', '<', '>', '"', '\'' };
+
+    private final byte[] buf_;
+    private final int end_;
+    private int pos_;
+    private int tokStart_;
+    private int nameStart_;
+    private int nameEnd_;
+    private boolean isPlainText_;
+    private int[] stack_;
+    private int depth_;
+
+    /**
+     * Constructor.
+     *
+     * @param  buf  buffer containing XML
+     * @param  off  offset of XML start in buffer
+     * @param  len  number of bytes of XML
+     */
+    XmlByteScanner( byte[] buf, int off, int len ) {
+        buf_ = buf;
+        pos_ = off;
+        end_ = off + len;
+        stack_ = new int[ 32 ];
+        if ( len >= 3 && ( buf[ off ] & 0xff ) == 0xef
+                      && ( buf[ off + 1 ] & 0xff ) == 0xbb
+                      && ( buf[ off + 2 ] & 0xff ) == 0xbf ) {
+            pos_ += 3;
+        }
+    }
+
+    /**
+     * Advances to the next token.
+     * Comments and processing instructions are skipped.
+     *
+     * @return  token type
+     */
+    public int next() throws IOException {
+        while ( true ) {
+            tokStart_ = pos_;
+            if ( pos_ >= end_ ) {
+                if ( depth_ > 0 ) {
+                    throw new IOException( "Unexpected end of document" );
+                }
+                return EOF;
+            }
+            if ( buf_[ pos_ ] != '<' || startsWith( CDATA_START, pos_ ) ) {
+                scanText();
+                return TEXT;
+            }
+            else if ( startsWith( COMMENT_START, pos_ ) ) {
+                int iend = indexOf( COMMENT_END, pos_ + COMMENT_START.length );
+                checkChars( pos_ + COMMENT_START.length, iend );
+                pos_ = iend + COMMENT_END.length;
+            }
+            else if ( startsWith( PI_START, pos_ ) ) {
+                int iend = indexOf( PI_END, pos_ + PI_START.length );
+                checkChars( pos_ + PI_START.length, iend );
+                if ( startsWith( XMLDECL_START, pos_ ) ) {
+                    checkDeclaration( pos_, iend );
+                }
+                pos_ = iend + PI_END.length;
+            }
+            else if ( pos_ + 1 < end_ && buf_[ pos_ + 1 ] == '!' ) {
+                throw new IOException( "DTD not supported" );
+            }
+            else if ( pos_ + 1 < end_ && buf_[ pos_ + 1 ] == '/' ) {
+                scanEndTag();
+                return END_TAG;
+            }
+            else {
+                return scanStartTag();
+            }
+        }
+    }
+
+    /**
+     * Advances to the next tag, skipping whitespace.
+     *
+     * @return  token type, one of START_TAG, END_TAG, EMPTY_TAG or EOF
+     * @throws  IOException  if non-whitespace text is encountered
+     */
+    public int nextTag() throws IOException {
+        while ( true ) {
+            int type = next();
+            if ( type != TEXT ) {
+                return type;
+            }
+            if ( ! isWhitespace() ) {
+                throw new IOException( "Unexpected text content" );
+            }
+        }
+    }
+
+    /**
+     * Advances past the content and end tag of the element whose
+     * start tag has just been read.
+     */
+    public void skipElement() throws IOException {
+        int depth = depth_ - 1;
+        while ( ! ( next() == END_TAG && depth_ == depth ) ) {
+        }
+    }
+
+    /**
+     * Reads the text content of the element whose start tag has just
+     * been read, and advances past its end tag.
+     *
+     * @return   decoded text content
+     * @throws  IOException  if the element has child elements
+     */
+    public String readText() throws IOException {
+        String txt = null;
+        StringBuilder sbuf = null;
+        while ( true ) {
+            int type = next();
+            if ( type == END_TAG ) {
+                return sbuf != null ? sbuf.toString()
+                                    : txt != null ? txt : "";
+            }
+            else if ( type == TEXT ) {
+                String t = getText();
+                if ( txt == null ) {
+                    txt = t;
+                }
+                else {
+                    if ( sbuf == null ) {
+                        sbuf = new StringBuilder( txt );
+                    }
+                    sbuf.append( t );
+                }
+            }
+            else {
+                throw new IOException( "Unexpected element in text" );
+            }
+        }
+    }
+
+    /**
+     * Indicates whether the most recently read tag has a given name.
+     *
+     * @param  name  ASCII element name
+     * @return  true iff name matches
+     */
+    public boolean isName( String name ) {
+        int n = name.length();
+        if ( nameEnd_ - nameStart_ != n ) {
+            return false;
+        }
+        for ( int i = 0; i < n; i++ ) {
+            if ( buf_[ nameStart_ + i ] != name.charAt( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the offset in the buffer of the start of the
+     * most recently read token.
+     *
+     * @return  token start offset
+     */
+    public int getTokenStart() {
+        return tokStart_;
+    }
+
+    /**
+     * Returns the offset in the buffer just after the
+     * most recently read token.
+     *
+     * @return  current position
+     */
+    public int getPosition() {
+        return pos_;
+    }
+
+    /**
+     * Returns the decoded content of the most recently read TEXT token.
+     *
+     * @return  text
+     */
+    public String getText() throws IOException {
+        if ( isPlainText_ ) {
+            return new String( buf_, tokStart_, pos_ - tokStart_, UTF8 );
+        }
+        StringBuilder sbuf = new StringBuilder();
+        int ip = tokStart_;
+        while ( ip < pos_ ) {
+            byte b = buf_[ ip ];
+            if ( b == '&' ) {
+                int iend = ip;
+                while ( buf_[ iend ] != ';' ) {
+                    iend++;
+                }
+                sbuf.appendCodePoint( decodeRef( ip + 1, iend ) );
+                ip = iend + 1;
+            }
+            else if ( b == '<' ) {
+                int istart = ip + CDATA_START.length;
+                int iend = indexOf( CDATA_END, istart );
+                appendNormalized( sbuf, istart, iend );
+                ip = iend + CDATA_END.length;
+            }
+            else {
+                int iend = ip;
+                while ( iend < pos_ && buf_[ iend ] != '&'
+                                    && buf_[ iend ] != '<' ) {
+                    iend++;
+                }
+                appendNormalized( sbuf, ip, iend );
+                ip = iend;
+            }
+        }
+        return sbuf.toString();
+    }
+
+    /**
+     * Indicates whether the most recently read TEXT token is
+     * all literal whitespace.
+     *
+     * @return  true iff whitespace
+     */
+    private boolean isWhitespace() {
+        for ( int i = tokStart_; i < pos_; i++ ) {
+            byte b = buf_[ i ];
+            if ( b != ' ' && b != '\t' && b != '\n' && b != '\r' ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans a run of character data, references and CDATA sections,
+     * up to the next markup.
+     */
+    private void scanText() throws IOException {
+        boolean isPlain = true;
+        while ( pos_ < end_ ) {
+            int b = buf_[ pos_ ] & 0xff;
+            if ( b == '<' ) {
+                if ( startsWith( CDATA_START, pos_ ) ) {
+                    int istart = pos_ + CDATA_START.length;
+                    int iend = indexOf( CDATA_END, istart );
+                    checkChars( istart, iend );
+                    pos_ = iend + CDATA_END.length;
+                    isPlain = false;
+                }
+                else {
+                    break;
+                }
+            }
+            else if ( b == '&' ) {
+                pos_ = scanRef( pos_ );
+                isPlain = false;
+            }
+            else if ( b == '\r' ) {
+                pos_++;
+                isPlain = false;
+            }
+            else {
+                pos_ = scanChar( pos_ );
+            }
+        }
+        isPlainText_ = isPlain;
+    }
+
+    /**
+     * Scans a start or empty-element tag.
+     *
+     * @return  START_TAG or EMPTY_TAG
+     */
+    private int scanStartTag() throws IOException {
+        int ip = scanName( pos_ + 1 );
+        while ( ip < end_ && isSpace( buf_[ ip ] ) ) {
+            ip++;
+        }
+        boolean isEmpty = ip < end_ && buf_[ ip ] == '/';
+        if ( isEmpty ) {
+            ip++;
+        }
+        if ( ip >= end_ || buf_[ ip ] != '>' ) {
+            throw new IOException( "Unsupported tag content" );
+        }
+        pos_ = ip + 1;
+        if ( isEmpty ) {
+            return EMPTY_TAG;
+        }
+        else {
+            if ( 2 * depth_ + 2 > stack_.length ) {
+                int[] stack = new int[ stack_.length * 2 ];
+                System.arraycopy( stack_, 0, stack, 0, stack_.length );
+                stack_ = stack;
+            }
+            stack_[ 2 * depth_ ] = nameStart_;
+            stack_[ 2 * depth_ + 1 ] = nameEnd_;
+            depth_++;
+            return START_TAG;
+        }
+    }
+
+    /**
+     * Scans an end tag, checking that it matches the open start tag.
+     */
+    private void scanEndTag() throws IOException {
+        int ip = scanName( pos_ + 2 );
+        while ( ip < end_ && isSpace( buf_[ ip ] ) ) {
+            ip++;
+        }
+        if ( ip >= end_ || buf_[ ip ] != '>' ) {
+            throw new IOException( "Bad end tag" );
+        }
+        pos_ = ip + 1;
+        if ( depth_ == 0 ) {
+            throw new IOException( "Unmatched end tag" );
+        }
+        depth_--;
+        int s0 = stack_[ 2 * depth_ ];
+        int leng = stack_[ 2 * depth_ + 1 ] - s0;
+        if ( leng != nameEnd_ - nameStart_ ) {
+            throw new IOException( "Mismatched end tag" );
+        }
+        for ( int i = 0; i < leng; i++ ) {
+            if ( buf_[ s0 + i ] != buf_[ nameStart_ + i ] ) {
+                throw new IOException( "Mismatched end tag" );
+            }
+        }
+    }
+
+    /**
+     * Scans an element name, recording its extent.
+     *
+     * @param  ip  offset of name start
+     * @return  offset after name
+     */
+    private int scanName( int ip ) throws IOException {
+        nameStart_ = ip;
+        while ( ip < end_ ) {
+            int b = buf_[ ip ] & 0xff;
+            if ( ( b >= 'a' && b <= 'z' ) || ( b >= 'A' && b <= 'Z' ) ||
+                 b == '_' || b == ':' ||
+                 ( ip > nameStart_ &&
+                   ( ( b >= '0' && b <= '9' ) || b == '-' || b == '.' ) ) ) {
+                ip++;
+            }
+            else if ( b >= 0x80 ) {
+                ip = scanChar( ip );
+            }
+            else {
+                break;
+            }
+        }
+        nameEnd_ = ip;
+        if ( nameEnd_ == nameStart_ ) {
+            throw new IOException( "Bad element name" );
+        }
+        return ip;
+    }
+
+    /**
+     * Scans a character or entity reference.
+     *
+     * @param  ip  offset of '&amp;'
+     * @return   offset after terminating ';'
+     */
+    private int scanRef( int ip ) throws IOException {
+        int istart = ip + 1;
+        int iend = istart;
+        while ( iend < end_ && iend - istart < 12 && buf_[ iend ] != ';' ) {
+            iend++;
+        }
+        if ( iend >= end_ || buf_[ iend ] != ';' ) {
+            throw new IOException( "Bad reference" );
+        }
+        decodeRef( istart, iend );
+        return iend + 1;
+    }
+
+    /**
+     * Decodes a character or predefined entity reference.
+     *
+     * @param  istart  offset after '&amp;'
+     * @param  iend    offset of ';'
+     * @return  referenced code point
+     */
+    private int decodeRef( int istart, int iend ) throws IOException {
+        if ( iend > istart && buf_[ istart ] == '#' ) {
+            boolean isHex = iend > istart + 1 && buf_[ istart + 1 ] == 'x';
+            int radix = isHex ? 16 : 10;
+            int ip = istart + ( isHex ? 2 : 1 );
+            if ( ip == iend ) {
+                throw new IOException( "Bad character reference" );
+            }
+            int cp = 0;
+            for ( ; ip < iend; ip++ ) {
+                int digit = Character.digit( (char) buf_[ ip ], radix );
+                if ( digit < 0 || cp > 0x10ffff ) {
+                    throw new IOException( "Bad character reference" );
+                }
+                cp = cp * radix + digit;
+            }
+            if ( ! isXmlChar( cp ) ) {
+                throw new IOException( "Illegal character reference" );
+            }
+            return cp;
+        }
+        for ( int ie = 0; ie < ENTITY_NAMES.length; ie++ ) {
+            String name = ENTITY_NAMES[ ie ];
+            if ( name.length() == iend - istart ) {
+                boolean match = true;
+                for ( int i = 0; i < name.length() && match; i++ ) {
+                    match = buf_[ istart + i ] == name.charAt( i );
+                }
+                if ( match ) {
+                    return ENTITY_CHARS[ ie ];
+                }
+            }
+        }
+        throw new IOException( "Unknown entity" );
+    }
+
+    /**
+     * Checks that a byte range contains only legal character data.
+     *
+     * @param  istart  start offset
+     * @param  iend   end offset
+     */
+    private void checkChars( int istart, int iend ) throws IOException {
+        for ( int ip = istart; ip < iend; ) {
+            ip = scanChar( ip );
+        }
+    }
+
+    /**
+     * Scans a single legal UTF-8 encoded XML character.
+     *
+     * @param  ip  offset of first byte
+     * @return  offset after last byte
+     */
+    private int scanChar( int ip ) throws IOException {
+        int b0 = buf_[ ip ] & 0xff;
+        if ( b0 < 0x80 ) {
+            if ( b0 < 0x20 && b0 != '\t' && b0 != '\n' && b0 != '\r' ) {
+                throw new IOException( "Illegal control character" );
+            }
+            return ip + 1;
+        }
+        int ncont;
+        int lo = 0x80;
+        int hi = 0xbf;
+        if ( b0 >= 0xc2 && b0 <= 0xdf ) {
+            ncont = 1;
+        }
+        else if ( b0 >= 0xe0 && b0 <= 0xef ) {
+            ncont = 2;
+            if ( b0 == 0xe0 ) {
+                lo = 0xa0;
+            }
+            else if ( b0 == 0xed ) {
+                hi = 0x9f;
+            }
+        }
+        else if ( b0 >= 0xf0 && b0 <= 0xf4 ) {
+            ncont = 3;
+            if ( b0 == 0xf0 ) {
+                lo = 0x90;
+            }
+            else if ( b0 == 0xf4 ) {
+                hi = 0x8f;
+            }
+        }
+        else {
+            throw new IOException( "Bad UTF-8" );
+        }
+        if ( ip + ncont >= end_ ) {
+            throw new IOException( "Truncated UTF-8" );
+        }
+        for ( int i = 1; i <= ncont; i++ ) {
+            int b = buf_[ ip + i ] & 0xff;
+            if ( b < lo || b > hi ) {
+                throw new IOException( "Bad UTF-8" );
+            }
+            lo = 0x80;
+            hi = 0xbf;
+        }
+        if ( b0 == 0xef && ( buf_[ ip + 1 ] & 0xff ) == 0xbf &&
+             ( buf_[ ip + 2 ] & 0xff ) >= 0xbe ) {
+            throw new IOException( "Illegal character U+FFFE/F" );
+        }
+        return ip + 1 + ncont;
+    }
+
+    /**
+     * Checks that an XML declaration does not declare an encoding
+     * other than UTF-8 or ASCII.
+     *
+     * @param  istart  offset of declaration start
+     * @param  iend    offset of declaration end
+     */
+    private void checkDeclaration( int istart, int iend ) throws IOException {
+        String decl = new String( buf_, istart, iend - istart, UTF8 );
+        Matcher matcher = ENCODING_REGEX.matcher( decl );
+        if ( matcher.find() ) {
+            String enc = matcher.group( 1 );
+            if ( ! "UTF-8".equalsIgnoreCase( enc ) &&
+                 ! "US-ASCII".equalsIgnoreCase( enc ) &&
+                 ! "ASCII".equalsIgnoreCase( enc ) ) {
+                throw new IOException( "Unsupported encoding " + enc );
+            }
+        }
+    }
+
+    /**
+     * Appends UTF-8 bytes to a buffer as characters,
+     * applying XML end-of-line normalization.
+     *
+     * @param  sbuf  destination
+     * @param  istart  start offset
+     * @param  iend   end offset
+     */
+    private void appendNormalized( StringBuilder sbuf, int istart, int iend ) {
+        String txt = new String( buf_, istart, iend - istart, UTF8 );
+        sbuf.append( txt.indexOf( '\r' ) >= 0
+                   ? txt.replace( "\r\n", "\n" ).replace( '\r', '\n' )
+                   : txt );
+    }
+
+    /**
+     * Indicates whether a sequence of bytes appears at a given offset.
+     *
+     * @param  seq  byte sequence
+     * @param  ip  offset
+     * @return  true iff buffer contains seq at ip
+     */
+    private boolean startsWith( byte[] seq, int ip ) {
+        if ( ip + seq.length > end_ ) {
+            return false;
+        }
+        for ( int i = 0; i < seq.length; i++ ) {
+            if ( buf_[ ip + i ] != seq[ i ] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Locates a byte sequence.
+     *
+     * @param  seq  byte sequence
+     * @param  ip  offset at which to start looking
+     * @return   offset of sequence
+     * @throws  IOException  if it's not there
+     */
+    private int indexOf( byte[] seq, int ip ) throws IOException {
+        for ( ; ip + seq.length <= end_; ip++ ) {
+            if ( startsWith( seq, ip ) ) {
+                return ip;
+            }
+        }
+        throw new IOException( "Unterminated markup" );
+    }
+
+    /**
+     * Indicates whether a byte is XML whitespace.
+     *
+     * @param  b  byte
+     * @return  true iff space
+     */
+    private static boolean isSpace( byte b ) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * Indicates whether a code point is a legal XML 1.0 character.
+     *
+     * @param  cp  code point
+     * @return  true iff legal
+     */
+    private static boolean isXmlChar( int cp ) {
+        return cp == 0x9 || cp == 0xa || cp == 0xd
+            || ( cp >= 0x20 && cp <= 0xd7ff )
+            || ( cp >= 0xe000 && cp <= 0xfffd )
+            || ( cp >= 0x10000 && cp <= 0x10ffff );
+    }
+
+    /**
+     * Converts an ASCII string to bytes.
+     *
+     * @param  txt  ASCII string
+     * @return  byte array
+     */
+    private static byte[] toAscii( String txt ) {
+        byte[] bytes = new byte[ txt.length() ];
+        for ( int i = 0; i < bytes.length; i++ ) {
+            bytes[ i ] = (byte) txt.charAt( i );
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,496 @@
+package org.astrogrid.samp.tls;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.astrogrid.samp.xmlrpc.internal.XmlRpcCall;
+
+/**
+ * Decodes XML-RPC methodCall documents using a streaming (StAX) parser.
+ * The method name and SAMP-compatible parameter list are built directly
+ * from the parse events, without constructing an intermediate DOM.
+ * The decoding rules are the same as those of JSAMP's
+ * <code>XmlRpcCall.createCall</code>: untyped and
+ * <code>&lt;string&gt;</code> values become Strings,
+ * <code>&lt;array&gt;</code> and <code>&lt;struct&gt;</code> become
+ * Lists and Maps, and the other scalar types are decoded as the
+ * corresponding Java wrapper types, though SAMP does not use them.
+ *
+ * <p>The input factory is confined to the calling thread, since
+ * creating one is comparatively expensive and factories are not
+ * guaranteed to be thread-safe.  DTD processing is disabled,
+ * since it has no place in XML-RPC and opens the door to entity
+ * expansion attacks.
+ *
+ * <p>Calls held in memory can alternatively be decoded according to an
+ * {@link OpaquePolicy}, which allows trailing parameters to be left
+ * undecoded as {@link OpaqueValue}s.  This is done using a
+ * lightweight byte scanner rather than the StAX parser, falling back to
+ * full decoding if the document uses XML features the scanner does
+ * not support.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class XmlRpcDecoder {
+
+    private static final ThreadLocal<XMLInputFactory> factory_ =
+            new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory fact = XMLInputFactory.newInstance();
+            fact.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+            fact.setProperty( XMLInputFactory
+                             .IS_SUPPORTING_EXTERNAL_ENTITIES,
+                              Boolean.FALSE );
+            fact.setProperty( XMLInputFactory.IS_COALESCING, Boolean.TRUE );
+            return fact;
+        }
+    };
+    private static final Logger logger_ =
+        Logger.getLogger( XmlRpcDecoder.class.getName() );
+
+    /**
+     * Private constructor prevents instantiation.
+     */
+    private XmlRpcDecoder() {
+    }
+
+    /**
+     * Reads an XML-RPC methodCall document from a stream.
+     * The stream is not closed.
+     *
+     * @param  in  input stream
+     * @return  decoded call
+     * @throws  IOException  in case of read error or
+     *                       if the input is not a valid XML-RPC call
+     */
+    public static XmlRpcCall decodeCall( InputStream in ) throws IOException {
+        XMLStreamReader rdr = null;
+        try {
+            rdr = factory_.get().createXMLStreamReader( in );
+            return readCall( rdr );
+        }
+        catch ( XMLStreamException e ) {
+            throw (IOException)
+                  new IOException( "XML-RPC parse error: " + e.getMessage() )
+                 .initCause( e );
+        }
+        catch ( RuntimeException e ) {
+            throw (IOException)
+                  new IOException( "XML-RPC parse error: " + e )
+                 .initCause( e );
+        }
+        finally {
+            if ( rdr != null ) {
+                try {
+                    rdr.close();
+                }
+                catch ( XMLStreamException e ) {
+                    // never mind
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes an XML-RPC methodCall document held in a byte array,
+     * optionally leaving some of its parameters undecoded.
+     * If a policy is supplied, and the document is in a form that the
+     * byte scanner understands, parameters beyond the number requested
+     * by the policy are returned as {@link OpaqueValue}s, which refer
+     * to the supplied buffer; the buffer must therefore not be modified
+     * while the call is in use.
+     * Other parameters are decoded as usual, and if the policy
+     * or the scanner declines to handle the document,
+     * the whole call is decoded as for {@link #decodeCall(InputStream)}.
+     *
+     * @param  buf  buffer containing document
+     * @param  off  offset of document start
+     * @param  len  length of document in bytes
+     * @param  policy  determines which parameters may be left undecoded;
+     *                 may be null for full decoding
+     * @return  decoded call
+     * @throws  IOException  if the input is not a valid XML-RPC call
+     */
+    public static XmlRpcCall decodeCall( byte[] buf, int off, int len,
+                                         OpaquePolicy policy )
+            throws IOException {
+        if ( policy != null ) {
+            try {
+                XmlRpcCall call = scanCall( buf, off, len, policy );
+                if ( call != null ) {
+                    return call;
+                }
+            }
+            catch ( IOException e ) {
+                logger_.config( "Opaque scan failed, fall back to full decode"
+                              + " (" + e.getMessage() + ")" );
+            }
+        }
+        return decodeCall( new ByteArrayInputStream( buf, off, len ) );
+    }
+
+    /**
+     * Fully decodes a serialized XML-RPC value element.
+     *
+     * @param  buf  buffer containing value element
+     * @param  off  offset of value start tag
+     * @param  len  length of value element in bytes
+     * @return  SAMP-compatible value
+     * @throws  IOException  if the input is not a valid XML-RPC value
+     */
+    static Object decodeValue( byte[] buf, int off, int len )
+            throws IOException {
+        XMLStreamReader rdr = null;
+        try {
+            rdr = factory_.get()
+                 .createXMLStreamReader( new ByteArrayInputStream( buf, off,
+                                                                   len ) );
+            rdr.nextTag();
+            requireStart( rdr, "value" );
+            return readValue( rdr );
+        }
+        catch ( XMLStreamException e ) {
+            throw (IOException)
+                  new IOException( "XML-RPC parse error: " + e.getMessage() )
+                 .initCause( e );
+        }
+        finally {
+            if ( rdr != null ) {
+                try {
+                    rdr.close();
+                }
+                catch ( XMLStreamException e ) {
+                    // never mind
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes a methodCall document using the byte scanner,
+     * leaving parameters undecoded according to a given policy.
+     *
+     * @param  buf  buffer containing document
+     * @param  off  offset of document start
+     * @param  len  length of document in bytes
+     * @param  policy  opaque decoding policy
+     * @return  decoded call, or null if full decoding should be used instead
+     */
+    private static XmlRpcCall scanCall( byte[] buf, int off, int len,
+                                        OpaquePolicy policy )
+            throws IOException {
+        XmlByteScanner scanner = new XmlByteScanner( buf, off, len );
+        if ( scanner.nextTag() != XmlByteScanner.START_TAG ||
+             ! scanner.isName( "methodCall" ) ) {
+            return null;
+        }
+        String methodName = null;
+        List params = new ArrayList();
+        int tok;
+        while ( ( tok = scanner.nextTag() ) == XmlByteScanner.START_TAG ) {
+            if ( scanner.isName( "methodName" ) && methodName == null ) {
+                methodName = scanner.readText().trim();
+            }
+            else if ( scanner.isName( "params" ) && methodName != null ) {
+                int nDecode = policy.getDecodedParamCount( methodName );
+                if ( nDecode < 0 ) {
+                    return null;
+                }
+                while ( scanner.nextTag() == XmlByteScanner.START_TAG ) {
+                    if ( ! scanner.isName( "param" ) ) {
+                        return null;
+                    }
+                    int vtok = scanner.nextTag();
+                    if ( ! scanner.isName( "value" ) ) {
+                        return null;
+                    }
+                    int vstart = scanner.getTokenStart();
+                    if ( params.size() < nDecode ) {
+                        String sval = scanString( scanner, vtok );
+                        if ( sval == null ) {
+                            return null;
+                        }
+                        params.add( sval );
+                    }
+                    else {
+                        if ( vtok == XmlByteScanner.START_TAG ) {
+                            scanner.skipElement();
+                        }
+                        params.add( new OpaqueValue( buf, vstart,
+                                                     scanner.getPosition()
+                                                   - vstart ) );
+                    }
+                    if ( scanner.nextTag() != XmlByteScanner.END_TAG ) {
+                        return null;
+                    }
+                }
+            }
+            else {
+                return null;
+            }
+        }
+        if ( tok != XmlByteScanner.END_TAG ||
+             scanner.nextTag() != XmlByteScanner.EOF ||
+             methodName == null ) {
+            return null;
+        }
+        return new XmlRpcCall( methodName, params );
+    }
+
+    /**
+     * Reads a value element using the byte scanner, if it is a string.
+     * On exit, the scanner is positioned after the value end tag.
+     *
+     * @param  scanner  scanner positioned just after a value tag
+     * @param  vtok   token type of the value tag, START_TAG or EMPTY_TAG
+     * @return   string value, or null if the value is not a string
+     */
+    static String scanString( XmlByteScanner scanner, int vtok )
+            throws IOException {
+        if ( ! scanner.isName( "value" ) ) {
+            throw new IOException( "Expected <value>" );
+        }
+        if ( vtok == XmlByteScanner.EMPTY_TAG ) {
+            return "";
+        }
+        String txt = "";
+        while ( true ) {
+            int tok = scanner.next();
+            if ( tok == XmlByteScanner.TEXT ) {
+                txt += scanner.getText();
+            }
+            else if ( tok == XmlByteScanner.END_TAG ) {
+                return txt;
+            }
+            else if ( scanner.isName( "string" ) &&
+                      txt.trim().length() == 0 ) {
+                String sval = tok == XmlByteScanner.START_TAG
+                            ? scanner.readText()
+                            : "";
+                return scanner.nextTag() == XmlByteScanner.END_TAG
+                     ? sval
+                     : null;
+            }
+            else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads a methodCall element.
+     *
+     * @param  rdr  reader positioned at start of document
+     * @return  decoded call
+     */
+    private static XmlRpcCall readCall( XMLStreamReader rdr )
+            throws XMLStreamException, IOException {
+        rdr.nextTag();
+        requireStart( rdr, "methodCall" );
+        String methodName = null;
+        List params = new ArrayList();
+        while ( rdr.nextTag() == XMLStreamConstants.START_ELEMENT ) {
+            String name = rdr.getLocalName();
+            if ( "methodName".equals( name ) ) {
+                methodName = rdr.getElementText().trim();
+            }
+            else if ( "params".equals( name ) ) {
+                while ( rdr.nextTag() == XMLStreamConstants.START_ELEMENT ) {
+                    requireStart( rdr, "param" );
+                    rdr.nextTag();
+                    requireStart( rdr, "value" );
+                    params.add( readValue( rdr ) );
+                    rdr.nextTag();
+                }
+            }
+            else {
+                throw new IOException( "Unexpected child of <methodCall>: "
+                                     + name );
+            }
+        }
+        if ( methodName == null ) {
+            throw new IOException( "No <methodName> in <methodCall>" );
+        }
+        return new XmlRpcCall( methodName, params );
+    }
+
+    /**
+     * Reads the content of a value element.
+     * On exit, the reader is positioned at the value end tag.
+     *
+     * @param  rdr  reader positioned at value start tag
+     * @return  SAMP-compatible value
+     */
+    private static Object readValue( XMLStreamReader rdr )
+            throws XMLStreamException, IOException {
+        StringBuilder sbuf = null;
+        while ( true ) {
+            switch ( rdr.next() ) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if ( sbuf == null ) {
+                        sbuf = new StringBuilder();
+                    }
+                    sbuf.append( rdr.getTextCharacters(), rdr.getTextStart(),
+                                 rdr.getTextLength() );
+                    break;
+                case XMLStreamConstants.START_ELEMENT:
+                    Object value = readTypedValue( rdr );
+                    if ( rdr.nextTag() != XMLStreamConstants.END_ELEMENT ) {
+                        throw new IOException( "Multiple children of "
+                                             + "<value>" );
+                    }
+                    return value;
+                case XMLStreamConstants.END_ELEMENT:
+                    return sbuf == null ? "" : sbuf.toString();
+                case XMLStreamConstants.COMMENT:
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    break;
+                default:
+                    throw new IOException( "Unexpected content in <value>" );
+            }
+        }
+    }
+
+    /**
+     * Reads a typed value element (the child of a value element).
+     * On exit, the reader is positioned at its end tag.
+     *
+     * @param  rdr  reader positioned at the typed element start tag
+     * @return  SAMP-compatible value
+     */
+    private static Object readTypedValue( XMLStreamReader rdr )
+            throws XMLStreamException, IOException {
+        String type = rdr.getLocalName();
+        if ( "string".equals( type ) ) {
+            return rdr.getElementText();
+        }
+        else if ( "array".equals( type ) ) {
+            rdr.nextTag();
+            requireStart( rdr, "data" );
+            List list = new ArrayList();
+            while ( rdr.nextTag() == XMLStreamConstants.START_ELEMENT ) {
+                requireStart( rdr, "value" );
+                list.add( readValue( rdr ) );
+            }
+            rdr.nextTag();
+            return list;
+        }
+        else if ( "struct".equals( type ) ) {
+            Map map = new HashMap();
+            while ( rdr.nextTag() == XMLStreamConstants.START_ELEMENT ) {
+                requireStart( rdr, "member" );
+                String key = null;
+                Object value = null;
+                boolean hasValue = false;
+                while ( rdr.nextTag() == XMLStreamConstants.START_ELEMENT ) {
+                    String name = rdr.getLocalName();
+                    if ( "name".equals( name ) ) {
+                        key = rdr.getElementText();
+                    }
+                    else if ( "value".equals( name ) ) {
+                        value = readValue( rdr );
+                        hasValue = true;
+                    }
+                    else {
+                        throw new IOException( "Unexpected child of "
+                                             + "<member>: " + name );
+                    }
+                }
+                if ( key == null ) {
+                    throw new IOException( "<name> missing in struct member" );
+                }
+                if ( ! hasValue ) {
+                    throw new IOException( "<value> missing in "
+                                         + "struct member" );
+                }
+                if ( map.containsKey( key ) ) {
+                    logger_.warning( "Re-used key " + key + " in map" );
+                }
+                map.put( key, value );
+            }
+            return map;
+        }
+        else if ( "i4".equals( type ) || "int".equals( type ) ) {
+            String txt = rdr.getElementText();
+            try {
+                return Integer.valueOf( txt );
+            }
+            catch ( NumberFormatException e ) {
+                throw new IOException( "Bad int " + txt );
+            }
+        }
+        else if ( "boolean".equals( type ) ) {
+            String txt = rdr.getElementText();
+            if ( "0".equals( txt ) ) {
+                return Boolean.FALSE;
+            }
+            else if ( "1".equals( txt ) ) {
+                return Boolean.TRUE;
+            }
+            else {
+                throw new IOException( "Bad boolean " + txt );
+            }
+        }
+        else if ( "double".equals( type ) ) {
+            String txt = rdr.getElementText();
+            try {
+                return Double.valueOf( txt );
+            }
+            catch ( NumberFormatException e ) {
+                throw new IOException( "Bad double " + txt );
+            }
+        }
+        else if ( "dateTime.iso8601".equals( type ) ||
+                  "base64".equals( type ) ) {
+            throw new IOException( type + " not used in SAMP" );
+        }
+        else {
+            throw new IOException( "Unknown XML-RPC element <" + type + ">" );
+        }
+    }
+
+    /**
+     * Checks that the reader is positioned at a given start tag.
+     *
+     * @param  rdr  reader
+     * @param  name  required element name
+     * @throws  IOException  if it isn't
+     */
+    private static void requireStart( XMLStreamReader rdr, String name )
+            throws IOException {
+        if ( rdr.getEventType() != XMLStreamConstants.START_ELEMENT ||
+             ! name.equals( rdr.getLocalName() ) ) {
+            throw new IOException( "Expected <" + name + ">" );
+        }
+    }
+
+    /**
+     * Determines which parameters of a call may be left undecoded.
+     */
+    public interface OpaquePolicy {
+
+        /**
+         * Returns the number of leading parameters of a given method that
+         * must be decoded.  These must all be strings.
+         * Any further parameters may be passed as {@link OpaqueValue}s.
+         *
+         * @param  methodName  XML-RPC method name
+         * @return  number of leading string parameters to decode,
+         *          or -1 to decode all parameters
+         */
+        int getDecodedParamCount( String methodName );
+    }
+}
@@ -0,0 +1,416 @@
+package org.astrogrid.samp.tls;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.astrogrid.samp.DataException;
+
+/**
+ * Encodes XML-RPC methodResponse documents incrementally into
+ * pooled byte buffers.
+ * This does the same job as JSAMP's
+ * <code>InternalServer.getResultBytes</code> and
+ * <code>getFaultBytes</code>, but instead of serializing the whole
+ * document into a growing byte array and copying it out,
+ * it writes UTF-8 directly into fixed-size buffers and hands each one
+ * to a {@link Sink} as it fills up.
+ * The sink can write it to an output stream and reuse it,
+ * or keep hold of it for later output.
+ *
+ * <p>A sink which sees only a single {@link Sink#acceptLast} call
+ * knows the length of the whole response in advance,
+ * and can declare a Content-Length;
+ * one which receives earlier segments cannot,
+ * and will typically use chunked transfer encoding instead.
+ *
+ * <p>As well as the usual SAMP types, values may include
+ * {@link OpaqueValue}s, whose bytes are copied into the output as they
+ * stand; those held in external buffers are copied a segment at a time,
+ * so they are never brought onto the heap in full.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class XmlRpcEncoder {
+
+    /** Size in bytes of the buffers into which responses are encoded. */
+    public static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final BufferPool pool_ = new BufferPool( BUFFER_SIZE, 64 );
+
+    private static final byte[] RESULT_HEAD =
+        toAscii( "<?xml version='1.0' encoding='UTF-8'?>\n"
+               + "<methodResponse>\n<params>\n<param>\n" );
+    private static final byte[] RESULT_TAIL =
+        toAscii( "</param>\n</params>\n</methodResponse>\n" );
+    private static final byte[] FAULT_HEAD =
+        toAscii( "<?xml version='1.0' encoding='UTF-8'?>\n"
+               + "<methodResponse>\n<fault>\n<value>\n<struct>\n"
+               + "<member>\n<name>faultCode</name>\n"
+               + "<value><int>1</int></value>\n</member>\n"
+               + "<member>\n<name>faultString</name>\n<value>" );
+    private static final byte[] FAULT_TAIL =
+        toAscii( "</value>\n</member>\n</struct>\n</value>\n</fault>\n"
+               + "</methodResponse>\n" );
+    private static final byte[] VALUE_START = toAscii( "<value>" );
+    private static final byte[] VALUE_END = toAscii( "</value>\n" );
+    private static final byte[] ARRAY_START =
+        toAscii( "<value><array><data>\n" );
+    private static final byte[] ARRAY_END =
+        toAscii( "</data></array></value>\n" );
+    private static final byte[] STRUCT_START = toAscii( "<value><struct>\n" );
+    private static final byte[] STRUCT_END = toAscii( "</struct></value>\n" );
+    private static final byte[] MEMBER_START = toAscii( "<member><name>" );
+    private static final byte[] NAME_END = toAscii( "</name>\n" );
+    private static final byte[] MEMBER_END = toAscii( "</member>\n" );
+    private static final byte[] AMP = toAscii( "&amp;" );
+    private static final byte[] LT = toAscii( "&lt;" );
+    private static final byte[] GT = toAscii( "&gt;" );
+
+    private final Sink sink_;
+    private byte[] buf_;
+    private int pos_;
+
+    /**
+     * Constructor.
+     *
+     * @param  sink  destination for encoded bytes
+     */
+    private XmlRpcEncoder( Sink sink ) {
+        sink_ = sink;
+        buf_ = pool_.acquire();
+    }
+
+    /**
+     * Encodes a successful XML-RPC response.
+     * The result is checked before any output is generated,
+     * so if it is not a legal SAMP value, an exception is thrown
+     * and the sink is not called.
+     *
+     * @param  result  SAMP-compatible result value
+     * @param  sink  destination for encoded bytes
+     * @throws  DataException  if result is not a legal SAMP value
+     * @throws  IOException  if the sink fails
+     */
+    public static void writeResult( Object result, Sink sink )
+            throws IOException {
+        checkValue( result );
+        XmlRpcEncoder enc = new XmlRpcEncoder( sink );
+        enc.put( RESULT_HEAD );
+        enc.value( result );
+        enc.put( RESULT_TAIL );
+        enc.finish();
+    }
+
+    /**
+     * Encodes an XML-RPC fault response.
+     *
+     * @param  error  error whose description forms the fault string
+     * @param  sink  destination for encoded bytes
+     * @throws  IOException  if the sink fails
+     */
+    public static void writeFault( Throwable error, Sink sink )
+            throws IOException {
+        XmlRpcEncoder enc = new XmlRpcEncoder( sink );
+        enc.put( FAULT_HEAD );
+        enc.text( error.toString() );
+        enc.put( FAULT_TAIL );
+        enc.finish();
+    }
+
+    /**
+     * Returns a sink which writes to an output stream, reusing a single
+     * buffer.  Nothing is written to the stream until either the
+     * first buffer is full or the response is complete.
+     *
+     * @param  out  destination stream; flushed but not closed at the end
+     * @return  new sink
+     */
+    public static Sink createStreamSink( final OutputStream out ) {
+        return new Sink() {
+            public byte[] acceptSegment( byte[] buf, int length )
+                    throws IOException {
+                out.write( buf, 0, length );
+                return buf;
+            }
+            public void acceptLast( byte[] buf, int length )
+                    throws IOException {
+                try {
+                    out.write( buf, 0, length );
+                    out.flush();
+                }
+                finally {
+                    releaseBuffer( buf );
+                }
+            }
+        };
+    }
+
+    /**
+     * Obtains an encoding buffer from the shared pool.
+     *
+     * @return  buffer of length {@link #BUFFER_SIZE}
+     */
+    public static byte[] acquireBuffer() {
+        return pool_.acquire();
+    }
+
+    /**
+     * Returns an encoding buffer to the shared pool.
+     *
+     * @param  buf  buffer no longer in use
+     */
+    public static void releaseBuffer( byte[] buf ) {
+        pool_.release( buf );
+    }
+
+    /**
+     * Checks that an object is a legal SAMP value, that is a String
+     * or OpaqueValue, or a List or Map (with String keys) whose contents
+     * are themselves legal SAMP values.
+     *
+     * @param  value  object to check
+     * @throws  DataException  if it's not legal
+     */
+    private static void checkValue( Object value ) {
+        if ( value instanceof String || value instanceof OpaqueValue ) {
+            return;
+        }
+        else if ( value instanceof List ) {
+            for ( Object item : (List) value ) {
+                checkValue( item );
+            }
+        }
+        else if ( value instanceof Map ) {
+            for ( Object obj : ((Map) value).entrySet() ) {
+                Map.Entry entry = (Map.Entry) obj;
+                if ( ! ( entry.getKey() instanceof String ) ) {
+                    throw new DataException( "Map key " + entry.getKey()
+                                           + " not a string" );
+                }
+                checkValue( entry.getValue() );
+            }
+        }
+        else if ( value == null ) {
+            throw new DataException( "Null value not permitted" );
+        }
+        else {
+            throw new DataException( "Unsupported object type "
+                                   + value.getClass().getName() );
+        }
+    }
+
+    /**
+     * Encodes a value element.
+     *
+     * @param  value  SAMP value already checked for legality
+     */
+    private void value( Object value ) throws IOException {
+        if ( value instanceof String ) {
+            put( VALUE_START );
+            text( (String) value );
+            put( VALUE_END );
+        }
+        else if ( value instanceof OpaqueValue ) {
+            OpaqueValue opaque = (OpaqueValue) value;
+            if ( opaque.isExternal() ) {
+                putExternal( opaque );
+            }
+            else {
+                put( opaque.getBuffer(), opaque.getOffset(),
+                     opaque.getLength() );
+            }
+        }
+        else if ( value instanceof List ) {
+            put( ARRAY_START );
+            for ( Object item : (List) value ) {
+                value( item );
+            }
+            put( ARRAY_END );
+        }
+        else {
+            put( STRUCT_START );
+            for ( Iterator it = ((Map) value).entrySet().iterator();
+                  it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                put( MEMBER_START );
+                text( (String) entry.getKey() );
+                put( NAME_END );
+                value( entry.getValue() );
+                put( MEMBER_END );
+            }
+            put( STRUCT_END );
+        }
+    }
+
+    /**
+     * Encodes character content as escaped UTF-8.
+     * Unpaired surrogates are written as '?'.
+     *
+     * @param  txt  text
+     */
+    private void text( String txt ) throws IOException {
+        int n = txt.length();
+        for ( int i = 0; i < n; i++ ) {
+            if ( pos_ + 4 > buf_.length ) {
+                spill();
+            }
+            char c = txt.charAt( i );
+            if ( c < 0x80 ) {
+                if ( c == '&' ) {
+                    put( AMP );
+                }
+                else if ( c == '<' ) {
+                    put( LT );
+                }
+                else if ( c == '>' ) {
+                    put( GT );
+                }
+                else {
+                    buf_[ pos_++ ] = (byte) c;
+                }
+            }
+            else if ( c < 0x800 ) {
+                buf_[ pos_++ ] = (byte) ( 0xc0 | ( c >> 6 ) );
+                buf_[ pos_++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+            else if ( Character.isSurrogate( c ) ) {
+                if ( Character.isHighSurrogate( c ) && i + 1 < n &&
+                     Character.isLowSurrogate( txt.charAt( i + 1 ) ) ) {
+                    int cp = Character.toCodePoint( c, txt.charAt( ++i ) );
+                    buf_[ pos_++ ] = (byte) ( 0xf0 | ( cp >> 18 ) );
+                    buf_[ pos_++ ] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+                    buf_[ pos_++ ] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+                    buf_[ pos_++ ] = (byte) ( 0x80 | ( cp & 0x3f ) );
+                }
+                else {
+                    buf_[ pos_++ ] = (byte) '?';
+                }
+            }
+            else {
+                buf_[ pos_++ ] = (byte) ( 0xe0 | ( c >> 12 ) );
+                buf_[ pos_++ ] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+                buf_[ pos_++ ] = (byte) ( 0x80 | ( c & 0x3f ) );
+            }
+        }
+    }
+
+    /**
+     * Writes literal bytes.
+     *
+     * @param  bytes  bytes
+     */
+    private void put( byte[] bytes ) throws IOException {
+        put( bytes, 0, bytes.length );
+    }
+
+    /**
+     * Writes literal bytes from part of an array.
+     *
+     * @param  bytes  byte array
+     * @param  off  offset of first byte to write
+     * @param  len  number of bytes to write
+     */
+    private void put( byte[] bytes, int off, int len ) throws IOException {
+        int end = off + len;
+        while ( off < end ) {
+            if ( pos_ == buf_.length ) {
+                spill();
+            }
+            int n = Math.min( end - off, buf_.length - pos_ );
+            System.arraycopy( bytes, off, buf_, pos_, n );
+            pos_ += n;
+            off += n;
+        }
+    }
+
+    /**
+     * Writes the bytes of a value held outside the heap,
+     * reading them a segment at a time.
+     *
+     * @param  opaque  external value
+     */
+    private void putExternal( OpaqueValue opaque ) throws IOException {
+        long pos = 0;
+        long len = opaque.getLength();
+        while ( pos < len ) {
+            if ( pos_ == buf_.length ) {
+                spill();
+            }
+            ByteBuffer bbuf = ByteBuffer.wrap( buf_, pos_, buf_.length - pos_ );
+            opaque.readExternal( pos, bbuf );
+            int n = bbuf.position() - pos_;
+            pos_ += n;
+            pos += n;
+        }
+    }
+
+    /**
+     * Passes the current buffer to the sink and continues with the
+     * one it returns.
+     */
+    private void spill() throws IOException {
+        buf_ = sink_.acceptSegment( buf_, pos_ );
+        pos_ = 0;
+    }
+
+    /**
+     * Passes the final buffer to the sink.
+     */
+    private void finish() throws IOException {
+        byte[] buf = buf_;
+        buf_ = null;
+        sink_.acceptLast( buf, pos_ );
+    }
+
+    /**
+     * Converts an ASCII string to bytes.
+     *
+     * @param  txt  ASCII string
+     * @return  byte array
+     */
+    private static byte[] toAscii( String txt ) {
+        int n = txt.length();
+        byte[] bytes = new byte[ n ];
+        for ( int i = 0; i < n; i++ ) {
+            bytes[ i ] = (byte) txt.charAt( i );
+        }
+        return bytes;
+    }
+
+    /**
+     * Receives the buffers into which a response is encoded.
+     */
+    public interface Sink {
+
+        /**
+         * Accepts a buffer which is part of, but not the end of,
+         * the encoded response.
+         * The returned array, which may be the same one if its
+         * contents have been consumed, is used to continue encoding.
+         * Arrays obtained from {@link XmlRpcEncoder#acquireBuffer}
+         * are suitable.
+         *
+         * @param  buf  buffer
+         * @param  length  number of bytes of buf that are used
+         * @return  buffer of length {@link XmlRpcEncoder#BUFFER_SIZE}
+         *          into which encoding will continue
+         */
+        byte[] acceptSegment( byte[] buf, int length ) throws IOException;
+
+        /**
+         * Accepts the buffer containing the final part of the
+         * encoded response.
+         * Ownership of the buffer passes to the sink,
+         * which may return it to the pool using
+         * {@link XmlRpcEncoder#releaseBuffer} when done.
+         *
+         * @param  buf  buffer
+         * @param  length  number of bytes of buf that are used
+         */
+        void acceptLast( byte[] buf, int length ) throws IOException;
+    }
+}
@@ -1,12 +1,22 @@
 package org.astrogrid.samp.tls;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 import org.astrogrid.samp.SampUtils;
 import org.astrogrid.samp.client.SampException;
-import org.astrogrid.samp.xmlrpc.SampXmlRpcHandler;
 
 /**
  * This class forwards XML-RPC calls from one third-party
@@ -27,6 +37,36 @@ import org.astrogrid.samp.xmlrpc.SampXmlRpcHandler;
  * <p>To use this class, there must be some kind of harness that plugs it into
  * an HTTP server, allowing both submitter and servicer clients to call
  * into it.
+ * The handlers are {@link AsyncXmlRpcHandler}s, so harnesses that can
+ * suspend HTTP requests need not tie up a thread for each pending call;
+ * all the waiting is done using futures, and all the timeouts are
+ * events on a single shared {@link TimingWheel}.
+ *
+ * <p>In opaque mode, the handlers also act as
+ * {@link XmlRpcDecoder.OpaquePolicy}s, declaring that apart from the
+ * call tags they have no need to see inside the calls and results
+ * they forward.  Harnesses that decode requests with
+ * {@link XmlRpcDecoder} can then pass those parameters through
+ * as undecoded {@link OpaqueValue}s, so that the relay never parses
+ * or re-serializes the message payloads.
+ * The register call is an exception, since the relay has to insert
+ * the Referer header into it.
+ *
+ * <p>Submitted calls pass through a {@link RelayAdmission}, which
+ * rejects malformed calls and limits the rate and number of
+ * pending calls from each host and page, so that a single client
+ * cannot tie up the relay's capacity.
+ * The memory held by pending calls and results is bounded by a
+ * {@link RelayMemory}, which can also move large undecoded payloads
+ * out of the heap into temporary files while they wait for collection.
+ *
+ * <p>Callable clients may receive their callbacks through
+ * {@link CallbackMailboxes} held here, which the hub fills and the
+ * clients poll directly, rather than by relaying long polls to the hub.
+ *
+ * <p>Queue sizes, outcome counts and latencies of the relayed calls
+ * are recorded in a {@link RelayMetrics} object, which harnesses can
+ * publish over HTTP or JMX.
  *
  * @author   Mark Taylor
  * @since    14 Mar 2016
@@ -35,32 +75,77 @@ public class XmlRpcRelay {
 
     private final HttpRequestFormat reqFormat_;
     private final boolean checkHostnames_;
+    private final boolean isOpaque_;
     private final int collectMaxWaitSec_;
     private final int resultMaxWaitSec_;
-    private final BlockingStore<String,SampCall> callStore_;
-    private final SampXmlRpcHandler receiveHandler_;
+    private final TimingWheel timer_;
+    private final RendezvousStore<String,RelayedCall> callStore_;
+    private final ResourceRelay resources_;
+    private final CallbackMailboxes mailboxes_;
+    private final ReceiveHandler receiveHandler_;
     private final DispenseHandler dispenseHandler_;
-    private static final String RESULT_KEY = "jsamp.relay.result";
+    private final AtomicLong nCollectExpired_;
+    private final AtomicLong nPullExpired_;
+    private final AtomicLong nResultExpired_;
+    private final AtomicLong nDispensedExpired_;
+    private final AtomicInteger nQueued_;
+    private final RelayMetrics metrics_;
+    private volatile RelayAdmission admission_;
+    private volatile RelayMemory memory_;
     private static final String HOSTNAME_KEY = "jsamp.relay.hostname";
     private static final Logger logger_ =
         Logger.getLogger( XmlRpcRelay.class.getName() );
 
     /** See RFC2616, sec 14.36. */
     private static final String REFERER_HDR = "Referer";
+    private static final String RESOURCE_METHOD =
+        TlsHubProfile.COLLECTOR_PREFIX + ResourceRelay.REQUEST_METHOD;
+    private static final String OPEN_MAILBOX_METHOD =
+        TlsHubProfile.COLLECTOR_PREFIX + CallbackMailboxes.OPEN_METHOD;
+    private static final String PULL_MAILBOX_METHOD =
+        TlsHubProfile.COLLECTOR_PREFIX + CallbackMailboxes.PULL_METHOD;
 
     /**
-     * Constructor.
+     * Constructs a relay which requires fully decoded parameters.
      *
      * @param  reqFormat  understands HTTP request objects
      * @param  checkHostnames  if true, ensure that the submitter and servicer
      *                         are on the same host for each named call
      */
     public XmlRpcRelay( HttpRequestFormat reqFormat, boolean checkHostnames ) {
+        this( reqFormat, checkHostnames, false );
+    }
+
+    /**
+     * Constructs a relay with optional opaque forwarding.
+     *
+     * @param  reqFormat  understands HTTP request objects
+     * @param  checkHostnames  if true, ensure that the submitter and servicer
+     *                         are on the same host for each named call
+     * @param  isOpaque  if true, the handlers will accept message payloads
+     *                   and results as {@link OpaqueValue}s
+     */
+    public XmlRpcRelay( HttpRequestFormat reqFormat, boolean checkHostnames,
+                        boolean isOpaque ) {
         reqFormat_ = reqFormat;
         checkHostnames_ = checkHostnames;
+        isOpaque_ = isOpaque;
         collectMaxWaitSec_ = 10;
         resultMaxWaitSec_ = 600;
-        callStore_ = new BlockingStore<String,SampCall>();
+
+        // 100ms resolution; one revolution is about 51sec, so the longest
+        // (result) timeouts go round about a dozen times before firing.
+        timer_ = new TimingWheel( "TLS-SAMP relay timer", 100, 512 );
+        nCollectExpired_ = new AtomicLong();
+        nPullExpired_ = new AtomicLong();
+        nResultExpired_ = new AtomicLong();
+        nDispensedExpired_ = new AtomicLong();
+        nQueued_ = new AtomicInteger();
+        callStore_ = new RendezvousStore<String,RelayedCall>( timer_ );
+        resources_ = new ResourceRelay( timer_, checkHostnames );
+        mailboxes_ = new CallbackMailboxes( timer_, checkHostnames );
+        admission_ = new RelayAdmission();
+        memory_ = new RelayMemory();
 
         // This one is what the submitter (SAMP client) talks to.
         // It looks quite like a normal hub interface, but every method
@@ -70,6 +155,198 @@ public class XmlRpcRelay {
 
         // This one is what the servicer (hub tls profile) talks to.
         dispenseHandler_ = new DispenseHandler();
+
+        // Operational statistics.
+        metrics_ = new RelayMetrics();
+        metrics_.addGauge( "queuedCalls", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return nQueued_.get();
+            }
+        } );
+        metrics_.addGauge( "dispensedCalls", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return dispenseHandler_.dispensedCalls_.size();
+            }
+        } );
+        metrics_.addGauge( "sessions", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return dispenseHandler_.sessions_.size();
+            }
+        } );
+        metrics_.addGauge( "collectExpired", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return nCollectExpired_.get();
+            }
+        } );
+        metrics_.addGauge( "pullExpired", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return nPullExpired_.get();
+            }
+        } );
+        metrics_.addGauge( "resultExpired", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return nResultExpired_.get();
+            }
+        } );
+        metrics_.addGauge( "dispensedExpired", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return nDispensedExpired_.get();
+            }
+        } );
+        metrics_.addGauge( "admissionMalformed", new MetricsMBean.Gauge() {
+            public long getValue() {
+                RelayAdmission admission = admission_;
+                return admission == null ? 0 : admission.getMalformedCount();
+            }
+        } );
+        metrics_.addGauge( "admissionRateLimited", new MetricsMBean.Gauge() {
+            public long getValue() {
+                RelayAdmission admission = admission_;
+                return admission == null ? 0
+                                         : admission.getRateLimitedCount();
+            }
+        } );
+        metrics_.addGauge( "admissionPendingLimited",
+                           new MetricsMBean.Gauge() {
+            public long getValue() {
+                RelayAdmission admission = admission_;
+                return admission == null ? 0
+                                         : admission.getPendingLimitedCount();
+            }
+        } );
+        metrics_.addGauge( "admissionTracked", new MetricsMBean.Gauge() {
+            public long getValue() {
+                RelayAdmission admission = admission_;
+                return admission == null ? 0 : admission.getTrackedCount();
+            }
+        } );
+        metrics_.addGauge( "resourceGrants", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return resources_.getGrantCount();
+            }
+        } );
+        metrics_.addGauge( "resourceActive", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return resources_.getActiveCount();
+            }
+        } );
+        metrics_.addGauge( "resourceCompleted", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return resources_.getCompletedCount();
+            }
+        } );
+        metrics_.addGauge( "resourceFailed", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return resources_.getFailedCount();
+            }
+        } );
+        metrics_.addGauge( "resourceRefused", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return resources_.getRefusedCount();
+            }
+        } );
+        metrics_.addGauge( "resourceBytes", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return resources_.getByteCount();
+            }
+        } );
+        metrics_.addGauge( "resourceCacheHits", new MetricsMBean.Gauge() {
+            public long getValue() {
+                ResourceCache cache = resources_.getCache();
+                return cache == null ? 0 : cache.getHitCount();
+            }
+        } );
+        metrics_.addGauge( "resourceCacheMisses", new MetricsMBean.Gauge() {
+            public long getValue() {
+                ResourceCache cache = resources_.getCache();
+                return cache == null ? 0 : cache.getMissCount();
+            }
+        } );
+        metrics_.addGauge( "resourceCacheEvicted", new MetricsMBean.Gauge() {
+            public long getValue() {
+                ResourceCache cache = resources_.getCache();
+                return cache == null ? 0 : cache.getEvictedCount();
+            }
+        } );
+        metrics_.addGauge( "resourceCacheBytes", new MetricsMBean.Gauge() {
+            public long getValue() {
+                ResourceCache cache = resources_.getCache();
+                return cache == null
+                     ? 0
+                     : cache.getMemoryBytes() + cache.getDiskBytes();
+            }
+        } );
+        metrics_.addGauge( "mailboxes", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return mailboxes_.getMailboxCount();
+            }
+        } );
+        metrics_.addGauge( "mailboxOpened", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return mailboxes_.getOpenedCount();
+            }
+        } );
+        metrics_.addGauge( "mailboxRefused", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return mailboxes_.getRefusedCount();
+            }
+        } );
+        metrics_.addGauge( "mailboxExpired", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return mailboxes_.getExpiredCount();
+            }
+        } );
+        metrics_.addGauge( "mailboxPosted", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return mailboxes_.getPostedCount();
+            }
+        } );
+        metrics_.addGauge( "mailboxDelivered", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return mailboxes_.getDeliveredCount();
+            }
+        } );
+        metrics_.addGauge( "mailboxOverflows", new MetricsMBean.Gauge() {
+            public long getValue() {
+                return mailboxes_.getOverflowCount();
+            }
+        } );
+        metrics_.addGauge( "memoryChargedBytes", new MetricsMBean.Gauge() {
+            public long getValue() {
+                RelayMemory memory = memory_;
+                return memory == null ? 0 : memory.getChargedBytes();
+            }
+        } );
+        metrics_.addGauge( "memoryQuotaRejected", new MetricsMBean.Gauge() {
+            public long getValue() {
+                RelayMemory memory = memory_;
+                return memory == null ? 0 : memory.getQuotaRejectedCount();
+            }
+        } );
+        metrics_.addGauge( "memoryHeapRejected", new MetricsMBean.Gauge() {
+            public long getValue() {
+                RelayMemory memory = memory_;
+                return memory == null ? 0 : memory.getHeapRejectedCount();
+            }
+        } );
+        metrics_.addGauge( "memorySpilled", new MetricsMBean.Gauge() {
+            public long getValue() {
+                RelayMemory memory = memory_;
+                return memory == null ? 0 : memory.getSpilledCount();
+            }
+        } );
+        metrics_.addGauge( "memorySpilledBytes", new MetricsMBean.Gauge() {
+            public long getValue() {
+                RelayMemory memory = memory_;
+                return memory == null ? 0 : memory.getSpilledBytes();
+            }
+        } );
+        metrics_.addGauge( "memorySpillHeldBytes", new MetricsMBean.Gauge() {
+            public long getValue() {
+                RelayMemory memory = memory_;
+                return memory == null ? 0 : memory.getSpillHeldBytes();
+            }
+        } );
     }
 
     /**
@@ -77,7 +354,7 @@ public class XmlRpcRelay {
      *
      * @return  XML-RPC handler
      */
-    public SampXmlRpcHandler getReceiveHandler() {
+    public AsyncXmlRpcHandler getReceiveHandler() {
         return receiveHandler_;
     }
 
@@ -86,10 +363,141 @@ public class XmlRpcRelay {
      *
      * @return  dispenseHandler
      */
-    public SampXmlRpcHandler getDispenseHandler() {
+    public AsyncXmlRpcHandler getDispenseHandler() {
         return dispenseHandler_;
     }
 
+    /**
+     * Releases resources associated with this relay.
+     * Calls still pending will not be completed.
+     */
+    public void close() {
+        timer_.stop();
+        metrics_.unregisterMBean();
+    }
+
+    /**
+     * Returns the object that gathers operational statistics for this relay.
+     * It may be registered as a JMX MBean by calling its
+     * {@link RelayMetrics#registerMBean registerMBean} method;
+     * if so, it is unregistered when this relay is closed.
+     *
+     * @return  metrics
+     */
+    public RelayMetrics getMetrics() {
+        return metrics_;
+    }
+
+    /**
+     * Returns the object that controls resource transfers
+     * for this relay.  HTTP harnesses that support the resource relay
+     * use this to check and carry out the uploads and downloads.
+     *
+     * @return  resource relay
+     */
+    public ResourceRelay getResources() {
+        return resources_;
+    }
+
+    /**
+     * Returns the object that holds callback mailboxes for this relay.
+     *
+     * @return  callback mailboxes
+     */
+    public CallbackMailboxes getMailboxes() {
+        return mailboxes_;
+    }
+
+    /**
+     * Sets the admission control applied to submitted calls.
+     * By default a {@link RelayAdmission} with default limits is used.
+     *
+     * @param  admission  admission control, or null for none
+     */
+    public void setAdmission( RelayAdmission admission ) {
+        admission_ = admission;
+    }
+
+    /**
+     * Returns the admission control applied to submitted calls.
+     *
+     * @return  admission control, or null for none
+     */
+    public RelayAdmission getAdmission() {
+        return admission_;
+    }
+
+    /**
+     * Sets the memory accounting applied to calls and results.
+     * By default a {@link RelayMemory} with default limits is used.
+     * Large parameter values are only spilled to files if this relay
+     * handles undecoded values.
+     *
+     * @param  memory  memory accounting, or null for none
+     */
+    public void setMemory( RelayMemory memory ) {
+        memory_ = memory;
+    }
+
+    /**
+     * Returns the memory accounting applied to calls and results.
+     *
+     * @return  memory accounting, or null for none
+     */
+    public RelayMemory getMemory() {
+        return memory_;
+    }
+
+    /**
+     * Returns the timer used for all timeouts managed by this relay.
+     *
+     * @return  timing wheel
+     */
+    public TimingWheel getTimer() {
+        return timer_;
+    }
+
+    /**
+     * Returns the number of submitted calls that have expired because
+     * no hub collected them in time.
+     *
+     * @return  collect timeout count
+     */
+    public long getCollectExpiredCount() {
+        return nCollectExpired_.get();
+    }
+
+    /**
+     * Returns the number of pullCall requests that have expired because
+     * the requested call was not submitted in time.
+     *
+     * @return  pull timeout count
+     */
+    public long getPullExpiredCount() {
+        return nPullExpired_.get();
+    }
+
+    /**
+     * Returns the number of dispensed calls whose submitters gave up
+     * because no result was received from the hub in time.
+     *
+     * @return  result timeout count
+     */
+    public long getResultExpiredCount() {
+        return nResultExpired_.get();
+    }
+
+    /**
+     * Returns the number of dispensed call records that have been
+     * discarded because no result was received from the hub in time.
+     * Non-zero values typically indicate hubs that went away mid-call.
+     *
+     * @return  dispensed call expiry count
+     */
+    public long getDispensedExpiredCount() {
+        return nDispensedExpired_.get();
+    }
+
     /**
      * Creates a SAMP call object, ready for serialization and dispatch to
      * a waiting hub.
@@ -123,67 +531,233 @@ public class XmlRpcRelay {
     }
 
     /**
-     * Queue a call object for dispatch to the hub, and block until the
-     * hub has taken it.  If the hub does not pick it up before a fixed
-     * timeout, a SampException is thrown.
+     * Queues a call object for dispatch to the hub, and arranges for the
+     * given completion to be informed of its eventual result.
+     * If the hub does not pick it up before a fixed timeout,
+     * or does not supply a result before a further fixed timeout,
+     * the completion receives a SampException.
      *
-     * @param   call  call object to dispatch
-     * @param   callTag   call tag associated with call
+     * @param   rcall  call to dispatch
+     * @param   completion   receives the call result
      */
-    private void dispenseCall( SampCall call, String callTag )
-            throws SampException, InterruptedException {
+    private void dispenseCall( final RelayedCall rcall,
+                               final AsyncXmlRpcHandler.Completion completion )
+            throws SampException {
+        final SampCall call = rcall.call_;
+        String callTag = rcall.callTag_;
 
         // Store the call for later retrieval, indexed by its tag.
         boolean isUnique = ! dispenseHandler_.hasTag( callTag )
-                        && callStore_.putNew( callTag, call );
+                        && callStore_.putNew( callTag, rcall );
         if ( ! isUnique ) {
             throw new SampException( "Can't accept call with tag already "
                                    + "in use: " + call );
         }
+        nQueued_.incrementAndGet();
+        rcall.stats_.nSubmitted_.incrementAndGet();
         logger_.info( "Queued call: " + call );
 
+        // If it belongs to a session, let any hub polling that session know.
+        dispenseHandler_.notifySession( callTag );
+
         // Wait for call to be collected by servicer; fail if timeout.
-        if ( callStore_.removeUntaken( callTag, collectMaxWaitSec_ * 1000 ) ) {
-            throw new SampException( "No hub (relay timeout "
-                                   + collectMaxWaitSec_ + "sec) for " + call );
-        }
-        logger_.info( "Dispensed call: " + call );
+        callStore_.removeUntakenAsync( callTag, collectMaxWaitSec_ * 1000 )
+                  .whenComplete( new BiConsumer<Boolean,Throwable>() {
+            public void accept( Boolean isRemoved, Throwable error ) {
+                nQueued_.decrementAndGet();
+                if ( isRemoved.booleanValue() ) {
+                    nCollectExpired_.incrementAndGet();
+                    rcall.stats_.nCollectExpired_.incrementAndGet();
+                    completion.failed(
+                        new SampException( "No hub (relay timeout "
+                                         + collectMaxWaitSec_ + "sec) for "
+                                         + call ) );
+                }
+                else {
+                    rcall.dispenseNanos_ = System.nanoTime();
+                    rcall.stats_.rendezvous_
+                         .record( rcall.dispenseNanos_ - rcall.submitNanos_ );
+                    logger_.info( "Dispensed call: " + call );
+                    awaitResult( rcall, completion );
+                }
+            }
+        } );
     }
 
     /**
-     * Wait until an entry with a given key has appeared in a map.
-     * The map must be managed such that map.notifyAll() is called when
-     * the relevant entry may have been updated.
+     * Arranges for the result of a dispensed call to be passed to
+     * a given completion when it arrives.
+     * The timeout for its arrival is managed by the dispenser,
+     * which completes the result exceptionally if it expires.
      *
-     * @param  map   map
-     * @param  key   key to look out for
-     * @param  timeoutMillis  maximum wait time in milliseconds
-     * @return   value corresponding to <code>key</code>,
-     *           or null in case of timeout
+     * @param   rcall  call which has been dispensed to the servicer
+     * @param   completion   receives the call result
      */
-    private static Object waitForEntry( Map map, String key,
-                                        long timeoutMillis )
-            throws InterruptedException {
-        long end = System.currentTimeMillis() + timeoutMillis;
-        synchronized( map ) {
-            while ( true ) {
-                Object value = map.get( key );
+    private void awaitResult( final RelayedCall rcall,
+                              final AsyncXmlRpcHandler.Completion completion ) {
+        final SampCall call = rcall.call_;
+        rcall.result_.whenComplete( new BiConsumer<Map,Throwable>() {
+            public void accept( Map resultMap, Throwable error ) {
+                if ( error != null ) {
+                    completion.failed( error );
+                    return;
+                }
+                long now = System.nanoTime();
+                RelayMetrics.MethodStats stats = rcall.stats_;
+                stats.hub_.record( now - rcall.dispenseNanos_ );
+                stats.total_.record( now - rcall.submitNanos_ );
+                logger_.info( "Got result from call: " + call );
+
+                // Return result value or error.  Either may be opaque.
+                SampResult result = SampResult.asResult( resultMap );
+                Object value = result.getValue();
+
+                // A successful mailbox request means the hub will
+                // post the submitter's callbacks to the mailbox.
+                if ( value != null &&
+                     OPEN_MAILBOX_METHOD.equals( call.getMethodName() ) &&
+                     ! mailboxes_.open( rcall.callTag_, rcall.hostname_ ) ) {
+                    stats.nFaulted_.incrementAndGet();
+                    completion.failed(
+                        new SampException( "Too many mailboxes" ) );
+                    return;
+                }
                 if ( value != null ) {
-                    return value;
+                    stats.nSucceeded_.incrementAndGet();
+
+                    // A successful resource request means the hub will
+                    // upload the resource for the submitter to download.
+                    if ( RESOURCE_METHOD.equals( call.getMethodName() ) ) {
+                        String resourceUrl;
+                        try {
+                            resourceUrl = asString( value );
+                        }
+                        catch ( SampException e ) {
+                            resourceUrl = null;
+                        }
+                        resources_.grant( rcall.callTag_, rcall.hostname_,
+                                          resourceUrl );
+                    }
+                    completion.completed( value );
                 }
-                long remainingTime = end - System.currentTimeMillis();
-                if ( remainingTime <= 0 ) {
-                    return null;
+                else {
+                    stats.nFaulted_.incrementAndGet();
+                    String errTxt;
+                    try {
+                        errTxt = asString( result.get( SampResult.ERROR_KEY ) );
+                    }
+                    catch ( SampException e ) {
+                        errTxt = e.getMessage();
+                    }
+                    completion.failed( new SampException( errTxt ) );
                 }
-                map.wait( remainingTime );
             }
+        } );
+    }
+
+    /**
+     * Services a call synchronously using an asynchronous handler.
+     * The calling thread blocks until the handler signals completion.
+     *
+     * @param  handler  asynchronous handler
+     * @param  methodName  XML-RPC method name
+     * @param  params   XML-RPC parameter list
+     * @param  reqInfo   information about the HTTP request
+     * @return   call result
+     */
+    static Object waitForCompletion( AsyncXmlRpcHandler handler,
+                                     String methodName, List params,
+                                     Object reqInfo )
+            throws Exception {
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        final Object[] outcome = new Object[ 2 ];
+        handler.handleCallAsync( methodName, params, reqInfo,
+                                 new AsyncXmlRpcHandler.Completion() {
+            public void completed( Object result ) {
+                outcome[ 0 ] = result;
+                latch.countDown();
+            }
+            public void failed( Throwable error ) {
+                outcome[ 1 ] = error;
+                latch.countDown();
+            }
+        } );
+        latch.await();
+        Throwable error = (Throwable) outcome[ 1 ];
+        if ( error == null ) {
+            return outcome[ 0 ];
+        }
+        else if ( error instanceof Exception ) {
+            throw (Exception) error;
+        }
+        else {
+            throw (Error) error;
+        }
+    }
+
+    /**
+     * Returns a parameter value as a string.
+     *
+     * @param  obj  decoded or opaque parameter value
+     * @return   string value, or null if obj is not a string
+     * @throws  SampException  if an opaque value is badly formed
+     */
+    private static String asString( Object obj ) throws SampException {
+        try {
+            return obj instanceof OpaqueValue
+                 ? ((OpaqueValue) obj).getString()
+                 : obj instanceof String ? (String) obj : null;
+        }
+        catch ( IOException e ) {
+            throw new SampException( "Bad XML-RPC value", e );
+        }
+    }
+
+    /**
+     * Returns a parameter value as a map.
+     * The values of a map obtained from an opaque value are themselves
+     * opaque.
+     *
+     * @param  obj  decoded or opaque parameter value
+     * @return   map value, or null if obj is not a map
+     * @throws  SampException  if an opaque value is badly formed
+     */
+    private static Map toMap( Object obj ) throws SampException {
+        try {
+            return obj instanceof OpaqueValue
+                 ? ((OpaqueValue) obj).getMembers()
+                 : obj instanceof Map ? (Map) obj : null;
+        }
+        catch ( IOException e ) {
+            throw new SampException( "Bad XML-RPC value", e );
+        }
+    }
+
+    /**
+     * Returns a parameter value as a list.
+     * The elements of a list obtained from an opaque value are themselves
+     * opaque.
+     *
+     * @param  obj  decoded or opaque parameter value
+     * @return   list value, or null if obj is not a list
+     * @throws  SampException  if an opaque value is badly formed
+     */
+    private static List toList( Object obj ) throws SampException {
+        try {
+            return obj instanceof OpaqueValue
+                 ? ((OpaqueValue) obj).getElements()
+                 : obj instanceof List ? (List) obj : null;
+        }
+        catch ( IOException e ) {
+            throw new SampException( "Bad XML-RPC value", e );
         }
     }
 
     /**
      * Handler implementation for the receiver endpoint.
      */
-    private class ReceiveHandler implements SampXmlRpcHandler {
+    private class ReceiveHandler
+            implements AsyncXmlRpcHandler, XmlRpcDecoder.OpaquePolicy {
 
         /**
          * Constructor.
@@ -195,9 +769,52 @@ public class XmlRpcRelay {
             return methodName.startsWith( TlsHubProfile.COLLECTOR_PREFIX );
         }
 
-        public Object handleCall( final String methodName, List params,
+        public int getDecodedParamCount( String methodName ) {
+            boolean isRegister = ( TlsHubProfile.COLLECTOR_PREFIX + "register" )
+                                .equals( methodName );
+            boolean isLocal = PULL_MAILBOX_METHOD.equals( methodName );
+            return isOpaque_ && ! isRegister && ! isLocal ? 1 : -1;
+        }
+
+        public Object handleCall( String methodName, List params,
                                   Object reqInfo )
-                throws InterruptedException, SampException {
+                throws Exception {
+            return waitForCompletion( this, methodName, params, reqInfo );
+        }
+
+        public void handleCallAsync( String methodName, List params,
+                                     Object reqInfo, Completion completion ) {
+            try {
+                submitCall( methodName, params, reqInfo, completion );
+            }
+            catch ( Throwable e ) {
+                getStats( methodName ).nRejected_.incrementAndGet();
+                completion.failed( e );
+            }
+        }
+
+        /**
+         * Returns the statistics object for a submitted method.
+         *
+         * @param  methodName  XML-RPC method name
+         * @return  statistics object
+         */
+        private RelayMetrics.MethodStats getStats( String methodName ) {
+            return metrics_.getMethodStats( methodName.substring(
+                       TlsHubProfile.COLLECTOR_PREFIX.length() ) );
+        }
+
+        /**
+         * Does the work for accepting a call from the submitter.
+         *
+         * @param  methodName  XML-RPC method name
+         * @param  params   XML-RPC parameter list
+         * @param  reqInfo   information about the HTTP request
+         * @param  completion   receives the call result
+         */
+        private void submitCall( String methodName, List params,
+                                 Object reqInfo, Completion completion )
+                throws SampException {
 
             // Extract first parameter in list as call tag.
             if ( params.size() == 0 ||
@@ -206,6 +823,97 @@ public class XmlRpcRelay {
                                        + methodName );
             }
             String callTag = (String) params.get( 0 );
+            String hostname = reqFormat_.getHostName( reqInfo );
+
+            // Apply admission control before committing any resources.
+            RelayAdmission admission = admission_;
+            RelayAdmission.Ticket ticket =
+                admission == null
+                    ? null
+                    : admission.admit( methodName, params, hostname,
+                                       reqFormat_, reqInfo );
+            RelayMemory.Reservation resv = null;
+            boolean isQueued = false;
+            try {
+
+                // Mailbox polls are serviced here, not by the hub.
+                if ( PULL_MAILBOX_METHOD.equals( methodName ) ) {
+                    if ( ticket != null ) {
+                        completion = ticket.wrap( completion );
+                    }
+                    pullMailbox( params, callTag, hostname, completion );
+                    isQueued = true;
+                    return;
+                }
+
+                // Charge the call's size against the memory quotas,
+                // and move any bulky payloads off the heap.
+                RelayMemory memory = memory_;
+                if ( memory != null ) {
+                    resv = memory.reserve( hostname, params );
+                    completion = resv.wrap( completion );
+                    if ( isOpaque_ ) {
+                        params = memory.spill( params, resv );
+                    }
+                }
+                if ( ticket != null ) {
+                    completion = ticket.wrap( completion );
+                }
+                queueCall( methodName, params, reqInfo, callTag, hostname,
+                           resv, completion );
+                isQueued = true;
+            }
+            finally {
+                if ( ! isQueued ) {
+                    if ( resv != null ) {
+                        resv.release();
+                    }
+                    if ( ticket != null ) {
+                        ticket.release();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Services a mailbox poll from the submitter.
+         *
+         * @param  params   XML-RPC parameter list
+         *                  (mailboxId, timeoutSec)
+         * @param  mailboxId  mailbox ID
+         * @param  hostname   hostname of originating HTTP request
+         * @param  completion   receives the list of callbacks
+         */
+        private void pullMailbox( List params, String mailboxId,
+                                  String hostname, Completion completion )
+                throws SampException {
+            if ( params.size() != 2 ||
+                 ! ( params.get( 1 ) instanceof String ) ) {
+                throw new SampException( "Wrong params for "
+                                       + PULL_MAILBOX_METHOD
+                                       + "(string mailboxId,"
+                                       + " string timeoutSec)" );
+            }
+            int timeoutSec = SampUtils.decodeInt( (String) params.get( 1 ) );
+            mailboxes_.pull( mailboxId, hostname, timeoutSec, completion );
+        }
+
+        /**
+         * Queues an accepted call from the submitter.
+         *
+         * @param  methodName  XML-RPC method name
+         * @param  params   XML-RPC parameter list
+         * @param  reqInfo   information about the HTTP request
+         * @param  callTag   call tag
+         * @param  hostname   hostname of originating HTTP request
+         * @param  resv   memory reservation for the call, or null
+         * @param  completion   receives the call result
+         */
+        private void queueCall( String methodName, List params,
+                                Object reqInfo, String callTag,
+                                String hostname, RelayMemory.Reservation resv,
+                                Completion completion )
+                throws SampException {
 
             // Treat register call specially. */
             if ( ( TlsHubProfile.COLLECTOR_PREFIX + "register" )
@@ -221,62 +929,101 @@ public class XmlRpcRelay {
 
             // Construct a SampCall object corresponding to this submission.
             SampCall call = createCall( methodName, params, callTag,
-                                        reqFormat_.getHostName( reqInfo ) );
-
-            // Wait for hub to pick the call up.
-            dispenseCall( call, callTag );
+                                        hostname );
 
-            // Wait for result from servicer; fail if timeout.
-            Object resultObj =
-                waitForEntry( call, RESULT_KEY, resultMaxWaitSec_ * 1000 );
-            if ( ! ( resultObj instanceof Map ) ) {
-                throw new SampException( "No hub response for " + call
-                                       + " (relay timeout "
-                                       + resultMaxWaitSec_ + "sec)" );
-            }
-            logger_.info( "Got result from call: " + call );
-
-            // Return result value or error.
-            SampResult result = SampResult.asResult( (Map) resultObj );
-            Object value = result.getValue();
-            if ( value != null ) {
-                return value;
-            }
-            else {
-                throw new SampException( result.getError() );
-            }
+            // Queue it for the hub to pick up, and arrange for the
+            // result to be passed back when it arrives.
+            dispenseCall( new RelayedCall( callTag, call, hostname,
+                                           getStats( methodName ), resv ),
+                          completion );
         }
     }
 
     /**
      * Handler implementation for the dispenser endpoint.
      *
-     * This has three methods:
+     * This has eight methods:
      * <pre>
      *    void ping()
      *    SampCall pullCall(String callTag, String timeoutSec)
      *    void receiveResult(String callTag, SampResult result)
+     *    List&lt;SampCall&gt; pullCalls(List&lt;String&gt; callTags,
+     *                              String timeoutSec)
+     *    List&lt;String&gt; receiveResults(List&lt;Map&gt; taggedResults)
+     *    List&lt;SampCall&gt; pullSessionCalls(String session,
+     *                                     String timeoutSec)
+     *    void postCallbacks(String mailboxId, List&lt;Map&gt; callbacks)
+     *    void closeMailbox(String mailboxId)
      * </pre>
      * These method names are prefixed with the string
      * {@link TlsHubProfile#DISPENSER_PREFIX}.
+     * The pullCalls and receiveResults methods are batch versions of
+     * pullCall and receiveResult, which allow a hub to save round trips.
+     * The pullSessionCalls method allows a hub to collect all calls
+     * whose tags start with a given session token as soon as they arrive,
+     * without needing to know their tags in advance.
+     * The postCallbacks and closeMailbox methods deliver callbacks to
+     * a client's mailbox and close it; see {@link CallbackMailboxes}.
      */
-    private class DispenseHandler implements SampXmlRpcHandler {
-        private final Map<String,SampCall> dispensedCalls_;
+    private class DispenseHandler
+            implements AsyncXmlRpcHandler, XmlRpcDecoder.OpaquePolicy {
+        private final Map<String,RelayedCall> dispensedCalls_;
+        private final ConcurrentMap<String,Session> sessions_;
         private static final String PREFIX = TlsHubProfile.DISPENSER_PREFIX;
+        private static final int MAX_BATCH = 64;
+        private static final int MAX_SESSION_QUEUE = 256;
+        private static final int SESSION_IDLE_SEC = 60;
 
         /**
          * Constructor.
          */
         DispenseHandler() {
-            dispensedCalls_ = new ConcurrentHashMap<String,SampCall>();
+            dispensedCalls_ = new ConcurrentHashMap<String,RelayedCall>();
+            sessions_ = new ConcurrentHashMap<String,Session>();
         }
 
         public boolean canHandleCall( String fqName ) {
             return fqName.startsWith( PREFIX );
         }
 
+        public int getDecodedParamCount( String fqName ) {
+            if ( isOpaque_ ) {
+                if ( ( PREFIX + "receiveResult" ).equals( fqName ) ) {
+                    return 1;
+                }
+                else if ( ( PREFIX + "receiveResults" ).equals( fqName ) ) {
+                    return 0;
+                }
+            }
+            return -1;
+        }
+
         public Object handleCall( String fqName, List params, Object reqInfo )
                 throws Exception {
+            return waitForCompletion( this, fqName, params, reqInfo );
+        }
+
+        public void handleCallAsync( String fqName, List params,
+                                     Object reqInfo, Completion completion ) {
+            try {
+                dispense( fqName, params, reqInfo, completion );
+            }
+            catch ( Throwable e ) {
+                completion.failed( e );
+            }
+        }
+
+        /**
+         * Does the work for servicing a call from the servicer.
+         *
+         * @param  fqName  XML-RPC method name
+         * @param  params   XML-RPC parameter list
+         * @param  reqInfo   information about the HTTP request
+         * @param  completion   receives the call result
+         */
+        private void dispense( String fqName, List params, Object reqInfo,
+                               Completion completion )
+                throws SampException {
 
             // Get unprefixed method name.
             String methodName;
@@ -286,12 +1033,11 @@ public class XmlRpcRelay {
             else {
                 throw new IllegalArgumentException( "No I can't" );
             }
-            final Object retval;
 
             // Handle ping method.
             // No-op, just complete call.
             if ( "ping".equals( methodName ) ) {
-                retval = null;
+                completion.completed( "" );
             }
 
             // Handle pullCall method
@@ -306,58 +1052,355 @@ public class XmlRpcRelay {
                 String callTag = (String) params.get( 0 );
                 int timeoutMillis =
                     SampUtils.decodeInt( (String) params.get( 1 ) ) * 1000;
-
-                String reqHostname = checkHostnames_
-                                   ? reqFormat_.getHostName( reqInfo )
-                                   : null;
-                if ( checkHostnames_ && reqHostname == null ) {
-                    throw new SampException( "Can't determine hostname" );
-                }
+                String reqHostname = getPullHostname( reqInfo );
 
                 // Wait for the requested call to arrive.
                 // In case of timeout it will be null.
-                SampCall call = callStore_.take( callTag, timeoutMillis );
-                retval = call;
-
-                // Check it if necessary.
-                if ( checkHostnames_ && call != null ) {
-                    String callHostname = (String) call.get( HOSTNAME_KEY );
-                    if ( ! reqHostname.equals( callHostname ) ) {
-                        throw new SampException( "Hostname mismatch: "
-                                               + reqHostname + " != "
-                                               + callHostname );
-                    }
+                callStore_.takeAsync( callTag, timeoutMillis )
+                          .whenComplete( pullCompleter( callTag, reqHostname,
+                                                        completion ) );
+            }
+
+            // Handle pullCalls method.
+            else if ( "pullCalls".equals( methodName ) ) {
+                if ( params.size() != 2 ||
+                     ! ( params.get( 0 ) instanceof List ) ||
+                     ! ( params.get( 1 ) instanceof String ) ) {
+                    throw new SampException( "Wrong params for " + fqName
+                                           + "(list callTags,"
+                                           + " string timeoutSec)" );
                 }
+                List tagList = (List) params.get( 0 );
+                int timeoutMillis =
+                    SampUtils.decodeInt( (String) params.get( 1 ) ) * 1000;
+                String reqHostname = getPullHostname( reqInfo );
+                pullCalls( toTags( tagList ), timeoutMillis, reqHostname,
+                           completion );
+            }
 
-                // Prepare to receive a response corresponding to the call.
-                if ( call != null ) {
-                    dispensedCalls_.put( callTag, call );
+            // Handle pullSessionCalls method.
+            else if ( "pullSessionCalls".equals( methodName ) ) {
+                if ( params.size() != 2 ||
+                     ! ( params.get( 0 ) instanceof String ) ||
+                     ! ( params.get( 1 ) instanceof String ) ) {
+                    throw new SampException( "Wrong params for " + fqName
+                                           + "(string session,"
+                                           + " string timeoutSec)" );
+                }
+                String sessionId = (String) params.get( 0 );
+                int timeoutMillis =
+                    SampUtils.decodeInt( (String) params.get( 1 ) ) * 1000;
+                String reqHostname = getPullHostname( reqInfo );
+                while ( ! getSession( sessionId )
+                         .poll( timeoutMillis, reqHostname, completion ) ) {
                 }
             }
 
             // Handle receiveResult method.
             else if ( "receiveResult".equals( methodName ) ) {
-                if ( params.size() != 2 ||
-                     ! ( params.get( 0 ) instanceof String ) ||
-                     ! ( params.get( 1 ) instanceof Map ) ) {
+                Map result = params.size() == 2 ? toMap( params.get( 1 ) )
+                                                : null;
+                if ( result == null ||
+                     ! ( params.get( 0 ) instanceof String ) ) {
                     throw new SampException( "Wrong params for " + fqName
                                            + "(string callTag, map result)" );
                 }
                 String hostname =
                     checkHostnames_ ? reqFormat_.getHostName( reqInfo ) : null;
                 String callTag = (String) params.get( 0 );
-                Map result = (Map) params.get( 1 );
                 receiveResult( callTag, result, hostname );
-                retval = null;
+                completion.completed( "" );
+            }
+
+            // Handle receiveResults method.
+            else if ( "receiveResults".equals( methodName ) ) {
+                List taggedResults = params.size() == 1
+                                   ? toList( params.get( 0 ) )
+                                   : null;
+                if ( taggedResults == null ) {
+                    throw new SampException( "Wrong params for " + fqName
+                                           + "(list taggedResults)" );
+                }
+                String hostname =
+                    checkHostnames_ ? reqFormat_.getHostName( reqInfo ) : null;
+                completion.completed(
+                    receiveResults( taggedResults, hostname ) );
+            }
+
+            // Handle postCallbacks method.
+            else if ( CallbackMailboxes.POST_METHOD.equals( methodName ) ) {
+                List callbacks = params.size() == 2
+                               ? toList( params.get( 1 ) )
+                               : null;
+                if ( callbacks == null ||
+                     ! ( params.get( 0 ) instanceof String ) ) {
+                    throw new SampException( "Wrong params for " + fqName
+                                           + "(string mailboxId,"
+                                           + " list callbacks)" );
+                }
+                String hostname = reqFormat_.getHostName( reqInfo );
+                mailboxes_.post( (String) params.get( 0 ), hostname,
+                                 callbacks );
+                completion.completed( "" );
+            }
+
+            // Handle closeMailbox method.
+            else if ( CallbackMailboxes.CLOSE_METHOD.equals( methodName ) ) {
+                if ( params.size() != 1 ||
+                     ! ( params.get( 0 ) instanceof String ) ) {
+                    throw new SampException( "Wrong params for " + fqName
+                                           + "(string mailboxId)" );
+                }
+                String hostname = reqFormat_.getHostName( reqInfo );
+                mailboxes_.close( (String) params.get( 0 ), hostname );
+                completion.completed( "" );
             }
 
             // Unknown method.
             else {
                 throw new SampException( "Uknown dispenser method: " + fqName );
             }
+        }
+
+        /**
+         * Returns the hostname of the originator of a pull request,
+         * as required for checking dispensed calls.
+         *
+         * @param  reqInfo   information about the HTTP request
+         * @return  request hostname, or null if not checking hostnames
+         * @throws  SampException  if the hostname is required but
+         *                         cannot be determined
+         */
+        private String getPullHostname( Object reqInfo )
+                throws SampException {
+            if ( checkHostnames_ ) {
+                String reqHostname = reqFormat_.getHostName( reqInfo );
+                if ( reqHostname == null ) {
+                    throw new SampException( "Can't determine hostname" );
+                }
+                return reqHostname;
+            }
+            else {
+                return null;
+            }
+        }
+
+        /**
+         * Checks the list of tags supplied to a batch request.
+         *
+         * @param  tagList  list that should contain only call tags
+         * @return  array of call tags
+         * @throws  SampException  if the list is unsuitable
+         */
+        private String[] toTags( List tagList ) throws SampException {
+            int n = tagList.size();
+            if ( n > MAX_BATCH ) {
+                throw new SampException( "Too many tags in batch ("
+                                       + n + " > " + MAX_BATCH + ")" );
+            }
+            String[] tags = new String[ n ];
+            for ( int i = 0; i < n; i++ ) {
+                Object tag = tagList.get( i );
+                if ( tag instanceof String ) {
+                    tags[ i ] = (String) tag;
+                }
+                else {
+                    throw new SampException( "Non-string call tag " + tag );
+                }
+            }
+            return tags;
+        }
+
+        /**
+         * Services a batch pull request.
+         * Each of the named calls is awaited independently, exactly as
+         * for a pullCall request, and when all have been dispensed or
+         * timed out, the completion receives a list with one entry
+         * per tag.  Each entry is the dispensed call, or an empty map
+         * if it could not be dispensed.
+         *
+         * @param  callTags  tags of requested calls
+         * @param  timeoutMillis  maximum wait for each call
+         * @param  reqHostname  hostname of pullCalls request originator,
+         *                      or null if not checking hostnames
+         * @param  completion  receives the pullCalls result
+         */
+        private void pullCalls( String[] callTags, int timeoutMillis,
+                                String reqHostname,
+                                final Completion completion ) {
+            final int n = callTags.length;
+            final Object[] pulled = new Object[ n ];
+            final AtomicInteger nPending = new AtomicInteger( n );
+            if ( n == 0 ) {
+                completion.completed( new ArrayList() );
+                return;
+            }
+            for ( int i = 0; i < n; i++ ) {
+                final int index = i;
+                String callTag = callTags[ i ];
+                Completion itemCompletion = new Completion() {
+                    public void completed( Object result ) {
+                        done( result instanceof Map ? result : new HashMap() );
+                    }
+                    public void failed( Throwable error ) {
+                        logger_.warning( "Batch pull failed: " + error );
+                        done( new HashMap() );
+                    }
+                    private void done( Object item ) {
+                        pulled[ index ] = item;
+                        if ( nPending.decrementAndGet() == 0 ) {
+                            completion.completed( Arrays.asList( pulled ) );
+                        }
+                    }
+                };
+                callStore_.takeAsync( callTag, timeoutMillis )
+                          .whenComplete( pullCompleter( callTag, reqHostname,
+                                                        itemCompletion ) );
+            }
+        }
+
+        /**
+         * Informs any interested session that a call with a given tag
+         * has been queued.  If the tag does not have the form of a
+         * session call tag, nothing happens.
+         *
+         * @param  callTag  tag of newly queued call
+         */
+        void notifySession( String callTag ) {
+            int isep = callTag.lastIndexOf( TlsHubProfile.SESSION_SEP );
+            if ( isep > 0 ) {
+                String sessionId = callTag.substring( 0, isep );
+                while ( ! getSession( sessionId ).addTag( callTag ) ) {
+                }
+            }
+        }
+
+        /**
+         * Returns the session record for a given session token,
+         * creating it if necessary.
+         *
+         * @param  sessionId  session token
+         * @return   session, not null
+         */
+        private Session getSession( String sessionId ) {
+            Session session = sessions_.get( sessionId );
+            if ( session == null ) {
+                Session session1 = new Session( sessionId );
+                session = sessions_.putIfAbsent( sessionId, session1 );
+                if ( session == null ) {
+                    session = session1;
+                    session.touch();
+                }
+            }
+            return session;
+        }
+
+        /**
+         * Dispenses queued session calls to a session poller.
+         * Calls which have already been collected by some other route
+         * are silently skipped.
+         *
+         * @param  callTags  tags of calls queued for the session
+         * @param  reqHostname  hostname of pullSessionCalls request
+         *                      originator, or null if not checking hostnames
+         * @param  completion  receives the list of dispensed calls
+         */
+        private void dispenseSessionCalls( List<String> callTags,
+                                           String reqHostname,
+                                           Completion completion ) {
+            final List<Object> calls = new ArrayList<Object>();
+            Completion itemCompletion = new Completion() {
+                public void completed( Object result ) {
+                    if ( result instanceof Map ) {
+                        calls.add( result );
+                    }
+                }
+                public void failed( Throwable error ) {
+                    logger_.warning( "Session pull failed: " + error );
+                }
+            };
+            for ( String callTag : callTags ) {
+                RelayedCall rcall = callStore_.takeNow( callTag );
+                if ( rcall != null ) {
+                    pullCompleter( callTag, reqHostname, itemCompletion )
+                   .accept( rcall, null );
+                }
+            }
+            completion.completed( calls );
+        }
+
+        /**
+         * Returns a callback that completes a pullCall request
+         * when the relevant call is taken from the call store.
+         *
+         * @param  callTag  tag of requested call
+         * @param  reqHostname  hostname of pullCall request originator,
+         *                      or null if not checking hostnames
+         * @param  completion  receives the pullCall result
+         * @return  callback to receive taken call, or null for timeout
+         */
+        private BiConsumer<RelayedCall,Throwable>
+                pullCompleter( final String callTag, final String reqHostname,
+                               final Completion completion ) {
+            return new BiConsumer<RelayedCall,Throwable>() {
+                public void accept( final RelayedCall rcall,
+                                    Throwable error ) {
+
+                    // Make sure that a SAMP-friendly return value is
+                    // returned in case of timeout.
+                    if ( rcall == null ) {
+                        nPullExpired_.incrementAndGet();
+                        completion.completed( "" );
+                        return;
+                    }
 
-            // Make sure that a SAMP-friendly return value is returned.
-            return retval == null ? "" : retval;
+                    // Check it if necessary.
+                    SampCall call = rcall.call_;
+                    if ( checkHostnames_ ) {
+                        String callHostname = (String) call.get( HOSTNAME_KEY );
+                        if ( ! reqHostname.equals( callHostname ) ) {
+                            SampException err =
+                                new SampException( "Hostname mismatch: "
+                                                 + reqHostname + " != "
+                                                 + callHostname );
+                            rcall.stats_.nFailed_.incrementAndGet();
+                            rcall.result_.completeExceptionally( err );
+                            completion.failed( err );
+                            return;
+                        }
+                    }
+
+                    // Prepare to receive a response corresponding to the call,
+                    // and arrange to forget about it if none arrives.
+                    dispensedCalls_.put( callTag, rcall );
+                    rcall.expiry_ = timer_.schedule( new Runnable() {
+                        public void run() {
+                            expireDispensedCall( rcall );
+                        }
+                    }, resultMaxWaitSec_ * 1000L );
+                    completion.completed( call );
+                }
+            };
+        }
+
+        /**
+         * Discards a dispensed call for which no result has arrived in time,
+         * and informs its submitter.  Called from the timer thread.
+         *
+         * @param  rcall  dispensed call
+         */
+        private void expireDispensedCall( RelayedCall rcall ) {
+            if ( dispensedCalls_.remove( rcall.callTag_, rcall ) ) {
+                nDispensedExpired_.incrementAndGet();
+            }
+            boolean isExpired = rcall.result_.completeExceptionally(
+                new SampException( "No hub response for " + rcall.call_
+                                 + " (relay timeout "
+                                 + resultMaxWaitSec_ + "sec)" ) );
+            if ( isExpired ) {
+                nResultExpired_.incrementAndGet();
+                rcall.stats_.nResultExpired_.incrementAndGet();
+            }
         }
 
         /**
@@ -371,13 +1414,73 @@ public class XmlRpcRelay {
          */
         private void receiveResult( String callTag, Map result,
                                     String reqHostname )
-                throws SampException, InterruptedException {
-            SampCall call =
-                dispenseHandler_.takeDispensedCall( callTag, reqHostname );
-            synchronized ( call ) {
-                call.put( RESULT_KEY, result );
-                call.notifyAll();
+                throws SampException {
+            RelayedCall rcall = takeDispensedCall( callTag, reqHostname );
+            TimingWheel.Timeout expiry = rcall.expiry_;
+            if ( expiry != null ) {
+                expiry.cancel();
             }
+
+            // The result is held until the submitter has been answered,
+            // so charge it to the call's memory reservation.
+            // If it's too big, the submitter gets an error instead.
+            if ( rcall.resv_ != null ) {
+                try {
+                    rcall.resv_.charge( RelayMemory.estimateSize( result ) );
+                }
+                catch ( SampException e ) {
+                    rcall.stats_.nFailed_.incrementAndGet();
+                    rcall.result_.completeExceptionally( e );
+                    throw e;
+                }
+            }
+            rcall.result_.complete( result );
+        }
+
+        /**
+         * Accepts a batch of return values for previously dispensed calls.
+         * Each entry is processed independently, and failure of one
+         * does not prevent processing of the others.
+         *
+         * @param   taggedResults  list of maps, each with entries
+         *                         {@link TlsHubProfile#BATCH_TAG_KEY} and
+         *                         {@link TlsHubProfile#BATCH_RESULT_KEY}
+         * @param   reqHostname  hostname associated with this receive request
+         * @return   list of strings, one for each input entry;
+         *           each is empty for success or an error message
+         */
+        private List<String> receiveResults( List taggedResults,
+                                             String reqHostname )
+                throws SampException {
+            int n = taggedResults.size();
+            if ( n > MAX_BATCH ) {
+                throw new SampException( "Too many results in batch ("
+                                       + n + " > " + MAX_BATCH + ")" );
+            }
+            List<String> statusList = new ArrayList<String>( n );
+            for ( Object entry : taggedResults ) {
+                String status;
+                try {
+                    Map map = toMap( entry );
+                    if ( map == null ) {
+                        throw new SampException( "Batch entry not a map" );
+                    }
+                    String callTag =
+                        asString( map.get( TlsHubProfile.BATCH_TAG_KEY ) );
+                    Map result =
+                        toMap( map.get( TlsHubProfile.BATCH_RESULT_KEY ) );
+                    if ( callTag == null || result == null ) {
+                        throw new SampException( "Bad batch entry" );
+                    }
+                    receiveResult( callTag, result, reqHostname );
+                    status = "";
+                }
+                catch ( SampException e ) {
+                    status = e.getMessage();
+                }
+                statusList.add( status == null ? "error" : status );
+            }
+            return statusList;
         }
 
         /**
@@ -404,12 +1507,14 @@ public class XmlRpcRelay {
          * @return  SampException  if there is no such call, or something
          *                         else goes wrong
          */
-        SampCall takeDispensedCall( String callTag, String requestHostname )
+        RelayedCall takeDispensedCall( String callTag,
+                                       String requestHostname )
                 throws SampException {
-            SampCall call = dispensedCalls_.remove( callTag );
-            if ( call == null ) {
+            RelayedCall rcall = dispensedCalls_.remove( callTag );
+            if ( rcall == null ) {
                 throw new SampException( "unknown callTag " + callTag );
             }
+            SampCall call = rcall.call_;
             if ( checkHostnames_ ) {
                 Object callHostnameObj = call.get( HOSTNAME_KEY );
                 if ( ! ( callHostnameObj instanceof String ) ) {
@@ -426,7 +1531,230 @@ public class XmlRpcRelay {
                                            + callHostname );
                 }
             }
-            return call;
+            return rcall;
+        }
+    }
+
+    /**
+     * Tracks call tags queued for a session, and the hub request,
+     * if any, currently waiting for them.
+     * All access is synchronized on the session object itself.
+     * A session is discarded when it has had no activity for a while;
+     * once that has happened, its methods return false to indicate that
+     * the caller should retry with a freshly created one.
+     */
+    private class Session {
+        private final String sessionId_;
+        private final ArrayDeque<String> tags_;
+        private AsyncXmlRpcHandler.Completion waiter_;
+        private String waiterHostname_;
+        private TimingWheel.Timeout waitTimeout_;
+        private TimingWheel.Timeout idleTimeout_;
+        private boolean isDead_;
+
+        /**
+         * Constructor.
+         *
+         * @param  sessionId  session token
+         */
+        Session( String sessionId ) {
+            sessionId_ = sessionId;
+            tags_ = new ArrayDeque<String>();
+        }
+
+        /**
+         * Adds a call tag to this session, passing it straight to
+         * a waiting poller if there is one.
+         *
+         * @param  callTag  tag of queued call
+         * @return  false if this session is defunct
+         */
+        boolean addTag( String callTag ) {
+            AsyncXmlRpcHandler.Completion waiter;
+            String hostname;
+            List<String> tags;
+            synchronized ( this ) {
+                if ( isDead_ ) {
+                    return false;
+                }
+                if ( tags_.size() >= DispenseHandler.MAX_SESSION_QUEUE ) {
+                    logger_.warning( "Session queue full, not queueing "
+                                   + callTag );
+                    return true;
+                }
+                tags_.add( callTag );
+                touch();
+                if ( waiter_ == null ) {
+                    return true;
+                }
+                waiter = waiter_;
+                hostname = waiterHostname_;
+                tags = drainTags();
+            }
+            dispenseHandler_.dispenseSessionCalls( tags, hostname, waiter );
+            return true;
+        }
+
+        /**
+         * Accepts a poll for calls queued for this session.
+         * If any are already queued they are dispensed immediately,
+         * otherwise the completion is held until some arrive or
+         * the timeout expires, in which case it receives an empty list.
+         * Any poll already waiting is completed with an empty list,
+         * since only one poller per session is expected.
+         *
+         * @param  timeoutMillis  maximum wait time
+         * @param  hostname  hostname of poll originator,
+         *                   or null if not checking hostnames
+         * @param  completion  receives the list of dispensed calls
+         * @return  false if this session is defunct
+         */
+        boolean poll( int timeoutMillis, String hostname,
+                      final AsyncXmlRpcHandler.Completion completion ) {
+            AsyncXmlRpcHandler.Completion oldWaiter;
+            List<String> tags;
+            synchronized ( this ) {
+                if ( isDead_ ) {
+                    return false;
+                }
+                oldWaiter = clearWaiter();
+                touch();
+                if ( tags_.isEmpty() ) {
+                    tags = null;
+                    waiter_ = completion;
+                    waiterHostname_ = hostname;
+                    waitTimeout_ = timer_.schedule( new Runnable() {
+                        public void run() {
+                            expireWaiter( completion );
+                        }
+                    }, timeoutMillis );
+                }
+                else {
+                    tags = drainTags();
+                }
+            }
+            if ( oldWaiter != null ) {
+                oldWaiter.completed( new ArrayList() );
+            }
+            if ( tags != null ) {
+                dispenseHandler_.dispenseSessionCalls( tags, hostname,
+                                                       completion );
+            }
+            return true;
+        }
+
+        /**
+         * Completes a waiting poll with no calls if it is still waiting.
+         * Called from the timer thread.
+         *
+         * @param  completion  poll completion
+         */
+        private void expireWaiter( AsyncXmlRpcHandler.Completion completion ) {
+            synchronized ( this ) {
+                if ( waiter_ != completion ) {
+                    return;
+                }
+                waiter_ = null;
+                waiterHostname_ = null;
+                waitTimeout_ = null;
+                touch();
+            }
+            nPullExpired_.incrementAndGet();
+            completion.completed( new ArrayList() );
+        }
+
+        /**
+         * Discards this session if it is idle.  Called from the timer thread.
+         */
+        private void expireIdle() {
+            synchronized ( this ) {
+                if ( waiter_ != null ) {
+                    return;
+                }
+                isDead_ = true;
+                tags_.clear();
+            }
+            dispenseHandler_.sessions_.remove( sessionId_, this );
+        }
+
+        /**
+         * Resets the idle timer.
+         */
+        synchronized void touch() {
+            if ( idleTimeout_ != null ) {
+                idleTimeout_.cancel();
+            }
+            idleTimeout_ = timer_.schedule( new Runnable() {
+                public void run() {
+                    expireIdle();
+                }
+            }, DispenseHandler.SESSION_IDLE_SEC * 1000L );
+        }
+
+        /**
+         * Removes and returns the current waiter.
+         * Must be called with the lock held.
+         *
+         * @return  previous waiter, or null
+         */
+        private AsyncXmlRpcHandler.Completion clearWaiter() {
+            AsyncXmlRpcHandler.Completion waiter = waiter_;
+            if ( waitTimeout_ != null ) {
+                waitTimeout_.cancel();
+            }
+            waiter_ = null;
+            waiterHostname_ = null;
+            waitTimeout_ = null;
+            return waiter;
+        }
+
+        /**
+         * Removes and returns all queued tags, clearing any waiter.
+         * Must be called with the lock held.
+         *
+         * @return  queued tags
+         */
+        private List<String> drainTags() {
+            clearWaiter();
+            List<String> tags = new ArrayList<String>( tags_ );
+            tags_.clear();
+            return tags;
+        }
+    }
+
+    /**
+     * Aggregates a submitted call with the state required to relay it.
+     */
+    private static class RelayedCall {
+        final String callTag_;
+        final SampCall call_;
+        final String hostname_;
+        final CompletableFuture<Map> result_;
+        final RelayMetrics.MethodStats stats_;
+        final RelayMemory.Reservation resv_;
+        final long submitNanos_;
+        volatile long dispenseNanos_;
+        volatile TimingWheel.Timeout expiry_;
+
+        /**
+         * Constructor.
+         *
+         * @param  callTag  call tag
+         * @param  call   call as submitted
+         * @param  hostname  hostname of submitter, or null if not known
+         * @param  stats  statistics for the call's method
+         * @param  resv   memory reservation for the call, or null
+         */
+        RelayedCall( String callTag, SampCall call, String hostname,
+                     RelayMetrics.MethodStats stats,
+                     RelayMemory.Reservation resv ) {
+            callTag_ = callTag;
+            call_ = call;
+            hostname_ = hostname;
+            stats_ = stats;
+            resv_ = resv;
+            result_ = new CompletableFuture<Map>();
+            submitNanos_ = System.nanoTime();
         }
     }
 }
@@ -20,6 +20,11 @@ var samp = (function() {
     var TLSAMP_NUDGE_PATH = "/nudge";
     var TLSAMP_RELAY_PARAM = "relay";
     var TLSAMP_CALLTAG_PARAM = "callTag";
+    var TLSAMP_SESSION_PARAM = "session";
+    var TLSAMP_SESSION_SEP = "/";
+    var TLSAMP_SESSION_IMG_WIDTH = 14;
+    var TLSAMP_BUSY_IMG_WIDTH = 16;
+    var TLSAMP_SESSION_IDLE_MS = 30000;
     var TLSAMP_PREFIX = "samp.tlshub.";
 
     // Tokens representing permissible types in a SAMP object (e.g. a message)
@@ -741,6 +746,12 @@ var samp = (function() {
     // hook to use for declaring subscriptions.
     //
     // The CallableClient class provides a suitable implementation, see below.
+    //
+    // If the profile supports callback mailboxes (TlsProfile does),
+    // the hub is first asked to push callbacks to a mailbox at the relay,
+    // which is then polled directly, so that waiting for callbacks
+    // involves no relayed calls.  If that is refused, for instance by
+    // an older hub or relay, callbacks are polled from the hub as usual.
     Connection.prototype.setCallable = function(callableClient,
                                                 successHandler) {
         var e;
@@ -832,7 +843,85 @@ var samp = (function() {
                     callWaiter();
                     successHandler();
                 };
-                connection.xClient.execute(request, sHandler, closer);
+                var allowCallbacks = function() {
+                    connection.xClient.execute(request, sHandler, closer);
+                };
+
+                // As allowCallbacks, but for use once the successHandler
+                // has already been called on behalf of a mailbox.
+                var fallbackCallbacks = function() {
+                    connection.xClient.execute(request, callWaiter, closer);
+                };
+
+                // Mailbox variants of the above.  A poll that fails
+                // quickly probably means the relay has discarded the
+                // mailbox, so a new one is opened; if that doesn't help,
+                // callbacks are polled from the hub instead.
+                var mailboxId;
+                var isReopened = false;
+                var mailboxResultHandler = function(result) {
+                    if (getSampType(result) != TYPE_LIST) {
+                        mailboxErrHandler(
+                            new Error("pullMailbox result not List"));
+                        return;
+                    }
+                    var i;
+                    var e;
+                    isReopened = false;
+                    for (i = 0; i < result.length; i++) {
+                        try {
+                            invokeCallback(result[i]);
+                        }
+                        catch (e) {
+                        }
+                    }
+                    mailboxWaiter();
+                };
+                var mailboxErrHandler = function(error) {
+                    var elapsed = new Date().getTime() - startTime;
+                    if (elapsed >= 1000) {
+                        mailboxWaiter();
+                    }
+                    else if (!isReopened) {
+                        isReopened = true;
+                        openMailbox(mailboxWaiter, fallbackCallbacks);
+                    }
+                    else {
+                        fallbackCallbacks();
+                    }
+                };
+                var mailboxWaiter = function() {
+                    if (!connection.regInfo) {
+                        return;
+                    }
+                    var request =
+                        new XmlRpcRequest(TLSAMP_PREFIX + "pullMailbox");
+                    request.addParam(mailboxId);
+                    request.addParam("60");
+                    startTime = new Date().getTime();
+                    connection.callbackRequest =
+                        connection.xClient.
+                                   execute(request, mailboxResultHandler,
+                                           mailboxErrHandler);
+                };
+                var openMailbox = function(onOpen, onRefuse) {
+                    var request =
+                        new XmlRpcRequest(WEBSAMP_PREFIX + "openMailbox");
+                    request.addParam(connection.privateKey);
+                    connection.xClient.execute(request, function(result) {
+                        mailboxId = result;
+                        onOpen();
+                    }, onRefuse);
+                };
+                if (connection.xClient.profile.callbackMailbox) {
+                    openMailbox(function() {
+                        mailboxWaiter();
+                        successHandler();
+                    }, allowCallbacks);
+                }
+                else {
+                    allowCallbacks();
+                }
             })(this);
         }
         else {
@@ -1027,6 +1116,12 @@ var samp = (function() {
     //       using a given XmlHttpRequest facade xhr,
     //       and (if errHandler is supplied) invokes errHandler(e)
     //       if there is some problem.
+    //
+    // and optionally:
+    //
+    //    callbackMailbox:
+    //       true if callbacks can be collected from a relay mailbox
+    //       rather than polled from the hub.
 
     // WebProfile - profile implementation for the SAMP Web Profile.
     var WebProfile = function() {
@@ -1086,19 +1181,27 @@ var samp = (function() {
         // uses Math.random() which may not be good enough, since it is
         // probably seeded from system time, so different clients might
         // end up using the same value.
-        var createTag = function() {
+        var randomChars = function(nchar) {
             var tagchrs = "0123456789abcdefghijklmnopqrstuvwxyz";
-            var tag0 = location.hostname + ":";
+            var txt = "";
             var i;
-            var tag;
-            return function(nchar) {
-                tag = tag0;
-                for (i = 0; i < nchar; i++) {
-                    tag += tagchrs[Math.floor(Math.random()*tagchrs.length)];
-                }
-                return tag;
+            for (i = 0; i < nchar; i++) {
+                txt += tagchrs[Math.floor(Math.random()*tagchrs.length)];
             }
-        }();
+            return txt;
+        };
+        var createTag = function(nchar) {
+            return location.hostname + ":" + randomChars(nchar);
+        };
+
+        // Session state.  All call tags are prefixed by the session token.
+        // Once the hub has indicated (by the width of the nudge image)
+        // that it is polling the relay for calls in this session,
+        // calls are sent directly without nudging, until the session
+        // has been idle for a while or a call fails.
+        var sessionId = createTag(24);
+        var sessionLive = false;
+        var lastSendTime = 0;
 
         // Set up doSend function that submits XHRs.
         // It only proceeds with the send if contact with the localhost
@@ -1109,7 +1212,8 @@ var samp = (function() {
                 iseq += 1;
                 return nudgeSrcBase +
                        "?" + TLSAMP_RELAY_PARAM + "=" + relayUrl +
-                       "&" + "callTag=" + tag +
+                       "&" + TLSAMP_CALLTAG_PARAM + "=" + tag +
+                       "&" + TLSAMP_SESSION_PARAM + "=" + sessionId +
                        "&" + "iseq=" + iseq;
             };
         }();
@@ -1164,14 +1268,62 @@ var samp = (function() {
                 imgEl.setAttribute("src", imgSrc);
             };
         };
+        var sessionFunc = function(send, errHandler) {
+            return function() {
+                var width = imgNode.naturalWidth;
+                if (width === TLSAMP_BUSY_IMG_WIDTH) {
+                    if (errHandler) {
+                        errHandler("TLS Hub busy");
+                    }
+                    return;
+                }
+                sessionLive = width === TLSAMP_SESSION_IMG_WIDTH;
+                send();
+            };
+        };
+        var watchSession = function(xhr) {
+            var onload = xhr.onload;
+            var onerror = xhr.onerror;
+            xhr.onload = function() {
+                if (/No hub/.test(xhr.responseText)) {
+                    sessionLive = false;
+                }
+                if (onload) {
+                    onload();
+                }
+            };
+            xhr.onerror = function(event) {
+                sessionLive = false;
+                if (onerror) {
+                    onerror(event);
+                }
+            };
+        };
         var queue = new ImgQueue();
-        var tag;
+        this.callbackMailbox = true;
         this.doSend = function(xhr, request, errHandler) {
-            tag = createTag(12);
-            queue.submit(imgNode,
-                         nudgeSrc(tag),
-                         sendFunc(xhr, request, tag),
-                         errFunc(errHandler));
+
+            // Calls already in the TLS namespace (mailbox polls)
+            // are serviced by the relay itself, so need no tag or nudge.
+            if (request.methodName.indexOf(TLSAMP_PREFIX) === 0) {
+                xhr.send(request.toXml());
+                return;
+            }
+            var tag = sessionId + TLSAMP_SESSION_SEP + randomChars(12);
+            var now = new Date().getTime();
+            var isIdle = now - lastSendTime > TLSAMP_SESSION_IDLE_MS;
+            lastSendTime = now;
+            if (sessionLive && !isIdle) {
+                watchSession(xhr);
+                sendFunc(xhr, request, tag)();
+            }
+            else {
+                queue.submit(imgNode,
+                             nudgeSrc(tag),
+                             sessionFunc(sendFunc(xhr, request, tag),
+                                         errHandler),
+                             errFunc(errHandler));
+            }
         };
     }
 
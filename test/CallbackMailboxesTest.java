@@ -0,0 +1,206 @@
+package org.astrogrid.samp.tls;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astrogrid.samp.client.SampException;
+
+/**
+ * Tests the closing of mailboxes by {@link CallbackMailboxes}.
+ * In particular, it checks that a post that would overflow a mailbox
+ * closes it, and that once a closed mailbox has delivered the
+ * callbacks it holds, polls fail rather than returning empty lists,
+ * so that the client knows to revert to polling the hub.
+ *
+ * <p>Usage: <code>CallbackMailboxesTest</code>;
+ * exits with a non-zero status on failure.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class CallbackMailboxesTest {
+
+    private static final String HOST = "localhost";
+    private static final int CAPACITY = 4;
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.WARNING );
+        TimingWheel timer = new TimingWheel( "Test timer", 5, 64 );
+        try {
+            testOverflow( timer );
+            testCloseWaiting( timer );
+            testCloseHolding( timer );
+        }
+        catch ( Throwable e ) {
+            e.printStackTrace();
+            System.exit( 1 );
+        }
+        finally {
+            timer.stop();
+        }
+        System.out.println( "CallbackMailboxesTest: ok" );
+        System.exit( 0 );
+    }
+
+    /**
+     * Checks that an overflowing post closes the mailbox, and that
+     * the callbacks held are delivered before polls fail.
+     */
+    private static void testOverflow( TimingWheel timer ) throws Exception {
+        CallbackMailboxes mailboxes = createMailboxes( timer );
+        assertTrue( mailboxes.open( "mb1", HOST ), "open refused" );
+        mailboxes.post( "mb1", HOST, callbacks( 0, 3 ) );
+        assertTrue( ! post( mailboxes, "mb1", callbacks( 3, 2 ) ),
+                    "overflowing post accepted" );
+        assertTrue( mailboxes.getOverflowCount() == 1, "overflow not counted" );
+        assertTrue( ! post( mailboxes, "mb1", callbacks( 5, 1 ) ),
+                    "post to closed mailbox accepted" );
+        Result poll = new Result();
+        mailboxes.pull( "mb1", HOST, 10, poll );
+        assertTrue( callbacks( 0, 3 ).equals( poll.await() ),
+                    "held callbacks not delivered" );
+        assertTrue( ! pull( mailboxes, "mb1" ), "closed mailbox polled" );
+        assertTrue( mailboxes.getMailboxCount() == 0, "mailbox not removed" );
+    }
+
+    /**
+     * Checks that closing an empty mailbox fails a waiting poll.
+     */
+    private static void testCloseWaiting( TimingWheel timer )
+            throws Exception {
+        CallbackMailboxes mailboxes = createMailboxes( timer );
+        assertTrue( mailboxes.open( "mb1", HOST ), "open refused" );
+        Result poll = new Result();
+        mailboxes.pull( "mb1", HOST, 10, poll );
+        Thread.sleep( 50 );
+        assertTrue( ! poll.isDone(), "poll finished early" );
+        mailboxes.close( "mb1", HOST );
+        poll.await();
+        assertTrue( poll.error_ instanceof SampException,
+                    "waiting poll not failed" );
+        assertTrue( ! pull( mailboxes, "mb1" ), "closed mailbox polled" );
+        assertTrue( ! post( mailboxes, "mb1", callbacks( 0, 1 ) ),
+                    "post to closed mailbox accepted" );
+    }
+
+    /**
+     * Checks that closing a mailbox which holds callbacks keeps them
+     * for the next poll.
+     */
+    private static void testCloseHolding( TimingWheel timer )
+            throws Exception {
+        CallbackMailboxes mailboxes = createMailboxes( timer );
+        assertTrue( mailboxes.open( "mb1", HOST ), "open refused" );
+        mailboxes.post( "mb1", HOST, callbacks( 0, 2 ) );
+        mailboxes.close( "mb1", HOST );
+        assertTrue( ! post( mailboxes, "mb1", callbacks( 2, 1 ) ),
+                    "post to closed mailbox accepted" );
+        Result poll = new Result();
+        mailboxes.pull( "mb1", HOST, 10, poll );
+        assertTrue( callbacks( 0, 2 ).equals( poll.await() ),
+                    "held callbacks not delivered" );
+        assertTrue( ! pull( mailboxes, "mb1" ), "closed mailbox polled" );
+    }
+
+    /**
+     * Returns a mailbox store with a small capacity.
+     */
+    private static CallbackMailboxes createMailboxes( TimingWheel timer ) {
+        return new CallbackMailboxes( timer, true, 16, CAPACITY );
+    }
+
+    /**
+     * Returns a list of dummy callbacks.
+     *
+     * @param  start  index of first callback
+     * @param  n   number of callbacks
+     * @return  list of callbacks
+     */
+    private static List<Object> callbacks( int start, int n ) {
+        List<Object> list = new ArrayList<Object>();
+        for ( int i = 0; i < n; i++ ) {
+            list.add( "cb" + ( start + i ) );
+        }
+        return list;
+    }
+
+    /**
+     * Posts callbacks to a mailbox.
+     *
+     * @return  true iff the post was accepted
+     */
+    private static boolean post( CallbackMailboxes mailboxes,
+                                 String mailboxId, List callbacks ) {
+        try {
+            mailboxes.post( mailboxId, HOST, callbacks );
+            return true;
+        }
+        catch ( SampException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * Makes a poll of a mailbox which does not wait.
+     *
+     * @return  true iff the poll was accepted
+     */
+    private static boolean pull( CallbackMailboxes mailboxes,
+                                 String mailboxId ) {
+        try {
+            mailboxes.pull( mailboxId, HOST, 0, new Result() );
+            return true;
+        }
+        catch ( SampException e ) {
+            return false;
+        }
+    }
+
+    private static void assertTrue( boolean test, String msg ) {
+        if ( ! test ) {
+            throw new AssertionError( msg );
+        }
+    }
+
+    /**
+     * Completion that records its outcome.
+     */
+    private static class Result implements AsyncXmlRpcHandler.Completion {
+        private final CountDownLatch done_ = new CountDownLatch( 1 );
+        volatile Object result_;
+        volatile Throwable error_;
+
+        public void completed( Object result ) {
+            result_ = result;
+            done_.countDown();
+        }
+
+        public void failed( Throwable error ) {
+            error_ = error;
+            done_.countDown();
+        }
+
+        /**
+         * Indicates whether this completion has been called.
+         */
+        boolean isDone() {
+            return done_.getCount() == 0;
+        }
+
+        /**
+         * Waits for this completion to be called.
+         *
+         * @return  result, or null if it failed
+         */
+        Object await() throws InterruptedException {
+            assertTrue( done_.await( 5, TimeUnit.SECONDS ), "no completion" );
+            return result_;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.astrogrid.samp.tls;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the concurrency limits applied by {@link CollectionScheduler}.
+ * In particular, it checks that long-running session tasks for a relay
+ * do not prevent ordinary collection tasks for the same relay
+ * from running.
+ *
+ * <p>Usage: <code>CollectionSchedulerTest</code>;
+ * exits with a non-zero status on failure.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class CollectionSchedulerTest {
+
+    private static final String RELAY = "https://example.org/relay";
+    private static final int PER_RELAY = 8;
+    private static final int N_SESSION = PER_RELAY + 4;
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            testSessionsDoNotStarveRelay( executor );
+            testSessionLimits( executor );
+        }
+        catch ( Throwable e ) {
+            e.printStackTrace();
+            System.exit( 1 );
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        System.out.println( "CollectionSchedulerTest: ok" );
+        System.exit( 0 );
+    }
+
+    /**
+     * Checks that with more session tasks running for a relay than
+     * the relay's concurrency limit, an ordinary task still runs.
+     */
+    private static void testSessionsDoNotStarveRelay( ExecutorService exec )
+            throws InterruptedException {
+        CollectionScheduler sched =
+            new CollectionScheduler( exec, 32, PER_RELAY, 1, 64, 64, 1024 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        CountDownLatch started = new CountDownLatch( N_SESSION );
+        for ( int i = 0; i < N_SESSION; i++ ) {
+            sched.execute( RELAY, RELAY + " session" + i,
+                           new Blocker( started, release ) );
+        }
+        assertTrue( started.await( 5, TimeUnit.SECONDS ),
+                    "session tasks did not all start" );
+        assertEquals( N_SESSION, sched.getSessionActiveCount() );
+        CountDownLatch done = new CountDownLatch( 1 );
+        sched.execute( RELAY, new Blocker( done, null ) );
+        assertTrue( done.await( 5, TimeUnit.SECONDS ),
+                    "ordinary task starved by session tasks" );
+        release.countDown();
+        awaitIdle( sched );
+        assertEquals( N_SESSION + 1, (int) sched.getCompletedCount() );
+    }
+
+    /**
+     * Checks that the total and per-session limits on session tasks
+     * are applied.
+     */
+    private static void testSessionLimits( ExecutorService exec )
+            throws InterruptedException {
+        int maxSessionTasks = 4;
+        CollectionScheduler sched =
+            new CollectionScheduler( exec, 32, PER_RELAY, 1, maxSessionTasks,
+                                     64, 1024 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        CountDownLatch started = new CountDownLatch( maxSessionTasks + 2 );
+
+        // Two tasks for the same session: only one may run at a time.
+        sched.execute( RELAY, "s0", new Blocker( started, release ) );
+        sched.execute( RELAY, "s0", new Blocker( started, release ) );
+        for ( int i = 1; i <= maxSessionTasks; i++ ) {
+            sched.execute( RELAY, "s" + i, new Blocker( started, release ) );
+        }
+        Thread.sleep( 200 );
+        assertEquals( maxSessionTasks, sched.getSessionActiveCount() );
+        assertEquals( 2, sched.getQueuedCount() );
+        release.countDown();
+        assertTrue( started.await( 5, TimeUnit.SECONDS ),
+                    "queued session tasks did not run" );
+        awaitIdle( sched );
+        assertEquals( maxSessionTasks + 2, (int) sched.getCompletedCount() );
+    }
+
+    /**
+     * Waits for a scheduler to have no running or queued tasks.
+     */
+    private static void awaitIdle( CollectionScheduler sched )
+            throws InterruptedException {
+        for ( int i = 0; i < 500 && ( sched.getActiveCount() > 0 ||
+                                      sched.getQueuedCount() > 0 ); i++ ) {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 0, sched.getActiveCount() );
+        assertEquals( 0, sched.getQueuedCount() );
+    }
+
+    private static void assertTrue( boolean test, String msg ) {
+        if ( ! test ) {
+            throw new AssertionError( msg );
+        }
+    }
+
+    private static void assertEquals( int expected, int actual ) {
+        if ( expected != actual ) {
+            throw new AssertionError( "expected " + expected
+                                    + ", got " + actual );
+        }
+    }
+
+    /**
+     * Task that signals when it starts, then optionally waits for release.
+     */
+    private static class Blocker implements Runnable {
+        private final CountDownLatch started_;
+        private final CountDownLatch release_;
+
+        /**
+         * Constructor.
+         *
+         * @param  started  counted down when the task starts
+         * @param  release  awaited before the task ends, or null
+         */
+        Blocker( CountDownLatch started, CountDownLatch release ) {
+            started_ = started;
+            release_ = release;
+        }
+
+        public void run() {
+            started_.countDown();
+            if ( release_ != null ) {
+                try {
+                    release_.await();
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
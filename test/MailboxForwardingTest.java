@@ -0,0 +1,272 @@
+package org.astrogrid.samp.tls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astrogrid.samp.hub.BasicHubService;
+import org.astrogrid.samp.hub.Hub;
+import org.astrogrid.samp.hub.KeyGenerator;
+import org.astrogrid.samp.web.ClientAuthorizers;
+import org.astrogrid.samp.web.ListMessageRestriction;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClientFactory;
+import org.astrogrid.samp.xmlrpc.internal.InternalClient;
+
+/**
+ * Tests what happens when a hub fails to post callbacks to a
+ * relay mailbox.  A hub and a relay are run in this JVM,
+ * and the hub's posts are made to fail on demand.
+ * It checks that the relay mailbox is then closed, so that the
+ * client's next poll of it fails, and that the callbacks of the failed
+ * post are returned by <code>pullCallbacks</code> ahead of
+ * later ones, rather than being lost.
+ *
+ * <p>Usage: <code>MailboxForwardingTest</code>;
+ * exits with a non-zero status on failure.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class MailboxForwardingTest {
+
+    private static final String MTYPE = "samp.app.ping";
+    private static volatile boolean failPosts_;
+    private static String relayLoc_;
+    private static int hubPort_;
+    private static SampXmlRpcClient client_;
+    private static int iTag_;
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.SEVERE );
+        try {
+            testPostFailure();
+        }
+        catch ( Throwable e ) {
+            e.printStackTrace();
+            System.exit( 1 );
+        }
+        System.out.println( "MailboxForwardingTest: ok" );
+        System.exit( 0 );
+    }
+
+    /**
+     * Checks that callbacks survive a failed post.
+     */
+    private static void testPostFailure() throws Exception {
+        int relayPort = getFreePort();
+        hubPort_ = getFreePort();
+        XmlRpcRelay relay =
+            new XmlRpcRelay( StandaloneServer.getRequestFormat(), true );
+        NioRelayServer server =
+            new NioRelayServer( relayPort, "/relay", null,
+                                new AsyncXmlRpcHandler[] {
+                                    relay.getReceiveHandler(),
+                                    relay.getDispenseHandler(),
+                                }, 2 );
+        server.start();
+        relayLoc_ = "http://localhost:" + relayPort + "/relay";
+        client_ = new InternalClient( new URL( relayLoc_ ) );
+        BasicHubService service =
+            new BasicHubService( KeyGenerator.createRandom() );
+        Hub hub = new Hub( service );
+        service.start();
+        hub.startProfile(
+            new TlsHubProfile( hubPort_, ClientAuthorizers.TRUE,
+                               ListMessageRestriction.DEFAULT,
+                               new FailingClientFactory(),
+                               new KeyGenerator( "tls:", 24,
+                                                 KeyGenerator
+                                                .createRandom() ) ) );
+        try {
+            Map regA = register( "A" );
+            String keyA = (String) regA.get( "samp.private-key" );
+            String idA = (String) regA.get( "samp.self-id" );
+            String keyB = (String) register( "B" ).get( "samp.private-key" );
+            String mailboxId = (String) hubCall( "openMailbox", keyA );
+            Map subs = new HashMap();
+            subs.put( MTYPE, new HashMap() );
+            hubCall( "declareSubscriptions", keyA, subs );
+
+            // Forwarding works.
+            notify( keyB, idA, 0 );
+            assertTrue( Arrays.asList( "0" )
+                       .equals( pullMailbox( mailboxId, 1 ) ),
+                        "callback not forwarded" );
+
+            // A failed post closes the mailbox.
+            failPosts_ = true;
+            notify( keyB, idA, 1 );
+            List<String> got = new ArrayList<String>();
+            for ( int i = 0; i < 50; i++ ) {
+                List<String> indices = pullMailbox( mailboxId, 0 );
+                if ( indices == null ) {
+                    break;
+                }
+                got.addAll( indices );
+                Thread.sleep( 100 );
+            }
+            assertTrue( pullMailbox( mailboxId, 0 ) == null,
+                        "mailbox not closed" );
+            assertTrue( got.isEmpty(), "failed post delivered" );
+
+            // The callbacks come from the hub instead, in order.
+            notify( keyB, idA, 2 );
+            for ( int i = 0; i < 50 && got.size() < 2; i++ ) {
+                List cbs = (List) hubCall( "pullCallbacks", keyA, "1" );
+                got.addAll( getIndices( cbs ) );
+            }
+            assertTrue( Arrays.asList( "1", "2" ).equals( got ),
+                        "callbacks lost or reordered: " + got );
+        }
+        finally {
+            hub.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Registers a client.
+     *
+     * @param  name  client name
+     * @return  registration information map
+     */
+    private static Map register( String name ) throws IOException {
+        Map meta = new HashMap();
+        meta.put( "samp.name", name );
+        return (Map) hubCall( "register", meta );
+    }
+
+    /**
+     * Sends an indexed notification from one client to another.
+     */
+    private static void notify( String senderKey, String recipientId,
+                                int index ) throws IOException {
+        Map params = new HashMap();
+        params.put( "index", Integer.toString( index ) );
+        Map msg = new HashMap();
+        msg.put( "samp.mtype", MTYPE );
+        msg.put( "samp.params", params );
+        hubCall( "notify", senderKey, recipientId, msg );
+    }
+
+    /**
+     * Polls the relay mailbox.
+     *
+     * @param  mailboxId  mailbox ID
+     * @param  timeoutSec  maximum wait
+     * @return  notification indices received,
+     *          or null if the poll was refused
+     */
+    private static List<String> pullMailbox( String mailboxId,
+                                             int timeoutSec ) {
+        List params =
+            Arrays.asList( new Object[] {
+                mailboxId, Integer.toString( timeoutSec ) } );
+        try {
+            return getIndices( (List) client_
+                              .callAndWait( TlsHubProfile.COLLECTOR_PREFIX
+                                          + CallbackMailboxes.PULL_METHOD,
+                                            params ) );
+        }
+        catch ( IOException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Extracts the notification indices from a list of callbacks.
+     */
+    private static List<String> getIndices( List callbacks ) {
+        List<String> indices = new ArrayList<String>();
+        for ( Object cb : callbacks ) {
+            List cbParams = (List) ( (Map) cb ).get( "samp.params" );
+            Map msg = (Map) cbParams.get( 1 );
+            indices.add( (String) ( (Map) msg.get( "samp.params" ) )
+                                 .get( "index" ) );
+        }
+        return indices;
+    }
+
+    /**
+     * Makes a hub call through the relay, nudging the hub to collect it
+     * as a web page would.
+     *
+     * @param  method  unprefixed hub method name
+     * @param  args   call parameters following the call tag
+     * @return   call result
+     */
+    private static Object hubCall( String method, Object... args )
+            throws IOException {
+        String tag = "localhost:t" + ( ++iTag_ );
+        URL nudge = new URL( "http://localhost:" + hubPort_
+                           + TlsHubProfile.NUDGE_PATH + "?"
+                           + TlsHubProfile.RELAYURL_PARAM + "="
+                           + URLEncoder.encode( relayLoc_, "UTF-8" ) + "&"
+                           + TlsHubProfile.CALLTAG_PARAM + "="
+                           + URLEncoder.encode( tag, "UTF-8" ) );
+        InputStream in = nudge.openStream();
+        while ( in.read() >= 0 ) {
+        }
+        in.close();
+        List params = new ArrayList();
+        params.add( tag );
+        params.addAll( Arrays.asList( args ) );
+        return client_.callAndWait( TlsHubProfile.COLLECTOR_PREFIX + method,
+                                    params );
+    }
+
+    /**
+     * Returns a currently unused port number.
+     */
+    private static int getFreePort() throws IOException {
+        ServerSocket sock = new ServerSocket( 0 );
+        int port = sock.getLocalPort();
+        sock.close();
+        return port;
+    }
+
+    private static void assertTrue( boolean test, String msg ) {
+        if ( ! test ) {
+            throw new AssertionError( msg );
+        }
+    }
+
+    /**
+     * Client factory whose clients fail mailbox posts on demand.
+     */
+    private static class FailingClientFactory
+            implements SampXmlRpcClientFactory {
+        private final String postMethod_ =
+            TlsHubProfile.DISPENSER_PREFIX + CallbackMailboxes.POST_METHOD;
+
+        public SampXmlRpcClient createClient( URL endpoint )
+                throws IOException {
+            final SampXmlRpcClient base = new InternalClient( endpoint );
+            return new SampXmlRpcClient() {
+                public Object callAndWait( String method, List params )
+                        throws IOException {
+                    if ( failPosts_ && postMethod_.equals( method ) ) {
+                        throw new IOException( "Test post failure" );
+                    }
+                    return base.callAndWait( method, params );
+                }
+                public void callAndForget( String method, List params )
+                        throws IOException {
+                    base.callAndForget( method, params );
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.astrogrid.samp.tls;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tests the bucket bookkeeping of {@link RelayAdmission}.
+ * It checks that a host over its limit does not cause buckets to be
+ * created for the Origin values it supplies, and that the number
+ * of buckets tracked stays bounded however many Origins are seen.
+ *
+ * <p>Usage: <code>RelayAdmissionTest</code>;
+ * exits with a non-zero status on failure.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RelayAdmissionTest {
+
+    private static final String METHOD =
+        TlsHubProfile.COLLECTOR_PREFIX + "ping";
+    private static final List PARAMS = Collections.singletonList( "tag" );
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.WARNING );
+        try {
+            testHostCheckedFirst();
+            testBucketsBounded();
+        }
+        catch ( Throwable e ) {
+            e.printStackTrace();
+            System.exit( 1 );
+        }
+        System.out.println( "RelayAdmissionTest: ok" );
+        System.exit( 0 );
+    }
+
+    /**
+     * Checks that calls refused by the host limit do not create
+     * Origin buckets.
+     */
+    private static void testHostCheckedFirst() {
+        RelayAdmission admission =
+            new RelayAdmission( new RelayAdmission.Limits( 100, 100, 100 ),
+                                new RelayAdmission.Limits( 0.001, 2, 100 ) );
+        assertTrue( admit( admission, "h1", "https://a.org" ), "a refused" );
+        assertTrue( admit( admission, "h1", "https://b.org" ), "b refused" );
+        assertTrue( admission.getTrackedCount() == 3, "wrong count" );
+        for ( int i = 0; i < 100; i++ ) {
+            assertTrue( ! admit( admission, "h1", "https://x" + i + ".org" ),
+                        "host limit not applied" );
+        }
+        assertTrue( admission.getTrackedCount() == 3,
+                    "buckets created for rejected host" );
+        assertTrue( admission.getRateLimitedCount() == 100, "wrong count" );
+    }
+
+    /**
+     * Checks that once the bucket table is full, further Origins
+     * share a single bucket rather than each getting a new one.
+     */
+    private static void testBucketsBounded() {
+        RelayAdmission admission =
+            new RelayAdmission( new RelayAdmission.Limits( 0.001, 1, 1 ),
+                                null );
+        int n = 10000;
+        int nAdmitted = 0;
+        for ( int i = 0; i < n; i++ ) {
+            if ( admit( admission, "h1", "https://x" + i + ".org" ) ) {
+                nAdmitted++;
+            }
+        }
+        int nTracked = admission.getTrackedCount();
+        assertTrue( nTracked < n / 2, "too many buckets: " + nTracked );
+        assertTrue( nAdmitted == nTracked + 1,
+                    "overflow bucket not shared: " + nAdmitted );
+    }
+
+    /**
+     * Submits a call to an admission controller.  Any ticket issued
+     * is not released, so the call remains pending.
+     *
+     * @param  admission  admission controller
+     * @param  hostname   requesting host
+     * @param  origin    Origin header value
+     * @return  true iff the call was admitted
+     */
+    private static boolean admit( RelayAdmission admission, String hostname,
+                                  final String origin ) {
+        HttpRequestFormat reqFormat = new HttpRequestFormat() {
+            public String getHostName( Object reqInfo ) {
+                return null;
+            }
+            public String getHeader( Object reqInfo, String headerName ) {
+                return "Origin".equalsIgnoreCase( headerName ) ? origin
+                                                               : null;
+            }
+        };
+        try {
+            admission.admit( METHOD, PARAMS, hostname, reqFormat, null );
+            return true;
+        }
+        catch ( RelayAdmission.RejectedException e ) {
+            return false;
+        }
+    }
+
+    private static void assertTrue( boolean test, String msg ) {
+        if ( ! test ) {
+            throw new AssertionError( msg );
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package org.astrogrid.samp.tls;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astrogrid.samp.xmlrpc.SampXmlRpcClient;
+import org.astrogrid.samp.xmlrpc.internal.InternalClient;
+
+/**
+ * Tests {@link RelayCluster} by running several nodes in this JVM.
+ * It checks that a call completes when its submission, collection and
+ * result arrive at different nodes, that all nodes agree on tag owners
+ * and give all the tags of a session the same owner, that batch
+ * requests naming tags with different owners are split and merged
+ * in order, and that forwarded requests with the wrong secret
+ * are refused.
+ *
+ * <p>Usage: <code>RelayClusterTest</code>;
+ * exits with a non-zero status on failure.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RelayClusterTest {
+
+    private static final int N_NODE = 3;
+    private static final String SECRET = "test-secret";
+    private static final String SUBMIT_METHOD =
+        TlsHubProfile.COLLECTOR_PREFIX + "getMetadata";
+    private static final String DISPENSER_PREFIX =
+        TlsHubProfile.DISPENSER_PREFIX;
+
+    private final URL[] urls_;
+    private final RelayCluster[] nodes_;
+    private final NioRelayServer[] servers_;
+    private final SampXmlRpcClient[] clients_;
+    private final ExecutorService executor_;
+
+    /**
+     * Constructor.  Starts the nodes.
+     */
+    private RelayClusterTest() throws Exception {
+        urls_ = new URL[ N_NODE ];
+        for ( int i = 0; i < N_NODE; i++ ) {
+            urls_[ i ] = new URL( "http://localhost:" + getFreePort()
+                                + "/xmlrpc" );
+        }
+        nodes_ = new RelayCluster[ N_NODE ];
+        servers_ = new NioRelayServer[ N_NODE ];
+        clients_ = new SampXmlRpcClient[ N_NODE ];
+        for ( int i = 0; i < N_NODE; i++ ) {
+            nodes_[ i ] =
+                new RelayCluster( StandaloneServer.getRequestFormat(), true,
+                                  urls_[ i ], urls_, SECRET,
+                                  new RelayClientFactory() );
+            servers_[ i ] =
+                new NioRelayServer( urls_[ i ].getPort(), "/xmlrpc", null,
+                                    new AsyncXmlRpcHandler[] {
+                                        nodes_[ i ].getReceiveHandler(),
+                                        nodes_[ i ].getDispenseHandler(),
+                                        nodes_[ i ].getNodeHandler(),
+                                    }, 2 );
+            servers_[ i ].start();
+            clients_[ i ] = new InternalClient( urls_[ i ] );
+        }
+        executor_ = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        Logger.getLogger( "org.astrogrid.samp" ).setLevel( Level.SEVERE );
+        RelayClusterTest test = new RelayClusterTest();
+        try {
+            test.testOwners();
+            test.testCrossNodeCalls();
+            test.testSession();
+            test.testBatchMerge();
+            test.testBadSecret();
+        }
+        catch ( Throwable e ) {
+            e.printStackTrace();
+            System.exit( 1 );
+        }
+        finally {
+            test.close();
+        }
+        System.out.println( "RelayClusterTest: ok" );
+        System.exit( 0 );
+    }
+
+    /**
+     * Checks that all nodes agree on tag owners, that every node owns
+     * some tags, and that session tags are owned by the session's owner.
+     */
+    private void testOwners() {
+        Set<URL> owners = new HashSet<URL>();
+        for ( int k = 0; k < 100; k++ ) {
+            String tag = "localhost:o" + k;
+            URL owner = nodes_[ 0 ].getOwner( tag );
+            for ( int i = 1; i < N_NODE; i++ ) {
+                assertTrue( owner.equals( nodes_[ i ].getOwner( tag ) ),
+                            "nodes disagree on owner of " + tag );
+            }
+            owners.add( owner );
+
+            String session = "localhost:s" + k;
+            URL sessOwner = nodes_[ 0 ].getOwner( session );
+            for ( int j = 0; j < 4; j++ ) {
+                String sessTag = session + TlsHubProfile.SESSION_SEP + j;
+                assertTrue( sessOwner.equals( nodes_[ j % N_NODE ]
+                                             .getOwner( sessTag ) ),
+                            "session tag " + sessTag + " not with session" );
+            }
+        }
+        assertTrue( owners.size() == N_NODE, "not all nodes own tags" );
+    }
+
+    /**
+     * Checks calls whose submission, collection and result each
+     * arrive at a different node, so that at least two of them
+     * must be forwarded to the owner.
+     */
+    private void testCrossNodeCalls() throws Exception {
+        for ( int k = 0; k < 12; k++ ) {
+            String tag = "localhost:t" + k;
+            Future<Object> submitted = submit( k % N_NODE, tag );
+            Object pulled =
+                clients_[ ( k + 1 ) % N_NODE ]
+               .callAndWait( DISPENSER_PREFIX + "pullCall",
+                             Arrays.asList( new Object[] { tag, "5" } ) );
+            assertTrue( tag.equals( getCallTag( pulled ) ),
+                        "wrong call pulled for " + tag );
+            clients_[ ( k + 2 ) % N_NODE ]
+               .callAndWait( DISPENSER_PREFIX + "receiveResult",
+                             Arrays.asList( new Object[] {
+                                 tag, createResult( tag ) } ) );
+            assertTrue( getValue( tag ).equals( get( submitted ) ),
+                        "wrong result for " + tag );
+        }
+    }
+
+    /**
+     * Checks that a session poll at one node collects a session call
+     * submitted at another.
+     */
+    private void testSession() throws Exception {
+        String session = "localhost:sess1";
+        int iOwner = Arrays.asList( urls_ )
+                    .indexOf( nodes_[ 0 ].getOwner( session ) );
+        int iPoll = ( iOwner + 1 ) % N_NODE;
+        int iSubmit = ( iOwner + 2 ) % N_NODE;
+        final SampXmlRpcClient pollClient = clients_[ iPoll ];
+        final List<?> pollParams =
+            Arrays.asList( new Object[] { session, "5" } );
+        Future<Object> poll = executor_.submit( new Callable<Object>() {
+            public Object call() throws IOException {
+                return pollClient
+                      .callAndWait( DISPENSER_PREFIX + "pullSessionCalls",
+                                    pollParams );
+            }
+        } );
+        Thread.sleep( 200 );
+        String tag = session + TlsHubProfile.SESSION_SEP + "c1";
+        Future<Object> submitted = submit( iSubmit, tag );
+        List polled = (List) get( poll );
+        assertTrue( polled.size() == 1 &&
+                    tag.equals( getCallTag( polled.get( 0 ) ) ),
+                    "session call not polled" );
+        clients_[ iOwner ]
+           .callAndWait( DISPENSER_PREFIX + "receiveResult",
+                         Arrays.asList( new Object[] {
+                             tag, createResult( tag ) } ) );
+        assertTrue( getValue( tag ).equals( get( submitted ) ),
+                    "wrong session result" );
+    }
+
+    /**
+     * Checks that batch pulls and results naming tags with several
+     * owners are split between them and merged back in order,
+     * with a failed entry reported in its own position.
+     */
+    private void testBatchMerge() throws Exception {
+        List<String> tags = new ArrayList<String>();
+        Set<URL> owners = new HashSet<URL>();
+        List<Future<Object>> submissions = new ArrayList<Future<Object>>();
+        for ( int k = 0; k < 8; k++ ) {
+            String tag = "localhost:b" + k;
+            tags.add( tag );
+            owners.add( nodes_[ 0 ].getOwner( tag ) );
+            submissions.add( submit( k % N_NODE, tag ) );
+        }
+        assertTrue( owners.size() > 1, "batch has only one owner" );
+
+        List pulled =
+            (List) clients_[ 1 ]
+                  .callAndWait( DISPENSER_PREFIX + "pullCalls",
+                                Arrays.asList( new Object[] {
+                                    tags, "5" } ) );
+        assertTrue( pulled.size() == tags.size(), "wrong pull count" );
+        for ( int k = 0; k < tags.size(); k++ ) {
+            assertTrue( tags.get( k ).equals( getCallTag( pulled.get( k ) ) ),
+                        "pulled calls out of order at " + k );
+        }
+
+        int iBad = 3;
+        List<Object> entries = new ArrayList<Object>();
+        for ( String tag : tags ) {
+            Map<String,Object> entry = new HashMap<String,Object>();
+            entry.put( TlsHubProfile.BATCH_TAG_KEY, tag );
+            entry.put( TlsHubProfile.BATCH_RESULT_KEY, createResult( tag ) );
+            entries.add( entry );
+        }
+        Map<String,Object> badEntry = new HashMap<String,Object>();
+        badEntry.put( TlsHubProfile.BATCH_TAG_KEY, "localhost:nosuch" );
+        entries.add( iBad, badEntry );
+        List statuses =
+            (List) clients_[ 2 ]
+                  .callAndWait( DISPENSER_PREFIX + "receiveResults",
+                                Arrays.asList( new Object[] { entries } ) );
+        assertTrue( statuses.size() == entries.size(), "wrong status count" );
+        for ( int i = 0; i < statuses.size(); i++ ) {
+            boolean isOk = "".equals( statuses.get( i ) );
+            assertTrue( isOk == ( i != iBad ),
+                        "wrong status at " + i + ": " + statuses.get( i ) );
+        }
+        for ( int k = 0; k < tags.size(); k++ ) {
+            assertTrue( getValue( tags.get( k ) )
+                       .equals( get( submissions.get( k ) ) ),
+                        "wrong batch result for " + tags.get( k ) );
+        }
+    }
+
+    /**
+     * Checks that a node refuses forwarded requests with the wrong secret.
+     */
+    private void testBadSecret() throws Exception {
+        List<?> params = Arrays.asList( new Object[] {
+            "wrong-" + SECRET, DISPENSER_PREFIX + "ping", "localhost",
+            new HashMap(), new ArrayList(),
+        } );
+        try {
+            clients_[ 0 ].callAndWait( RelayCluster.NODE_PREFIX + "forward",
+                                       params );
+            throw new AssertionError( "bad secret accepted" );
+        }
+        catch ( IOException e ) {
+            // expected
+        }
+    }
+
+    /**
+     * Stops the nodes.
+     */
+    private void close() {
+        executor_.shutdownNow();
+        for ( int i = 0; i < N_NODE; i++ ) {
+            servers_[ i ].stop();
+            nodes_[ i ].close();
+        }
+    }
+
+    /**
+     * Submits a call to a node, and waits for its result
+     * in another thread.
+     *
+     * @param  iNode  index of submitting node
+     * @param  tag    call tag
+     * @return  future for the call result
+     */
+    private Future<Object> submit( int iNode, String tag ) {
+        final SampXmlRpcClient client = clients_[ iNode ];
+        final List<?> params = Arrays.asList( new Object[] { tag, "k", "c1" } );
+        return executor_.submit( new Callable<Object>() {
+            public Object call() throws IOException {
+                return client.callAndWait( SUBMIT_METHOD, params );
+            }
+        } );
+    }
+
+    /**
+     * Returns the call tag of a pulled call.
+     *
+     * @param  pulled  SampCall map
+     * @return  first call parameter, or null
+     */
+    private static String getCallTag( Object pulled ) {
+        if ( pulled instanceof Map ) {
+            Object params = ( (Map) pulled ).get( "samp.params" );
+            if ( params instanceof List && ! ( (List) params ).isEmpty() ) {
+                return String.valueOf( ( (List) params ).get( 0 ) );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a success result for a given call tag.
+     */
+    private static Map<String,Object> createResult( String tag ) {
+        Map<String,Object> result = new HashMap<String,Object>();
+        result.put( "samp.value", getValue( tag ) );
+        return result;
+    }
+
+    /**
+     * Returns the result value used for a given call tag.
+     */
+    private static String getValue( String tag ) {
+        return "value-" + tag;
+    }
+
+    /**
+     * Waits for a future.
+     */
+    private static Object get( Future<Object> future ) throws Exception {
+        return future.get( 10, TimeUnit.SECONDS );
+    }
+
+    /**
+     * Returns a currently unused port number.
+     */
+    private static int getFreePort() throws IOException {
+        ServerSocket sock = new ServerSocket( 0 );
+        int port = sock.getLocalPort();
+        sock.close();
+        return port;
+    }
+
+    private static void assertTrue( boolean test, String msg ) {
+        if ( ! test ) {
+            throw new AssertionError( msg );
+        }
+    }
+}
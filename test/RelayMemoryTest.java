@@ -0,0 +1,180 @@
+package org.astrogrid.samp.tls;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import org.astrogrid.samp.xmlrpc.internal.XmlRpcCall;
+
+/**
+ * Tests {@link RelayMemory}'s spilling of large undecoded call parameters.
+ * In particular, it checks that once a large value has been spilled,
+ * the request body from which the call was decoded is no longer
+ * reachable from the parameter list, so that its heap can be reclaimed,
+ * and that releasing the call's reservation disposes of the spill file.
+ *
+ * <p>Usage: <code>RelayMemoryTest</code>;
+ * exits with a non-zero status on failure.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RelayMemoryTest {
+
+    private static final int THRESHOLD = 64 * 1024;
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        try {
+            testSpillReleasesBody();
+            testNoSpillUnchanged();
+            testReleaseClosesSpill();
+        }
+        catch ( Throwable e ) {
+            e.printStackTrace();
+            System.exit( 1 );
+        }
+        System.out.println( "RelayMemoryTest: ok" );
+        System.exit( 0 );
+    }
+
+    /**
+     * Checks that after a spill the body array can be garbage collected,
+     * and that the parameter values are unchanged.
+     */
+    private static void testSpillReleasesBody() throws Exception {
+        RelayMemory memory =
+            new RelayMemory( Long.MAX_VALUE, Long.MAX_VALUE, 1.0,
+                             THRESHOLD, null );
+        byte[] body = createBody( 4 * THRESHOLD );
+        WeakReference<byte[]> bodyRef = new WeakReference<byte[]>( body );
+        List params = decodeParams( body );
+        body = null;
+        assertTrue( params.get( 2 ) instanceof OpaqueValue &&
+                    params.get( 3 ) instanceof OpaqueValue,
+                    "params not left undecoded" );
+        RelayMemory.Reservation resv = memory.reserve( null, params );
+        List spilled = memory.spill( params, resv );
+        params = null;
+        assertTrue( memory.getSpilledCount() == 1, "no spill" );
+        assertTrue( ((OpaqueValue) spilled.get( 2 )).isExternal(),
+                    "large value not external" );
+        assertTrue( ! ((OpaqueValue) spilled.get( 3 )).isExternal(),
+                    "small value external" );
+        for ( int i = 0; i < 20 && bodyRef.get() != null; i++ ) {
+            System.gc();
+            Thread.sleep( 50 );
+        }
+        assertTrue( bodyRef.get() == null, "body still reachable" );
+        String big = ((OpaqueValue) spilled.get( 2 )).getString();
+        assertTrue( big.length() == 4 * THRESHOLD, "large value changed" );
+        assertTrue( "small".equals( ((OpaqueValue) spilled.get( 3 ))
+                                   .getString() ),
+                    "small value changed" );
+    }
+
+    /**
+     * Checks that a parameter list with nothing to spill is returned as is.
+     */
+    private static void testNoSpillUnchanged() throws Exception {
+        RelayMemory memory =
+            new RelayMemory( Long.MAX_VALUE, Long.MAX_VALUE, 1.0,
+                             THRESHOLD, null );
+        List params = decodeParams( createBody( 16 ) );
+        assertTrue( memory.spill( params, memory.reserve( null, params ) )
+                    == params, "unspilled list copied" );
+    }
+
+    /**
+     * Checks that releasing a reservation deletes its spill files
+     * and stops counting their bytes as held.
+     */
+    private static void testReleaseClosesSpill() throws Exception {
+        File dir = File.createTempFile( "tlsamp", ".test" );
+        assertTrue( dir.delete() && dir.mkdir(), "no temp dir" );
+        try {
+            RelayMemory memory =
+                new RelayMemory( Long.MAX_VALUE, Long.MAX_VALUE, 1.0,
+                                 THRESHOLD, dir );
+            List params = decodeParams( createBody( 2 * THRESHOLD ) );
+            RelayMemory.Reservation resv = memory.reserve( null, params );
+            OpaqueValue spilled =
+                (OpaqueValue) memory.spill( params, resv ).get( 2 );
+            assertTrue( spilled.isExternal(), "large value not external" );
+            assertTrue( memory.getSpillHeldBytes() == spilled.getLength(),
+                        "held spill bytes not counted" );
+            resv.release();
+            assertTrue( memory.getSpillHeldBytes() == 0,
+                        "held spill bytes not uncounted" );
+            assertTrue( memory.getChargedBytes() == 0, "bytes still charged" );
+            assertTrue( dir.list().length == 0, "spill file not deleted" );
+            boolean isReadable;
+            try {
+                spilled.getString();
+                isReadable = true;
+            }
+            catch ( IOException e ) {
+                isReadable = false;
+            }
+            assertTrue( ! isReadable, "spill file still open" );
+        }
+        finally {
+            for ( File f : dir.listFiles() ) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Returns the bytes of an XML-RPC call with two string parameters
+     * that are decoded, one of a given size, and one small one.
+     *
+     * @param  bigLength  number of characters in the large parameter
+     * @return  UTF-8 encoded call
+     */
+    private static byte[] createBody( int bigLength ) throws Exception {
+        char[] bigChars = new char[ bigLength ];
+        Arrays.fill( bigChars, 'x' );
+        String doc = new StringBuffer()
+            .append( "<?xml version='1.0'?>\n" )
+            .append( "<methodCall><methodName>test.call</methodName>" )
+            .append( "<params>" )
+            .append( "<param><value>tag</value></param>" )
+            .append( "<param><value>key</value></param>" )
+            .append( "<param><value><string>" )
+            .append( bigChars )
+            .append( "</string></value></param>" )
+            .append( "<param><value>small</value></param>" )
+            .append( "</params></methodCall>" )
+            .toString();
+        return doc.getBytes( "UTF-8" );
+    }
+
+    /**
+     * Decodes a call body leaving all but the first two parameters
+     * undecoded.
+     *
+     * @param  body  call bytes
+     * @return  parameter list
+     */
+    private static List decodeParams( byte[] body ) throws Exception {
+        XmlRpcCall call =
+            XmlRpcDecoder.decodeCall( body, 0, body.length,
+                                      new XmlRpcDecoder.OpaquePolicy() {
+                public int getDecodedParamCount( String methodName ) {
+                    return 2;
+                }
+            } );
+        return call.getParams();
+    }
+
+    private static void assertTrue( boolean test, String msg ) {
+        if ( ! test ) {
+            throw new AssertionError( msg );
+        }
+    }
+}
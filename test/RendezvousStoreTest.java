@@ -0,0 +1,160 @@
+package org.astrogrid.samp.tls;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link RendezvousStore}.
+ * In particular, it checks that takers waiting for the same key
+ * time out independently, and that a value placed after a taker
+ * has given up waiting is still stored for later collection.
+ *
+ * <p>Usage: <code>RendezvousStoreTest</code>;
+ * exits with a non-zero status on failure.
+ *
+ * @author   Mark Taylor
+ * @since    16 Oct 2026
+ */
+public class RendezvousStoreTest {
+
+    private static final String KEY = "tag1";
+    private static final String VALUE = "value1";
+
+    /**
+     * Main method.
+     */
+    public static void main( String[] args ) throws Exception {
+        TimingWheel timer = new TimingWheel( "Test timer", 5, 64 );
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            testAsyncTakers( timer );
+            testBlockingTakers( timer, executor );
+            testAsyncTimeoutThenPut( timer );
+            testBlockingTimeoutThenPut( timer );
+            testPutThenTake( timer );
+        }
+        catch ( Throwable e ) {
+            e.printStackTrace();
+            System.exit( 1 );
+        }
+        finally {
+            executor.shutdownNow();
+            timer.stop();
+        }
+        System.out.println( "RendezvousStoreTest: ok" );
+        System.exit( 0 );
+    }
+
+    /**
+     * Checks that a short-lived asynchronous taker timing out does not
+     * affect a longer-lived one for the same key.
+     */
+    private static void testAsyncTakers( TimingWheel timer )
+            throws Exception {
+        RendezvousStore<String,String> store =
+            new RendezvousStore<String,String>( timer );
+        CompletableFuture<String> shortTaker = store.takeAsync( KEY, 100 );
+        CompletableFuture<String> longTaker = store.takeAsync( KEY, 5000 );
+        assertTrue( shortTaker.get( 2, TimeUnit.SECONDS ) == null,
+                    "short taker got value" );
+        Thread.sleep( 100 );
+        assertTrue( ! longTaker.isDone(), "long taker finished early" );
+        assertTrue( store.putNew( KEY, VALUE ), "put refused" );
+        assertTrue( VALUE.equals( longTaker.get( 2, TimeUnit.SECONDS ) ),
+                    "long taker did not get value" );
+        assertTrue( store.takeNow( KEY ) == null, "value taken twice" );
+    }
+
+    /**
+     * Checks that blocking takers with different timeouts for the same
+     * key time out independently.
+     */
+    private static void testBlockingTakers( TimingWheel timer,
+                                            ExecutorService executor )
+            throws Exception {
+        RendezvousStore<String,String> store =
+            new RendezvousStore<String,String>( timer );
+        Future<String> shortTaker =
+            executor.submit( createTaker( store, 100 ) );
+        Future<String> longTaker =
+            executor.submit( createTaker( store, 5000 ) );
+        assertTrue( shortTaker.get( 2, TimeUnit.SECONDS ) == null,
+                    "short taker got value" );
+        Thread.sleep( 100 );
+        assertTrue( ! longTaker.isDone(), "long taker finished early" );
+        assertTrue( store.putNew( KEY, VALUE ), "put refused" );
+        assertTrue( VALUE.equals( longTaker.get( 2, TimeUnit.SECONDS ) ),
+                    "long taker did not get value" );
+    }
+
+    /**
+     * Checks that a value put after an asynchronous taker has timed out
+     * is stored and can be taken later.
+     */
+    private static void testAsyncTimeoutThenPut( TimingWheel timer )
+            throws Exception {
+        RendezvousStore<String,String> store =
+            new RendezvousStore<String,String>( timer );
+        assertTrue( store.takeAsync( KEY, 50 ).get( 2, TimeUnit.SECONDS )
+                    == null, "taker got value" );
+        assertTrue( store.putNew( KEY, VALUE ), "put refused" );
+        assertTrue( ! store.putNew( KEY, "other" ), "second put accepted" );
+        assertTrue( VALUE.equals( store.takeAsync( KEY, 1000 )
+                                       .get( 2, TimeUnit.SECONDS ) ),
+                    "later taker did not get value" );
+    }
+
+    /**
+     * Checks that a value put after a blocking taker has timed out
+     * is stored and can be taken later.
+     */
+    private static void testBlockingTimeoutThenPut( TimingWheel timer )
+            throws Exception {
+        RendezvousStore<String,String> store =
+            new RendezvousStore<String,String>( timer );
+        assertTrue( store.take( KEY, 50 ) == null, "taker got value" );
+        assertTrue( store.putNew( KEY, VALUE ), "put refused" );
+        assertTrue( VALUE.equals( store.take( KEY, 1000 ) ),
+                    "later taker did not get value" );
+    }
+
+    /**
+     * Checks the basic put then take sequence, and that an untaken
+     * value can be removed.
+     */
+    private static void testPutThenTake( TimingWheel timer )
+            throws Exception {
+        RendezvousStore<String,String> store =
+            new RendezvousStore<String,String>( timer );
+        assertTrue( store.putNew( KEY, VALUE ), "put refused" );
+        assertTrue( VALUE.equals( store.takeNow( KEY ) ), "take failed" );
+        assertTrue( store.putNew( KEY, VALUE ), "put refused" );
+        assertTrue( store.removeUntakenAsync( KEY, 50 )
+                         .get( 2, TimeUnit.SECONDS ).booleanValue(),
+                    "untaken value not removed" );
+        assertTrue( store.takeNow( KEY ) == null, "removed value taken" );
+    }
+
+    /**
+     * Returns a task that makes a blocking take from a store.
+     */
+    private static Callable<String>
+            createTaker( final RendezvousStore<String,String> store,
+                         final long waitMillis ) {
+        return new Callable<String>() {
+            public String call() throws InterruptedException {
+                return store.take( KEY, waitMillis );
+            }
+        };
+    }
+
+    private static void assertTrue( boolean test, String msg ) {
+        if ( ! test ) {
+            throw new AssertionError( msg );
+        }
+    }
+}
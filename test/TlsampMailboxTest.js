@@ -0,0 +1,121 @@
+// TlsampMailboxTest
+// -----------------
+// Tests the callback mailbox handling of Connection.setCallable
+// in tlsamp.js, in particular the fallback to polling the hub for
+// callbacks when a mailbox stops working.  The hub is faked by
+// replacing XmlRpcClient.prototype.execute, so no network is used.
+//
+// Usage: node TlsampMailboxTest.js <path-to-tlsamp.js>
+// Exits with a non-zero status on failure.
+
+var fs = require("fs");
+var vm = require("vm");
+
+vm.runInThisContext(fs.readFileSync(process.argv[2], "utf8"));
+
+// Fake hub.  Each entry in the replies object maps a method name,
+// without prefix, to a list of replies given in turn to calls of that
+// method: {result: value} or {error: message}.  Methods without a
+// reply left never answer, like a long poll still waiting.
+// The calls array records the unprefixed method names in call order.
+var calls;
+var replies;
+samp.XmlRpcClient.prototype.execute = function(req, resultHandler,
+                                               errHandler) {
+    var name = req.methodName.replace(/^samp\.(webhub|tlshub)\./, "");
+    calls.push(name);
+    var queue = replies[name];
+    var reply = queue && queue.shift();
+    if (reply) {
+        if ("error" in reply) {
+            errHandler(new Error(reply.error));
+        }
+        else {
+            resultHandler(reply.result);
+        }
+    }
+};
+
+var count = function(name) {
+    var n = 0;
+    var i;
+    for (i = 0; i < calls.length; i++) {
+        if (calls[i] === name) {
+            n++;
+        }
+    }
+    return n;
+};
+
+var nFail = 0;
+var check = function(label, test) {
+    if (!test) {
+        console.log("FAIL: " + label + " (calls: " + calls.join(",") + ")");
+        nFail++;
+    }
+};
+
+// Registers with the fake hub, installs a callable client with the
+// given replies scripted, and returns the number of times the
+// setCallable successHandler was called.
+var runScenario = function(scriptedReplies) {
+    calls = [];
+    replies = scriptedReplies;
+    replies.register = [{result: {"samp.private-key": "k1"}}];
+    var profile = {endpoint: "http://localhost/", callbackMailbox: true};
+    var nSuccess = 0;
+    samp.register("test", function(conn) {
+        conn.setCallable(new samp.CallableClient({}), function() {
+            nSuccess++;
+        });
+    }, function(err) {
+        check("register failed: " + err, false);
+    }, profile);
+    return nSuccess;
+};
+
+// Mailbox refused at the outset: poll the hub as usual.
+var nSuccess = runScenario({
+    openMailbox: [{error: "no mailboxes here"}],
+    allowReverseCallbacks: [{result: ""}]
+});
+check("refused: successHandler called once", nSuccess === 1);
+check("refused: hub polled", count("pullCallbacks") === 1);
+
+// Mailbox works.
+nSuccess = runScenario({
+    openMailbox: [{result: "mb1"}]
+});
+check("mailbox: successHandler called once", nSuccess === 1);
+check("mailbox: mailbox polled", count("pullMailbox") === 1);
+check("mailbox: hub not polled", count("pullCallbacks") === 0);
+
+// Mailbox discarded, and reopening it refused: fall back to polling
+// the hub, without calling successHandler a second time.
+nSuccess = runScenario({
+    openMailbox: [{result: "mb1"}, {error: "no mailboxes here"}],
+    pullMailbox: [{error: "unknown mailbox"}],
+    allowReverseCallbacks: [{result: ""}]
+});
+check("reopen refused: successHandler called once", nSuccess === 1);
+check("reopen refused: callbacks allowed once",
+      count("allowReverseCallbacks") === 1);
+check("reopen refused: hub polled", count("pullCallbacks") === 1);
+
+// Mailbox discarded, reopened, and the new one fails as well:
+// fall back in the same way.
+nSuccess = runScenario({
+    openMailbox: [{result: "mb1"}, {result: "mb2"}],
+    pullMailbox: [{error: "unknown mailbox"}, {error: "unknown mailbox"}],
+    allowReverseCallbacks: [{result: ""}]
+});
+check("reopen failed: successHandler called once", nSuccess === 1);
+check("reopen failed: mailbox reopened once", count("openMailbox") === 2);
+check("reopen failed: callbacks allowed once",
+      count("allowReverseCallbacks") === 1);
+check("reopen failed: hub polled", count("pullCallbacks") === 1);
+
+if (nFail > 0) {
+    process.exit(1);
+}
+console.log("TlsampMailboxTest: ok");